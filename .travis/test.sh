@@ -57,6 +57,7 @@ sync
 unmount_file_system "/tmp/mnt-volume1"
 stop_paciofs_server "${paciofs_server_pid}"
 rm -rf /tmp/paciofs-data-dir
+rm -rf /tmp/paciofs-state-dir
 
 # restart server
 mvn --projects paciofs-server exec:java@run-server &
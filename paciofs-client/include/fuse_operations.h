@@ -39,6 +39,8 @@ int PfsRead(const char *path, char *buf, size_t size, off_t offset,
 int PfsWrite(const char *path, const char *buf, size_t size, off_t offset,
              struct fuse_file_info *fi);
 
+int PfsRelease(const char *path, struct fuse_file_info *fi);
+
 int PfsReadDir(const char *path, void *buf, fuse_fill_dir_t filler,
                off_t offset, struct fuse_file_info *fi);
 
@@ -59,6 +59,8 @@ class PosixIoRpcClient : public paciofs::grpc::RpcClient<PosixIoService> {
                         google::protobuf::uint64 fh,
                         google::protobuf::uint32& n);
 
+  messages::Errno Release(std::string const& path, google::protobuf::uint64 fh);
+
   messages::Errno ReadDir(std::string const& path,
                           std::vector<messages::Dir>& dirs);
 
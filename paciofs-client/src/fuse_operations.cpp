@@ -60,7 +60,7 @@ void InitializeFuseOperations(
   operations.write = PfsWrite;
   operations.statfs = nullptr;
   operations.flush = nullptr;
-  operations.release = nullptr;
+  operations.release = PfsRelease;
   operations.fsync = nullptr;
   operations.setxattr = nullptr;
   operations.getxattr = nullptr;
@@ -223,6 +223,19 @@ int PfsWrite(const char *path, const char *buf, size_t size, off_t offset,
   return n;
 }
 
+int PfsRelease(const char *path, struct fuse_file_info *fi) {
+  namespace messages = paciofs::io::posix::grpc::messages;
+
+  // the return value is ignored by FUSE
+  messages::Errno error = g_context.rpc_client->Release(path, fi->fh);
+
+  if (error != messages::ERRNO_ESUCCESS) {
+    return -TO_NATIVE_ERRNO(error);
+  }
+
+  return 0;
+}
+
 int PfsReadDir(const char *path, void *buf, fuse_fill_dir_t filler,
                off_t offset, struct fuse_file_info *fi) {
   namespace messages = paciofs::io::posix::grpc::messages;
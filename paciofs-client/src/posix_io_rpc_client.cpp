@@ -392,6 +392,38 @@ messages::Errno PosixIoRpcClient::Write(std::string const &path,
   }
 }
 
+messages::Errno PosixIoRpcClient::Release(std::string const &path,
+                                          google::protobuf::uint64 fh) {
+  ReleaseRequest request;
+  request.set_path(PreparePath(path));
+  request.set_fh(fh);
+  logger_.Trace([request](auto &out) {
+    out << "Release(" << request.ShortDebugString() << ")";
+  });
+
+  ReleaseResponse response;
+  ::grpc::ClientContext context;
+  SetMetadata(context);
+  ::grpc::Status status = Stub()->Release(&context, request, &response);
+
+  if (status.ok()) {
+    logger_.Trace([request, response](auto &out) {
+      out << "Release(" << request.ShortDebugString()
+          << "): " << response.ShortDebugString();
+    });
+
+    return response.error();
+  } else {
+    logger_.Warning([request, status](auto &out) {
+      out << "Release(" << request.ShortDebugString()
+          << "): " << status.error_message() << " (" << status.error_code()
+          << ")";
+    });
+
+    return messages::ERRNO_EIO;
+  }
+}
+
 messages::Errno PosixIoRpcClient::ReadDir(std::string const &path,
                                           std::vector<messages::Dir> &dirs) {
   ReadDirRequest request;
@@ -26,14 +26,20 @@ import com.typesafe.config.ConfigFactory;
 import de.zib.paciofs.grpc.PacioFsGrpcUtil;
 import de.zib.paciofs.grpc.PacioFsServiceImpl;
 import de.zib.paciofs.grpc.PacioFsServicePowerApiHandlerFactory;
+import de.zib.paciofs.io.buffer.BufferPool;
 import de.zib.paciofs.io.posix.grpc.PosixIoServiceImpl;
 import de.zib.paciofs.io.posix.grpc.PosixIoServicePowerApiHandlerFactory;
 import de.zib.paciofs.logging.LogbackPropertyDefiners;
 import de.zib.paciofs.logging.Markers;
 import de.zib.paciofs.multichain.MultiChainClientFactory;
+import de.zib.paciofs.multichain.OwnTransactions;
+import de.zib.paciofs.multichain.UtxoPool;
+import de.zib.paciofs.multichain.UtxoReplenisher;
 import de.zib.paciofs.multichain.abstractions.MultiChainCluster;
 import de.zib.paciofs.multichain.abstractions.MultiChainFileSystem;
+import de.zib.paciofs.multichain.abstractions.MultiChainSnapshots;
 import de.zib.paciofs.multichain.actors.MultiChainActor;
+import de.zib.paciofs.multichain.rpc.MultiChainAsyncClient;
 import de.zib.paciofs.multichain.rpc.MultiChainClient;
 import de.zib.paciofs.multichain.rpc.types.BlockChainInfo;
 import de.zib.paciofs.multichain.rpc.types.MultiChainException;
@@ -102,38 +108,72 @@ public class PacioFs {
     final Cluster cluster = Cluster.get(paciofs);
     log.info("Started [{}], cluster.selfAddress = {}", paciofs, cluster.selfAddress());
 
-    // MultiChain client
-    final MultiChainClient multiChainClient = initializeMultiChainClient(paciofs);
+    // blocking work runs off the threads serving requests
+    final PacioFsExecutors executors = new PacioFsExecutors(paciofs);
+    CoordinatedShutdown.get(paciofs).addJvmShutdownHook(executors::close);
+
+    // MultiChain clients on one connection pool, the non-blocking one sends transactions
+    final MultiChainClientFactory multiChainClientFactory = new MultiChainClientFactory(
+        paciofs.settings().config().getConfig(PacioFsOptions.MULTICHAIN_CLIENT_KEY), paciofs);
+    final MultiChainClient multiChainClient =
+        initializeMultiChainClient(paciofs, multiChainClientFactory);
     waitForUtxos(multiChainClient);
+    final MultiChainAsyncClient multiChainAsyncClient = multiChainClientFactory.createAsync();
+
+    // UTXOs spent by this node, filled by the MultiChain actor, one partition per processor
+    final UtxoPool utxoPool = new UtxoPool(Runtime.getRuntime().availableProcessors());
+
+    // transactions sent by this node, so the MultiChain actor does not fetch them
+    final OwnTransactions ownTransactions =
+        new OwnTransactions(config.getInt(PacioFsOptions.OWN_TRANSACTIONS_CAPACITY_KEY));
 
     // cluster as seen by received transactions on MultiChain
-    final MultiChainCluster multiChainCluster = new MultiChainCluster(multiChainClient);
+    final MultiChainCluster multiChainCluster =
+        new MultiChainCluster(multiChainAsyncClient, utxoPool, ownTransactions);
 
     // file system as seen by received transactions on MultiChain
-    final MultiChainFileSystem multiChainFileSystem = new MultiChainFileSystem(
-        multiChainClient, multiChainCluster, config.getString(PacioFsOptions.BASE_DIR_KEY));
+    final MultiChainFileSystem multiChainFileSystem =
+        new MultiChainFileSystem(multiChainAsyncClient, utxoPool, ownTransactions,
+            multiChainCluster, config, executors.dataIo());
+    CoordinatedShutdown.get(paciofs).addJvmShutdownHook(multiChainFileSystem::close);
+
+    // restores both once on startup, and snapshots them as blocks are processed
+    final MultiChainSnapshots multiChainSnapshots =
+        new MultiChainSnapshots(config, multiChainCluster, multiChainFileSystem);
+    multiChainSnapshots.restore();
 
-    // have MultiChain react to cluster events
+    // splits UTXOs ahead of the rate at which transactions spend them
+    final UtxoReplenisher utxoReplenisher =
+        new UtxoReplenisher(multiChainClient, utxoPool, ownTransactions, config);
+
+    // have MultiChain react to cluster events, its RPC blocks so it gets a dispatcher of its own
     paciofs.actorOf(
-        MultiChainActor.props(multiChainClient, multiChainCluster, multiChainFileSystem),
+        MultiChainActor
+            .props(multiChainClient, multiChainAsyncClient, utxoReplenisher, ownTransactions,
+                config.getDuration(PacioFsOptions.MEMPOOL_INTERVAL_KEY), multiChainSnapshots,
+                multiChainCluster, multiChainFileSystem)
+            .withDispatcher(PacioFsOptions.DISPATCHERS_CHAIN_RPC_KEY),
         "multichain");
 
     // serve the default services
-    bindAndHandleAsync(Http.get(paciofs), config, paciofs, multiChainFileSystem);
+    bindAndHandleAsync(Http.get(paciofs), config, paciofs, executors, multiChainFileSystem);
   }
 
   /* Utility functions */
 
-  private static void bindAndHandleAsync(
-      Http http, Config config, ActorSystem system, MultiChainFileSystem multiChainFileSystem) {
+  private static void bindAndHandleAsync(Http http, Config config, ActorSystem system,
+      PacioFsExecutors executors, MultiChainFileSystem multiChainFileSystem) {
     final Materializer materializer = ActorMaterializer.create(system);
 
     // concat the handlers
     final List<Function<HttpRequest, CompletionStage<HttpResponse>>> handlers = new ArrayList<>();
     handlers.add(PacioFsServicePowerApiHandlerFactory.create(
-        new PacioFsServiceImpl(multiChainFileSystem), materializer, system));
+        new PacioFsServiceImpl(multiChainFileSystem, executors.metadata()), materializer, system));
     handlers.add(PosixIoServicePowerApiHandlerFactory.create(
-        new PosixIoServiceImpl(multiChainFileSystem), materializer, system));
+        new PosixIoServiceImpl(multiChainFileSystem, initializeBufferPool(config),
+            config.getBytes(PacioFsOptions.IO_READ_STREAM_CHUNK_SIZE_KEY).intValue(),
+            executors.metadata(), executors.dataIo(), materializer),
+        materializer, system));
     final Function<HttpRequest, CompletionStage<HttpResponse>> combinedHandler =
         ServiceHandler.concatOrNotFound(JavaConverters.collectionAsScalaIterable(handlers).toSeq());
 
@@ -172,6 +212,14 @@ public class PacioFs {
     }
   }
 
+  private static BufferPool initializeBufferPool(Config config) {
+    return new BufferPool(
+        config.getBytes(PacioFsOptions.IO_BUFFER_POOL_MAX_BUFFER_SIZE_KEY).intValue(),
+        config.getInt(PacioFsOptions.IO_BUFFER_POOL_MAX_POOLED_KEY),
+        config.getInt(PacioFsOptions.IO_BUFFER_POOL_THREAD_LOCAL_KEY),
+        config.getBoolean(PacioFsOptions.IO_BUFFER_POOL_LEAK_TRACKING_KEY));
+  }
+
   private static void initializeAkkaLogging(ActorSystem system) {
     final Config config = system.settings().config();
 
@@ -195,10 +243,9 @@ public class PacioFs {
     log = LoggerFactory.getLogger(PacioFs.class);
   }
 
-  private static MultiChainClient initializeMultiChainClient(ActorSystem system) {
-    final MultiChainClient multiChainClient = new MultiChainClientFactory(
-        system.settings().config().getConfig(PacioFsOptions.MULTICHAIN_CLIENT_KEY))
-                                                  .create();
+  private static MultiChainClient initializeMultiChainClient(
+      ActorSystem system, MultiChainClientFactory factory) {
+    final MultiChainClient multiChainClient = factory.create();
 
     // shut down MultiChain client before the actor system
     CoordinatedShutdown.get(system).addJvmShutdownHook(multiChainClient::stop);
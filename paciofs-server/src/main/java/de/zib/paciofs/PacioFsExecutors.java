@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs;
+
+import akka.actor.ActorSystem;
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where blocking work runs, separated by kind so that one kind cannot starve the others: file
+ * system metadata operations, reads and writes of file data, and RPC to MultiChain. Each kind has
+ * its own bounded Akka dispatcher, so a slow MultiChain call does not stall unrelated reads, and
+ * none of them blocks the threads Akka HTTP serves requests on. Optionally, metadata operations and
+ * file data are handled on virtual threads instead, where the JVM supports them. Actors calling
+ * MultiChain always run on the dispatcher {@link PacioFsOptions#DISPATCHERS_CHAIN_RPC_KEY}.
+ */
+public class PacioFsExecutors implements Closeable {
+  /**
+   * How metadata operations and file data are executed.
+   */
+  public enum Mode {
+    DISPATCHERS,
+    VIRTUAL_THREADS;
+
+    /**
+     * Parses a mode as used in the configuration.
+     * @param name dispatchers or virtual-threads, case-insensitive
+     * @return the mode
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static Mode parse(String name) {
+      switch (name.toLowerCase(Locale.ROOT)) {
+        case "dispatchers":
+          return DISPATCHERS;
+        case "virtual-threads":
+          return VIRTUAL_THREADS;
+        default:
+          throw new IllegalArgumentException("Unknown execution mode " + name);
+      }
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(PacioFsExecutors.class);
+
+  private final Executor metadata;
+
+  private final Executor dataIo;
+
+  // null unless virtual threads are used
+  private final ExecutorService virtualThreads;
+
+  /**
+   * Looks up the dispatchers, or creates the virtual thread executor.
+   * @param system the actor system whose configuration contains the dispatchers
+   */
+  public PacioFsExecutors(ActorSystem system) {
+    final Mode mode =
+        Mode.parse(system.settings().config().getString(PacioFsOptions.DISPATCHERS_MODE_KEY));
+
+    this.virtualThreads = mode == Mode.VIRTUAL_THREADS ? newVirtualThreadPerTaskExecutor() : null;
+    if (this.virtualThreads != null) {
+      this.metadata = this.virtualThreads;
+      this.dataIo = this.virtualThreads;
+    } else {
+      this.metadata = system.dispatchers().lookup(PacioFsOptions.DISPATCHERS_METADATA_KEY);
+      this.dataIo = system.dispatchers().lookup(PacioFsOptions.DISPATCHERS_DATA_IO_KEY);
+    }
+  }
+
+  /**
+   * Gets the executor for operations on inodes and file handles, which may send transactions.
+   * @return the executor
+   */
+  public Executor metadata() {
+    return this.metadata;
+  }
+
+  /**
+   * Gets the executor for reading and writing file data, including read-ahead.
+   * @return the executor
+   */
+  public Executor dataIo() {
+    return this.dataIo;
+  }
+
+  /**
+   * Stops the virtual thread executor, if any. The dispatchers are stopped with the actor system.
+   */
+  @Override
+  public void close() {
+    if (this.virtualThreads != null) {
+      this.virtualThreads.shutdown();
+    }
+  }
+
+  // looked up reflectively, virtual threads need Java 21 but we are compiled for earlier releases
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      final ExecutorService executor = (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+      LOG.info("Executing file system operations on virtual threads");
+      return executor;
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      LOG.warn("Virtual threads are not available ({}), using dispatchers", e.toString());
+      return null;
+    }
+  }
+}
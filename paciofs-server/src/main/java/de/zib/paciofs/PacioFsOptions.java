@@ -8,8 +8,29 @@
 package de.zib.paciofs;
 
 public class PacioFsOptions {
+  public static final String ATTESTATION_EPOCH_MAX_DELAY_KEY =
+      "paciofs.attestation.epoch.max-delay";
+  public static final String ATTESTATION_EPOCH_MAX_WRITES_KEY =
+      "paciofs.attestation.epoch.max-writes";
+  public static final String ATTESTATION_EPOCH_RETAINED_WRITES_KEY =
+      "paciofs.attestation.epoch.retained-writes";
+  public static final String ATTESTATION_JOURNAL_KEY = "paciofs.attestation.journal";
+  public static final String ATTESTATION_MANIFESTS_KEY = "paciofs.attestation.manifests";
+  public static final String ATTESTATION_MODE_KEY = "paciofs.attestation.mode";
+
   public static final String BASE_DIR_KEY = "paciofs.base-dir";
 
+  public static final String DISPATCHERS_CHAIN_RPC_KEY = "paciofs.dispatchers.chain-rpc";
+  public static final String DISPATCHERS_DATA_IO_KEY = "paciofs.dispatchers.data-io";
+  public static final String DISPATCHERS_METADATA_KEY = "paciofs.dispatchers.metadata";
+  public static final String DISPATCHERS_MODE_KEY = "paciofs.dispatchers.mode";
+
+  public static final String GROUP_COMMIT_MAX_BYTES_KEY = "paciofs.group-commit.max-bytes";
+
+  public static final String GROUP_COMMIT_MAX_DELAY_KEY = "paciofs.group-commit.max-delay";
+
+  public static final String GROUP_COMMIT_MAX_RECORDS_KEY = "paciofs.group-commit.max-records";
+
   public static final String HTTP_BIND_HOSTNAME_KEY = "paciofs.http.bind-hostname";
   public static final String HTTP_BIND_PORT_KEY = "paciofs.http.bind-port";
 
@@ -21,7 +42,66 @@ public class PacioFsOptions {
   public static final String HTTPS_SERVER_CERT_PASS_PATH_KEY =
       "paciofs.https.certs.server.pass-path";
 
+  public static final String IO_BLOCK_CACHE_BLOCK_SIZE_KEY = "paciofs.io.block-cache.block-size";
+
+  public static final String IO_BLOCK_CACHE_CAPACITY_KEY = "paciofs.io.block-cache.capacity";
+
+  public static final String IO_BLOCK_CACHE_SEGMENTS_KEY = "paciofs.io.block-cache.segments";
+
+  public static final String IO_BUFFER_POOL_LEAK_TRACKING_KEY =
+      "paciofs.io.buffer-pool.leak-tracking";
+
+  public static final String IO_BUFFER_POOL_MAX_BUFFER_SIZE_KEY =
+      "paciofs.io.buffer-pool.max-buffer-size";
+
+  public static final String IO_BUFFER_POOL_MAX_POOLED_KEY = "paciofs.io.buffer-pool.max-pooled";
+
+  public static final String IO_BUFFER_POOL_THREAD_LOCAL_KEY =
+      "paciofs.io.buffer-pool.thread-local";
+
+  public static final String IO_MAX_OPEN_FILES_KEY = "paciofs.io.max-open-files";
+
+  public static final String IO_MAX_OPEN_HANDLES_KEY = "paciofs.io.max-open-handles";
+
+  public static final String IO_READ_AHEAD_MAX_SIZE_KEY = "paciofs.io.read-ahead.max-size";
+
+  public static final String IO_READ_STREAM_CHUNK_SIZE_KEY = "paciofs.io.read-stream.chunk-size";
+
+  public static final String MEMPOOL_INTERVAL_KEY = "paciofs.mempool.interval";
+
   public static final String MULTICHAIN_CLIENT_KEY = "paciofs.multichain-client";
 
+  public static final String OWN_TRANSACTIONS_CAPACITY_KEY = "paciofs.own-transactions.capacity";
+
+  public static final String PAYLOAD_COMPRESSION_KEY = "paciofs.payload.compression";
+
+  public static final String PAYLOAD_VERSION_KEY = "paciofs.payload.version";
+
+  public static final String PAYLOAD_WRITE_HASHES_KEY = "paciofs.payload.write-hashes";
+
+  public static final String SNAPSHOT_INTERVAL_KEY = "paciofs.snapshot.interval";
+
+  public static final String SNAPSHOT_PATH_KEY = "paciofs.snapshot.path";
+
+  public static final String TRANSACTION_PIPELINE_JOURNAL_KEY =
+      "paciofs.transaction-pipeline.journal";
+
+  public static final String TRANSACTION_PIPELINE_QUEUE_SIZE_KEY =
+      "paciofs.transaction-pipeline.queue-size";
+
+  public static final String UTXOS_CONSOLIDATION_DUST_AMOUNT_KEY =
+      "paciofs.utxos.consolidation.dust-amount";
+  public static final String UTXOS_CONSOLIDATION_INTERVAL_KEY =
+      "paciofs.utxos.consolidation.interval";
+  public static final String UTXOS_CONSOLIDATION_MAX_INPUTS_KEY =
+      "paciofs.utxos.consolidation.max-inputs";
+  public static final String UTXOS_HEADROOM_KEY = "paciofs.utxos.headroom";
+  public static final String UTXOS_INTERVAL_KEY = "paciofs.utxos.interval";
+  public static final String UTXOS_MIN_KEY = "paciofs.utxos.min";
+  public static final String UTXOS_RATE_SMOOTHING_KEY = "paciofs.utxos.rate-smoothing";
+  public static final String UTXOS_SPLIT_MAX_INPUTS_KEY = "paciofs.utxos.split.max-inputs";
+  public static final String UTXOS_SPLIT_MAX_OUTPUTS_KEY = "paciofs.utxos.split.max-outputs";
+  public static final String UTXOS_SPLIT_OUTPUT_AMOUNT_KEY = "paciofs.utxos.split.output-amount";
+
   private PacioFsOptions() {}
 }
@@ -10,13 +10,18 @@ package de.zib.paciofs.grpc;
 import akka.grpc.GrpcServiceException;
 import akka.grpc.javadsl.Metadata;
 import de.zib.paciofs.grpc.messages.Ping;
+import de.zib.paciofs.grpc.messages.Volume;
+import de.zib.paciofs.grpc.messages.WriteProof;
 import de.zib.paciofs.logging.Markers;
 import de.zib.paciofs.multichain.abstractions.MultiChainFileSystem;
 import io.grpc.Status;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,30 +30,125 @@ public class PacioFsServiceImpl implements PacioFsServicePowerApi {
 
   private final MultiChainFileSystem multiChainFileSystem;
 
-  public PacioFsServiceImpl(MultiChainFileSystem fileSystem) {
+  private final Executor executor;
+
+  /**
+   * Construct the PacioFS service.
+   * @param fileSystem the file system to operate on
+   * @param executor where to run the file system operations, which may block
+   */
+  public PacioFsServiceImpl(MultiChainFileSystem fileSystem, Executor executor) {
     this.multiChainFileSystem = fileSystem;
+    this.executor = executor;
   }
 
   @Override
   public CompletionStage<CreateVolumeResponse> createVolume(
       CreateVolumeRequest in, Metadata metadata) {
+    // completed directly with the status, so it is not wrapped
+    final CompletableFuture<CreateVolumeResponse> response = new CompletableFuture<>();
+    CompletableFuture.runAsync(() -> this.doCreateVolume(in, response), this.executor)
+        .whenComplete((done, t) -> failUnexpectedly(response, t));
+    return response;
+  }
+
+  private void doCreateVolume(
+      CreateVolumeRequest in, CompletableFuture<CreateVolumeResponse> response) {
     PacioFsGrpcUtil.traceMessages(LOG, "createVolume({})", in);
 
-    final CreateVolumeResponse.Builder builder = CreateVolumeResponse.newBuilder();
+    final CompletionStage<Volume> created;
     try {
-      builder.setVolume(this.multiChainFileSystem.createVolume(in.getVolume()));
+      created = this.multiChainFileSystem.createVolume(in.getVolume());
     } catch (FileAlreadyExistsException e) {
-      throw new GrpcServiceException(Status.ALREADY_EXISTS);
+      response.completeExceptionally(new GrpcServiceException(Status.ALREADY_EXISTS));
+      return;
+    } catch (IllegalStateException e) {
+      // the cluster is not ready yet
+      response.completeExceptionally(
+          new GrpcServiceException(Status.UNAVAILABLE.augmentDescription(e.getMessage())));
+      return;
     } catch (IOException e) {
       LOG.warn(Markers.EXCEPTION, "Could not create volume {}", in.getVolume().getName(), e);
-      throw new GrpcServiceException(
-          Status.UNKNOWN.withCause(e).augmentDescription(e.getMessage()));
+      response.completeExceptionally(new GrpcServiceException(
+          Status.UNKNOWN.withCause(e).augmentDescription(e.getMessage())));
+      return;
     }
 
-    final CreateVolumeResponse out = builder.build();
+    created.whenComplete((volume, failure) -> {
+      if (failure == null) {
+        final CreateVolumeResponse out =
+            CreateVolumeResponse.newBuilder().setVolume(volume).build();
+        PacioFsGrpcUtil.traceMessages(LOG, "createVolume({}): {}", in, out);
+        response.complete(out);
+      } else {
+        final Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+            ? failure.getCause()
+            : failure;
+        LOG.warn(Markers.EXCEPTION, "Could not create volume {}", in.getVolume().getName(), cause);
+        response.completeExceptionally(new GrpcServiceException(
+            Status.UNKNOWN.withCause(cause).augmentDescription(cause.getMessage())));
+      }
+    });
+  }
+
+  @Override
+  public CompletionStage<GetWriteProofResponse> getWriteProof(
+      GetWriteProofRequest in, Metadata metadata) {
+    // completed directly with the status, so it is not wrapped
+    final CompletableFuture<GetWriteProofResponse> response = new CompletableFuture<>();
+    CompletableFuture.runAsync(() -> this.doGetWriteProof(in, response), this.executor)
+        .whenComplete((done, t) -> failUnexpectedly(response, t));
+    return response;
+  }
 
-    PacioFsGrpcUtil.traceMessages(LOG, "createVolume({}): {}", in, out);
-    return CompletableFuture.completedFuture(out);
+  private void doGetWriteProof(
+      GetWriteProofRequest in, CompletableFuture<GetWriteProofResponse> response) {
+    PacioFsGrpcUtil.traceMessages(LOG, "getWriteProof({})", in);
+
+    final CompletionStage<WriteProof> proof;
+    try {
+      proof = this.multiChainFileSystem.writeProof(
+          in.getPath(), in.getOffset(), in.getSize(), in.getSha256().toByteArray());
+    } catch (NoSuchFileException e) {
+      response.completeExceptionally(
+          new GrpcServiceException(Status.NOT_FOUND.augmentDescription(e.getMessage())));
+      return;
+    } catch (IllegalStateException e) {
+      response.completeExceptionally(new GrpcServiceException(
+          Status.FAILED_PRECONDITION.augmentDescription(e.getMessage())));
+      return;
+    }
+
+    proof.whenComplete((writeProof, failure) -> {
+      if (failure == null) {
+        final GetWriteProofResponse out =
+            GetWriteProofResponse.newBuilder().setProof(writeProof).build();
+        PacioFsGrpcUtil.traceMessages(LOG, "getWriteProof({}): {}", in, out);
+        response.complete(out);
+      } else {
+        final Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+            ? failure.getCause()
+            : failure;
+        LOG.warn(Markers.EXCEPTION, "Could not attest write to {}", in.getPath(), cause);
+        response.completeExceptionally(new GrpcServiceException(
+            Status.UNAVAILABLE.withCause(cause).augmentDescription(cause.getMessage())));
+      }
+    });
+  }
+
+  // fails a response that an operation left incomplete because it threw, instead of leaving the
+  // call hanging
+  private static <T> void failUnexpectedly(CompletableFuture<T> response, Throwable t) {
+    if (t == null) {
+      return;
+    }
+
+    final Throwable cause = t instanceof CompletionException && t.getCause() != null
+        ? t.getCause()
+        : t;
+    LOG.warn(Markers.EXCEPTION, "Unexpected failure", cause);
+    response.completeExceptionally(new GrpcServiceException(
+        Status.INTERNAL.withCause(cause).augmentDescription(cause.getMessage())));
   }
 
   @Override
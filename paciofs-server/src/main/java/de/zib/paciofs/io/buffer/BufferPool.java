@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.io.buffer;
+
+import java.lang.ref.Cleaner;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of direct buffers in power-of-two size classes. Buffers are taken from a small per-thread
+ * cache first and from a bounded shared pool second, and are only allocated if both are empty.
+ * Virtual threads have no cache, as the buffers would be lost with each short-lived thread. Buffers
+ * larger than the largest size class are not pooled. Buffers that become unreachable
+ * without having been released are reported as leaks and returned to the pool.
+ */
+public class BufferPool {
+  // per-thread stacks of free buffers, one per size class
+  private static final class ThreadCache {
+    private final ByteBuffer[][] buffers;
+
+    private final int[] counts;
+
+    private ThreadCache(int sizeClasses, int capacity) {
+      this.buffers = new ByteBuffer[sizeClasses][capacity];
+      this.counts = new int[sizeClasses];
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(BufferPool.class);
+
+  // the smallest size class is 4 KiB
+  private static final int MIN_SIZE_SHIFT = 12;
+
+  // shared by all pools, the cleaning actions are cheap
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  // Thread.isVirtual(), looked up reflectively like the virtual thread executor, null before 21
+  private static final Method IS_VIRTUAL = lookupIsVirtual();
+
+  private final int maxBufferSize;
+
+  private final int maxPooledPerSize;
+
+  private final boolean trackLeaks;
+
+  private final Queue<ByteBuffer>[] pooled;
+
+  private final AtomicInteger[] pooledCounts;
+
+  private final ThreadLocal<ThreadCache> threadCaches;
+
+  private final AtomicInteger allocations;
+
+  /**
+   * Creates an empty pool.
+   * @param maxBufferSize size of the largest pooled buffers, rounded up to a power of two
+   * @param maxPooledPerSize number of free buffers per size class kept in the shared pool
+   * @param threadLocalPerSize number of free buffers per size class kept by each thread
+   * @param trackLeaks whether to record where leaked buffers were acquired, which is expensive
+   */
+  @SuppressWarnings("unchecked")
+  public BufferPool(
+      int maxBufferSize, int maxPooledPerSize, int threadLocalPerSize, boolean trackLeaks) {
+    final int sizeClasses = sizeClass(maxBufferSize) + 1;
+    this.maxBufferSize = sizeOf(sizeClasses - 1);
+    this.maxPooledPerSize = maxPooledPerSize;
+    this.trackLeaks = trackLeaks;
+
+    this.pooled = new Queue[sizeClasses];
+    this.pooledCounts = new AtomicInteger[sizeClasses];
+    for (int i = 0; i < sizeClasses; ++i) {
+      this.pooled[i] = new ConcurrentLinkedQueue<>();
+      this.pooledCounts[i] = new AtomicInteger();
+    }
+
+    // an empty cache sends everything to the shared pool
+    final ThreadCache noCache = new ThreadCache(sizeClasses, 0);
+    this.threadCaches = ThreadLocal.withInitial(() -> isVirtual(Thread.currentThread())
+            ? noCache
+            : new ThreadCache(sizeClasses, threadLocalPerSize));
+    this.allocations = new AtomicInteger();
+  }
+
+  /**
+   * Gets a buffer from the pool. The buffer must be released exactly once, as soon as it is no
+   * longer needed.
+   * @param size number of bytes needed
+   * @return a buffer with position 0 and limit size, its contents are undefined
+   */
+  public PooledBuffer acquire(int size) {
+    final int sizeClass = size > this.maxBufferSize ? -1 : sizeClass(size);
+
+    ByteBuffer memory = null;
+    if (sizeClass >= 0) {
+      memory = this.poll(sizeClass);
+    }
+    if (memory == null) {
+      memory = ByteBuffer.allocateDirect(sizeClass >= 0 ? sizeOf(sizeClass) : size);
+      final int allocated = this.allocations.incrementAndGet();
+      LOG.trace("Allocated direct buffer of {} bytes ({} so far)", memory.capacity(), allocated);
+    }
+
+    final PooledBuffer.Lease lease = new PooledBuffer.Lease(this, memory, sizeClass,
+        this.trackLeaks ? new Throwable("Buffer acquired here") : null);
+    final ByteBuffer view = memory.duplicate();
+    view.clear().limit(size);
+    return new PooledBuffer(view, lease, CLEANER);
+  }
+
+  /**
+   * Gets the number of buffers that had to be allocated because the pool was empty.
+   * @return the number of allocations
+   */
+  public int allocations() {
+    return this.allocations.get();
+  }
+
+  // called exactly once for each acquired buffer
+  void recycle(ByteBuffer memory, int sizeClass, boolean fromOwner) {
+    if (sizeClass < 0) {
+      // not pooled, leave it to the GC
+      return;
+    }
+
+    // cleaner threads must not fill their own cache
+    if (fromOwner) {
+      final ThreadCache cache = this.threadCaches.get();
+      if (cache.counts[sizeClass] < cache.buffers[sizeClass].length) {
+        cache.buffers[sizeClass][cache.counts[sizeClass]++] = memory;
+        return;
+      }
+    }
+
+    if (this.pooledCounts[sizeClass].incrementAndGet() <= this.maxPooledPerSize) {
+      this.pooled[sizeClass].offer(memory);
+    } else {
+      this.pooledCounts[sizeClass].decrementAndGet();
+    }
+  }
+
+  private ByteBuffer poll(int sizeClass) {
+    final ThreadCache cache = this.threadCaches.get();
+    if (cache.counts[sizeClass] > 0) {
+      final int top = --cache.counts[sizeClass];
+      final ByteBuffer memory = cache.buffers[sizeClass][top];
+      cache.buffers[sizeClass][top] = null;
+      return memory;
+    }
+
+    final ByteBuffer memory = this.pooled[sizeClass].poll();
+    if (memory != null) {
+      this.pooledCounts[sizeClass].decrementAndGet();
+    }
+    return memory;
+  }
+
+  private static Method lookupIsVirtual() {
+    try {
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+
+    try {
+      return (Boolean) IS_VIRTUAL.invoke(thread);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      return false;
+    }
+  }
+
+  private static int sizeClass(int size) {
+    if (size <= 1 << MIN_SIZE_SHIFT) {
+      return 0;
+    }
+
+    return Integer.SIZE - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+  }
+
+  private static int sizeOf(int sizeClass) {
+    return 1 << (sizeClass + MIN_SIZE_SHIFT);
+  }
+}
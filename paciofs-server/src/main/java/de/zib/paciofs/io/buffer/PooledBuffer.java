@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.io.buffer;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A direct buffer on loan from a {@link BufferPool}.
+ */
+public final class PooledBuffer {
+  // everything needed to give the memory back, must not reference the PooledBuffer itself
+  static final class Lease implements Runnable {
+    private final BufferPool pool;
+
+    private final ByteBuffer memory;
+
+    private final int sizeClass;
+
+    // null unless leak tracking is enabled
+    private final Throwable acquisition;
+
+    private final AtomicBoolean returned;
+
+    // cleared once the buffer has been released
+    private volatile boolean leaked;
+
+    Lease(BufferPool pool, ByteBuffer memory, int sizeClass, Throwable acquisition) {
+      this.pool = pool;
+      this.memory = memory;
+      this.sizeClass = sizeClass;
+      this.acquisition = acquisition;
+      this.returned = new AtomicBoolean();
+      this.leaked = true;
+    }
+
+    private boolean giveBack(boolean fromOwner) {
+      if (!this.returned.compareAndSet(false, true)) {
+        return false;
+      }
+
+      this.pool.recycle(this.memory, this.sizeClass, fromOwner);
+      return true;
+    }
+
+    // run by the cleaner if the PooledBuffer has become unreachable, or when releasing it
+    @Override
+    public void run() {
+      if (this.leaked && this.giveBack(false)) {
+        if (this.acquisition != null) {
+          LOG.warn("Direct buffer of {} bytes was not released", this.memory.capacity(),
+              this.acquisition);
+        } else {
+          LOG.warn("Direct buffer of {} bytes was not released (enable leak tracking for details)",
+              this.memory.capacity());
+        }
+      }
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(PooledBuffer.class);
+
+  private final ByteBuffer buffer;
+
+  private final Lease lease;
+
+  // only a backstop, buffers are meant to be released explicitly
+  private final Cleaner.Cleanable leakDetector;
+
+  PooledBuffer(ByteBuffer buffer, Lease lease, Cleaner cleaner) {
+    this.buffer = buffer;
+    this.lease = lease;
+    this.leakDetector = cleaner.register(this, lease);
+  }
+
+  /**
+   * Gets the buffer. It must not be used after this PooledBuffer has been released.
+   * @return the buffer
+   */
+  public ByteBuffer buffer() {
+    return this.buffer;
+  }
+
+  /**
+   * Returns the buffer to the pool. Releasing more than once has no effect.
+   */
+  public void release() {
+    this.lease.leaked = false;
+    this.lease.giveBack(true);
+    this.leakDetector.clean();
+  }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.io.cache;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed-size off-heap cache of file contents, split into blocks that are identified by volume,
+ * inode and block index. The cache is divided into independently locked segments, see {@link
+ * BlockCacheSegment} for the eviction policy. Writers must invalidate the affected range after
+ * writing to the file, readers that lose the race against an invalidation do not cache what they
+ * have read.
+ */
+public class BlockCache implements BlockCacheStatistics {
+  /**
+   * Loads a block of a file on a cache miss.
+   */
+  @FunctionalInterface
+  public interface BlockLoader {
+    /**
+     * Reads from the file until block is full or the end of the file is reached.
+     * @param position position in the file to read from
+     * @param block buffer to read into
+     * @throws IOException if the file cannot be read
+     */
+    void load(long position, ByteBuffer block) throws IOException;
+  }
+
+  static final class Key {
+    private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+    private static final long MIX = 0xff51afd7ed558ccdL;
+    private static final int MIX_SHIFT = 33;
+
+    private final long volumeId;
+
+    private final long inodeId;
+
+    private final long block;
+
+    private final int hash;
+
+    Key(long volumeId, long inodeId, long block) {
+      this.volumeId = volumeId;
+      this.inodeId = inodeId;
+      this.block = block;
+
+      long h = (volumeId * GOLDEN_RATIO + inodeId) * GOLDEN_RATIO + block;
+      h = (h ^ (h >>> MIX_SHIFT)) * MIX;
+      this.hash = (int) (h ^ (h >>> MIX_SHIFT));
+    }
+
+    boolean matches(long otherVolumeId, long otherInodeId, long fromBlock, long toBlock) {
+      return this.volumeId == otherVolumeId && this.inodeId == otherInodeId
+          && this.block >= fromBlock && this.block < toBlock;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      final Key other = (Key) o;
+      return this.volumeId == other.volumeId && this.inodeId == other.inodeId
+          && this.block == other.block;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlockCache.class);
+
+  private static final String OBJECT_NAME = "de.zib.paciofs:type=BlockCache";
+
+  // segments are selected by the upper half of the hash, the sketches use the lower half
+  private static final int SEGMENT_SHIFT = 16;
+  private static final int MAX_SEGMENTS = 1 << SEGMENT_SHIFT;
+
+  private static final int MIN_SLOTS_PER_SEGMENT = 2;
+
+  private final long capacity;
+
+  private final int blockSize;
+
+  private final int slotsPerSegment;
+
+  private final BlockCacheSegment[] segments;
+
+  private final int segmentMask;
+
+  private final LongAdder hits;
+
+  private final LongAdder misses;
+
+  private final LongAdder prefetches;
+
+  // blocks are loaded here before they are copied into the cache, shared rather than per thread
+  // because virtual threads would each allocate their own, one per segment are kept
+  private final BlockingQueue<ByteBuffer> loadBuffers;
+
+  /**
+   * Allocates a block cache.
+   * @param capacity total number of bytes to allocate off-heap
+   * @param blockSize granularity of caching
+   * @param segments number of independently locked segments, rounded to a power of two and reduced
+   *     if there are not enough blocks for that many segments
+   * @throws IllegalArgumentException if the capacity is too small for the block size, or too large
+   *     for the number of segments
+   */
+  public BlockCache(long capacity, int blockSize, int segments) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    }
+
+    final long slots = capacity / blockSize;
+    if (slots < MIN_SLOTS_PER_SEGMENT) {
+      throw new IllegalArgumentException(
+          "Block cache capacity " + capacity + " is too small for block size " + blockSize);
+    }
+
+    int segmentCount = segments <= 1 ? 1 : Integer.highestOneBit(segments - 1) << 1;
+    segmentCount = Math.min(segmentCount, MAX_SEGMENTS);
+    while (segmentCount > 1 && slots / segmentCount < MIN_SLOTS_PER_SEGMENT) {
+      segmentCount >>>= 1;
+    }
+
+    if (slots / segmentCount * blockSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "Block cache capacity " + capacity + " is too large for " + segmentCount + " segments");
+    }
+
+    this.capacity = capacity;
+    this.blockSize = blockSize;
+    this.slotsPerSegment = (int) (slots / segmentCount);
+    this.segments = new BlockCacheSegment[segmentCount];
+    for (int i = 0; i < segmentCount; ++i) {
+      this.segments[i] = new BlockCacheSegment(this.slotsPerSegment, blockSize);
+    }
+    this.segmentMask = segmentCount - 1;
+
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.prefetches = new LongAdder();
+    this.loadBuffers = new ArrayBlockingQueue<>(segmentCount);
+
+    LOG.info("Allocated {} bytes for block cache ({} segments of {} blocks of {} bytes)",
+        (long) segmentCount * this.slotsPerSegment * blockSize, segmentCount, this.slotsPerSegment,
+        blockSize);
+  }
+
+  /**
+   * Reads from a file through the cache, loading missing blocks.
+   * @param volumeId the volume of the file
+   * @param inodeId the file
+   * @param offset position in the file
+   * @param destination buffer to read contents into
+   * @param loader used to read blocks from the file that are not cached
+   * @return the number of bytes read, -1 on EOF
+   * @throws IOException if the loader fails
+   */
+  public int read(long volumeId, long inodeId, long offset, ByteBuffer destination,
+      BlockLoader loader) throws IOException {
+    if (!destination.hasRemaining()) {
+      return 0;
+    }
+
+    long position = offset;
+    int total = 0;
+    while (destination.hasRemaining()) {
+      final long block = position / this.blockSize;
+      final int blockOffset = (int) (position % this.blockSize);
+      final Key key = new Key(volumeId, inodeId, block);
+      final BlockCacheSegment segment = this.segment(key.hash);
+
+      final int remaining = destination.remaining();
+      int length = segment.read(key, key.hash, blockOffset, destination);
+      if (length < 0) {
+        this.misses.increment();
+        length = this.load(segment, key, blockOffset, destination, loader);
+      } else {
+        this.hits.increment();
+      }
+
+      final int n = Math.max(0, Math.min(remaining, length - blockOffset));
+      total += n;
+      position += n;
+
+      if (length < this.blockSize) {
+        // short block, so this is the end of the file
+        break;
+      }
+    }
+
+    return total == 0 ? -1 : total;
+  }
+
+  /**
+   * Loads a byte range of a file into the cache, skipping blocks that are cached already. Neither
+   * hits nor misses are counted, and prefetched blocks still have to prove their worth by being
+   * read before they are admitted to the main area of the cache.
+   * @param volumeId the volume of the file
+   * @param inodeId the file
+   * @param from first byte to prefetch
+   * @param to byte after the last one to prefetch
+   * @param loader used to read blocks from the file
+   * @throws IOException if the loader fails
+   */
+  public void prefetch(long volumeId, long inodeId, long from, long to, BlockLoader loader)
+      throws IOException {
+    final ByteBuffer buffer = this.acquireLoadBuffer();
+    try {
+      for (long block = from / this.blockSize; block * this.blockSize < to; ++block) {
+        final Key key = new Key(volumeId, inodeId, block);
+        final BlockCacheSegment segment = this.segment(key.hash);
+        if (segment.contains(key)) {
+          continue;
+        }
+
+        buffer.clear();
+        final long stamp = segment.stamp();
+        loader.load(block * this.blockSize, buffer);
+        buffer.flip();
+
+        if (buffer.hasRemaining() && segment.put(key, key.hash, buffer, stamp)) {
+          this.prefetches.increment();
+        }
+
+        if (buffer.limit() < this.blockSize) {
+          // end of file
+          break;
+        }
+      }
+    } finally {
+      this.releaseLoadBuffer(buffer);
+    }
+  }
+
+  /**
+   * Removes a byte range of a file from the cache. Must be called after the file has been written
+   * to.
+   * @param volumeId the volume of the file
+   * @param inodeId the file
+   * @param from first byte to invalidate
+   * @param to byte after the last one to invalidate
+   */
+  public void invalidate(long volumeId, long inodeId, long from, long to) {
+    if (to <= from) {
+      return;
+    }
+
+    final long fromBlock = from / this.blockSize;
+    final long toBlock = (to - 1) / this.blockSize + 1;
+    if (toBlock - fromBlock > this.slotsPerSegment) {
+      // more blocks than fit into a segment, so scanning the segments is cheaper
+      for (BlockCacheSegment segment : this.segments) {
+        segment.invalidate(volumeId, inodeId, fromBlock, toBlock);
+      }
+    } else {
+      for (long block = fromBlock; block < toBlock; ++block) {
+        final Key key = new Key(volumeId, inodeId, block);
+        this.segment(key.hash).invalidate(key);
+      }
+    }
+  }
+
+  /**
+   * Makes the statistics of this cache available via JMX.
+   */
+  public void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          this, new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      LOG.warn("Could not register block cache statistics: {}", e.getMessage());
+    }
+  }
+
+  @Override
+  public long getCapacity() {
+    return this.capacity;
+  }
+
+  @Override
+  public int getBlockSize() {
+    return this.blockSize;
+  }
+
+  @Override
+  public long getSize() {
+    long size = 0;
+    for (BlockCacheSegment segment : this.segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  @Override
+  public long getCachedBytes() {
+    long bytes = 0;
+    for (BlockCacheSegment segment : this.segments) {
+      bytes += segment.cachedBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  public long getHitCount() {
+    return this.hits.sum();
+  }
+
+  @Override
+  public long getMissCount() {
+    return this.misses.sum();
+  }
+
+  @Override
+  public double getHitRate() {
+    final long hitCount = this.hits.sum();
+    final long requests = hitCount + this.misses.sum();
+    return requests == 0 ? 1.0 : (double) hitCount / requests;
+  }
+
+  @Override
+  public long getPrefetchCount() {
+    return this.prefetches.sum();
+  }
+
+  @Override
+  public long getEvictionCount() {
+    long evictions = 0;
+    for (BlockCacheSegment segment : this.segments) {
+      evictions += segment.evictions();
+    }
+    return evictions;
+  }
+
+  @Override
+  public long getRejectionCount() {
+    long rejections = 0;
+    for (BlockCacheSegment segment : this.segments) {
+      rejections += segment.rejections();
+    }
+    return rejections;
+  }
+
+  @Override
+  public long getInvalidationCount() {
+    long invalidations = 0;
+    for (BlockCacheSegment segment : this.segments) {
+      invalidations += segment.invalidations();
+    }
+    return invalidations;
+  }
+
+  private BlockCacheSegment segment(int hash) {
+    return this.segments[(hash >>> SEGMENT_SHIFT) & this.segmentMask];
+  }
+
+  // returns the length of the loaded block
+  private int load(BlockCacheSegment segment, Key key, int blockOffset, ByteBuffer destination,
+      BlockLoader loader) throws IOException {
+    final ByteBuffer block = this.acquireLoadBuffer();
+    try {
+      block.clear();
+
+      // take the stamp before loading, so a write completing in the meantime prevents caching
+      final long stamp = segment.stamp();
+      loader.load(key.block * this.blockSize, block);
+      block.flip();
+
+      final int length = block.limit();
+      if (length > 0) {
+        segment.put(key, key.hash, block, stamp);
+      }
+
+      if (blockOffset < length) {
+        block.position(blockOffset);
+        block.limit(Math.min(length, blockOffset + destination.remaining()));
+        destination.put(block);
+      }
+
+      return length;
+    } finally {
+      this.releaseLoadBuffer(block);
+    }
+  }
+
+  private ByteBuffer acquireLoadBuffer() {
+    final ByteBuffer buffer = this.loadBuffers.poll();
+    return buffer != null ? buffer : ByteBuffer.allocateDirect(this.blockSize);
+  }
+
+  // buffers beyond the pool's capacity are left to the GC
+  private void releaseLoadBuffer(ByteBuffer buffer) {
+    this.loadBuffers.offer(buffer);
+  }
+}
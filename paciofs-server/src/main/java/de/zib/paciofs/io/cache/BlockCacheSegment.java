@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.io.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Independently locked part of a {@link BlockCache}, owning a fixed number of block-sized slots in
+ * one direct buffer. Eviction follows W-TinyLFU: new blocks enter a small LRU window, and blocks
+ * leaving the window only make it into the main area (a segmented LRU with probation and protected
+ * queues) if they have been accessed more often recently than the block they would replace. This
+ * way a large sequential scan only ever churns the window.
+ */
+class BlockCacheSegment {
+  private static final class Entry {
+    private final BlockCache.Key key;
+
+    private final int hash;
+
+    private final int slot;
+
+    private int length;
+
+    private Entry(BlockCache.Key key, int hash, int slot) {
+      this.key = key;
+      this.hash = hash;
+      this.slot = slot;
+    }
+  }
+
+  // defaults of LinkedHashMap, which needs them explicitly to enable access order
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  // share of all slots used for the admission window, and of the main area used for protected
+  private static final int WINDOW_PERCENT = 1;
+  // so that prefetched blocks landing in the same segment do not push each other out right away
+  private static final int MIN_WINDOW_CAPACITY = 4;
+  private static final int PROTECTED_PERCENT = 80;
+  private static final int PERCENT = 100;
+
+  private final int blockSize;
+
+  private final ByteBuffer slots;
+
+  private final int[] freeSlots;
+
+  private int freeSlotCount;
+
+  private final int windowCapacity;
+
+  private final int protectedCapacity;
+
+  private final int mainCapacity;
+
+  // all queues are access-ordered, so iteration starts at the least recently used entry
+  private final LinkedHashMap<BlockCache.Key, Entry> window;
+
+  private final LinkedHashMap<BlockCache.Key, Entry> probation;
+
+  private final LinkedHashMap<BlockCache.Key, Entry> protectedQueue;
+
+  private final FrequencySketch sketch;
+
+  // incremented on every invalidation so loads racing with writes can be detected
+  private long stamp;
+
+  private long cachedBytes;
+
+  private long evictions;
+
+  private long rejections;
+
+  private long invalidations;
+
+  BlockCacheSegment(int slotCount, int blockSize) {
+    if (slotCount < 2) {
+      throw new IllegalArgumentException("Need at least two slots per segment");
+    }
+
+    this.blockSize = blockSize;
+    this.slots = ByteBuffer.allocateDirect(Math.multiplyExact(slotCount, blockSize));
+
+    this.freeSlots = new int[slotCount];
+    for (int i = 0; i < slotCount; ++i) {
+      this.freeSlots[i] = slotCount - 1 - i;
+    }
+    this.freeSlotCount = slotCount;
+
+    this.windowCapacity = Math.max(Math.min(MIN_WINDOW_CAPACITY, slotCount / 2),
+        slotCount * WINDOW_PERCENT / PERCENT);
+    this.mainCapacity = slotCount - this.windowCapacity;
+    this.protectedCapacity = this.mainCapacity * PROTECTED_PERCENT / PERCENT;
+
+    this.window = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    this.probation = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    this.protectedQueue = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    this.sketch = new FrequencySketch(slotCount);
+  }
+
+  /**
+   * Copies a cached block's contents, starting at offset, into destination.
+   * @param key the block to read
+   * @param hash spread hash of key
+   * @param offset position within the block to start copying from
+   * @param destination buffer to copy as much of the block into as fits
+   * @return the length of the cached block, or -1 if it is not cached
+   */
+  synchronized int read(BlockCache.Key key, int hash, int offset, ByteBuffer destination) {
+    this.sketch.increment(hash);
+
+    final Entry entry = this.find(key);
+    if (entry == null) {
+      return -1;
+    }
+
+    if (offset < entry.length) {
+      final ByteBuffer source = this.slots.duplicate();
+      final int start = entry.slot * this.blockSize + offset;
+      source.limit(start + Math.min(entry.length - offset, destination.remaining()));
+      source.position(start);
+      destination.put(source);
+    }
+
+    return entry.length;
+  }
+
+  /**
+   * Checks whether a block is cached, without counting this as an access.
+   * @param key the block to check
+   * @return true if the block is cached
+   */
+  synchronized boolean contains(BlockCache.Key key) {
+    return this.window.containsKey(key) || this.probation.containsKey(key)
+        || this.protectedQueue.containsKey(key);
+  }
+
+  /**
+   * Gets the current stamp, to be passed to {@link #put(BlockCache.Key, int, ByteBuffer, long)}
+   * after loading a block.
+   * @return the stamp
+   */
+  synchronized long stamp() {
+    return this.stamp;
+  }
+
+  /**
+   * Offers a freshly loaded block for caching.
+   * @param key the block to cache
+   * @param hash spread hash of key
+   * @param block the block's contents between position and limit
+   * @param loadStamp result of {@link #stamp()} before loading the block
+   * @return true if the block was cached
+   */
+  synchronized boolean put(BlockCache.Key key, int hash, ByteBuffer block, long loadStamp) {
+    if (loadStamp != this.stamp || this.contains(key)) {
+      // invalidated while loading, or loaded concurrently
+      return false;
+    }
+
+    if (this.window.size() >= this.windowCapacity) {
+      this.evictFromWindow();
+    }
+
+    final Entry entry = new Entry(key, hash, this.freeSlots[--this.freeSlotCount]);
+    final ByteBuffer destination = this.slots.duplicate();
+    destination.position(entry.slot * this.blockSize);
+    entry.length = block.remaining();
+    destination.put(block.duplicate());
+    this.cachedBytes += entry.length;
+
+    this.window.put(key, entry);
+    return true;
+  }
+
+  /**
+   * Removes a block from the cache.
+   * @param key the block to remove
+   */
+  synchronized void invalidate(BlockCache.Key key) {
+    ++this.stamp;
+
+    Entry entry = this.window.remove(key);
+    if (entry == null) {
+      entry = this.probation.remove(key);
+    }
+    if (entry == null) {
+      entry = this.protectedQueue.remove(key);
+    }
+
+    if (entry != null) {
+      ++this.invalidations;
+      this.free(entry);
+    }
+  }
+
+  /**
+   * Removes a range of blocks of one file from the cache by scanning all entries, which is cheaper
+   * than looking up each block of a large range.
+   * @param volumeId the volume of the file
+   * @param inodeId the file
+   * @param fromBlock first block to remove
+   * @param toBlock block after the last one to remove
+   */
+  synchronized void invalidate(long volumeId, long inodeId, long fromBlock, long toBlock) {
+    ++this.stamp;
+
+    this.invalidateMatching(this.window, volumeId, inodeId, fromBlock, toBlock);
+    this.invalidateMatching(this.probation, volumeId, inodeId, fromBlock, toBlock);
+    this.invalidateMatching(this.protectedQueue, volumeId, inodeId, fromBlock, toBlock);
+  }
+
+  synchronized int size() {
+    return this.window.size() + this.probation.size() + this.protectedQueue.size();
+  }
+
+  synchronized long cachedBytes() {
+    return this.cachedBytes;
+  }
+
+  synchronized long evictions() {
+    return this.evictions;
+  }
+
+  synchronized long rejections() {
+    return this.rejections;
+  }
+
+  synchronized long invalidations() {
+    return this.invalidations;
+  }
+
+  // requires the lock
+  private Entry find(BlockCache.Key key) {
+    Entry entry = this.window.get(key);
+    if (entry != null) {
+      return entry;
+    }
+
+    entry = this.protectedQueue.get(key);
+    if (entry != null) {
+      return entry;
+    }
+
+    // a second access in the main area makes the entry protected
+    entry = this.probation.remove(key);
+    if (entry != null) {
+      this.protectedQueue.put(key, entry);
+      if (this.protectedQueue.size() > this.protectedCapacity) {
+        final Iterator<Entry> it = this.protectedQueue.values().iterator();
+        final Entry demoted = it.next();
+        it.remove();
+        this.probation.put(demoted.key, demoted);
+      }
+    }
+
+    return entry;
+  }
+
+  // requires the lock, makes room for one more entry
+  private void evictFromWindow() {
+    final Iterator<Entry> it = this.window.values().iterator();
+    final Entry candidate = it.next();
+    it.remove();
+
+    if (this.probation.size() + this.protectedQueue.size() < this.mainCapacity) {
+      this.probation.put(candidate.key, candidate);
+      return;
+    }
+
+    final Iterator<Entry> victims = this.probation.isEmpty()
+        ? this.protectedQueue.values().iterator()
+        : this.probation.values().iterator();
+    final Entry victim = victims.next();
+
+    // ties go to the victim, so one-hit wonders cannot displace anything
+    if (this.sketch.frequency(candidate.hash) > this.sketch.frequency(victim.hash)) {
+      victims.remove();
+      ++this.evictions;
+      this.free(victim);
+      this.probation.put(candidate.key, candidate);
+    } else {
+      ++this.rejections;
+      this.free(candidate);
+    }
+  }
+
+  // requires the lock
+  private void invalidateMatching(Map<BlockCache.Key, Entry> queue, long volumeId, long inodeId,
+      long fromBlock, long toBlock) {
+    final Iterator<Entry> it = queue.values().iterator();
+    while (it.hasNext()) {
+      final Entry entry = it.next();
+      if (entry.key.matches(volumeId, inodeId, fromBlock, toBlock)) {
+        it.remove();
+        ++this.invalidations;
+        this.free(entry);
+      }
+    }
+  }
+
+  // requires the lock
+  private void free(Entry entry) {
+    this.freeSlots[this.freeSlotCount++] = entry.slot;
+    this.cachedBytes -= entry.length;
+  }
+}
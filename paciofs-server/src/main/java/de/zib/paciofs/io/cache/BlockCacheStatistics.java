@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.io.cache;
+
+import javax.management.MXBean;
+
+/**
+ * Statistics of a {@link BlockCache}, exposed via JMX.
+ */
+@MXBean
+public interface BlockCacheStatistics {
+  long getCapacity();
+
+  int getBlockSize();
+
+  /**
+   * Number of blocks currently in the cache.
+   * @return the number of cached blocks
+   */
+  long getSize();
+
+  long getCachedBytes();
+
+  long getHitCount();
+
+  long getMissCount();
+
+  double getHitRate();
+
+  /**
+   * Number of blocks removed from the cache to make room for more frequently used ones.
+   * @return the number of evictions
+   */
+  long getEvictionCount();
+
+  /**
+   * Number of blocks loaded into the cache ahead of being read.
+   * @return the number of prefetched blocks
+   */
+  long getPrefetchCount();
+
+  /**
+   * Number of blocks that were not admitted to the main area of the cache because they were used
+   * less frequently than the block they would have replaced.
+   * @return the number of rejections
+   */
+  long getRejectionCount();
+
+  /**
+   * Number of blocks removed from the cache because the file was written to.
+   * @return the number of invalidations
+   */
+  long getInvalidationCount();
+}
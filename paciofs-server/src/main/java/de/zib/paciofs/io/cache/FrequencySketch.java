@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.io.cache;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often a key has been accessed recently, as
+ * used by TinyLFU admission. Counters are halved periodically so that old popularity fades. Not
+ * thread-safe.
+ */
+class FrequencySketch {
+  // number of hash functions, each selecting one counter
+  private static final int DEPTH = 4;
+
+  // counters per long, and their width in bits
+  private static final int COUNTERS_PER_WORD = 16;
+  private static final int COUNTER_BITS = 4;
+  private static final long COUNTER_MASK = 0xfL;
+
+  // lowest bit of each counter, and everything but the highest bit of each counter
+  private static final long ONE_MASK = 0x1111111111111111L;
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  // halve all counters after this many increments per counter word
+  private static final int SAMPLE_FACTOR = 10;
+
+  private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+      0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+  private final long[] table;
+
+  private final int tableMask;
+
+  private final int sampleSize;
+
+  private int additions;
+
+  /**
+   * Creates a sketch for roughly the given number of distinct keys.
+   * @param expectedKeys number of keys the sketch should distinguish well
+   */
+  FrequencySketch(int expectedKeys) {
+    final int words = Math.max(1, Integer.highestOneBit(Math.max(1, expectedKeys) - 1) << 1);
+    this.table = new long[words];
+    this.tableMask = words - 1;
+    this.sampleSize = (int) Math.min(Integer.MAX_VALUE, (long) SAMPLE_FACTOR * words);
+  }
+
+  /**
+   * Estimates the recent access frequency of a key.
+   * @param hash well-spread hash of the key
+   * @return the estimated frequency, at most 15
+   */
+  int frequency(int hash) {
+    final int start = (hash & (DEPTH - 1)) * DEPTH;
+    int frequency = (int) COUNTER_MASK;
+    for (int i = 0; i < DEPTH; ++i) {
+      final int shift = ((start + i) % COUNTERS_PER_WORD) * COUNTER_BITS;
+      final int count = (int) ((this.table[this.indexOf(hash, i)] >>> shift) & COUNTER_MASK);
+      frequency = Math.min(frequency, count);
+    }
+
+    return frequency;
+  }
+
+  /**
+   * Records an access to a key.
+   * @param hash well-spread hash of the key
+   */
+  void increment(int hash) {
+    final int start = (hash & (DEPTH - 1)) * DEPTH;
+    boolean added = false;
+    for (int i = 0; i < DEPTH; ++i) {
+      final int shift = ((start + i) % COUNTERS_PER_WORD) * COUNTER_BITS;
+      added |= this.incrementAt(this.indexOf(hash, i), shift);
+    }
+
+    if (added && ++this.additions >= this.sampleSize) {
+      this.reset();
+    }
+  }
+
+  private boolean incrementAt(int index, int shift) {
+    final long mask = COUNTER_MASK << shift;
+    if ((this.table[index] & mask) != mask) {
+      this.table[index] += 1L << shift;
+      return true;
+    }
+
+    // saturated
+    return false;
+  }
+
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    h += h >>> Integer.SIZE;
+    return ((int) h) & this.tableMask;
+  }
+
+  private void reset() {
+    int odd = 0;
+    for (int i = 0; i < this.table.length; ++i) {
+      odd += Long.bitCount(this.table[i] & ONE_MASK);
+      this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+    }
+
+    // account for the truncation of odd counters
+    this.additions = (this.additions >>> 1) - (odd >>> 2);
+  }
+}
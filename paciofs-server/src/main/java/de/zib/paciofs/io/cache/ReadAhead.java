@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.io.cache;
+
+import de.zib.paciofs.logging.Markers;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects sequential reads and prefetches the following range of the file into a {@link
+ * BlockCache} in the background. The prefetched range starts at one block and doubles with every
+ * sequential read up to a maximum, and is reset by any non-sequential read.
+ */
+public class ReadAhead {
+  /**
+   * Read-ahead state of one sequence of reads, usually that of one file handle.
+   */
+  public static final class Window {
+    // where the next read has to start to be sequential, guarded by this
+    private long expected;
+
+    // everything before this has been prefetched already, guarded by this
+    private long prefetchedUntil;
+
+    // current read-ahead size, 0 if not reading sequentially, guarded by this
+    private int size;
+
+    public Window() {
+      this.expected = -1;
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReadAhead.class);
+
+  private final BlockCache cache;
+
+  private final Executor executor;
+
+  private final int maxSize;
+
+  /**
+   * Creates a read-ahead for a cache.
+   * @param cache the cache to prefetch into
+   * @param executor where to run prefetches
+   * @param maxSize maximum number of bytes to prefetch ahead of the last read
+   */
+  public ReadAhead(BlockCache cache, Executor executor, int maxSize) {
+    this.cache = cache;
+    this.executor = executor;
+    this.maxSize = Math.max(cache.getBlockSize(), maxSize);
+  }
+
+  /**
+   * Records a completed read and starts prefetching if the read continued a sequence of reads.
+   * @param window the read-ahead state of the reader
+   * @param volumeId the volume of the file
+   * @param inodeId the file
+   * @param offset where the read started
+   * @param n number of bytes read
+   * @param loader used to read blocks from the file
+   */
+  public void onRead(Window window, long volumeId, long inodeId, long offset, int n,
+      BlockCache.BlockLoader loader) {
+    if (n <= 0) {
+      return;
+    }
+
+    final long end = offset + n;
+    final long from;
+    final long to;
+    synchronized (window) {
+      if (offset == window.expected) {
+        window.size = window.size == 0 ? this.cache.getBlockSize()
+                                       : Math.min(window.size * 2, this.maxSize);
+      } else {
+        window.size = 0;
+        window.prefetchedUntil = end;
+      }
+      window.expected = end;
+
+      // prefetch again once half of the previously prefetched range has been read
+      if (window.size == 0 || window.prefetchedUntil - end >= window.size / 2) {
+        return;
+      }
+
+      from = Math.max(window.prefetchedUntil, end);
+      to = end + window.size;
+      window.prefetchedUntil = to;
+    }
+
+    try {
+      this.executor.execute(() -> {
+        try {
+          this.cache.prefetch(volumeId, inodeId, from, to, loader);
+        } catch (IOException e) {
+          LOG.debug("Could not prefetch {} to {} of inode {}: {}", from, to, inodeId,
+              e.getMessage());
+          LOG.debug(Markers.EXCEPTION, "Could not prefetch", e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // prefetching is optional
+      LOG.debug("Not prefetching {} to {} of inode {}: {}", from, to, inodeId, e.getMessage());
+    }
+  }
+}
@@ -7,10 +7,18 @@
 
 package de.zib.paciofs.io.posix.grpc;
 
+import akka.Done;
+import akka.NotUsed;
 import akka.grpc.javadsl.Metadata;
+import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
 import com.google.protobuf.ByteString;
 import de.zib.paciofs.grpc.PacioFsGrpcUtil;
 import de.zib.paciofs.grpc.messages.Ping;
+import de.zib.paciofs.io.buffer.BufferPool;
+import de.zib.paciofs.io.buffer.PooledBuffer;
 import de.zib.paciofs.io.posix.grpc.messages.Dir;
 import de.zib.paciofs.io.posix.grpc.messages.Errno;
 import de.zib.paciofs.io.posix.grpc.messages.Stat;
@@ -18,12 +26,17 @@ import de.zib.paciofs.logging.Markers;
 import de.zib.paciofs.multichain.abstractions.MultiChainFileSystem;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,8 +45,36 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
 
   private final MultiChainFileSystem multiChainFileSystem;
 
-  public PosixIoServiceImpl(MultiChainFileSystem fileSystem) {
+  private final BufferPool bufferPool;
+
+  private final int readStreamChunkSize;
+
+  // operations on inodes and file handles run here
+  private final Executor metadataExecutor;
+
+  // reads and writes run here, so slow metadata operations do not stall them
+  private final Executor dataExecutor;
+
+  private final Materializer materializer;
+
+  /**
+   * Construct the POSIX I/O service.
+   * @param fileSystem the file system to operate on
+   * @param bufferPool where to take buffers for reads from
+   * @param readStreamChunkSize default and maximum size of streamed read responses
+   * @param metadataExecutor where to run operations on inodes and file handles
+   * @param dataExecutor where to run reads and writes, including those of streaming calls
+   * @param materializer used to consume streaming requests
+   */
+  public PosixIoServiceImpl(MultiChainFileSystem fileSystem, BufferPool bufferPool,
+      int readStreamChunkSize, Executor metadataExecutor, Executor dataExecutor,
+      Materializer materializer) {
     this.multiChainFileSystem = fileSystem;
+    this.bufferPool = bufferPool;
+    this.readStreamChunkSize = readStreamChunkSize;
+    this.metadataExecutor = metadataExecutor;
+    this.dataExecutor = dataExecutor;
+    this.materializer = materializer;
   }
 
   @Override
@@ -49,6 +90,10 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
 
   @Override
   public CompletionStage<StatResponse> stat(StatRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doStat(in, metadata), this.metadataExecutor);
+  }
+
+  private StatResponse doStat(StatRequest in, Metadata metadata) {
     PacioFsGrpcUtil.traceMessages(LOG, "stat({})", in);
 
     Errno error = Errno.ERRNO_ESUCCESS;
@@ -70,11 +115,15 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     final StatResponse out = builder.setError(error).build();
 
     PacioFsGrpcUtil.traceMessages(LOG, "stat({}): {}", in, out);
-    return CompletableFuture.completedFuture(out);
+    return out;
   }
 
   @Override
   public CompletionStage<MkNodResponse> mkNod(MkNodRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doMkNod(in), this.metadataExecutor);
+  }
+
+  private MkNodResponse doMkNod(MkNodRequest in) {
     PacioFsGrpcUtil.traceMessages(LOG, "mkNod({})", in);
 
     Errno error = Errno.ERRNO_ESUCCESS;
@@ -84,6 +133,8 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
       this.multiChainFileSystem.mkNod(in.getPath(), in.getMode(), in.getDev());
     } catch (NoSuchFileException e) {
       error = Errno.ERRNO_ENOENT;
+    } catch (NotDirectoryException e) {
+      error = Errno.ERRNO_ENOTDIR;
     } catch (FileAlreadyExistsException e) {
       error = Errno.ERRNO_EEXIST;
     } catch (IllegalArgumentException e) {
@@ -96,11 +147,15 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     final MkNodResponse out = builder.setError(error).build();
 
     PacioFsGrpcUtil.traceMessages(LOG, "mkNod({}): {}", in, out);
-    return CompletableFuture.completedFuture(out);
+    return out;
   }
 
   @Override
   public CompletionStage<MkDirResponse> mkDir(MkDirRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doMkDir(in), this.metadataExecutor);
+  }
+
+  private MkDirResponse doMkDir(MkDirRequest in) {
     PacioFsGrpcUtil.traceMessages(LOG, "mkDir({})", in);
 
     Errno error = Errno.ERRNO_ESUCCESS;
@@ -109,6 +164,8 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
       this.multiChainFileSystem.mkDir(in.getPath(), in.getMode());
     } catch (NoSuchFileException e) {
       error = Errno.ERRNO_ENOENT;
+    } catch (NotDirectoryException e) {
+      error = Errno.ERRNO_ENOTDIR;
     } catch (FileAlreadyExistsException e) {
       error = Errno.ERRNO_EEXIST;
     } catch (IOException e) {
@@ -119,11 +176,15 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     final MkDirResponse out = builder.setError(error).build();
 
     PacioFsGrpcUtil.traceMessages(LOG, "mkDir({}): {}", in, out);
-    return CompletableFuture.completedFuture(out);
+    return out;
   }
 
   @Override
   public CompletionStage<ChModResponse> chMod(ChModRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doChMod(in), this.metadataExecutor);
+  }
+
+  private ChModResponse doChMod(ChModRequest in) {
     PacioFsGrpcUtil.traceMessages(LOG, "chMod({})", in);
 
     Errno error = Errno.ERRNO_ESUCCESS;
@@ -136,11 +197,15 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     final ChModResponse out = builder.setError(error).build();
 
     PacioFsGrpcUtil.traceMessages(LOG, "chMod({}): {}", in, out);
-    return CompletableFuture.completedFuture(out);
+    return out;
   }
 
   @Override
   public CompletionStage<ChOwnResponse> chOwn(ChOwnRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doChOwn(in), this.metadataExecutor);
+  }
+
+  private ChOwnResponse doChOwn(ChOwnRequest in) {
     PacioFsGrpcUtil.traceMessages(LOG, "chOwn({})", in);
 
     Errno error = Errno.ERRNO_ESUCCESS;
@@ -153,11 +218,15 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     final ChOwnResponse out = builder.setError(error).build();
 
     PacioFsGrpcUtil.traceMessages(LOG, "chOwn({}): {}", in, out);
-    return CompletableFuture.completedFuture(out);
+    return out;
   }
 
   @Override
   public CompletionStage<OpenResponse> open(OpenRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doOpen(in), this.metadataExecutor);
+  }
+
+  private OpenResponse doOpen(OpenRequest in) {
     PacioFsGrpcUtil.traceMessages(LOG, "open({})", in);
 
     Errno error = Errno.ERRNO_ESUCCESS;
@@ -172,19 +241,76 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     final OpenResponse out = builder.setError(error).build();
 
     PacioFsGrpcUtil.traceMessages(LOG, "open({}): {}", in, out);
-    return CompletableFuture.completedFuture(out);
+    return out;
   }
 
   @Override
   public CompletionStage<ReadResponse> read(ReadRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doRead(in), this.dataExecutor);
+  }
+
+  private ReadResponse doRead(ReadRequest in) {
     PacioFsGrpcUtil.traceMessages(LOG, "read({})", in);
 
+    final ReadResponse out = this.readChunk(in.getPath(), in.getSize(), in.getOffset(), in.getFh());
+
+    // do not trace file content
+    PacioFsGrpcUtil.traceMessages(
+        LOG, "read({}): {}", () -> in, () -> ReadResponse.newBuilder(out).clearBuf().build());
+    return out;
+  }
+
+  @Override
+  public Source<ReadResponse, NotUsed> readStream(ReadStreamRequest in, Metadata metadata) {
+    PacioFsGrpcUtil.traceMessages(LOG, "readStream({})", in);
+
+    // use a handle of our own for read-ahead if the client has not opened the file
+    final long fh;
+    try {
+      fh = in.getFh() != 0 ? in.getFh() : this.multiChainFileSystem.open(in.getPath(), 0);
+    } catch (NoSuchFileException e) {
+      return Source.single(ReadResponse.newBuilder().setError(Errno.ERRNO_ENOENT).build());
+    }
+
+    final int chunkSize = in.getChunkSize() > 0
+        ? Math.min(in.getChunkSize(), this.readStreamChunkSize)
+        : this.readStreamChunkSize;
+    final long end = in.getSize() > 0 && in.getSize() <= Long.MAX_VALUE - in.getOffset()
+        ? in.getOffset() + in.getSize()
+        : Long.MAX_VALUE;
+
+    // the next chunk is only read once the client is ready for it, -1 ends the stream
+    final Source<ReadResponse, NotUsed> chunks = Source.unfoldAsync(in.getOffset(), offset -> {
+      if (offset < 0 || offset >= end) {
+        return CompletableFuture.completedFuture(Optional.empty());
+      }
+
+      return CompletableFuture.supplyAsync(() -> {
+        final ReadResponse out =
+            this.readChunk(in.getPath(), (int) Math.min(chunkSize, end - offset), offset, fh);
+        final boolean last =
+            out.getError() != Errno.ERRNO_ESUCCESS || out.getEof() || out.getN() == 0;
+        return Optional.of(Pair.create(last ? -1L : offset + out.getN(), out));
+      }, this.dataExecutor);
+    });
+
+    if (in.getFh() != 0) {
+      return chunks;
+    }
+
+    return chunks.watchTermination((notUsed, done) -> {
+      done.whenComplete((d, t) -> this.multiChainFileSystem.release(in.getPath(), fh));
+      return notUsed;
+    });
+  }
+
+  private ReadResponse readChunk(String path, int size, long offset, long fh) {
     Errno error = Errno.ERRNO_ESUCCESS;
     final ReadResponse.Builder builder = ReadResponse.newBuilder();
+    final PooledBuffer pooled = this.bufferPool.acquire(size);
     try {
-      final ByteBuffer destination = ByteBuffer.allocateDirect(in.getSize());
-      final int n =
-          this.multiChainFileSystem.read(in.getPath(), destination, in.getOffset(), in.getFh());
+      final ByteBuffer destination = pooled.buffer();
+      final int n = this.multiChainFileSystem.read(path, destination, offset, fh);
       if (n >= 0) {
         // a read return value of 0 is fine
         builder.setEof(false);
@@ -192,7 +318,10 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
 
         // flip buffer for reading from it
         destination.flip();
-        builder.setBuf(ByteString.copyFrom(destination, n));
+
+        // copy once into the response, so the buffer goes back to the pool right away instead of
+        // whenever the response is collected after it has been sent
+        builder.setBuf(ByteString.copyFrom(destination));
       } else if (n == -1) {
         builder.setEof(true);
       } else {
@@ -200,21 +329,25 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
       }
     } catch (NoSuchFileException e) {
       error = Errno.ERRNO_ENOENT;
+    } catch (AccessDeniedException e) {
+      // opened write-only
+      error = Errno.ERRNO_EBADF;
     } catch (IOException e) {
-      LOG.warn(Markers.EXCEPTION, "Could not read file {}", in.getPath(), e);
+      LOG.warn(Markers.EXCEPTION, "Could not read file {}", path, e);
       error = Errno.ERRNO_EIO;
+    } finally {
+      pooled.release();
     }
 
-    final ReadResponse out = builder.setError(error).build();
-
-    // do not trace file content
-    PacioFsGrpcUtil.traceMessages(
-        LOG, "read({}): {}", () -> in, () -> ReadResponse.newBuilder(out).clearBuf().build());
-    return CompletableFuture.completedFuture(out);
+    return builder.setError(error).build();
   }
 
   @Override
   public CompletionStage<WriteResponse> write(WriteRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doWrite(in), this.dataExecutor);
+  }
+
+  private WriteResponse doWrite(WriteRequest in) {
     // do not trace file content
     PacioFsGrpcUtil.traceMessages(
         LOG, "write({})", () -> WriteRequest.newBuilder(in).clearBuf().build());
@@ -223,10 +356,13 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     final WriteResponse.Builder builder = WriteResponse.newBuilder();
     try {
       final int n = this.multiChainFileSystem.write(
-          in.getPath(), in.getBuf().asReadOnlyByteBuffer(), in.getOffset(), in.getFh());
+          in.getPath(), in.getBuf(), in.getOffset(), in.getFh());
       builder.setN(n);
     } catch (NoSuchFileException e) {
       error = Errno.ERRNO_ENOENT;
+    } catch (AccessDeniedException e) {
+      // opened read-only
+      error = Errno.ERRNO_EBADF;
     } catch (IOException e) {
       LOG.warn(Markers.EXCEPTION, "Could not write file {}", in.getPath(), e);
       error = Errno.ERRNO_EIO;
@@ -237,11 +373,112 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     // do not trace file content
     PacioFsGrpcUtil.traceMessages(
         LOG, "write({}): {}", () -> WriteRequest.newBuilder(in).clearBuf().build(), () -> out);
-    return CompletableFuture.completedFuture(out);
+    return out;
+  }
+
+  @Override
+  public CompletionStage<WriteStreamResponse> writeStream(
+      Source<WriteStreamRequest, NotUsed> in, Metadata metadata) {
+    // the file is determined by the first message
+    final AtomicReference<WriteStreamRequest> first = new AtomicReference<>();
+    final AtomicReference<MultiChainFileSystem.StreamedWrite> streamedWrite =
+        new AtomicReference<>();
+
+    // frames are written one after the other, in order
+    final CompletionStage<Done> written =
+        in.mapAsync(1, frame -> CompletableFuture.runAsync(
+            () -> this.writeFrame(frame, first, streamedWrite), this.dataExecutor))
+            .runWith(Sink.ignore(), this.materializer);
+
+    return written
+        .handleAsync((done, t) -> {
+          // record what has been written, even after a failure
+          final MultiChainFileSystem.StreamedWrite w = streamedWrite.get();
+          final CompletableFuture<List<String>> txIds =
+              w != null ? w.finish() : CompletableFuture.completedFuture(List.of());
+
+          // the response reports the transaction ids, so wait for the writes to be sent
+          return txIds.handle((ids, sendError) -> {
+            final Errno error =
+                this.writeStreamErrno(first.get(), t != null ? t : sendError);
+            final WriteStreamResponse.Builder builder =
+                WriteStreamResponse.newBuilder().setError(error);
+            if (w != null) {
+              builder.setN(w.bytesWritten());
+            }
+            if (ids != null) {
+              builder.addAllTxIds(ids);
+            }
+            return builder.build();
+          });
+        }, this.dataExecutor)
+        .thenCompose(response -> response)
+        .thenApply(out -> {
+          PacioFsGrpcUtil.traceMessages(LOG, "writeStream({}): {}",
+              () -> first.get() != null
+                  ? WriteStreamRequest.newBuilder(first.get()).clearBuf().build()
+                  : null,
+              () -> out);
+          return out;
+        });
+  }
+
+  private Errno writeStreamErrno(WriteStreamRequest first, Throwable t) {
+    final Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+    if (cause instanceof NoSuchFileException) {
+      return Errno.ERRNO_ENOENT;
+    } else if (cause instanceof AccessDeniedException) {
+      // opened read-only
+      return Errno.ERRNO_EBADF;
+    } else if (cause != null) {
+      LOG.warn(Markers.EXCEPTION, "Could not write file {}",
+          first != null ? first.getPath() : null, cause);
+      return Errno.ERRNO_EIO;
+    }
+    return Errno.ERRNO_ESUCCESS;
+  }
+
+  private void writeFrame(WriteStreamRequest frame, AtomicReference<WriteStreamRequest> first,
+      AtomicReference<MultiChainFileSystem.StreamedWrite> streamedWrite) {
+    if (first.compareAndSet(null, frame)) {
+      // do not trace file content
+      PacioFsGrpcUtil.traceMessages(
+          LOG, "writeStream({})", () -> WriteStreamRequest.newBuilder(frame).clearBuf().build());
+    }
+
+    try {
+      if (streamedWrite.get() == null) {
+        streamedWrite.set(
+            this.multiChainFileSystem.beginWrite(first.get().getPath(), first.get().getFh()));
+      }
+      streamedWrite.get().write(frame.getBuf(), frame.getOffset());
+    } catch (IOException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  @Override
+  public CompletionStage<ReleaseResponse> release(ReleaseRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doRelease(in), this.metadataExecutor);
+  }
+
+  private ReleaseResponse doRelease(ReleaseRequest in) {
+    PacioFsGrpcUtil.traceMessages(LOG, "release({})", in);
+
+    // releasing unknown handles is fine, they may be from before a restart
+    this.multiChainFileSystem.release(in.getPath(), in.getFh());
+    final ReleaseResponse out = ReleaseResponse.newBuilder().setError(Errno.ERRNO_ESUCCESS).build();
+
+    PacioFsGrpcUtil.traceMessages(LOG, "release({}): {}", in, out);
+    return out;
   }
 
   @Override
   public CompletionStage<ReadDirResponse> readDir(ReadDirRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doReadDir(in), this.metadataExecutor);
+  }
+
+  private ReadDirResponse doReadDir(ReadDirRequest in) {
     PacioFsGrpcUtil.traceMessages(LOG, "readDir({})", in);
 
     Errno error = Errno.ERRNO_ESUCCESS;
@@ -261,11 +498,15 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     final ReadDirResponse out = builder.setError(error).build();
 
     PacioFsGrpcUtil.traceMessages(LOG, "readDir({}): {}", in, out);
-    return CompletableFuture.completedFuture(out);
+    return out;
   }
 
   @Override
   public CompletionStage<CreateResponse> create(CreateRequest in, Metadata metadata) {
+    return CompletableFuture.supplyAsync(() -> this.doCreate(in), this.metadataExecutor);
+  }
+
+  private CreateResponse doCreate(CreateRequest in) {
     PacioFsGrpcUtil.traceMessages(LOG, "create({})", in);
 
     Errno error = Errno.ERRNO_ESUCCESS;
@@ -275,6 +516,8 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
       builder.setFh(fh);
     } catch (NoSuchFileException e) {
       error = Errno.ERRNO_ENOENT;
+    } catch (NotDirectoryException e) {
+      error = Errno.ERRNO_ENOTDIR;
     } catch (FileAlreadyExistsException e) {
       error = Errno.ERRNO_EEXIST;
     } catch (IllegalArgumentException e) {
@@ -287,6 +530,6 @@ public class PosixIoServiceImpl implements PosixIoServicePowerApi {
     final CreateResponse out = builder.setError(error).build();
 
     PacioFsGrpcUtil.traceMessages(LOG, "create({}): {}", in, out);
-    return CompletableFuture.completedFuture(out);
+    return out;
   }
 }
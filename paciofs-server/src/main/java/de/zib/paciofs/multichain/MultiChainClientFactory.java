@@ -7,9 +7,14 @@
 
 package de.zib.paciofs.multichain;
 
+import akka.actor.ActorSystem;
+import akka.http.javadsl.settings.ClientConnectionSettings;
+import akka.http.javadsl.settings.ConnectionPoolSettings;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigException;
 import de.zib.paciofs.logging.Markers;
+import de.zib.paciofs.multichain.rpc.MultiChainAkkaHttpClient;
+import de.zib.paciofs.multichain.rpc.MultiChainAsyncClient;
 import de.zib.paciofs.multichain.rpc.MultiChainJsonRpcClient;
 import de.zib.paciofs.multichain.rpc.types.BlockChainInfo;
 import de.zib.paciofs.multichain.rpc.types.MultiChainError;
@@ -19,14 +24,17 @@ import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import scala.concurrent.duration.FiniteDuration;
 
 public class MultiChainClientFactory {
   /**
@@ -52,11 +60,10 @@ public class MultiChainClientFactory {
 
     private final Object multiChainLifecyclePhaseTransition;
 
-    private LocalClient(String protocol, Config config, MultiChainDaemon multiChainDaemon,
-        LifecyclePhase lifecyclePhase, Object lifecyclePhaseTransition)
-        throws MalformedURLException {
-      // construct URL without credentials
-      super(new URL(protocol + "://localhost:" + config.getInt(MultiChainOptions.RPC_PORT_KEY)));
+    private LocalClient(MultiChainAkkaHttpClient client, Config config,
+        MultiChainDaemon multiChainDaemon, LifecyclePhase lifecyclePhase,
+        Object lifecyclePhaseTransition) {
+      super(client);
 
       this.config = config;
 
@@ -228,35 +235,7 @@ public class MultiChainClientFactory {
     }
 
     private void setAuth() {
-      // build the user:password information
-      String userInfo;
-
-      try {
-        userInfo =
-            this.multiChainDaemon.getMultiChainConf().getString(MultiChainOptions.RPC_USER_KEY);
-      } catch (ConfigException.Missing e) {
-        // no user given, do not use authentication
-        return;
-      }
-
-      try {
-        userInfo += ":"
-            + this.multiChainDaemon.getMultiChainConf().getString(
-                MultiChainOptions.RPC_PASSWORD_KEY);
-      } catch (ConfigException.Missing e) {
-        // no password given, proceed without it
-      }
-
-      super.setAuth(userInfo);
-    }
-  }
-
-  private static class RemoteClient extends MultiChainJsonRpcClient {
-    private RemoteClient(String protocol, Config config) throws MalformedURLException {
-      super(new URL(protocol + "://" + config.getString(MultiChainOptions.RPC_USER_KEY) + ":"
-          + config.getString(MultiChainOptions.RPC_PASSWORD_KEY) + "@"
-          + config.getString(MultiChainOptions.RPC_CONNECT_KEY) + ":"
-          + config.getInt(MultiChainOptions.RPC_PORT_KEY)));
+      super.setAuth(userInfo(this.multiChainDaemon));
     }
   }
 
@@ -270,11 +249,15 @@ public class MultiChainClientFactory {
 
   private final Object multiChainLifecyclePhaseTransition;
 
+  // all clients send their requests through its connection pool
+  private final MultiChainAkkaHttpClient client;
+
   /**
    * Creates MultiChain clients.
    * @param config configuration containing the multichain-client options (see application.conf)
+   * @param system the actor system whose connection pools the clients use
    */
-  public MultiChainClientFactory(Config config) {
+  public MultiChainClientFactory(Config config, ActorSystem system) {
     this.config = config;
 
     String rpcConnect = "";
@@ -295,6 +278,8 @@ public class MultiChainClientFactory {
       this.multiChainLifecyclePhase = LifecyclePhase.RUNNING;
       this.multiChainLifecyclePhaseTransition = null;
     }
+
+    this.client = this.createClient(system);
   }
 
   static {
@@ -320,21 +305,91 @@ public class MultiChainClientFactory {
    */
   public MultiChainJsonRpcClient create() {
     if (this.multiChainDaemon != null) {
-      try {
-        return new LocalClient(this.getProtocol(), this.config, this.multiChainDaemon,
-            this.multiChainLifecyclePhase, this.multiChainLifecyclePhaseTransition);
-      } catch (MalformedURLException e) {
-        throw new RuntimeException("Could not create local MultiChain client", e);
-      }
+      return new LocalClient(this.client, this.config, this.multiChainDaemon,
+          this.multiChainLifecyclePhase, this.multiChainLifecyclePhaseTransition);
     } else {
-      try {
-        return new RemoteClient(this.getProtocol(), this.config);
-      } catch (MalformedURLException e) {
-        throw new RuntimeException("Could not create remote MultiChain client", e);
-      }
+      return new MultiChainJsonRpcClient(this.client);
     }
   }
 
+  /**
+   * Returns the non-blocking client, which shares its connections with the clients created by
+   * {@link #create()}. A local MultiChain must have been started by one of those.
+   * @return the non-blocking client
+   */
+  public MultiChainAsyncClient createAsync() {
+    return this.client;
+  }
+
+  private MultiChainAkkaHttpClient createClient(ActorSystem system) {
+    final Duration requestTimeout =
+        this.config.getDuration(MultiChainOptions.HTTP_REQUEST_TIMEOUT_KEY);
+
+    // Akka HTTP also closes connections that wait for a response without traffic after the idle
+    // timeout, so it must not cut requests short
+    Duration idleTimeout = this.config.getDuration(MultiChainOptions.HTTP_IDLE_TIMEOUT_KEY);
+    if (requestTimeout.isZero()) {
+      idleTimeout = Duration.ZERO;
+    } else if (!idleTimeout.isZero() && idleTimeout.compareTo(requestTimeout) < 0) {
+      idleTimeout = requestTimeout;
+    }
+
+    final ConnectionPoolSettings settings =
+        ConnectionPoolSettings.create(system)
+            .withMaxConnections(this.config.getInt(MultiChainOptions.RPC_THREADS_KEY))
+            .withPipeliningLimit(this.config.getInt(MultiChainOptions.HTTP_PIPELINING_DEPTH_KEY))
+            .withMaxOpenRequests(
+                this.config.getInt(MultiChainOptions.HTTP_MAX_OPEN_REQUESTS_KEY))
+            .withConnectionSettings(
+                ClientConnectionSettings.create(system)
+                    .withConnectingTimeout(scalaDuration(
+                        this.config.getDuration(MultiChainOptions.HTTP_CONNECT_TIMEOUT_KEY)))
+                    .withIdleTimeout(scalaDuration(idleTimeout)));
+
+    // a local MultiChain's credentials are only known once it has been started
+    final String authority = this.multiChainDaemon != null
+        ? "localhost"
+        : this.config.getString(MultiChainOptions.RPC_USER_KEY) + ":"
+            + this.config.getString(MultiChainOptions.RPC_PASSWORD_KEY) + "@"
+            + this.config.getString(MultiChainOptions.RPC_CONNECT_KEY);
+
+    try {
+      return new MultiChainAkkaHttpClient(system,
+          new URL(this.getProtocol() + "://" + authority + ":"
+              + this.config.getInt(MultiChainOptions.RPC_PORT_KEY)),
+          settings, requestTimeout);
+    } catch (MalformedURLException e) {
+      throw new RuntimeException("Could not create MultiChain client", e);
+    }
+  }
+
+  // zero means no timeout
+  private static FiniteDuration scalaDuration(Duration duration) {
+    return duration.isZero() ? FiniteDuration.create(Long.MAX_VALUE, TimeUnit.NANOSECONDS)
+                             : FiniteDuration.create(duration.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  // the user:password information of a local MultiChain, null if it does not use authentication
+  private static String userInfo(MultiChainDaemon multiChainDaemon) {
+    String userInfo;
+
+    try {
+      userInfo = multiChainDaemon.getMultiChainConf().getString(MultiChainOptions.RPC_USER_KEY);
+    } catch (ConfigException.Missing e) {
+      // no user given, do not use authentication
+      return null;
+    }
+
+    try {
+      userInfo +=
+          ":" + multiChainDaemon.getMultiChainConf().getString(MultiChainOptions.RPC_PASSWORD_KEY);
+    } catch (ConfigException.Missing e) {
+      // no password given, proceed without it
+    }
+
+    return userInfo;
+  }
+
   private String getProtocol() {
     return this.config.hasPath(MultiChainOptions.RPC_SSL_KEY) ? "https" : "http";
   }
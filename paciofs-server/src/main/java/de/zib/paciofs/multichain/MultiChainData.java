@@ -12,108 +12,322 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * The payload of a record on MultiChain, written and read field by field. Version 1 writes numbers
+ * with fixed sizes and strings as {@link java.io.DataOutput#writeUTF(String)} does. Version 2
+ * writes numbers and lengths as varints and strings as UTF-8, and adds inode ids. The version is
+ * recorded in the record's header, so both versions can be read while nodes are being migrated.
+ * Payloads are read from slices of the transaction data without copying.
+ */
 public class MultiChainData {
-  private final ByteArrayInputStream bytesIn;
-  private final DataInputStream dataIn;
+  public static final int VERSION_1 = 1;
+
+  public static final int VERSION_2 = 2;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private static final int MAX_UTF_LENGTH = 0xffff;
+
+  private static final int MAX_ASCII = 0x7f;
+
+  private static final int VARINT_PAYLOAD_BITS = 7;
+  private static final int VARINT_PAYLOAD_MASK = 0x7f;
+  private static final int VARINT_CONTINUATION = 0x80;
+  private static final int MAX_VARINT_SHIFT = 63;
 
-  private final ByteArrayOutputStream bytesOut;
-  private final DataOutputStream dataOut;
+  private final int version;
 
+  // written or read up to position
+  private ByteBuffer buffer;
+
+  /**
+   * Creates an empty version 1 payload for writing.
+   */
   public MultiChainData() {
-    this.bytesIn = null;
-    this.dataIn = null;
-    this.bytesOut = new ByteArrayOutputStream();
-    this.dataOut = new DataOutputStream(this.bytesOut);
+    this(VERSION_1);
+  }
+
+  /**
+   * Creates an empty payload for writing.
+   * @param version the version to write
+   */
+  public MultiChainData(int version) {
+    this.version = checkVersion(version);
+    this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
   }
 
+  /**
+   * Creates a version 1 payload for reading.
+   * @param data the payload
+   */
   public MultiChainData(byte[] data) {
-    this.bytesIn = new ByteArrayInputStream(data);
-    this.dataIn = new DataInputStream(this.bytesIn);
-    this.bytesOut = null;
-    this.dataOut = null;
+    this(ByteBuffer.wrap(data), VERSION_1);
   }
 
-  public byte[] readByteArray() {
-    try {
-      final int length = this.dataIn.readInt();
-      final byte[] bytes = new byte[length];
-      final int n = this.dataIn.read(bytes);
-      if (n < length) {
-        throw new RuntimeException("Could not read entire array");
-      }
-      return bytes;
-    } catch (IOException e) {
-      // underlying buffer should never throw
-      throw new AssertionError(e);
+  /**
+   * Creates a payload for reading, without copying it.
+   * @param data the payload, from its position to its limit
+   * @param version the version the payload was written with
+   */
+  public MultiChainData(ByteBuffer data, int version) {
+    this.version = checkVersion(version);
+    this.buffer = data.slice();
+  }
+
+  public int version() {
+    return this.version;
+  }
+
+  /**
+   * Reads a byte array without copying it.
+   * @return the array's contents
+   */
+  public ByteBuffer readBytes() {
+    final int length = this.version == VERSION_1 ? this.buffer.getInt() : this.readVarInt();
+    if (length < 0 || length > this.buffer.remaining()) {
+      throw new IllegalArgumentException("Could not read entire array");
     }
+
+    final ByteBuffer bytes = this.buffer.slice();
+    bytes.limit(length);
+    this.buffer.position(this.buffer.position() + length);
+    return bytes.asReadOnlyBuffer();
+  }
+
+  public byte[] readByteArray() {
+    final ByteBuffer bytes = this.readBytes();
+    final byte[] array = new byte[bytes.remaining()];
+    bytes.get(array);
+    return array;
   }
 
   public int readInt() {
-    try {
-      return this.dataIn.readInt();
-    } catch (IOException e) {
-      // underlying buffer should never throw
-      throw new AssertionError(e);
-    }
+    return this.version == VERSION_1 ? this.buffer.getInt() : this.readVarInt();
   }
 
   public long readLong() {
-    try {
-      return this.dataIn.readLong();
-    } catch (IOException e) {
-      // underlying buffer should never throw
-      throw new AssertionError(e);
-    }
+    return this.version == VERSION_1 ? this.buffer.getLong() : this.readVarLong();
+  }
+
+  /**
+   * Reads the id of an inode, which is only written in version 2.
+   * @return the id
+   */
+  public long readInodeId() {
+    return this.buffer.getLong();
   }
 
   public String readString() {
-    try {
-      return this.dataIn.readUTF();
-    } catch (IOException e) {
-      // underlying buffer should never throw
-      throw new AssertionError(e);
+    if (this.version == VERSION_1) {
+      return this.readUtf();
+    }
+
+    final int length = this.readVarInt();
+    if (length < 0 || length > this.buffer.remaining()) {
+      throw new IllegalArgumentException("Could not read entire string");
     }
+    final String s = decode(this.buffer, length, StandardCharsets.UTF_8);
+    this.buffer.position(this.buffer.position() + length);
+    return s;
   }
 
   public void writeByteArray(byte[] b) {
-    try {
-      this.dataOut.writeInt(b.length);
-      this.dataOut.write(b);
-    } catch (IOException e) {
-      // underlying buffer should never throw
-      throw new AssertionError(e);
-    }
+    this.writeBytes(ByteBuffer.wrap(b));
+  }
+
+  /**
+   * Writes a byte array.
+   * @param b the array's contents, from position to limit, which is left unchanged
+   */
+  public void writeBytes(ByteBuffer b) {
+    this.writeInt(b.remaining());
+    this.ensureRemaining(b.remaining());
+    this.buffer.put(b.duplicate());
   }
 
   public void writeInt(int i) {
-    try {
-      this.dataOut.writeInt(i);
-    } catch (IOException e) {
-      // underlying buffer should never throw
-      throw new AssertionError(e);
+    if (this.version == VERSION_1) {
+      this.ensureRemaining(Integer.BYTES);
+      this.buffer.putInt(i);
+    } else {
+      this.writeVarLong(Integer.toUnsignedLong(i));
     }
   }
 
   public void writeLong(long l) {
-    try {
-      this.dataOut.writeLong(l);
-    } catch (IOException e) {
-      // underlying buffer should never throw
-      throw new AssertionError(e);
+    if (this.version == VERSION_1) {
+      this.ensureRemaining(Long.BYTES);
+      this.buffer.putLong(l);
+    } else {
+      this.writeVarLong(l);
+    }
+  }
+
+  /**
+   * Writes the id of an inode, which is only possible in version 2.
+   * @param id the id
+   */
+  public void writeInodeId(long id) {
+    if (this.version == VERSION_1) {
+      throw new IllegalStateException("Inode ids cannot be written in version 1");
     }
+    this.ensureRemaining(Long.BYTES);
+    this.buffer.putLong(id);
   }
 
   public void writeString(String s) {
+    if (this.version == VERSION_1) {
+      this.writeUtf(s);
+    } else {
+      final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      this.writeInt(bytes.length);
+      this.ensureRemaining(bytes.length);
+      this.buffer.put(bytes);
+    }
+  }
+
+  /**
+   * Gets what has been written so far, without copying it.
+   * @return a read-only view of the payload
+   */
+  public ByteBuffer toByteBuffer() {
+    final ByteBuffer written = this.buffer.duplicate();
+    written.flip();
+    return written.asReadOnlyBuffer();
+  }
+
+  public byte[] toByteArray() {
+    final ByteBuffer written = this.toByteBuffer();
+    final byte[] array = new byte[written.remaining()];
+    written.get(array);
+    return array;
+  }
+
+  /**
+   * Discards what has been written, so the payload's buffer can be reused.
+   */
+  public void clear() {
+    this.buffer.clear();
+  }
+
+  private int readVarInt() {
+    final long value = this.readVarLong();
+    if (value >>> Integer.SIZE != 0) {
+      throw new IllegalArgumentException("Varint " + Long.toUnsignedString(value) + " exceeds int");
+    }
+    return (int) value;
+  }
+
+  private long readVarLong() {
+    long value = 0;
+    for (int shift = 0; shift <= MAX_VARINT_SHIFT; shift += VARINT_PAYLOAD_BITS) {
+      final int b = Byte.toUnsignedInt(this.buffer.get());
+      value |= (long) (b & VARINT_PAYLOAD_MASK) << shift;
+      if ((b & VARINT_CONTINUATION) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  private void writeVarLong(long l) {
+    this.ensureRemaining(Long.BYTES + 2);
+    long remaining = l;
+    while ((remaining & ~VARINT_PAYLOAD_MASK) != 0) {
+      this.buffer.put((byte) ((remaining & VARINT_PAYLOAD_MASK) | VARINT_CONTINUATION));
+      remaining >>>= VARINT_PAYLOAD_BITS;
+    }
+    this.buffer.put((byte) remaining);
+  }
+
+  // modified UTF-8 as in DataInput, ASCII without copying
+  private String readUtf() {
+    final int length = Short.toUnsignedInt(this.buffer.getShort());
+    if (length > this.buffer.remaining()) {
+      throw new IllegalArgumentException("Could not read entire string");
+    }
+
+    final int start = this.buffer.position();
+    boolean ascii = true;
+    for (int i = start; i < start + length && ascii; ++i) {
+      final byte b = this.buffer.get(i);
+      ascii = b > 0;
+    }
+
+    final String s;
+    if (ascii) {
+      s = decode(this.buffer, length, StandardCharsets.US_ASCII);
+    } else {
+      final byte[] utf = new byte[Short.BYTES + length];
+      this.buffer.duplicate().position(start - Short.BYTES).get(utf);
+      try {
+        s = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Malformed string", e);
+      }
+    }
+
+    this.buffer.position(start + length);
+    return s;
+  }
+
+  private void writeUtf(String s) {
+    boolean ascii = s.length() <= MAX_UTF_LENGTH;
+    for (int i = 0; i < s.length() && ascii; ++i) {
+      final char c = s.charAt(i);
+      ascii = c > 0 && c <= MAX_ASCII;
+    }
+
+    if (ascii) {
+      this.ensureRemaining(Short.BYTES + s.length());
+      this.buffer.putShort((short) s.length());
+      for (int i = 0; i < s.length(); ++i) {
+        this.buffer.put((byte) s.charAt(i));
+      }
+      return;
+    }
+
+    final ByteArrayOutputStream utf = new ByteArrayOutputStream();
     try {
-      this.dataOut.writeUTF(s);
+      new DataOutputStream(utf).writeUTF(s);
     } catch (IOException e) {
-      // underlying buffer should never throw
-      throw new AssertionError(e);
+      // too long for writeUTF
+      throw new IllegalArgumentException(e);
     }
+    this.ensureRemaining(utf.size());
+    this.buffer.put(utf.toByteArray());
   }
 
-  public byte[] toByteArray() {
-    return this.bytesOut.toByteArray();
+  private void ensureRemaining(int n) {
+    if (this.buffer.remaining() < n) {
+      final ByteBuffer grown = ByteBuffer.allocate(
+          Math.max(2 * this.buffer.capacity(), this.buffer.position() + n));
+      this.buffer.flip();
+      grown.put(this.buffer);
+      this.buffer = grown;
+    }
+  }
+
+  // decodes length bytes at the buffer's position, without moving it
+  private static String decode(ByteBuffer buffer, int length, Charset charset) {
+    if (buffer.hasArray()) {
+      return new String(
+          buffer.array(), buffer.arrayOffset() + buffer.position(), length, charset);
+    }
+
+    final ByteBuffer bytes = buffer.duplicate();
+    bytes.limit(bytes.position() + length);
+    return charset.decode(bytes).toString();
+  }
+
+  private static int checkVersion(int version) {
+    if (version != VERSION_1 && version != VERSION_2) {
+      throw new IllegalArgumentException("Unsupported payload version " + version);
+    }
+    return version;
   }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import de.zib.paciofs.multichain.internal.MultiChainCommand;
+import java.nio.ByteBuffer;
+
+/**
+ * A record from the OP_RETURN data of a raw transaction. It is decoded once and shared by all
+ * consumers subscribed to its command.
+ */
+public final class MultiChainEvent {
+  private final String txId;
+
+  private final MultiChainCommand command;
+
+  // slice of the transaction's data
+  private final ByteBuffer payload;
+
+  private final int version;
+
+  MultiChainEvent(String txId, MultiChainCommand command, ByteBuffer payload, int version) {
+    this.txId = txId;
+    this.command = command;
+    this.payload = payload;
+    this.version = version;
+  }
+
+  public String txId() {
+    return this.txId;
+  }
+
+  public MultiChainCommand command() {
+    return this.command;
+  }
+
+  public int version() {
+    return this.version;
+  }
+
+  /**
+   * Gets the record's data, as passed to {@link MultiChainUtil#encodeRecord(MultiChainCommand,
+   * MultiChainData)}.
+   * @return a new reader, so consumers do not interfere with each other
+   */
+  public MultiChainData data() {
+    return new MultiChainData(this.payload.duplicate(), this.version);
+  }
+}
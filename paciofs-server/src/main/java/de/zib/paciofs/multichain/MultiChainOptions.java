@@ -16,6 +16,12 @@ public class MultiChainOptions {
 
   public static final String DAEMON_OPTIONS_KEY = "multichain.multichaind.options";
 
+  public static final String HTTP_CONNECT_TIMEOUT_KEY = "http.connect-timeout";
+  public static final String HTTP_IDLE_TIMEOUT_KEY = "http.idle-timeout";
+  public static final String HTTP_MAX_OPEN_REQUESTS_KEY = "http.max-open-requests";
+  public static final String HTTP_PIPELINING_DEPTH_KEY = "http.pipelining-depth";
+  public static final String HTTP_REQUEST_TIMEOUT_KEY = "http.request-timeout";
+
   public static final String HOME_KEY = "multichain.home";
 
   public static final String PROTOCOL_VERSION_KEY = "multichain.protocol-version";
@@ -27,6 +33,7 @@ public class MultiChainOptions {
   public static final String RPC_USER_KEY = "rpcuser";
   public static final String RPC_PASSWORD_KEY = "rpcpassword";
   public static final String RPC_SSL_KEY = "rpcssl";
+  public static final String RPC_THREADS_KEY = "rpcthreads";
 
   public static final String UTIL_OPTIONS_KEY = "multichain.multichain-util.options";
 
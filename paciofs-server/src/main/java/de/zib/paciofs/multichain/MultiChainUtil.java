@@ -13,20 +13,27 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import de.zib.paciofs.logging.Markers;
 import de.zib.paciofs.multichain.internal.MultiChainCommand;
 import de.zib.paciofs.multichain.internal.MultiChainRawTransactionDataHeader;
-import de.zib.paciofs.multichain.rpc.MultiChainClient;
+import de.zib.paciofs.multichain.internal.MultiChainRawTransactionDataHeader.Compression;
+import de.zib.paciofs.multichain.rpc.MultiChainAsyncClient;
 import de.zib.paciofs.multichain.rpc.types.MultiChainException;
 import de.zib.paciofs.multichain.rpc.types.RawTransaction;
-import de.zib.paciofs.multichain.rpc.types.TransactionInput;
 import de.zib.paciofs.multichain.rpc.types.TransactionInputList;
 import de.zib.paciofs.multichain.rpc.types.TransactionOutput;
 import de.zib.paciofs.multichain.rpc.types.TransactionOutputList;
-import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutput;
-import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutputList;
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.util.Random;
-import java.util.function.BiConsumer;
-import org.apache.commons.codec.DecoderException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 
@@ -37,65 +44,180 @@ public class MultiChainUtil {
 
   private static final int UTXO_MIN_CONFIRMATIONS = 0;
 
-  private final MultiChainClient client;
+  // the change output is created before the OP_RETURN output
+  private static final int CHANGE_VOUT = 0;
 
-  private final BigDecimal amount;
+  // retries of failed transactions, e.g. because UTXOs were spent concurrently
+  private static final int SEND_MAX_ATTEMPTS = 8;
+  private static final long SEND_INITIAL_BACKOFF_MILLIS = 10;
+  private static final long SEND_MAX_BACKOFF_MILLIS = 1000;
+
+  // stays well below MultiChain's default max-std-op-return-size
+  private static final int DEFAULT_MAX_BATCH_BYTES = 4096;
+
+  // nodes of earlier releases only read the first record of each transaction
+  private static final int DEFAULT_MAX_BATCH_RECORDS = 1;
+
+  /**
+   * Limits of the transactions shared by concurrent callers, see paciofs.group-commit in
+   * application.conf.
+   */
+  public static final class GroupCommit {
+    private final int maxBytes;
+
+    private final int maxRecords;
+
+    private final Duration maxDelay;
+
+    /**
+     * Creates the limits of shared transactions.
+     * @param maxBytes maximum size of the data of records sent in the same transaction
+     * @param maxRecords maximum number of records sent in the same transaction
+     * @param maxDelay how long to wait for more records before sending a transaction while none is
+     *     in flight
+     */
+    public GroupCommit(int maxBytes, int maxRecords, Duration maxDelay) {
+      this.maxBytes = maxBytes;
+      this.maxRecords = Math.max(1, maxRecords);
+      this.maxDelay = maxDelay;
+    }
+
+    public int maxBytes() {
+      return this.maxBytes;
+    }
+
+    public int maxRecords() {
+      return this.maxRecords;
+    }
+
+    public Duration maxDelay() {
+      return this.maxDelay;
+    }
+  }
+
+  private static final class PendingRecord {
+    private final byte[] bytes;
+
+    private final CompletableFuture<String> txId;
+
+    private PendingRecord(byte[] bytes) {
+      this.bytes = bytes;
+      this.txId = new CompletableFuture<>();
+    }
+  }
+
+  private final MultiChainAsyncClient client;
+
+  private final UtxoPool utxos;
+
+  // in satoshis
+  private final long amount;
 
   private final String changeAddress;
 
   private final Logger log;
 
-  private final Random random;
+  private final int maxBatchBytes;
+
+  private final int maxBatchRecords;
+
+  private final long maxBatchDelayNanos;
+
+  // of the records encoded by this instance
+  private final Compression compression;
+
+  private final Object commitLock;
+
+  // records waiting to be sent, guarded by commitLock
+  private final Queue<PendingRecord> pending;
+
+  // guarded by commitLock
+  private int pendingBytes;
 
-  private UnspentTransactionOutputList cachedUtxos;
+  // whether a batch is being sent, guarded by commitLock
+  private boolean sending;
 
   /**
    * Constructs a utility around a MultiChain client, providing some added functionality.
    * @param client the MultiChain client to wrap
+   * @param utxos the pool to take inputs from and to add change outputs to
    * @param amount the amount to send in each transaction
    * @param log the logger to use
    */
-  public MultiChainUtil(MultiChainClient client, BigDecimal amount, Logger log) {
+  public MultiChainUtil(
+      MultiChainAsyncClient client, UtxoPool utxos, BigDecimal amount, Logger log) {
+    this(client, utxos, amount,
+        new GroupCommit(DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_BATCH_RECORDS, Duration.ZERO),
+        Compression.COMPRESSION_NONE, log);
+  }
+
+  /**
+   * Constructs a utility around a MultiChain client, providing some added functionality.
+   * @param client the MultiChain client to wrap
+   * @param utxos the pool to take inputs from and to add change outputs to
+   * @param amount the amount to send in each transaction
+   * @param groupCommit limits of the transactions shared by concurrent callers
+   * @param compression how to compress the data of records, which is only done if it helps
+   * @param log the logger to use
+   */
+  public MultiChainUtil(MultiChainAsyncClient client, UtxoPool utxos, BigDecimal amount,
+      GroupCommit groupCommit, Compression compression, Logger log) {
     this.client = client;
-    this.changeAddress = this.client.getRawChangeAddress();
-    this.amount = amount;
+    this.utxos = utxos;
+    this.changeAddress = join(this.client.getRawChangeAddress());
+    this.amount = UtxoPool.toSatoshis(amount);
     this.log = log;
-    this.random = new Random();
-    this.cachedUtxos = new UnspentTransactionOutputList();
+    this.maxBatchBytes = groupCommit.maxBytes();
+    this.maxBatchRecords = groupCommit.maxRecords();
+    this.maxBatchDelayNanos = groupCommit.maxDelay().toNanos();
+    this.compression = compression;
+    this.commitLock = new Object();
+    this.pending = new ArrayDeque<>();
   }
 
   /**
-   * Takes a raw transaction and iterates over all outputs. If an output is found that contains
-   * encoded data, extracts the corresponding command and passes it to the consumer, along with the
-   * data.
+   * Takes a raw transaction and iterates over all outputs. Every record found in an output that
+   * contains encoded data is decoded into an event, unless nobody is subscribed to its command.
    * @param rawTransaction the raw transaction to iterate over
-   * @param consumer callback taking a command along with data
+   * @param commands the commands to decode records of, others are skipped
+   * @return the events in the order of the records
    */
-  public void processRawTransaction(
-      RawTransaction rawTransaction, BiConsumer<MultiChainCommand, MultiChainData> consumer) {
-    // TODO build fixed-size FIFO cache of raw transactions
+  public static List<MultiChainEvent> decodeEvents(
+      RawTransaction rawTransaction, Set<MultiChainCommand> commands) {
+    final List<MultiChainEvent> events = new ArrayList<>();
     for (RawTransaction.Out out : rawTransaction.vOut()) {
-      if (out.scriptPubKey() != null && "nulldata".equals(out.scriptPubKey().type())) {
-        final byte[] opReturnData;
-        try {
-          opReturnData = Hex.decodeHex(out.scriptPubKey().asm().substring("OP_RETURN ".length()));
-        } catch (DecoderException e) {
-          throw new RuntimeException("Could not decode OP_RETURN data", e);
-        }
-
+      final byte[] opReturnData = out.scriptPubKey() == null ? null : out.scriptPubKey().data();
+      if (opReturnData != null) {
+        // group commits concatenate several records in one output
         final CodedInputStream stream = CodedInputStream.newInstance(opReturnData);
         try {
-          // limit to header size to avoid reading past the end
-          final int headerLength = stream.readUInt32();
-          final int limit = stream.pushLimit(headerLength);
-          final MultiChainRawTransactionDataHeader header =
-              MultiChainRawTransactionDataHeader.parseFrom(stream);
-          stream.popLimit(limit);
-
-          if (header.getMagic() == HEADER_MAGIC) {
+          while (!stream.isAtEnd()) {
+            // limit to header size to avoid reading past the end
+            final int headerLength = stream.readUInt32();
+            final int limit = stream.pushLimit(headerLength);
+            final MultiChainRawTransactionDataHeader header =
+                MultiChainRawTransactionDataHeader.parseFrom(stream);
+            stream.popLimit(limit);
+
+            if (header.getMagic() != HEADER_MAGIC) {
+              break;
+            }
+
+            // a malformed record would otherwise fail the whole block, over and over again
             final int dataLength = stream.readUInt32();
-            final MultiChainData data = new MultiChainData(stream.readRawBytes(dataLength));
-            consumer.accept(header.getCommand(), data);
+            if (dataLength < 0 || dataLength > opReturnData.length - stream.getTotalBytesRead()) {
+              break;
+            }
+
+            // a slice of the output's data rather than a copy
+            final MultiChainEvent event = commands.contains(header.getCommand())
+                ? decodeEvent(rawTransaction.id(), header,
+                    ByteBuffer.wrap(opReturnData, stream.getTotalBytesRead(), dataLength).slice())
+                : null;
+            if (event != null) {
+              events.add(event);
+            }
+            stream.skipRawBytes(dataLength);
           }
         } catch (InvalidProtocolBufferException e) {
           // invalid header, no raw transaction we can process
@@ -104,90 +226,305 @@ public class MultiChainUtil {
         }
       }
     }
+    return events;
   }
 
-  public String sendRawTransaction(MultiChainCommand command, MultiChainData data) {
-    String transactionId = null;
-    while (transactionId == null) {
-      try {
-        transactionId = this.doSendRawTransaction(command, data);
-      } catch (MultiChainException e) {
-        this.log.debug("Sending raw transaction failed ({}), retrying ...", e.getMessage());
-        this.log.debug(Markers.EXCEPTION, "Sending raw transaction failed", e);
-        this.cachedUtxos = this.client.listUnspent(UTXO_MIN_CONFIRMATIONS);
-      }
+  // returns null if the record's data cannot be read by this version
+  private static MultiChainEvent decodeEvent(
+      String txId, MultiChainRawTransactionDataHeader header, ByteBuffer data) {
+    final int version = header.getVersion() == 0 ? MultiChainData.VERSION_1 : header.getVersion();
+    if (version > MultiChainData.VERSION_2) {
+      return null;
+    }
+
+    if (header.getCompression() == Compression.COMPRESSION_NONE) {
+      return new MultiChainEvent(txId, header.getCommand(), data, version);
     }
 
-    return transactionId;
+    final ByteBuffer decompressed = RecordCompression.decompress(
+        header.getCompression(), data, header.getUncompressedSize());
+    return decompressed == null
+        ? null
+        : new MultiChainEvent(txId, header.getCommand(), decompressed, version);
   }
 
   /**
-   * Builds, signs and sends a raw transaction.
+   * Sends data to MultiChain like {@link #sendRawTransactionAsync(MultiChainCommand,
+   * MultiChainData)}, and waits until it has been sent.
    * @param command the command to prepend to the data
    * @param data the actual data to add to OP_RETURN
-   * @return the transaction id
+   * @return the id of the transaction containing the data, possibly shared with other callers
+   * @throws MultiChainException if the transaction could not be sent after several attempts
    */
-  private String doSendRawTransaction(MultiChainCommand command, MultiChainData data) {
-    // find fitting UTXOs
-    final TransactionInputList inputs = new TransactionInputList();
-    BigDecimal currentAmount = BigDecimal.ZERO;
-    final int cachedUtxoCount = this.cachedUtxos.size();
-    for (int i = 0; i < cachedUtxoCount; ++i) {
-      final UnspentTransactionOutput utxo =
-          this.cachedUtxos.remove(this.random.nextInt(this.cachedUtxos.size()));
-      if (currentAmount.compareTo(this.amount) >= 0) {
-        // we have accumulated enough UTXOs
-        break;
+  public String sendRawTransaction(MultiChainCommand command, MultiChainData data) {
+    return join(this.sendRawTransactionAsync(command, data));
+  }
+
+  /**
+   * Sends records as created by {@link #encodeRecord(MultiChainCommand, MultiChainData)} to
+   * MultiChain in the same transaction, and waits until they have been sent.
+   * @param records the concatenated records
+   * @return the id of the transaction containing the records, possibly shared with other callers
+   * @throws MultiChainException if the transaction could not be sent after several attempts
+   */
+  public String sendRecords(byte[] records) {
+    return join(this.sendRecordsAsync(records));
+  }
+
+  /**
+   * Sends data to MultiChain without waiting for it. At most one transaction is in flight at a
+   * time: data of concurrent callers accumulates meanwhile, and is sent together in the next
+   * transaction (up to the batch size), which spends the change of the previous one.
+   * @param command the command to prepend to the data
+   * @param data the actual data to add to OP_RETURN
+   * @return the id of the transaction containing the data, possibly shared with other callers, or
+   *     a MultiChainException if the transaction could not be sent after several attempts
+   */
+  public CompletionStage<String> sendRawTransactionAsync(
+      MultiChainCommand command, MultiChainData data) {
+    return this.sendRecordsAsync(this.encode(command, data));
+  }
+
+  /**
+   * Sends records as created by {@link #encodeRecord(MultiChainCommand, MultiChainData)} to
+   * MultiChain in the same transaction, grouped with concurrent callers like {@link
+   * #sendRawTransactionAsync(MultiChainCommand, MultiChainData)}.
+   * @param records the concatenated records
+   * @return the id of the transaction containing the records, possibly shared with other callers
+   */
+  public CompletionStage<String> sendRecordsAsync(byte[] records) {
+    final PendingRecord record = new PendingRecord(records);
+
+    final boolean start;
+    synchronized (this.commitLock) {
+      this.pending.add(record);
+      this.pendingBytes += record.bytes.length;
+      start = !this.sending;
+      this.sending = true;
+    }
+
+    if (start && this.maxBatchDelayNanos > 0) {
+      // optionally give concurrent callers the chance to join
+      CompletableFuture.delayedExecutor(this.maxBatchDelayNanos, TimeUnit.NANOSECONDS)
+          .execute(this::commitBatch);
+    } else if (start) {
+      this.commitBatch();
+    }
+
+    return record.txId;
+  }
+
+  // sends everything that is pending, one batch after the other
+  private void commitBatch() {
+    final List<PendingRecord> batch = new ArrayList<>();
+    int batchBytes = 0;
+    synchronized (this.commitLock) {
+      while (!this.pending.isEmpty()
+          && (batch.isEmpty()
+                 || batch.size() < this.maxBatchRecords
+                        && batchBytes + this.pending.peek().bytes.length <= this.maxBatchBytes)) {
+        final PendingRecord record = this.pending.poll();
+        batchBytes += record.bytes.length;
+        this.pendingBytes -= record.bytes.length;
+        batch.add(record);
+      }
+
+      if (batch.isEmpty()) {
+        this.sending = false;
+        return;
       }
+    }
+
+    this.log.trace("Sending {} record(s)", batch.size());
+    final byte[] out = new byte[batchBytes];
+    int offset = 0;
+    for (PendingRecord record : batch) {
+      System.arraycopy(record.bytes, 0, out, offset, record.bytes.length);
+      offset += record.bytes.length;
+    }
+
+    this.sendBatch(out, 1, SEND_INITIAL_BACKOFF_MILLIS).whenComplete((transactionId, failure) -> {
+      for (PendingRecord record : batch) {
+        if (failure == null) {
+          record.txId.complete(transactionId);
+        } else {
+          record.txId.completeExceptionally(unwrap(failure));
+        }
+      }
+
+      // runs on the thread that has just added the change, so the next batch spends it
+      this.commitBatch();
+    });
+  }
+
+  private CompletableFuture<String> sendBatch(byte[] out, int attempt, long backoff) {
+    return this.doSendRawTransaction(out)
+        .handle((transactionId, failure) -> {
+          if (failure == null) {
+            this.log.trace("Sent {} bytes in transaction {}", out.length, transactionId);
+            return CompletableFuture.completedFuture(transactionId);
+          }
+
+          final Throwable cause = unwrap(failure);
+          if (attempt == SEND_MAX_ATTEMPTS) {
+            return CompletableFuture.<String>failedFuture(new MultiChainException(
+                "Sending raw transaction failed " + attempt + " times: " + cause.getMessage(),
+                cause));
+          }
+
+          this.log.debug("Sending raw transaction failed ({}), retrying in {}ms ...",
+              cause.getMessage(), backoff);
+          this.log.debug(Markers.EXCEPTION, "Sending raw transaction failed", cause);
+
+          // retry with a fresh view of the wallet, whether or not it can be had
+          return CompletableFuture
+              .supplyAsync(() -> attempt,
+                  CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS))
+              .thenCompose(
+                  ignored -> this.utxos.reconcileAsync(this.client, UTXO_MIN_CONFIRMATIONS))
+              .handle((unspent, reconcileFailure) -> attempt + 1)
+              .thenCompose(next
+                  -> this.sendBatch(out, next, Math.min(2 * backoff, SEND_MAX_BACKOFF_MILLIS)));
+        })
+        .thenCompose(Function.identity());
+  }
 
-      if (utxo.spendable()) {
-        inputs.add(
-            new TransactionInput(utxo.txId(), utxo.vOut(), utxo.scriptPubKey(), utxo.amount()));
-        currentAmount = currentAmount.add(utxo.amount());
+  private static Throwable unwrap(Throwable failure) {
+    return failure instanceof CompletionException && failure.getCause() != null
+        ? failure.getCause()
+        : failure;
+  }
+
+  private static <T> T join(CompletionStage<T> stage) {
+    try {
+      return stage.toCompletableFuture().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw(RuntimeException) e.getCause();
       }
+      throw e;
     }
+  }
 
-    if (currentAmount.compareTo(this.amount) < 0) {
-      throw new MultiChainException("Not enough spendable UTXOs with sufficient value (got "
-          + inputs.size() + " of total value " + currentAmount + ")");
-    } else {
-      this.log.trace("Got {} UTXOs of value {}", inputs.size(), currentAmount);
+  /**
+   * Encodes data as a record for OP_RETURN like {@link #encodeRecord(MultiChainCommand,
+   * MultiChainData, Compression)}, compressed as configured for this instance.
+   * @param command the command to prepend to the data
+   * @param data the actual data
+   * @return the record
+   */
+  public byte[] encode(MultiChainCommand command, MultiChainData data) {
+    return encodeRecord(command, data, this.compression);
+  }
+
+  /**
+   * Encodes data as an uncompressed record for OP_RETURN.
+   * @see #encodeRecord(MultiChainCommand, MultiChainData, Compression)
+   */
+  public static byte[] encodeRecord(MultiChainCommand command, MultiChainData data) {
+    return encodeRecord(command, data, Compression.COMPRESSION_NONE);
+  }
+
+  /**
+   * Encodes data as a record for OP_RETURN: header and data, each prepended by their length as
+   * uint32. The header records the data's version unless it is 1, and its compression unless
+   * there is none, so such records are readable by nodes that do not know about either.
+   * @param command the command to prepend to the data
+   * @param data the actual data
+   * @param compression how to compress the data, which is only done if it gets smaller
+   * @return the record
+   */
+  public static byte[] encodeRecord(
+      MultiChainCommand command, MultiChainData data, Compression compression) {
+    final MultiChainRawTransactionDataHeader.Builder builder =
+        MultiChainRawTransactionDataHeader.newBuilder().setMagic(HEADER_MAGIC).setCommand(command);
+    if (data.version() != MultiChainData.VERSION_1) {
+      builder.setVersion(data.version());
     }
 
-    // build the header so we know the size
-    final MultiChainRawTransactionDataHeader header =
-        MultiChainRawTransactionDataHeader.newBuilder()
-            .setMagic(HEADER_MAGIC)
-            .setCommand(command)
-            .build();
+    // compression must save more than the header fields describing it
+    ByteBuffer dataBuffer = data.toByteBuffer();
+    final int maxCompressedSize = dataBuffer.remaining() - 1
+        - CodedOutputStream.computeEnumSize(
+            MultiChainRawTransactionDataHeader.COMPRESSION_FIELD_NUMBER, compression.getNumber())
+        - CodedOutputStream.computeUInt32Size(
+            MultiChainRawTransactionDataHeader.UNCOMPRESSED_SIZE_FIELD_NUMBER,
+            dataBuffer.remaining());
+    final ByteBuffer compressed =
+        RecordCompression.compress(compression, dataBuffer, maxCompressedSize);
+    if (compressed != null) {
+      builder.setCompression(compression).setUncompressedSize(dataBuffer.remaining());
+      dataBuffer = compressed;
+    }
+    final MultiChainRawTransactionDataHeader header = builder.build();
 
-    // build the data array
-    final byte[] dataArray = data.toByteArray();
+    // copy the data only once, into the record
+    final int dataLength = dataBuffer.remaining();
     final byte[] out = new byte[CodedOutputStream.computeMessageSizeNoTag(header)
-        + CodedOutputStream.computeByteArraySizeNoTag(dataArray)];
+        + CodedOutputStream.computeUInt32SizeNoTag(dataLength) + dataLength];
     try {
       final CodedOutputStream stream = CodedOutputStream.newInstance(out);
 
-      // both methods prepend lengths as uint32 fields
+      // prepend lengths as uint32 fields
       stream.writeMessageNoTag(header);
-      stream.writeByteArrayNoTag(dataArray);
+      stream.writeUInt32NoTag(dataLength);
+      stream.write(dataBuffer);
 
       stream.flush();
     } catch (IOException e) {
       throw new RuntimeException("Error writing raw transaction data", e);
     }
 
+    return out;
+  }
+
+  /**
+   * Builds, signs and sends a raw transaction.
+   * @param out the encoded records to add to OP_RETURN
+   * @return the transaction id
+   */
+  private CompletableFuture<String> doSendRawTransaction(byte[] out) {
+    // reserve fitting UTXOs
+    final List<UtxoPool.Utxo> reserved = this.utxos.reserve(this.amount);
+    if (reserved == null) {
+      return CompletableFuture.failedFuture(new MultiChainException(
+          "Not enough spendable UTXOs with sufficient value (got " + this.utxos.size() + ")"));
+    }
+
+    final TransactionInputList inputs = new TransactionInputList();
+    long currentAmount = 0;
+    for (UtxoPool.Utxo utxo : reserved) {
+      inputs.add(utxo.toInput());
+      currentAmount += utxo.amount();
+    }
+    this.log.trace("Got {} UTXOs of value {}", inputs.size(), currentAmount);
+
     // send to our change address
+    final long change = currentAmount - this.amount;
     final TransactionOutputList outputs = new TransactionOutputList();
     outputs.add(new TransactionOutput(
-        this.changeAddress, currentAmount.subtract(this.amount), Hex.encodeHexString(out)));
+        this.changeAddress, UtxoPool.toCoins(change), Hex.encodeHexString(out)));
 
     // build the raw transaction, sign and send it
-    final String transactionId = this.client.createRawTransaction(inputs, outputs, true);
+    final CompletableFuture<String> sent =
+        this.client.createRawTransaction(inputs, outputs, true)
+            .toCompletableFuture()
+            .whenComplete((transactionId, failure) -> {
+              // on failure, the inputs are only used again if the wallet still reports them as
+              // unspent
+              this.utxos.spend(reserved);
+
+              // the change can be spent right away
+              if (failure == null && change > 0) {
+                this.utxos.add(transactionId, CHANGE_VOUT, this.changeAddress, change);
+              }
+            });
+
     if (this.log.isTraceEnabled()) {
-      this.log.trace("Raw transaction: {}", this.client.getRawTransaction(transactionId));
+      sent.thenCompose(this.client::getRawTransaction)
+          .thenAccept(transaction -> this.log.trace("Raw transaction: {}", transaction));
     }
 
-    return transactionId;
+    return sent;
   }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The ids of the transactions this node has sent recently, and whose effects it has applied
+ * locally already. The follower does not need to fetch and decode them when they appear in a
+ * block. Only the most recently sent transactions are remembered, older ones are fetched like
+ * everyone else's, which is harmless because consuming a transaction again has no effect.
+ */
+public class OwnTransactions {
+  // a transaction id in binary, less than half the size of its hex string
+  private static final class TxId {
+    private static final int LONGS = 4;
+
+    private final long[] words;
+
+    private TxId(long[] words) {
+      this.words = words;
+    }
+
+    // returns null if txId is not a 256 bit hex string
+    private static TxId of(String txId) {
+      final byte[] bytes;
+      try {
+        bytes = Hex.decodeHex(txId);
+      } catch (DecoderException e) {
+        return null;
+      }
+
+      if (bytes.length != LONGS * Long.BYTES) {
+        return null;
+      }
+
+      final long[] words = new long[LONGS];
+      ByteBuffer.wrap(bytes).asLongBuffer().get(words);
+      return new TxId(words);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof TxId && Arrays.equals(this.words, ((TxId) other).words);
+    }
+
+    @Override
+    public int hashCode() {
+      // transaction ids are hashes already
+      return (int) this.words[0];
+    }
+  }
+
+  private final int capacity;
+
+  // guarded by this
+  private final Set<TxId> txIds;
+
+  // in the order they were added, possibly including removed ones, guarded by this
+  private final Queue<TxId> order;
+
+  /**
+   * Creates an empty set.
+   * @param capacity number of transactions to remember at most
+   */
+  public OwnTransactions(int capacity) {
+    this.capacity = Math.max(0, capacity);
+    this.txIds = new HashSet<>();
+    this.order = new ArrayDeque<>();
+  }
+
+  /**
+   * Remembers a transaction that has been sent, after its effects have been applied locally.
+   * @param txId the transaction's id
+   */
+  public synchronized void add(String txId) {
+    final TxId key = TxId.of(txId);
+    if (key == null || this.capacity == 0 || !this.txIds.add(key)) {
+      return;
+    }
+
+    this.order.add(key);
+    while (this.order.size() > this.capacity) {
+      this.txIds.remove(this.order.poll());
+    }
+  }
+
+  /**
+   * Forgets a transaction, e.g. because applying its effects locally has failed after it was
+   * sent, so it is fetched like everyone else's.
+   * @param txId the transaction's id
+   */
+  public synchronized void remove(String txId) {
+    final TxId key = TxId.of(txId);
+    if (key != null) {
+      this.txIds.remove(key);
+    }
+  }
+
+  /**
+   * Checks whether a transaction is our own, without forgetting it, e.g. when it appears in the
+   * mempool.
+   * @param txId the transaction's id
+   * @return whether the transaction is our own
+   */
+  public synchronized boolean contains(String txId) {
+    final TxId key = TxId.of(txId);
+    return key != null && this.txIds.contains(key);
+  }
+
+  /**
+   * Checks whether a transaction that has appeared in a block is our own, and forgets it if so.
+   * Should the block be orphaned, the transaction is fetched when it appears in another block.
+   * @param txId the transaction's id
+   * @return whether the transaction is our own, so it does not need to be fetched
+   */
+  public synchronized boolean confirm(String txId) {
+    final TxId key = TxId.of(txId);
+    return key != null && this.txIds.remove(key);
+  }
+
+  /**
+   * Gets the number of own transactions that have not been confirmed yet.
+   * @return the number of transactions
+   */
+  public synchronized int size() {
+    return this.txIds.size();
+  }
+}
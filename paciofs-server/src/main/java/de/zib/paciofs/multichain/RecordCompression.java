@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import de.zib.paciofs.multichain.internal.MultiChainRawTransactionDataHeader.Compression;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the data of single records. Records are a few dozen bytes, too short for deflate to
+ * find much redundancy on its own, so it is primed with a preset dictionary of the strings that
+ * records typically contain. The dictionary is part of the format of records on the chain and
+ * must never change; a different dictionary needs a new {@link Compression}.
+ */
+public final class RecordCompression {
+  // most frequent strings last, where they are cheapest to refer to
+  private static final byte[] DICTIONARY = String
+      .join("", ".bin", ".csv", ".h5", ".nc", ".xml", ".json", ".tmp", ".log", ".dat", ".txt",
+          "checkpoint", "config", "results", "output", "input", "data", "test", "file", "dir",
+          "/home/", "/tmp/", "/data/", "paciofs", "volume", ":/")
+      .getBytes(StandardCharsets.US_ASCII);
+
+  // refuses records that claim to decompress to more, before allocating anything
+  private static final int MAX_UNCOMPRESSED_SIZE = 0x100000;
+
+  // deflaters and inflaters hold native memory, so they are reused rather than allocated per
+  // record, from bounded pools shared by all threads, as virtual threads do not live long enough
+  // for per-thread instances to be reused, and surplus instances are ended right away
+  private static final int MAX_POOLED = 16;
+
+  private static final Queue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+
+  private static final Queue<Inflater> INFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+
+  private RecordCompression() {}
+
+  /**
+   * Parses the name of a compression as used in the configuration.
+   * @param name none or deflate, case-insensitive
+   * @return the compression
+   * @throws IllegalArgumentException if the name is unknown
+   */
+  public static Compression parse(String name) {
+    switch (name.toLowerCase(Locale.ROOT)) {
+      case "none":
+        return Compression.COMPRESSION_NONE;
+      case "deflate":
+        return Compression.COMPRESSION_DEFLATE;
+      default:
+        throw new IllegalArgumentException("Unknown compression " + name);
+    }
+  }
+
+  /**
+   * Compresses the data of a record.
+   * @param compression how to compress
+   * @param data the data, from position to limit, which is left unchanged
+   * @param maxSize the size the compressed data must not exceed to be worth it
+   * @return the compressed data, or null if it would exceed maxSize
+   */
+  static ByteBuffer compress(Compression compression, ByteBuffer data, int maxSize) {
+    if (compression != Compression.COMPRESSION_DEFLATE || maxSize <= 0) {
+      return null;
+    }
+
+    final byte[] input = toArray(data);
+    final Deflater deflater = acquireDeflater();
+    try {
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(input);
+      deflater.finish();
+
+      // anything that does not fit is not worth it
+      final byte[] output = new byte[maxSize];
+      final int n = deflater.deflate(output);
+      if (!deflater.finished()) {
+        return null;
+      }
+
+      return ByteBuffer.wrap(output, 0, n);
+    } finally {
+      releaseDeflater(deflater);
+    }
+  }
+
+  /**
+   * Decompresses the data of a record.
+   * @param compression how the data is compressed
+   * @param data the compressed data, from position to limit, which is left unchanged
+   * @param uncompressedSize the size of the data after decompression
+   * @return the decompressed data, or null if it is corrupt or the compression is unknown
+   */
+  static ByteBuffer decompress(Compression compression, ByteBuffer data, int uncompressedSize) {
+    if (compression != Compression.COMPRESSION_DEFLATE || uncompressedSize < 0
+        || uncompressedSize > MAX_UNCOMPRESSED_SIZE) {
+      return null;
+    }
+
+    final Inflater inflater = acquireInflater();
+    try {
+      inflater.setDictionary(DICTIONARY);
+      if (data.hasArray()) {
+        inflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      } else {
+        inflater.setInput(toArray(data));
+      }
+
+      final byte[] output = new byte[uncompressedSize];
+      final int n = inflater.inflate(output);
+      if (n != uncompressedSize || !inflater.finished()) {
+        return null;
+      }
+
+      return ByteBuffer.wrap(output);
+    } catch (DataFormatException e) {
+      return null;
+    } finally {
+      releaseInflater(inflater);
+    }
+  }
+
+  private static Deflater acquireDeflater() {
+    final Deflater deflater = DEFLATERS.poll();
+    return deflater != null ? deflater : new Deflater(Deflater.BEST_COMPRESSION, true);
+  }
+
+  private static void releaseDeflater(Deflater deflater) {
+    deflater.reset();
+    if (!DEFLATERS.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  private static Inflater acquireInflater() {
+    final Inflater inflater = INFLATERS.poll();
+    return inflater != null ? inflater : new Inflater(true);
+  }
+
+  private static void releaseInflater(Inflater inflater) {
+    inflater.reset();
+    if (!INFLATERS.offer(inflater)) {
+      inflater.end();
+    }
+  }
+
+  private static byte[] toArray(ByteBuffer data) {
+    final byte[] array = new byte[data.remaining()];
+    data.duplicate().get(array);
+    return array;
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only file of the records that have been accepted locally but not yet by MultiChain. A
+ * record is durable once {@link #append(byte[])} returns, and is replayed after a restart until it
+ * has been marked as completed. Concurrent appends share a single fsync. The file is truncated
+ * whenever all records have been completed, and rewritten if it grows large nonetheless.
+ */
+public class TransactionJournal implements Closeable {
+  /**
+   * A journaled record.
+   */
+  public static final class Entry {
+    private final long sequence;
+
+    private final byte[] record;
+
+    private Entry(long sequence, byte[] record) {
+      this.sequence = sequence;
+      this.record = record;
+    }
+
+    public long sequence() {
+      return this.sequence;
+    }
+
+    public byte[] record() {
+      return this.record;
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(TransactionJournal.class);
+
+  // each entry is: type, sequence, payload length, payload, CRC32 of all of the above
+  private static final byte APPENDED = 1;
+  private static final byte COMPLETED = 2;
+  private static final int ENTRY_OVERHEAD = Byte.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+  // rewrite the journal with only the pending records once it has grown this large
+  private static final long MAX_SIZE = 64L * 1024 * 1024;
+
+  private final Path path;
+
+  // replaced when rewriting, guarded by this
+  private FileChannel channel;
+
+  // records not completed yet by sequence, guarded by this
+  private final Map<Long, byte[]> pending;
+
+  // guarded by this
+  private long pendingBytes;
+
+  // guarded by this
+  private long nextSequence;
+
+  // number of bytes ever appended, guarded by this
+  private long written;
+
+  // all appends up to here have been forced to disk, guarded by forceLock
+  private long forced;
+
+  // taken before this when both are needed
+  private final Object forceLock;
+
+  /**
+   * Opens a journal, creating it if necessary. Entries after a torn or corrupt one, as left by a
+   * crash during appending, are discarded.
+   * @param path the journal file
+   * @throws IOException if the journal cannot be read or created
+   */
+  public TransactionJournal(Path path) throws IOException {
+    this.path = path;
+    this.pending = new TreeMap<>();
+    this.forceLock = new Object();
+
+    final Path parent = path.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+
+    final long valid = this.recover();
+    if (valid < this.channel.size()) {
+      LOG.warn("Discarding {} bytes of incomplete entries at the end of journal {}",
+          this.channel.size() - valid, path);
+      this.channel.truncate(valid);
+      this.channel.force(true);
+    }
+    this.channel.position(valid);
+
+    if (!this.pending.isEmpty()) {
+      LOG.info("Found {} record(s) in journal {} that have not been sent to MultiChain",
+          this.pending.size(), path);
+    }
+  }
+
+  /**
+   * Gets the records that have been appended but not completed, in the order of appending.
+   * @return the pending records
+   */
+  public synchronized List<Entry> pending() {
+    final List<Entry> entries = new ArrayList<>(this.pending.size());
+    for (Map.Entry<Long, byte[]> entry : this.pending.entrySet()) {
+      entries.add(new Entry(entry.getKey(), entry.getValue()));
+    }
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Appends a record and forces it to disk.
+   * @param record the record as sent to MultiChain
+   * @return the journaled record
+   * @throws IOException if the record cannot be written
+   */
+  public Entry append(byte[] record) throws IOException {
+    final Entry entry;
+    final long end;
+    synchronized (this) {
+      entry = new Entry(this.nextSequence++, record);
+      this.written += writeEntry(this.channel, APPENDED, entry.sequence, record);
+      this.pending.put(entry.sequence, record);
+      this.pendingBytes += record.length;
+      end = this.written;
+    }
+
+    // whoever forces first covers everyone who has appended in the meantime
+    synchronized (this.forceLock) {
+      if (this.forced < end) {
+        final FileChannel toForce;
+        final long target;
+        synchronized (this) {
+          toForce = this.channel;
+          target = this.written;
+        }
+        toForce.force(false);
+        this.forced = target;
+      }
+    }
+
+    return entry;
+  }
+
+  /**
+   * Marks records as completed, so they are not replayed. This is not forced to disk, so after a
+   * crash a completed record may be replayed, which must be harmless.
+   * @param entries the records that have been accepted by MultiChain
+   * @throws IOException if the journal cannot be written
+   */
+  public void complete(List<Entry> entries) throws IOException {
+    // rewriting must not race with forcing
+    synchronized (this.forceLock) {
+      synchronized (this) {
+        for (Entry entry : entries) {
+          final byte[] record = this.pending.remove(entry.sequence);
+          if (record != null) {
+            this.pendingBytes -= record.length;
+            writeEntry(this.channel, COMPLETED, entry.sequence, new byte[0]);
+          }
+        }
+
+        if (this.pending.isEmpty()) {
+          // nothing left to replay
+          if (this.channel.position() > 0) {
+            this.channel.truncate(0);
+            this.channel.position(0);
+          }
+        } else if (this.channel.position() > MAX_SIZE
+            && this.pendingBytes + (long) this.pending.size() * ENTRY_OVERHEAD < MAX_SIZE / 2) {
+          this.rewrite();
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    this.channel.close();
+  }
+
+  @Override
+  public String toString() {
+    return this.path.toString();
+  }
+
+  // requires both locks, replaces the journal by one holding only the pending records
+  private void rewrite() throws IOException {
+    final Path temporary = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (Map.Entry<Long, byte[]> entry : this.pending.entrySet()) {
+        writeEntry(out, APPENDED, entry.getKey(), entry.getValue());
+      }
+      out.force(true);
+    }
+
+    Files.move(temporary, this.path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    this.channel.close();
+    this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.channel.position(this.channel.size());
+
+    // everything appended so far is in the new file, which has been forced
+    this.forced = this.written;
+
+    LOG.debug("Rewrote journal {} with {} pending record(s)", this.path, this.pending.size());
+  }
+
+  // reads all valid entries, returns the position after the last one
+  private long recover() throws IOException {
+    final long size = this.channel.size();
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Journal " + this.path + " is too large (" + size + " bytes)");
+    }
+
+    final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    while (buffer.hasRemaining() && this.channel.read(buffer, buffer.position()) >= 0) {
+      // read everything
+    }
+    buffer.flip();
+
+    long valid = 0;
+    while (buffer.remaining() >= ENTRY_OVERHEAD) {
+      final int start = buffer.position();
+      final byte type = buffer.get();
+      final long sequence = buffer.getLong();
+      final int length = buffer.getInt();
+      if ((type != APPENDED && type != COMPLETED) || length < 0
+          || length > buffer.remaining() - Integer.BYTES) {
+        break;
+      }
+
+      final byte[] payload = new byte[length];
+      buffer.get(payload);
+
+      final CRC32 crc = new CRC32();
+      crc.update(buffer.array(), start, buffer.position() - start);
+      if ((int) crc.getValue() != buffer.getInt()) {
+        break;
+      }
+
+      if (type == APPENDED) {
+        this.pending.put(sequence, payload);
+        this.pendingBytes += payload.length;
+      } else {
+        final byte[] completed = this.pending.remove(sequence);
+        if (completed != null) {
+          this.pendingBytes -= completed.length;
+        }
+      }
+      this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+      valid = buffer.position();
+    }
+
+    return valid;
+  }
+
+  // returns the number of bytes written
+  private static int writeEntry(FileChannel channel, byte type, long sequence, byte[] payload)
+      throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(ENTRY_OVERHEAD + payload.length);
+    buffer.put(type).putLong(sequence).putInt(payload.length).put(payload);
+
+    final CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 0, buffer.position());
+    buffer.putInt((int) crc.getValue());
+    buffer.flip();
+
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    return buffer.limit();
+  }
+}
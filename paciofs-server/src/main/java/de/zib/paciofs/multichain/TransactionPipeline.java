@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import de.zib.paciofs.logging.Markers;
+import de.zib.paciofs.multichain.internal.MultiChainCommand;
+import de.zib.paciofs.multichain.rpc.types.MultiChainException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends records to MultiChain in the background. Records are journaled before they are accepted,
+ * so callers do not have to wait for MultiChain, and records that have not been sent before a
+ * crash are sent after the restart. A single worker sends the records in the order they were
+ * accepted, packing as many as fit into each transaction. Records that do not fit into a
+ * transaction on their own are rejected. Callers block once the queue is full, which slows them
+ * down to the rate MultiChain accepts transactions at.
+ */
+public class TransactionPipeline implements Closeable {
+  private static final class Submission {
+    private final TransactionJournal.Entry entry;
+
+    private final CompletableFuture<String> txId;
+
+    // replayed records may not have been applied locally before the restart
+    private final boolean replayed;
+
+    private Submission(TransactionJournal.Entry entry, boolean replayed) {
+      this.entry = entry;
+      this.txId = new CompletableFuture<>();
+      this.replayed = replayed;
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(TransactionPipeline.class);
+
+  private static final long INITIAL_BACKOFF_MILLIS = 100;
+  private static final long MAX_BACKOFF_MILLIS = 10_000;
+
+  private final MultiChainUtil clientUtil;
+
+  private final TransactionJournal journal;
+
+  private final OwnTransactions ownTransactions;
+
+  private final int maxBatchBytes;
+
+  private final int maxBatchRecords;
+
+  private final BlockingQueue<Submission> queue;
+
+  private final Thread worker;
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a pipeline and starts sending the records left in the journal.
+   * @param clientUtil used to send transactions
+   * @param journal where to journal records before accepting them
+   * @param ownTransactions where to remember the transactions sent, unless they contain replayed
+   *     records
+   * @param capacity maximum number of records waiting to be sent
+   * @param maxBatchBytes maximum size of the records sent in one transaction
+   * @param maxBatchRecords maximum number of records sent in one transaction
+   */
+  public TransactionPipeline(MultiChainUtil clientUtil, TransactionJournal journal,
+      OwnTransactions ownTransactions, int capacity, int maxBatchBytes, int maxBatchRecords) {
+    this.clientUtil = clientUtil;
+    this.journal = journal;
+    this.ownTransactions = ownTransactions;
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxBatchRecords = Math.max(1, maxBatchRecords);
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+
+    this.worker = new Thread(this::run, "paciofs-transaction-pipeline");
+    this.worker.setDaemon(true);
+    this.worker.start();
+
+    // replayed records go first, in their original order
+    for (TransactionJournal.Entry entry : journal.pending()) {
+      if (entry.record().length > maxBatchBytes) {
+        // e.g. the limit has been lowered since, the record would block all others
+        LOG.warn("Not replaying record {} of {} bytes, the maximum is {} bytes", entry.sequence(),
+            entry.record().length, maxBatchBytes);
+        this.completeQuietly(List.of(entry));
+        continue;
+      }
+
+      final Submission submission = new Submission(entry, true);
+      try {
+        this.queue.put(submission);
+      } catch (InterruptedException e) {
+        // the remaining records are replayed after the next restart
+        Thread.currentThread().interrupt();
+        break;
+      }
+      submission.txId.thenAccept(
+          txId -> LOG.debug("Replayed record {} (transaction id: {})", entry.sequence(), txId));
+    }
+  }
+
+  /**
+   * Gets the maximum size of a record, larger ones are rejected by {@link #submit}.
+   * @return the maximum size of an encoded record in bytes
+   */
+  public int maxRecordBytes() {
+    return this.maxBatchBytes;
+  }
+
+  /**
+   * Journals a record and queues it for sending, blocking while the queue is full. The caller
+   * applies the record locally right away, so its transaction is remembered as our own.
+   * @param command the command to prepend to the data
+   * @param data the actual data to add to OP_RETURN
+   * @return the id of the transaction the record has been sent in, once it has been sent
+   * @throws IOException if the record is too large for a transaction, cannot be journaled, or the
+   *     pipeline has been closed
+   */
+  public CompletableFuture<String> submit(MultiChainCommand command, MultiChainData data)
+      throws IOException {
+    if (this.closed) {
+      throw new IOException("Transaction pipeline has been closed");
+    }
+
+    // MultiChain would reject it over and over again, holding up all records after it
+    final byte[] record = this.clientUtil.encode(command, data);
+    if (record.length > this.maxBatchBytes) {
+      throw new IOException("Record for " + command + " has " + record.length
+          + " bytes, the maximum is " + this.maxBatchBytes + " bytes");
+    }
+
+    final Submission submission = new Submission(this.journal.append(record), false);
+    try {
+      this.queue.put(submission);
+    } catch (InterruptedException e) {
+      // the record is journaled and will be sent after a restart
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while queueing " + command);
+    }
+
+    // the worker may have drained the queue on its way out before the record arrived
+    if (this.closed && this.queue.remove(submission)) {
+      failClosed(submission);
+    }
+
+    return submission.txId;
+  }
+
+  /**
+   * Stops sending. Records that have not been sent yet remain in the journal.
+   * @throws IOException if the journal cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    this.closed = true;
+    this.worker.interrupt();
+    try {
+      this.worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.journal.close();
+  }
+
+  private void run() {
+    final List<Submission> batch = new ArrayList<>();
+    while (!this.closed) {
+      try {
+        batch.add(this.queue.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+
+      // take whatever else is waiting and fits
+      int batchBytes = batch.get(0).entry.record().length;
+      Submission next;
+      while (batch.size() < this.maxBatchRecords && (next = this.queue.peek()) != null
+          && batchBytes + next.entry.record().length <= this.maxBatchBytes) {
+        batch.add(this.queue.poll());
+        batchBytes += next.entry.record().length;
+      }
+
+      final String txId = this.send(batch, batchBytes);
+      if (txId == null) {
+        break;
+      }
+
+      this.completeQuietly(this.entries(batch));
+
+      // before completing, so callers can forget the transaction again
+      if (!this.containsReplayed(batch)) {
+        this.ownTransactions.add(txId);
+      }
+
+      for (Submission submission : batch) {
+        submission.txId.complete(txId);
+      }
+      batch.clear();
+    }
+
+    // whatever has not been sent stays in the journal, taking it from the queue unblocks
+    // submitters waiting for space, who fail their records themselves
+    for (Submission submission : batch) {
+      failClosed(submission);
+    }
+    Submission queued;
+    while ((queued = this.queue.poll()) != null) {
+      failClosed(queued);
+    }
+  }
+
+  private void completeQuietly(List<TransactionJournal.Entry> entries) {
+    try {
+      this.journal.complete(entries);
+    } catch (IOException e) {
+      // the records are sent again after a restart, which is harmless
+      LOG.warn("Could not complete records in journal {}: {}", this.journal, e.getMessage());
+      LOG.warn(Markers.EXCEPTION, "Could not complete records", e);
+    }
+  }
+
+  private static void failClosed(Submission submission) {
+    submission.txId.completeExceptionally(new IOException("Transaction pipeline was closed"));
+  }
+
+  // retries until sent, returns null if closed in the meantime
+  private String send(List<Submission> batch, int batchBytes) {
+    final byte[] records = new byte[batchBytes];
+    int offset = 0;
+    for (Submission submission : batch) {
+      final byte[] record = submission.entry.record();
+      System.arraycopy(record, 0, records, offset, record.length);
+      offset += record.length;
+    }
+
+    long backoff = INITIAL_BACKOFF_MILLIS;
+    while (!this.closed) {
+      try {
+        return this.clientUtil.sendRecords(records);
+      } catch (MultiChainException e) {
+        LOG.warn("Could not send {} record(s), retrying in {}ms: {}", batch.size(), backoff,
+            e.getMessage());
+        LOG.warn(Markers.EXCEPTION, "Could not send records", e);
+      }
+
+      try {
+        TimeUnit.MILLISECONDS.sleep(backoff);
+      } catch (InterruptedException e) {
+        break;
+      }
+      backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+    }
+
+    return null;
+  }
+
+  private boolean containsReplayed(List<Submission> batch) {
+    for (Submission submission : batch) {
+      if (submission.replayed) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private List<TransactionJournal.Entry> entries(List<Submission> batch) {
+    final List<TransactionJournal.Entry> entries = new ArrayList<>(batch.size());
+    for (Submission submission : batch) {
+      entries.add(submission.entry);
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import de.zib.paciofs.multichain.rpc.MultiChainAsyncClient;
+import de.zib.paciofs.multichain.rpc.MultiChainClient;
+import de.zib.paciofs.multichain.rpc.types.TransactionInput;
+import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutput;
+import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutputList;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The spendable UTXOs of the local wallet, shared by everyone who creates transactions. UTXOs are
+ * reserved atomically before they are spent, so concurrent transactions never use the same inputs,
+ * and change outputs are added as soon as their transaction has been sent. Available UTXOs are kept
+ * in several partitions, and each thread reserves from its own partition first. Querying the wallet
+ * is only needed to reconcile the pool with UTXOs created or spent elsewhere.
+ */
+public class UtxoPool {
+  /**
+   * An unspent transaction output, with its amount in satoshis.
+   */
+  public static final class Utxo {
+    private static final int AVAILABLE = 0;
+    private static final int RESERVED = 1;
+    private static final int REMOVED = 2;
+
+    private final String txId;
+
+    private final int vOut;
+
+    // null if unknown, the wallet finds it when signing
+    private final String scriptPubKey;
+
+    private final long amount;
+
+    // the pool's epoch when this was added
+    private final long epoch;
+
+    private final AtomicInteger state;
+
+    private Utxo(String txId, int vOut, String scriptPubKey, long amount, long epoch) {
+      this.txId = txId;
+      this.vOut = vOut;
+      this.scriptPubKey = scriptPubKey;
+      this.amount = amount;
+      this.epoch = epoch;
+      this.state = new AtomicInteger(AVAILABLE);
+    }
+
+    public String txId() {
+      return this.txId;
+    }
+
+    public int vOut() {
+      return this.vOut;
+    }
+
+    public long amount() {
+      return this.amount;
+    }
+
+    /**
+     * Creates an input spending this UTXO.
+     * @return the input
+     */
+    public TransactionInput toInput() {
+      return new TransactionInput(this.txId, this.vOut, this.scriptPubKey, toCoins(this.amount));
+    }
+
+    private String outpoint() {
+      return UtxoPool.outpoint(this.txId, this.vOut);
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(UtxoPool.class);
+
+  private static final int SATOSHI_SCALE = 8;
+
+  // available UTXOs, possibly along with UTXOs that have been reserved or removed meanwhile
+  private final ConcurrentLinkedDeque<Utxo>[] partitions;
+
+  // available and reserved UTXOs by outpoint
+  private final Map<String, Utxo> utxos;
+
+  // outpoints spent by us that the wallet may still report as unspent, mapped to the epoch in which
+  // they were spent
+  private final Map<String, Long> spent;
+
+  // learned from the wallet, so change outputs can be spent with their script
+  private final Map<String, String> scriptPubKeys;
+
+  // incremented at the start of every reconciliation
+  private final AtomicLong epoch;
+
+  // number of UTXOs spent through the pool since it was created
+  private final AtomicLong spentCount;
+
+  /**
+   * Creates an empty pool.
+   * @param partitions number of partitions, usually the number of threads sending transactions
+   */
+  @SuppressWarnings("unchecked")
+  public UtxoPool(int partitions) {
+    this.partitions = new ConcurrentLinkedDeque[Math.max(1, partitions)];
+    for (int i = 0; i < this.partitions.length; ++i) {
+      this.partitions[i] = new ConcurrentLinkedDeque<>();
+    }
+
+    this.utxos = new ConcurrentHashMap<>();
+    this.spent = new ConcurrentHashMap<>();
+    this.scriptPubKeys = new ConcurrentHashMap<>();
+    this.epoch = new AtomicLong();
+    this.spentCount = new AtomicLong();
+  }
+
+  /**
+   * Reserves UTXOs of at least the given total amount. The reservation must be ended by either
+   * {@link #release(List)} or {@link #spend(List)}.
+   * @param amount the amount needed, in satoshis
+   * @return the reserved UTXOs, or null if there are not enough available (nothing is reserved
+   *     then)
+   */
+  public List<Utxo> reserve(long amount) {
+    final List<Utxo> reserved = new ArrayList<>();
+    long total = 0;
+
+    // own partition first, then steal from the others
+    final int home = this.home();
+    for (int i = 0; i < this.partitions.length && total < amount; ++i) {
+      final ConcurrentLinkedDeque<Utxo> partition =
+          this.partitions[(home + i) % this.partitions.length];
+      Utxo utxo;
+      while (total < amount && (utxo = partition.pollFirst()) != null) {
+        if (utxo.state.compareAndSet(Utxo.AVAILABLE, Utxo.RESERVED)) {
+          reserved.add(utxo);
+          total += utxo.amount;
+        }
+      }
+    }
+
+    if (total < amount) {
+      this.release(reserved);
+      return null;
+    }
+
+    return reserved;
+  }
+
+  /**
+   * Reserves a specific UTXO.
+   * @param txId the transaction of the UTXO
+   * @param vOut the output of the UTXO
+   * @return the reserved UTXO, or null if it is not available
+   */
+  public Utxo reserve(String txId, int vOut) {
+    final Utxo utxo = this.utxos.get(outpoint(txId, vOut));
+    if (utxo == null || !utxo.state.compareAndSet(Utxo.AVAILABLE, Utxo.RESERVED)) {
+      return null;
+    }
+
+    // its entry in the partition is skipped when reserving
+    return utxo;
+  }
+
+  /**
+   * Makes reserved UTXOs available again.
+   * @param reserved the UTXOs that were not spent
+   */
+  public void release(List<Utxo> reserved) {
+    final ConcurrentLinkedDeque<Utxo> partition = this.partitions[this.home()];
+    for (Utxo utxo : reserved) {
+      // if it was reserved individually, it is still in some partition, which is harmless
+      if (utxo.state.compareAndSet(Utxo.RESERVED, Utxo.AVAILABLE)) {
+        partition.offerFirst(utxo);
+      }
+    }
+  }
+
+  /**
+   * Removes reserved UTXOs after a transaction spending them has been sent, or after it failed and
+   * they should not be used before the next reconciliation.
+   * @param reserved the UTXOs that have been spent
+   */
+  public void spend(List<Utxo> reserved) {
+    final long current = this.epoch.get();
+    for (Utxo utxo : reserved) {
+      utxo.state.set(Utxo.REMOVED);
+      this.spent.put(utxo.outpoint(), current);
+      this.utxos.remove(utxo.outpoint(), utxo);
+    }
+    this.spentCount.addAndGet(reserved.size());
+  }
+
+  /**
+   * Adds an output of a transaction that has just been sent. It is the first to be reserved by
+   * the calling thread, so consecutive transactions of a thread spend each other's outputs, which
+   * makes MultiChain keep them in order.
+   * @param txId the transaction
+   * @param vOut the output
+   * @param address the address the output was sent to
+   * @param amount the output's amount, in satoshis
+   */
+  public void add(String txId, int vOut, String address, long amount) {
+    this.insert(txId, vOut, this.scriptPubKeys.get(address), amount, this.epoch.get(), true);
+  }
+
+  /**
+   * Gets the wallet's unspent outputs and reconciles the pool with them: UTXOs spent elsewhere are
+   * removed, and UTXOs created elsewhere are added.
+   * @param client the client to query the wallet with
+   * @param minimumConfirmations only consider UTXOs with this many confirmations
+   * @return the wallet's unspent outputs
+   */
+  public UnspentTransactionOutputList reconcile(MultiChainClient client, int minimumConfirmations) {
+    // everything with an older epoch happened before the wallet was queried
+    final long current = this.epoch.incrementAndGet();
+    return this.reconcileWith(client.listUnspent(minimumConfirmations), current);
+  }
+
+  /**
+   * Like {@link #reconcile(MultiChainClient, int)}, without waiting for the wallet.
+   * @param client the client to query the wallet with
+   * @param minimumConfirmations only consider UTXOs with this many confirmations
+   * @return the wallet's unspent outputs, once the pool has been reconciled with them
+   */
+  public CompletionStage<UnspentTransactionOutputList> reconcileAsync(
+      MultiChainAsyncClient client, int minimumConfirmations) {
+    final long current = this.epoch.incrementAndGet();
+    return client.listUnspent(minimumConfirmations)
+        .thenApply(unspent -> this.reconcileWith(unspent, current));
+  }
+
+  private UnspentTransactionOutputList reconcileWith(
+      UnspentTransactionOutputList unspent, long current) {
+    this.spent.values().removeIf(spentEpoch -> spentEpoch < current);
+
+    final Set<String> outpoints = new HashSet<>();
+    int added = 0;
+    for (UnspentTransactionOutput utxo : unspent) {
+      if (utxo.address() != null && utxo.scriptPubKey() != null) {
+        this.scriptPubKeys.putIfAbsent(utxo.address(), utxo.scriptPubKey());
+      }
+
+      if (!utxo.spendable()) {
+        continue;
+      }
+
+      final String outpoint = outpoint(utxo.txId(), utxo.vOut());
+      outpoints.add(outpoint);
+      if (this.insert(utxo.txId(), utxo.vOut(), utxo.scriptPubKey(), toSatoshis(utxo.amount()),
+              current, false)) {
+        ++added;
+      }
+    }
+
+    int removed = 0;
+    for (Utxo utxo : this.utxos.values()) {
+      if (utxo.epoch < current && !outpoints.contains(utxo.outpoint())
+          && utxo.state.compareAndSet(Utxo.AVAILABLE, Utxo.REMOVED)) {
+        this.utxos.remove(utxo.outpoint(), utxo);
+        ++removed;
+      }
+    }
+
+    // drop entries left behind by removed UTXOs
+    for (ConcurrentLinkedDeque<Utxo> partition : this.partitions) {
+      partition.removeIf(utxo -> utxo.state.get() == Utxo.REMOVED);
+    }
+
+    if (added > 0 || removed > 0) {
+      LOG.trace("Reconciled UTXOs: {} added, {} removed, {} in pool", added, removed,
+          this.utxos.size());
+    }
+
+    return unspent;
+  }
+
+  /**
+   * Gets the number of available and reserved UTXOs.
+   * @return the number of UTXOs
+   */
+  public int size() {
+    return this.utxos.size();
+  }
+
+  /**
+   * Gets the number of UTXOs spent through {@link #spend(List)} so far, which tells how fast
+   * transactions consume UTXOs.
+   * @return the number of spent UTXOs since the pool was created
+   */
+  public long spentCount() {
+    return this.spentCount.get();
+  }
+
+  /**
+   * Converts an amount to satoshis.
+   * @param coins the amount in coins, possibly inexact as created from a double
+   * @return the amount in satoshis, rounded to the nearest satoshi
+   */
+  public static long toSatoshis(BigDecimal coins) {
+    return coins.movePointRight(SATOSHI_SCALE).setScale(0, RoundingMode.HALF_UP).longValueExact();
+  }
+
+  /**
+   * Converts an amount to coins.
+   * @param satoshis the amount in satoshis
+   * @return the amount in coins
+   */
+  public static BigDecimal toCoins(long satoshis) {
+    return BigDecimal.valueOf(satoshis, SATOSHI_SCALE);
+  }
+
+  private boolean insert(String txId, int vOut, String scriptPubKey, long amount, long addEpoch,
+      boolean first) {
+    final String outpoint = outpoint(txId, vOut);
+    if (this.spent.containsKey(outpoint)) {
+      return false;
+    }
+
+    final Utxo utxo = new Utxo(txId, vOut, scriptPubKey, amount, addEpoch);
+    if (this.utxos.putIfAbsent(outpoint, utxo) != null) {
+      return false;
+    }
+
+    if (first) {
+      this.partitions[this.home()].offerFirst(utxo);
+    } else {
+      this.partitions[this.home()].offerLast(utxo);
+    }
+    return true;
+  }
+
+  private int home() {
+    return (int) (Thread.currentThread().getId() % this.partitions.length);
+  }
+
+  private static String outpoint(String txId, int vOut) {
+    return txId + ":" + vOut;
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import com.typesafe.config.Config;
+import de.zib.paciofs.PacioFsOptions;
+import de.zib.paciofs.logging.Markers;
+import de.zib.paciofs.multichain.rpc.MultiChainClient;
+import de.zib.paciofs.multichain.rpc.types.MultiChainException;
+import de.zib.paciofs.multichain.rpc.types.TransactionInputList;
+import de.zib.paciofs.multichain.rpc.types.TransactionOutput;
+import de.zib.paciofs.multichain.rpc.types.TransactionOutputList;
+import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutput;
+import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutputList;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps enough UTXOs in the pool for the transactions to come. The rate at which transactions
+ * spend UTXOs is smoothed over time, and the pool is refilled to cover that rate for a configured
+ * headroom, but never below a minimum. The missing UTXOs are created by few wide transactions that
+ * split the largest UTXOs into many outputs of a fixed amount each, keeping the rest in one large
+ * output for later splits. Every now and then, dust UTXOs are consolidated into one. Not
+ * thread-safe, it is driven by a single actor.
+ */
+public class UtxoReplenisher {
+  private static final Logger LOG = LoggerFactory.getLogger(UtxoReplenisher.class);
+
+  // in satoshis, per input and output of a split or consolidation
+  private static final long FEE_PER_IO = 1;
+
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final MultiChainClient client;
+
+  private final UtxoPool utxoPool;
+
+  private final OwnTransactions ownTransactions;
+
+  private final Duration interval;
+
+  private final int minUtxos;
+
+  private final double headroomSeconds;
+
+  private final double rateSmoothing;
+
+  private final int maxSplitInputs;
+
+  private final int maxSplitOutputs;
+
+  // in satoshis, of all but the last output of a split
+  private final long outputAmount;
+
+  // in satoshis, UTXOs below this are consolidated rather than split or counted
+  private final long dustAmount;
+
+  private final long consolidationIntervalNanos;
+
+  private final int maxConsolidationInputs;
+
+  // one per output of a split, created as needed
+  private final List<String> addresses;
+
+  // UTXOs spent per second, smoothed
+  private double rate;
+
+  // the pool's count of spent UTXOs at the last update of the rate, minus our own inputs
+  private long lastSpentCount;
+
+  private long lastRateNanos;
+
+  private long lastConsolidationNanos;
+
+  /**
+   * Creates a replenisher.
+   * @param client the client to send splits and consolidations with
+   * @param utxoPool the pool to replenish
+   * @param ownTransactions remembers splits and consolidations, which carry no records
+   * @param config the configuration to read the targets and limits from
+   */
+  public UtxoReplenisher(MultiChainClient client, UtxoPool utxoPool,
+      OwnTransactions ownTransactions, Config config) {
+    this.client = client;
+    this.utxoPool = utxoPool;
+    this.ownTransactions = ownTransactions;
+    this.interval = config.getDuration(PacioFsOptions.UTXOS_INTERVAL_KEY);
+    this.minUtxos = config.getInt(PacioFsOptions.UTXOS_MIN_KEY);
+    this.headroomSeconds =
+        config.getDuration(PacioFsOptions.UTXOS_HEADROOM_KEY).toNanos() / NANOS_PER_SECOND;
+    this.rateSmoothing = config.getDouble(PacioFsOptions.UTXOS_RATE_SMOOTHING_KEY);
+    this.maxSplitInputs = Math.max(1, config.getInt(PacioFsOptions.UTXOS_SPLIT_MAX_INPUTS_KEY));
+    this.maxSplitOutputs = Math.max(2, config.getInt(PacioFsOptions.UTXOS_SPLIT_MAX_OUTPUTS_KEY));
+    this.outputAmount = config.getLong(PacioFsOptions.UTXOS_SPLIT_OUTPUT_AMOUNT_KEY);
+    this.dustAmount = config.getLong(PacioFsOptions.UTXOS_CONSOLIDATION_DUST_AMOUNT_KEY);
+    this.consolidationIntervalNanos =
+        config.getDuration(PacioFsOptions.UTXOS_CONSOLIDATION_INTERVAL_KEY).toNanos();
+    this.maxConsolidationInputs =
+        config.getInt(PacioFsOptions.UTXOS_CONSOLIDATION_MAX_INPUTS_KEY);
+    this.addresses = new ArrayList<>();
+
+    this.lastSpentCount = utxoPool.spentCount();
+    this.lastRateNanos = System.nanoTime();
+    this.lastConsolidationNanos = this.lastRateNanos;
+  }
+
+  /**
+   * Reconciles the pool with the wallet, and splits or consolidates UTXOs as needed.
+   * @return how long to wait before the next round
+   */
+  public Duration replenish() {
+    // this is where the pool learns about UTXOs created or spent outside of it
+    final UnspentTransactionOutputList unspent = this.utxoPool.reconcile(this.client, 0);
+
+    final long now = System.nanoTime();
+    this.updateRate(now);
+
+    final List<UnspentTransactionOutput> usable = new ArrayList<>();
+    final List<UnspentTransactionOutput> dust = new ArrayList<>();
+    for (UnspentTransactionOutput utxo : unspent) {
+      if (!utxo.spendable()) {
+        continue;
+      }
+
+      if (UtxoPool.toSatoshis(utxo.amount()) < this.dustAmount) {
+        dust.add(utxo);
+      } else {
+        usable.add(utxo);
+      }
+    }
+
+    final int target =
+        Math.max(this.minUtxos, (int) Math.ceil(this.rate * this.headroomSeconds));
+    LOG.trace("Got {} usable and {} dust UTXOs, target is {} at {} UTXOs/s", usable.size(),
+        dust.size(), target, this.rate);
+
+    if (usable.size() < target) {
+      final int created = this.split(usable, target - usable.size());
+
+      // the new outputs are picked up by reconciling right away
+      return created > 0 ? Duration.ZERO : this.interval;
+    }
+
+    if (now - this.lastConsolidationNanos >= this.consolidationIntervalNanos) {
+      this.lastConsolidationNanos = now;
+      this.consolidate(dust);
+    }
+
+    return this.interval;
+  }
+
+  private void updateRate(long now) {
+    // rounds follow each other immediately while replenishing, which would decay the rate too fast
+    if (now - this.lastRateNanos < this.interval.toNanos()) {
+      return;
+    }
+
+    final long spentCount = this.utxoPool.spentCount();
+    final double seconds = (now - this.lastRateNanos) / NANOS_PER_SECOND;
+    final double observed = Math.max(0, spentCount - this.lastSpentCount) / seconds;
+    this.rate = this.rateSmoothing * observed + (1 - this.rateSmoothing) * this.rate;
+
+    this.lastSpentCount = spentCount;
+    this.lastRateNanos = now;
+  }
+
+  // returns the number of UTXOs gained
+  private int split(List<UnspentTransactionOutput> usable, int missing) {
+    // the largest UTXOs yield the most outputs per input
+    usable.sort(Comparator.comparing(UnspentTransactionOutput::amount).reversed());
+
+    int gained = 0;
+    int next = 0;
+    while (gained < missing && next < usable.size()) {
+      final List<UtxoPool.Utxo> reserved = new ArrayList<>();
+      long total = 0;
+      int outputs = 0;
+
+      // add inputs until they can be split into as many outputs as are missing or allowed
+      while (next < usable.size() && reserved.size() < this.maxSplitInputs
+          && outputs < Math.min(this.maxSplitOutputs, missing - gained + reserved.size())) {
+        final UnspentTransactionOutput utxo = usable.get(next++);
+
+        // skip UTXOs that are about to be spent by someone else
+        final UtxoPool.Utxo utxoReserved = this.utxoPool.reserve(utxo.txId(), utxo.vOut());
+        if (utxoReserved != null) {
+          reserved.add(utxoReserved);
+          total += utxoReserved.amount();
+          outputs = this.outputs(total, reserved.size(), missing - gained);
+        }
+      }
+
+      // splitting only pays off with more outputs than inputs
+      if (outputs <= reserved.size()) {
+        this.utxoPool.release(reserved);
+        break;
+      }
+
+      if (!this.send(reserved, total, outputs, this.outputAmount)) {
+        break;
+      }
+      gained += outputs - reserved.size();
+    }
+
+    if (gained > 0) {
+      LOG.debug("Split UTXOs into {} more, {} were missing", gained, missing);
+    }
+    return gained;
+  }
+
+  // the number of outputs a split of the given inputs should have
+  private int outputs(long total, int inputs, int missing) {
+    // the last output takes the rest, which is at least the output amount
+    final long affordable = (total - FEE_PER_IO * inputs) / (this.outputAmount + FEE_PER_IO);
+    return (int) Math.min(Math.min(this.maxSplitOutputs, missing + inputs), affordable);
+  }
+
+  private void consolidate(List<UnspentTransactionOutput> dust) {
+    final List<UtxoPool.Utxo> reserved = new ArrayList<>();
+    long total = 0;
+    for (int i = 0; i < dust.size() && reserved.size() < this.maxConsolidationInputs; ++i) {
+      final UtxoPool.Utxo utxo = this.utxoPool.reserve(dust.get(i).txId(), dust.get(i).vOut());
+      if (utxo != null) {
+        reserved.add(utxo);
+        total += utxo.amount();
+      }
+    }
+
+    // merging fewer than two, or dust that does not even pay the fee, is pointless
+    if (reserved.size() < 2 || total <= FEE_PER_IO * (reserved.size() + 1)) {
+      this.utxoPool.release(reserved);
+      return;
+    }
+
+    if (this.send(reserved, total, 1, 0)) {
+      LOG.debug("Consolidated {} dust UTXOs", reserved.size());
+    }
+  }
+
+  // spends the reserved UTXOs into outputs to our own addresses, all but the last of the given part
+  private boolean send(List<UtxoPool.Utxo> reserved, long total, int outputCount, long part) {
+    while (this.addresses.size() < outputCount) {
+      // MultiChain needs a different address for each output
+      this.addresses.add(this.client.getNewAddress());
+    }
+
+    final TransactionInputList inputs = new TransactionInputList();
+    for (UtxoPool.Utxo utxo : reserved) {
+      inputs.add(utxo.toInput());
+    }
+
+    final long amount = total - FEE_PER_IO * (reserved.size() + outputCount);
+    final TransactionOutputList outputs = new TransactionOutputList();
+    for (int i = 1; i < outputCount; ++i) {
+      outputs.add(new TransactionOutput(this.addresses.get(i), UtxoPool.toCoins(part), null));
+    }
+
+    // use the first address for the remaining amount
+    outputs.add(new TransactionOutput(
+        this.addresses.get(0), UtxoPool.toCoins(amount - part * (outputCount - 1)), null));
+
+    LOG.trace("Spending {} UTXOs ({}) into {} outputs", reserved.size(), total, outputCount);
+
+    try {
+      // build, sign and send in one go, there is nothing in it for the consumers
+      this.ownTransactions.add(this.client.createRawTransaction(inputs, outputs, true));
+      return true;
+    } catch (MultiChainException e) {
+      LOG.warn("Could not spend {} UTXOs into {} outputs: {}", reserved.size(), outputCount,
+          e.getMessage());
+      LOG.warn(Markers.EXCEPTION, "Could not spend UTXOs", e);
+      return false;
+    } finally {
+      // the outputs are added by the next reconciliation
+      this.utxoPool.spend(reserved);
+      this.lastSpentCount += reserved.size();
+    }
+  }
+}
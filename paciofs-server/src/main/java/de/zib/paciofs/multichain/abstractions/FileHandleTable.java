@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.abstractions;
+
+import de.zib.paciofs.io.cache.ReadAhead;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps file handles handed out to clients to inodes, and keeps a bounded number of long-lived
+ * FileChannels to the inodes' local files. Channels are opened with the access mode of the handle
+ * they are used for, are shared among all handles of the same inode and mode, and are closed in
+ * least recently used order once the bound is exceeded. A channel is never closed while an I/O
+ * operation holds a reference to it. Handles are bounded as well, as clients may never release
+ * them: the least recently used ones are forgotten, and clients fall back to the path just like
+ * for a released handle. Each table numbers its handles within a random epoch, so a handle kept by
+ * a client across a server restart is unknown rather than referring to whichever inode now has the
+ * same number.
+ */
+class FileHandleTable {
+  /**
+   * How a file is accessed, as requested when opening it.
+   */
+  enum Access {
+    READ(StandardOpenOption.READ),
+    WRITE(StandardOpenOption.WRITE),
+    READ_WRITE(StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    // O_ACCMODE and its values as passed by clients
+    private static final int ACCESS_MODE_MASK = 3;
+    private static final int WRITE_ONLY = 1;
+    private static final int READ_WRITE_MODE = 2;
+
+    private final OpenOption[] options;
+
+    Access(OpenOption... options) {
+      this.options = options;
+    }
+
+    /**
+     * Gets the access mode of open flags.
+     * @param flags the flags of open(2)
+     * @return the access mode, READ for O_RDONLY
+     */
+    static Access fromFlags(int flags) {
+      switch (flags & ACCESS_MODE_MASK) {
+        case WRITE_ONLY:
+          return WRITE;
+        case READ_WRITE_MODE:
+          return READ_WRITE;
+        default:
+          return READ;
+      }
+    }
+
+    boolean allows(Access access) {
+      return this == access || this == READ_WRITE;
+    }
+  }
+
+  /**
+   * What a file handle refers to, along with per-handle state.
+   */
+  static final class Handle {
+    private final Inode inode;
+
+    private final Access access;
+
+    private final ReadAhead.Window readAhead;
+
+    // System.nanoTime() of the last lookup, to find the least recently used handles
+    private volatile long lastUsed;
+
+    private Handle(Inode inode, Access access) {
+      this.inode = inode;
+      this.access = access;
+      this.readAhead = new ReadAhead.Window();
+      this.lastUsed = System.nanoTime();
+    }
+
+    Inode inode() {
+      return this.inode;
+    }
+
+    Access access() {
+      return this.access;
+    }
+
+    ReadAhead.Window readAhead() {
+      return this.readAhead;
+    }
+  }
+
+  /**
+   * A FileChannel along with the number of operations currently using it.
+   */
+  static final class Channel {
+    private final ChannelKey key;
+
+    private final FileChannel channel;
+
+    // guarded by the table's channels map
+    private int references;
+
+    // guarded by the table's channels map
+    private boolean evicted;
+
+    private Channel(ChannelKey key, FileChannel channel) {
+      this.key = key;
+      this.channel = channel;
+    }
+
+    FileChannel channel() {
+      return this.channel;
+    }
+  }
+
+  // channels are shared per inode and access mode
+  private static final class ChannelKey {
+    private final long inodeId;
+
+    private final Access access;
+
+    private ChannelKey(long inodeId, Access access) {
+      this.inodeId = inodeId;
+      this.access = access;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ChannelKey)) {
+        return false;
+      }
+      final ChannelKey other = (ChannelKey) o;
+      return this.inodeId == other.inodeId && this.access == other.access;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.inodeId, this.access);
+    }
+
+    @Override
+    public String toString() {
+      return "inode " + this.inodeId + " (" + this.access + ")";
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(FileHandleTable.class);
+
+  // defaults of LinkedHashMap, which needs them explicitly to enable access order
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  // handles are the epoch in the upper half and a counter in the lower half
+  private static final int EPOCH_SHIFT = Integer.SIZE;
+
+  private static final SecureRandom EPOCHS = new SecureRandom();
+
+  // once there are too many handles, this share of them is forgotten at once, so that finding the
+  // least recently used ones is only needed every so often
+  private static final int EVICTED_HANDLES_DIVISOR = 8;
+
+  private final int maxOpenChannels;
+
+  private final int maxHandles;
+
+  private final AtomicLong nextHandle;
+
+  private final ConcurrentMap<Long, Handle> handles;
+
+  // set while handles are being evicted, so only one thread does it
+  private final AtomicBoolean evictingHandles;
+
+  // access-ordered, so iteration starts at the least recently used channel
+  private final LinkedHashMap<ChannelKey, Channel> channels;
+
+  FileHandleTable(int maxOpenChannels, int maxHandles) {
+    this.maxOpenChannels = maxOpenChannels;
+    this.maxHandles = Math.max(1, maxHandles);
+    // 0 is the handle clients send if they did not open the file, which no epoch starts with
+    this.nextHandle = new AtomicLong(((long) newEpoch() << EPOCH_SHIFT) + 1);
+    this.handles = new ConcurrentHashMap<>();
+    this.evictingHandles = new AtomicBoolean();
+    this.channels = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+  }
+
+  /**
+   * Hands out a new file handle for an inode.
+   * @param inode the inode to open
+   * @param access how the handle may be used
+   * @return the new handle
+   */
+  long open(Inode inode, Access access) {
+    final long fh = this.nextHandle.getAndIncrement();
+    this.handles.put(fh, new Handle(inode, access));
+
+    if (this.handles.size() > this.maxHandles && this.evictingHandles.compareAndSet(false, true)) {
+      try {
+        this.evictHandles();
+      } finally {
+        this.evictingHandles.set(false);
+      }
+    }
+
+    return fh;
+  }
+
+  /**
+   * Resolves a file handle.
+   * @param fh the handle as returned by {@link #open(Inode, Access)}
+   * @return the handle, or null if it is unknown (e.g. because it was released or evicted, or the
+   *     server has restarted since)
+   */
+  Handle get(long fh) {
+    final Handle handle = this.handles.get(fh);
+    if (handle != null) {
+      handle.lastUsed = System.nanoTime();
+    }
+    return handle;
+  }
+
+  /**
+   * Releases a file handle. The inode's channel stays open until it is evicted.
+   * @param fh the handle as returned by {@link #open(Inode, Access)}
+   * @return true if the handle was known
+   */
+  boolean release(long fh) {
+    return this.handles.remove(fh) != null;
+  }
+
+  /**
+   * Checks that a handle was opened for an access.
+   * @param inode the inode to access
+   * @param handle the handle the access is made through, null if it is unknown
+   * @param access the access needed by the operation
+   * @throws AccessDeniedException if the handle was not opened for the access
+   */
+  static void checkAccess(Inode inode, Handle handle, Access access) throws AccessDeniedException {
+    if (handle != null && !handle.access.allows(access)) {
+      throw new AccessDeniedException(inode.file().getPath(), null,
+          "Handle is opened for " + handle.access + ", not " + access);
+    }
+  }
+
+  /**
+   * Gets a channel for an inode that allows the requested access, opening it if necessary. Must
+   * be paired with a call to {@link #releaseChannel(Channel)}.
+   * @param inode the inode whose local file to access
+   * @param handle the handle the access is made through, null if it is unknown
+   * @param access the access needed by the operation
+   * @return the referenced channel
+   * @throws AccessDeniedException if the handle was not opened for the access
+   * @throws IOException if the file cannot be opened
+   */
+  Channel acquireChannel(Inode inode, Handle handle, Access access) throws IOException {
+    checkAccess(inode, handle, access);
+
+    // open the file as the client did, which may allow more than the operation needs
+    final ChannelKey key = new ChannelKey(inode.id(), handle != null ? handle.access : access);
+    final ChannelKey shared = new ChannelKey(inode.id(), Access.READ_WRITE);
+    synchronized (this.channels) {
+      Channel channel = this.channels.get(key);
+      if (channel == null) {
+        // anything can be done through a read-write channel that is open already
+        channel = this.channels.get(shared);
+      }
+      if (channel != null) {
+        ++channel.references;
+        return channel;
+      }
+    }
+
+    // do not hold the lock during the open syscall
+    final Channel opened =
+        new Channel(key, FileChannel.open(inode.file().toPath(), key.access.options));
+
+    final Channel channel;
+    synchronized (this.channels) {
+      final Channel raced = this.channels.putIfAbsent(key, opened);
+      channel = raced == null ? opened : raced;
+      ++channel.references;
+
+      if (raced == null) {
+        this.evictUnused();
+      }
+    }
+
+    if (channel != opened) {
+      // someone else opened the same file in the meantime
+      opened.channel.close();
+    }
+
+    return channel;
+  }
+
+  /**
+   * Drops a reference obtained via {@link #acquireChannel(Inode)}.
+   * @param channel the channel to release
+   */
+  void releaseChannel(Channel channel) {
+    final boolean close;
+    synchronized (this.channels) {
+      --channel.references;
+      close = channel.evicted && channel.references == 0;
+    }
+
+    if (close) {
+      closeQuietly(channel);
+    }
+  }
+
+  /**
+   * Closes all channels that are not in use and forgets about all handles.
+   */
+  void clear() {
+    this.handles.clear();
+    synchronized (this.channels) {
+      for (Channel channel : this.channels.values()) {
+        channel.evicted = true;
+        if (channel.references == 0) {
+          closeQuietly(channel);
+        }
+      }
+      this.channels.clear();
+    }
+  }
+
+  // forgets the least recently used handles
+  private void evictHandles() {
+    final List<Map.Entry<Long, Handle>> entries = new ArrayList<>(this.handles.entrySet());
+    final int evict = entries.size() - this.maxHandles + this.maxHandles / EVICTED_HANDLES_DIVISOR;
+    if (evict <= 0) {
+      return;
+    }
+
+    // the difference, as nanoTime() may overflow
+    entries.sort((a, b) -> Long.signum(a.getValue().lastUsed - b.getValue().lastUsed));
+    for (Map.Entry<Long, Handle> entry : entries.subList(0, evict)) {
+      this.handles.remove(entry.getKey(), entry.getValue());
+    }
+    LOG.debug("Forgot {} least recently used of {} file handles", evict, entries.size());
+  }
+
+  // requires the lock on channels
+  private void evictUnused() {
+    final Iterator<Map.Entry<ChannelKey, Channel>> it = this.channels.entrySet().iterator();
+    while (this.channels.size() > this.maxOpenChannels && it.hasNext()) {
+      final Channel channel = it.next().getValue();
+      if (channel.references == 0) {
+        it.remove();
+        channel.evicted = true;
+        closeQuietly(channel);
+      }
+    }
+  }
+
+  // positive, so handles are too
+  private static int newEpoch() {
+    return 1 + EPOCHS.nextInt(Integer.MAX_VALUE);
+  }
+
+  private static void closeQuietly(Channel channel) {
+    try {
+      channel.channel.close();
+    } catch (IOException e) {
+      LOG.warn("Could not close channel for {}: {}", channel.key, e.getMessage());
+    }
+  }
+}
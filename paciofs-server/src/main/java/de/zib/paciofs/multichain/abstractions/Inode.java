@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.abstractions;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A directory or regular file in the in-memory namespace of a volume.
+ */
+class Inode {
+  private final long id;
+
+  // id of the root directory of the volume this inode belongs to
+  private final long volumeId;
+
+  private final String name;
+
+  // where the contents are stored locally
+  private final File file;
+
+  // null for regular files
+  private final ConcurrentMap<String, Inode> children;
+
+  // only meaningful for regular files
+  private final AtomicLong size;
+
+  private Inode(long id, long volumeId, String name, File file, boolean directory, long size) {
+    this.id = id;
+    this.volumeId = volumeId;
+    this.name = name;
+    this.file = file;
+    this.children = directory ? new ConcurrentHashMap<>() : null;
+    this.size = new AtomicLong(size);
+  }
+
+  static Inode newDirectory(long id, long volumeId, String name, File file) {
+    return new Inode(id, volumeId, name, file, true, 0);
+  }
+
+  static Inode newFile(long id, long volumeId, String name, File file, long size) {
+    return new Inode(id, volumeId, name, file, false, size);
+  }
+
+  long id() {
+    return this.id;
+  }
+
+  long volumeId() {
+    return this.volumeId;
+  }
+
+  String name() {
+    return this.name;
+  }
+
+  File file() {
+    return this.file;
+  }
+
+  boolean isDirectory() {
+    return this.children != null;
+  }
+
+  long size() {
+    return this.size.get();
+  }
+
+  /**
+   * Grows the size of this inode if a write ended beyond its current end.
+   * @param end the position after the last byte written
+   */
+  void updateSize(long end) {
+    this.size.accumulateAndGet(end, Math::max);
+  }
+
+  Inode child(String childName) {
+    return this.children == null ? null : this.children.get(childName);
+  }
+
+  /**
+   * Atomically adds a child to this directory.
+   * @param child the inode to add
+   * @return the child that was present already under the same name, or null if there was none
+   */
+  Inode addChild(Inode child) {
+    return this.children.putIfAbsent(child.name(), child);
+  }
+
+  /**
+   * Atomically removes a child from this directory.
+   * @param child the inode to remove
+   * @return whether child was present
+   */
+  boolean removeChild(Inode child) {
+    return this.children.remove(child.name(), child);
+  }
+
+  Collection<Inode> children() {
+    return this.children == null ? Collections.emptyList()
+                                 : Collections.unmodifiableCollection(this.children.values());
+  }
+}
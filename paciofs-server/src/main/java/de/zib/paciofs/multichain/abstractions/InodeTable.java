@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.abstractions;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Path-component-indexed view of all volumes, so that lookups do not need to touch the disk. It is
+ * filled as the MultiChain transactions creating volumes, directories and files are consumed.
+ * Inodes can also be looked up by id, which is how version 2 records refer to them.
+ */
+class InodeTable {
+  private static final char VOLUME_SEPARATOR = ':';
+
+  private static final char PATH_SEPARATOR = '/';
+
+  // root directories by volume name
+  private final ConcurrentMap<String, Inode> roots;
+
+  // all inodes in any volume by id
+  private final ConcurrentMap<Long, Inode> byId;
+
+  InodeTable() {
+    this.roots = new ConcurrentHashMap<>();
+    this.byId = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Adds the root directory of a volume.
+   * @param volumeName name of the volume
+   * @param root where the volume's contents are stored locally
+   * @return the volume's root directory, which may have been present already
+   */
+  Inode addVolume(String volumeName, File root) {
+    final long id = inodeId(0, volumeName);
+    final Inode inode = Inode.newDirectory(id, id, "", root);
+    final Inode existing = this.roots.putIfAbsent(volumeName, inode);
+    if (existing != null) {
+      return existing;
+    }
+
+    this.byId.put(id, inode);
+    return inode;
+  }
+
+  /**
+   * Removes the root directory of a volume, along with its contents.
+   * @param volumeName name of the volume
+   * @param root the volume's root directory
+   * @return whether root was present
+   */
+  boolean removeVolume(String volumeName, Inode root) {
+    if (!this.roots.remove(volumeName, root)) {
+      return false;
+    }
+
+    this.unindex(root);
+    return true;
+  }
+
+  /**
+   * Atomically adds a child to a directory.
+   * @param parent the directory
+   * @param child the inode to add
+   * @return the child that was present already under the same name, or null if there was none
+   */
+  Inode addChild(Inode parent, Inode child) {
+    final Inode existing = parent.addChild(child);
+    if (existing == null) {
+      this.byId.put(child.id(), child);
+    }
+    return existing;
+  }
+
+  /**
+   * Atomically removes a child from a directory, along with its contents.
+   * @param parent the directory
+   * @param child the inode to remove
+   * @return whether child was present
+   */
+  boolean removeChild(Inode parent, Inode child) {
+    if (!parent.removeChild(child)) {
+      return false;
+    }
+
+    this.unindex(child);
+    return true;
+  }
+
+  /**
+   * Looks up an inode by its id.
+   * @param id the inode's id
+   * @return the inode
+   * @throws NoSuchFileException if there is no inode with this id
+   */
+  Inode lookup(long id) throws NoSuchFileException {
+    final Inode inode = this.byId.get(id);
+    if (inode == null) {
+      throw new NoSuchFileException("inode " + id);
+    }
+
+    return inode;
+  }
+
+  /**
+   * Resolves a path.
+   * @param path path to resolve, volume:/path/to/file
+   * @return the inode at path
+   * @throws NoSuchFileException if the volume or any path component does not exist
+   */
+  Inode lookup(String path) throws NoSuchFileException {
+    final int volumeEnd = volumeEnd(path);
+    final String volumeName = path.substring(0, volumeEnd);
+    Inode current = this.roots.get(volumeName);
+    if (current == null) {
+      throw new NoSuchFileException(volumeName);
+    }
+
+    // walk the components without splitting the path into an array first
+    int start = volumeEnd + 1;
+    while (start < path.length()) {
+      int end = path.indexOf(PATH_SEPARATOR, start);
+      if (end < 0) {
+        end = path.length();
+      }
+
+      if (end > start) {
+        current = current.child(path.substring(start, end));
+        if (current == null) {
+          throw new NoSuchFileException(path);
+        }
+      }
+
+      start = end + 1;
+    }
+
+    return current;
+  }
+
+  /**
+   * Resolves the directory containing a path.
+   * @param path path whose parent to resolve, volume:/path/to/file
+   * @return the parent directory of path
+   * @throws NoSuchFileException if the volume or any parent component does not exist
+   * @throws NotDirectoryException if the parent is not a directory
+   */
+  Inode lookupParent(String path) throws NoSuchFileException, NotDirectoryException {
+    final int volumeEnd = volumeEnd(path);
+    final int nameStart = path.lastIndexOf(PATH_SEPARATOR) + 1;
+    final Inode parent = this.lookup(path.substring(0, Math.max(volumeEnd + 1, nameStart)));
+    if (!parent.isDirectory()) {
+      throw new NotDirectoryException(path);
+    }
+
+    return parent;
+  }
+
+  /**
+   * Get the last component of a path.
+   * @param path path to the file, volume:/path/to/file
+   * @return the name of the file, or an empty string for the root directory of a volume
+   */
+  static String name(String path) {
+    final int nameStart = Math.max(volumeEnd(path), path.lastIndexOf(PATH_SEPARATOR)) + 1;
+    return path.substring(nameStart);
+  }
+
+  /**
+   * Derives the id of an inode from its parent and its name. This way every node in the cluster
+   * assigns the same id to the same path without coordination.
+   * @param parentId the id of the parent directory, 0 for volume roots
+   * @param name the name of the directory entry, or the volume name for volume roots
+   * @return a non-negative id
+   */
+  static long inodeId(long parentId, String name) {
+    final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer input = ByteBuffer.allocate(Long.BYTES + nameBytes.length);
+    input.putLong(parentId).put(nameBytes).flip();
+    return ByteBuffer.wrap(DigestUtils.sha256(input.array())).getLong() & Long.MAX_VALUE;
+  }
+
+  private void unindex(Inode inode) {
+    this.byId.remove(inode.id(), inode);
+    for (Inode child : inode.children()) {
+      this.unindex(child);
+    }
+  }
+
+  private static int volumeEnd(String path) {
+    final int volumeEnd = path.indexOf(VOLUME_SEPARATOR);
+    if (volumeEnd < 0) {
+      throw new InvalidPathException(path, "No volume specified in path");
+    }
+
+    return volumeEnd;
+  }
+}
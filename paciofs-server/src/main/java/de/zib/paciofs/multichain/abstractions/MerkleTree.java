@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.abstractions;
+
+import com.google.protobuf.ByteString;
+import de.zib.paciofs.grpc.messages.WriteProofStep;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Binary SHA-256 hash tree over the leaves of an epoch. Leaves and inner nodes are hashed with
+ * different prefixes, so a leaf cannot pass for an inner node. A level with an odd number of hashes
+ * passes its last hash up unchanged.
+ */
+final class MerkleTree {
+  private static final byte LEAF_PREFIX = 0x00;
+
+  private static final byte NODE_PREFIX = 0x01;
+
+  // all levels, from the leaf hashes up to the root
+  private final List<List<byte[]>> levels;
+
+  /**
+   * Builds the tree.
+   * @param leafHashes the leaf hashes as returned by {@link #leafHash(byte[])}, at least one
+   */
+  MerkleTree(List<byte[]> leafHashes) {
+    if (leafHashes.isEmpty()) {
+      throw new IllegalArgumentException("Tree needs at least one leaf");
+    }
+
+    this.levels = new ArrayList<>();
+    List<byte[]> level = leafHashes;
+    this.levels.add(level);
+    while (level.size() > 1) {
+      level = parents(level);
+      this.levels.add(level);
+    }
+  }
+
+  byte[] root() {
+    return this.levels.get(this.levels.size() - 1).get(0);
+  }
+
+  /**
+   * Gets the path from a leaf to the root.
+   * @param index the leaf's position
+   * @return the siblings along the path, from the leaf upwards
+   */
+  List<WriteProofStep> proof(int index) {
+    final List<WriteProofStep> steps = new ArrayList<>();
+    int position = index;
+    for (List<byte[]> level : this.levels) {
+      final int sibling = position ^ 1;
+      if (sibling < level.size()) {
+        steps.add(WriteProofStep.newBuilder()
+                      .setSibling(ByteString.copyFrom(level.get(sibling)))
+                      .setSiblingLeft(sibling < position)
+                      .build());
+      }
+      position /= 2;
+    }
+    return steps;
+  }
+
+  static byte[] leafHash(byte[] leaf) {
+    final MessageDigest digest = DigestUtils.getSha256Digest();
+    digest.update(LEAF_PREFIX);
+    digest.update(leaf);
+    return digest.digest();
+  }
+
+  private static List<byte[]> parents(List<byte[]> level) {
+    final List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+    for (int i = 0; i + 1 < level.size(); i += 2) {
+      final MessageDigest digest = DigestUtils.getSha256Digest();
+      digest.update(NODE_PREFIX);
+      digest.update(level.get(i));
+      digest.update(level.get(i + 1));
+      parents.add(digest.digest());
+    }
+
+    if (level.size() % 2 == 1) {
+      parents.add(level.get(level.size() - 1));
+    }
+    return parents;
+  }
+}
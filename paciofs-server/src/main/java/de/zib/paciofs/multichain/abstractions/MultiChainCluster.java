@@ -10,21 +10,30 @@ package de.zib.paciofs.multichain.abstractions;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import de.zib.paciofs.grpc.messages.Node;
+import de.zib.paciofs.logging.Markers;
 import de.zib.paciofs.multichain.MultiChainData;
+import de.zib.paciofs.multichain.MultiChainEvent;
 import de.zib.paciofs.multichain.MultiChainUtil;
+import de.zib.paciofs.multichain.OwnTransactions;
+import de.zib.paciofs.multichain.UtxoPool;
 import de.zib.paciofs.multichain.actors.MultiChainActor;
+import de.zib.paciofs.multichain.actors.UndoLog;
 import de.zib.paciofs.multichain.internal.MultiChainCommand;
-import de.zib.paciofs.multichain.rpc.MultiChainClient;
-import de.zib.paciofs.multichain.rpc.types.RawTransaction;
+import de.zib.paciofs.multichain.internal.MultiChainSnapshot;
+import de.zib.paciofs.multichain.rpc.MultiChainAsyncClient;
 import java.math.BigDecimal;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MultiChainCluster implements MultiChainActor.RawTransactionConsumer {
+public class MultiChainCluster implements MultiChainActor.EventConsumer {
   private static final Logger LOG = LoggerFactory.getLogger(MultiChainCluster.class);
 
   // the equivalent of one satoshi
@@ -36,13 +45,24 @@ public class MultiChainCluster implements MultiChainActor.RawTransactionConsumer
 
   private final InetAddress localhost;
 
+  // set while sending the transaction that adds this node
+  private final AtomicBoolean addingSelf;
+
+  // transactions sent and applied by us, which the follower skips
+  private final OwnTransactions ownTransactions;
+
   /**
    * Create a cluster abstraction for this MultiChain.
    * @param client the MultiChain client to use
+   * @param utxos the pool of UTXOs to spend
+   * @param ownTransactions where to remember the transactions sent by this cluster
    */
-  public MultiChainCluster(MultiChainClient client) {
-    this.clientUtil = new MultiChainUtil(client, CLUSTER_OP_RETURN_FEE, LOG);
+  public MultiChainCluster(
+      MultiChainAsyncClient client, UtxoPool utxos, OwnTransactions ownTransactions) {
+    this.clientUtil = new MultiChainUtil(client, utxos, CLUSTER_OP_RETURN_FEE, LOG);
     this.nodes = new ConcurrentHashMap<>();
+    this.addingSelf = new AtomicBoolean();
+    this.ownTransactions = ownTransactions;
 
     try {
       this.localhost = InetAddress.getLocalHost();
@@ -55,8 +75,9 @@ public class MultiChainCluster implements MultiChainActor.RawTransactionConsumer
    * Prepares and sends a transaction that adds a node. After the transaction has been accepted,
    * considers the node to be added.
    * @param node the node to add
+   * @return the added node, along with its MultiChain transaction id, once it has been sent
    */
-  public Node addNode(Node node) {
+  public CompletionStage<Node> addNode(Node node) {
     if (this.nodes.containsKey(node.getAddress())) {
       throw new IllegalArgumentException(
           "Node " + TextFormat.shortDebugString(node) + " is already present in cluster");
@@ -65,20 +86,31 @@ public class MultiChainCluster implements MultiChainActor.RawTransactionConsumer
     final MultiChainData data = new MultiChainData();
     data.writeByteArray(node.toByteArray());
 
-    final String txId = this.clientUtil.sendRawTransaction(MultiChainCommand.MCC_NODE_ADD, data);
-    node = Node.newBuilder(node).setCreationTxId(txId).build();
-    this.addNodeFromTransaction(node);
-    return node;
+    return this.clientUtil.sendRawTransactionAsync(MultiChainCommand.MCC_NODE_ADD, data)
+        .thenApply(txId -> {
+          final Node added = Node.newBuilder(node).setCreationTxId(txId).build();
+          this.addNodeFromTransaction(added);
+          this.ownTransactions.add(txId);
+          return added;
+        });
   }
 
-  private void addNodeFromTransaction(Node node) {
-    if (this.nodes.containsKey(node.getAddress())) {
+  // returns whether the node was added
+  private boolean addNodeFromTransaction(Node node) {
+    if (this.nodes.putIfAbsent(node.getAddress(), node) != null) {
       LOG.debug("Node {} is already present in cluster", TextFormat.shortDebugString(node));
-      return;
+      return false;
     }
 
-    this.nodes.put(node.getAddress(), node);
     LOG.debug("Node {} was added to cluster", TextFormat.shortDebugString(node));
+    return true;
+  }
+
+  // reverts adding a node when its transaction has been orphaned
+  private void unaddNode(Node node) {
+    if (this.nodes.remove(node.getAddress(), node)) {
+      LOG.debug("Node {} was removed from cluster", TextFormat.shortDebugString(node));
+    }
   }
 
   /**
@@ -96,6 +128,18 @@ public class MultiChainCluster implements MultiChainActor.RawTransactionConsumer
     throw new UnsupportedOperationException();
   }
 
+  // adds the nodes to a snapshot
+  void snapshot(MultiChainSnapshot.Builder snapshot) {
+    snapshot.addAllNodes(this.nodes.values());
+  }
+
+  // adds the nodes of a snapshot, before any transactions are consumed
+  void restore(MultiChainSnapshot snapshot) {
+    for (Node node : snapshot.getNodesList()) {
+      this.addNodeFromTransaction(node);
+    }
+  }
+
   public boolean ready() {
     return this.clusterContainsSelf();
   }
@@ -105,38 +149,51 @@ public class MultiChainCluster implements MultiChainActor.RawTransactionConsumer
   }
 
   @Override
-  public void consumeRawTransaction(final RawTransaction rawTransaction) {
-    LOG.trace("Received raw tx: {}", rawTransaction.id());
-
-    this.clientUtil.processRawTransaction(rawTransaction, (command, data) -> {
-      try {
-        switch (command) {
-          case MCC_NODE_ADD: {
-            final Node node = Node.newBuilder(Node.parseFrom(data.readByteArray()))
-                                  .setCreationTxId(rawTransaction.id())
-                                  .build();
-            this.addNodeFromTransaction(node);
-            break;
-          }
-          case MCC_NODE_REMOVE: {
-            final Node node = Node.parseFrom(data.readByteArray());
-            this.removeNodeFromTransaction(node);
-            break;
+  public Set<MultiChainCommand> commands() {
+    return EnumSet.of(MultiChainCommand.MCC_NODE_ADD, MultiChainCommand.MCC_NODE_REMOVE);
+  }
+
+  @Override
+  public void consumeEvent(MultiChainEvent event, UndoLog undoLog) {
+    LOG.trace("Received {} from tx: {}", event.command(), event.txId());
+
+    final MultiChainCommand command = event.command();
+    final MultiChainData data = event.data();
+    try {
+      switch (command) {
+        case MCC_NODE_ADD: {
+          final Node node = Node.newBuilder(Node.parseFrom(data.readBytes()))
+                                .setCreationTxId(event.txId())
+                                .build();
+          if (this.addNodeFromTransaction(node)) {
+            undoLog.add(() -> this.unaddNode(node));
           }
-          default:
-            // not for us, ignore
-            break;
+          break;
         }
-      } catch (InvalidProtocolBufferException e) {
-        // should not happen because at this point we know what data to expect
-        MultiChainCluster.LOG.error("Error parsing data", e);
+        case MCC_NODE_REMOVE: {
+          final Node node = Node.parseFrom(data.readBytes());
+          this.removeNodeFromTransaction(node);
+          break;
+        }
+        default:
+          // not subscribed
+          break;
       }
-    });
+    } catch (InvalidProtocolBufferException e) {
+      // should not happen because at this point we know what data to expect
+      LOG.error("Error parsing data", e);
+      // CHECKSTYLE:IllegalCatch:OFF
+    } catch (RuntimeException e) {
+      // CHECKSTYLE:IllegalCatch:ON
+      // anyone can send malformed records, which must not hold up the rest of the block
+      LOG.error(Markers.EXCEPTION, "Skipping malformed {} record (transaction id: {})", command,
+          event.txId(), e);
+    }
   }
 
   @Override
-  public void doneProcessingRawTransactions() {
-    if (this.clusterContainsSelf()) {
+  public void doneProcessingEvents() {
+    if (this.clusterContainsSelf() || !this.addingSelf.compareAndSet(false, true)) {
       return;
     }
 
@@ -144,11 +201,31 @@ public class MultiChainCluster implements MultiChainActor.RawTransactionConsumer
     LOG.debug("Adding self ({}) to cluster", TextFormat.shortDebugString(self));
 
     // this will send a transaction which we will receive later on
-    this.addNode(self);
+    this.addNode(self).whenComplete((node, failure) -> {
+      if (failure != null) {
+        // try again after the next block
+        this.addingSelf.set(false);
+        LOG.warn("Could not add self to cluster: {}", failure.getMessage());
+        LOG.warn(Markers.EXCEPTION, "Could not add self to cluster", failure);
+      }
+    });
   }
 
   @Override
-  public void unconsumeRawTransaction(RawTransaction rawTransaction) {
-    LOG.trace("Received raw tx for removal: {}", rawTransaction.id());
+  public void unconsumeEvent(MultiChainEvent event) {
+    LOG.trace("Received {} from tx for removal: {}", event.command(), event.txId());
+
+    try {
+      if (event.command() == MultiChainCommand.MCC_NODE_ADD) {
+        // only if the node was added by this very transaction
+        final Node node =
+            this.nodes.get(Node.parseFrom(event.data().readBytes()).getAddress());
+        if (node != null && event.txId().equals(node.getCreationTxId())) {
+          this.unaddNode(node);
+        }
+      }
+    } catch (InvalidProtocolBufferException e) {
+      LOG.error("Error parsing data", e);
+    }
   }
 }
@@ -7,76 +7,211 @@
 
 package de.zib.paciofs.multichain.abstractions;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
+import com.typesafe.config.Config;
+import de.zib.paciofs.PacioFsOptions;
 import de.zib.paciofs.grpc.messages.Volume;
+import de.zib.paciofs.grpc.messages.WriteProof;
+import de.zib.paciofs.grpc.messages.WriteProofLeaf;
+import de.zib.paciofs.io.cache.BlockCache;
+import de.zib.paciofs.io.cache.ReadAhead;
 import de.zib.paciofs.io.posix.grpc.messages.Dir;
 import de.zib.paciofs.io.posix.grpc.messages.Mode;
 import de.zib.paciofs.io.posix.grpc.messages.Stat;
 import de.zib.paciofs.logging.Markers;
 import de.zib.paciofs.multichain.MultiChainData;
+import de.zib.paciofs.multichain.MultiChainEvent;
 import de.zib.paciofs.multichain.MultiChainUtil;
+import de.zib.paciofs.multichain.OwnTransactions;
+import de.zib.paciofs.multichain.RecordCompression;
+import de.zib.paciofs.multichain.TransactionJournal;
+import de.zib.paciofs.multichain.TransactionPipeline;
+import de.zib.paciofs.multichain.UtxoPool;
 import de.zib.paciofs.multichain.actors.MultiChainActor;
+import de.zib.paciofs.multichain.actors.UndoLog;
 import de.zib.paciofs.multichain.internal.MultiChainCommand;
-import de.zib.paciofs.multichain.rpc.MultiChainClient;
-import de.zib.paciofs.multichain.rpc.types.RawTransaction;
+import de.zib.paciofs.multichain.internal.MultiChainSnapshot;
+import de.zib.paciofs.multichain.internal.MultiChainSnapshotInode;
+import de.zib.paciofs.multichain.rpc.MultiChainAsyncClient;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.InvalidPathException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsumer {
+public class MultiChainFileSystem implements MultiChainActor.EventConsumer {
   private static final Logger LOG = LoggerFactory.getLogger(MultiChainFileSystem.class);
 
   // the equivalent of one satoshi
   private static final BigDecimal FILE_SYSTEM_OP_RETURN_FEE = new BigDecimal(1.0 / 100_000_000.0);
 
+  // recorded instead of the hash of a write if hashes are disabled
+  private static final byte[] NO_HASH = new byte[0];
+
+  private static final String ATTESTATION_MODE_PER_WRITE = "per-write";
+
+  private static final String ATTESTATION_MODE_EPOCH = "epoch";
+
   private final MultiChainUtil clientUtil;
 
+  // file system operations are sent through here, volume operations directly
+  private final TransactionPipeline pipeline;
+
   private final MultiChainCluster cluster;
 
   private final Map<String, Volume> volumes;
 
-  private final Map<Volume, File> volumeRoots;
+  private final InodeTable inodes;
+
+  private final FileHandleTable fileHandles;
+
+  // null if disabled
+  private final BlockCache blockCache;
+
+  // null if disabled
+  private final ReadAhead readAhead;
 
   private final File baseDir;
 
+  // transactions sent and applied by us, which the follower skips
+  private final OwnTransactions ownTransactions;
+
+  // version of the records sent, see MultiChainData
+  private final int payloadVersion;
+
+  // whether version 2 records of writes include the hash of the data written
+  private final boolean writeHashes;
+
+  // payloads are encoded into per-thread buffers, which are copied into the records right away
+  private final ThreadLocal<MultiChainData> payloads;
+
+  // null if every write is sent in its own record
+  private final WriteAttestations attestations;
+
+  // the parent directory and name of a directory entry in a record
+  private static final class Entry {
+    private final Inode parent;
+
+    private final String name;
+
+    private Entry(Inode parent, String name) {
+      this.parent = parent;
+      this.name = name;
+    }
+  }
+
   /**
    * Construct a file system view on top of MultiChain.
    * @param client the MultiChain client to use
+   * @param utxos the pool of UTXOs to spend
+   * @param ownTransactions where to remember the transactions sent by this file system
    * @param cluster the MultiChainCluster view to use
+   * @param config configuration containing the paciofs options (see application.conf)
+   * @param executor where to run background I/O such as read-ahead
    */
-  public MultiChainFileSystem(MultiChainClient client, MultiChainCluster cluster, String baseDir) {
-    this.clientUtil = new MultiChainUtil(client, FILE_SYSTEM_OP_RETURN_FEE, LOG);
+  public MultiChainFileSystem(MultiChainAsyncClient client, UtxoPool utxos,
+      OwnTransactions ownTransactions, MultiChainCluster cluster, Config config,
+      Executor executor) {
+    final MultiChainUtil.GroupCommit groupCommit = new MultiChainUtil.GroupCommit(
+        config.getBytes(PacioFsOptions.GROUP_COMMIT_MAX_BYTES_KEY).intValue(),
+        config.getInt(PacioFsOptions.GROUP_COMMIT_MAX_RECORDS_KEY),
+        config.getDuration(PacioFsOptions.GROUP_COMMIT_MAX_DELAY_KEY));
+    this.clientUtil = new MultiChainUtil(client, utxos, FILE_SYSTEM_OP_RETURN_FEE, groupCommit,
+        RecordCompression.parse(config.getString(PacioFsOptions.PAYLOAD_COMPRESSION_KEY)), LOG);
+
+    final TransactionJournal journal;
+    final String journalPath = config.getString(PacioFsOptions.TRANSACTION_PIPELINE_JOURNAL_KEY);
+    try {
+      journal = new TransactionJournal(Paths.get(journalPath));
+    } catch (IOException e) {
+      throw new RuntimeException("Could not open journal " + journalPath, e);
+    }
+    this.ownTransactions = ownTransactions;
+    this.pipeline = new TransactionPipeline(this.clientUtil, journal, this.ownTransactions,
+        config.getInt(PacioFsOptions.TRANSACTION_PIPELINE_QUEUE_SIZE_KEY), groupCommit.maxBytes(),
+        groupCommit.maxRecords());
     this.cluster = cluster;
     this.volumes = new ConcurrentHashMap<>();
-    this.volumeRoots = new ConcurrentHashMap<>();
-    this.baseDir = new File(baseDir);
+    this.inodes = new InodeTable();
+    this.fileHandles = new FileHandleTable(config.getInt(PacioFsOptions.IO_MAX_OPEN_FILES_KEY),
+        config.getInt(PacioFsOptions.IO_MAX_OPEN_HANDLES_KEY));
+
+    final long blockCacheCapacity = config.getBytes(PacioFsOptions.IO_BLOCK_CACHE_CAPACITY_KEY);
+    if (blockCacheCapacity > 0) {
+      this.blockCache = new BlockCache(blockCacheCapacity,
+          config.getBytes(PacioFsOptions.IO_BLOCK_CACHE_BLOCK_SIZE_KEY).intValue(),
+          config.getInt(PacioFsOptions.IO_BLOCK_CACHE_SEGMENTS_KEY));
+      this.blockCache.registerMBean();
+    } else {
+      this.blockCache = null;
+    }
+
+    // read-ahead prefetches into the block cache
+    final long readAheadMaxSize = config.getBytes(PacioFsOptions.IO_READ_AHEAD_MAX_SIZE_KEY);
+    if (this.blockCache != null && readAheadMaxSize > 0) {
+      this.readAhead = new ReadAhead(this.blockCache, executor, (int) readAheadMaxSize);
+    } else {
+      this.readAhead = null;
+    }
+
+    this.baseDir = new File(config.getString(PacioFsOptions.BASE_DIR_KEY));
+
+    this.payloadVersion = config.getInt(PacioFsOptions.PAYLOAD_VERSION_KEY);
+    this.writeHashes = this.payloadVersion == MultiChainData.VERSION_1
+        || config.getBoolean(PacioFsOptions.PAYLOAD_WRITE_HASHES_KEY);
+    this.payloads = ThreadLocal.withInitial(() -> new MultiChainData(this.payloadVersion));
+
+    final String attestationMode = config.getString(PacioFsOptions.ATTESTATION_MODE_KEY);
+    if (ATTESTATION_MODE_EPOCH.equals(attestationMode)) {
+      final String attestationJournalPath =
+          config.getString(PacioFsOptions.ATTESTATION_JOURNAL_KEY);
+      try {
+        this.attestations = new WriteAttestations(
+            new TransactionJournal(Paths.get(attestationJournalPath)), this.pipeline,
+            Paths.get(config.getString(PacioFsOptions.ATTESTATION_MANIFESTS_KEY)),
+            config.getInt(PacioFsOptions.ATTESTATION_EPOCH_MAX_WRITES_KEY),
+            config.getDuration(PacioFsOptions.ATTESTATION_EPOCH_MAX_DELAY_KEY),
+            config.getInt(PacioFsOptions.ATTESTATION_EPOCH_RETAINED_WRITES_KEY));
+      } catch (IOException e) {
+        throw new RuntimeException("Could not open journal " + attestationJournalPath, e);
+      }
+    } else if (ATTESTATION_MODE_PER_WRITE.equals(attestationMode)) {
+      this.attestations = null;
+    } else {
+      throw new IllegalArgumentException("Unknown attestation mode " + attestationMode);
+    }
   }
 
   /**
    * Create a volume, sending it to MultiChain.
    * @param volume the volume to create
-   * @return the created volume, along with its MultiChain transaction id
+   * @return the created volume, along with its MultiChain transaction id, once it has been sent
    * @throws FileAlreadyExistsException if the volume exists already
    * @throws IOException if an I/O error occurs
    */
-  public Volume createVolume(Volume volume) throws IOException {
+  public CompletionStage<Volume> createVolume(Volume volume) throws IOException {
     this.checkClusterReadiness();
 
     // TODO synchronize the relevant parts here
@@ -84,20 +219,27 @@ public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsu
       throw new FileAlreadyExistsException(volume.getName());
     }
 
-    final MultiChainData data = new MultiChainData();
+    final MultiChainData data = this.payload();
     data.writeByteArray(volume.toByteArray());
 
-    final String txId =
-        this.clientUtil.sendRawTransaction(MultiChainCommand.MCC_VOLUME_CREATE, data);
-    volume = Volume.newBuilder(volume).setCreationTxId(txId).build();
-    this.createVolumeFromTransaction(volume);
-    return volume;
+    return this.clientUtil.sendRawTransactionAsync(MultiChainCommand.MCC_VOLUME_CREATE, data)
+        .thenCompose(txId -> {
+          final Volume created = Volume.newBuilder(volume).setCreationTxId(txId).build();
+          try {
+            this.createVolumeFromTransaction(created);
+          } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+          }
+          this.ownTransactions.add(txId);
+          return CompletableFuture.completedFuture(created);
+        });
   }
 
-  private void createVolumeFromTransaction(Volume volume) throws IOException {
+  // returns whether the volume was created
+  private boolean createVolumeFromTransaction(Volume volume) throws IOException {
     if (this.volumes.containsKey(volume.getName())) {
       LOG.debug("Volume {} already exists", TextFormat.shortDebugString(volume));
-      return;
+      return false;
     }
 
     final File volumeRoot = new File(this.baseDir, volume.getName());
@@ -106,10 +248,26 @@ public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsu
           "Could not create directory " + volumeRoot + " for volume " + volume.getName());
     }
 
-    this.volumeRoots.put(volume, volumeRoot);
+    this.inodes.addVolume(volume.getName(), volumeRoot);
     this.volumes.put(volume.getName(), volume);
 
     LOG.debug("Volume {} was created", TextFormat.shortDebugString(volume));
+    return true;
+  }
+
+  // reverts creating a volume when its transaction has been orphaned, keeping the local directory,
+  // unless the volume has contents, which may have been created locally and would be lost
+  private void uncreateVolume(Volume volume) throws NoSuchFileException {
+    final Inode root = this.inodes.lookup(volume.getName() + ":/");
+    if (!root.children().isEmpty()) {
+      LOG.debug("Volume {} is kept because it is not empty", TextFormat.shortDebugString(volume));
+      return;
+    }
+
+    if (this.volumes.remove(volume.getName(), volume)) {
+      this.inodes.removeVolume(volume.getName(), root);
+      LOG.debug("Volume {} was removed", TextFormat.shortDebugString(volume));
+    }
   }
 
   public Volume deleteVolume(Volume volume) {
@@ -129,36 +287,28 @@ public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsu
    * @param group group ID to use in the returned stat
    * @return the file information
    * @throws NoSuchFileException if the path does not exist
-   * @throws IOException if the file type is not supported
    */
   public Stat stat(String path, int user, int group) throws IOException {
-    final File volumeRoot = this.getVolumeRootFromPath(path);
-    final String cleanedPath = removeVolumeFromPath(path);
-
-    final File file = new File(volumeRoot, cleanedPath);
-    if (!file.exists()) {
-      throw new NoSuchFileException(path);
-    }
+    final Inode inode = this.inodes.lookup(path);
 
     // TODO fill all stat fields
     final Stat.Builder builder = Stat.newBuilder();
+    builder.setIno(inode.id());
 
     // TODO fix: all files belong to each calling user
     builder.setUid(user);
     builder.setGid(group);
 
-    if (file.isDirectory()) {
+    if (inode.isDirectory()) {
       // drwxr-xr-x for directories
       builder.setMode(Mode.MODE_S_IFDIR_VALUE | Mode.MODE_S_IRWXU_VALUE | Mode.MODE_S_IRGRP_VALUE
           | Mode.MODE_S_IXGRP_VALUE | Mode.MODE_S_IROTH_VALUE | Mode.MODE_S_IXOTH_VALUE);
-    } else if (file.isFile()) {
+    } else {
       // -rw-r--r-- for regular files
       builder.setMode(Mode.MODE_S_IFREG_VALUE | Mode.MODE_S_IRUSR_VALUE | Mode.MODE_S_IWUSR_VALUE
           | Mode.MODE_S_IRGRP_VALUE | Mode.MODE_S_IROTH_VALUE);
 
-      builder.setSize(file.length());
-    } else {
-      throw new IOException("Illegal file type for " + path);
+      builder.setSize(inode.size());
     }
 
     return builder.build();
@@ -170,7 +320,8 @@ public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsu
    * @param mode file creation mode
    * @param dev major and minor version for device special files
    * @throws IllegalArgumentException if the file type is not supported
-   * @throws NoSuchFileException if the volume does not exist
+   * @throws NoSuchFileException if the volume or the parent directory does not exist
+   * @throws NotDirectoryException if the parent is not a directory
    * @throws FileAlreadyExistsException if the file exists already
    * @throws IOException if there is an error during creation
    */
@@ -179,84 +330,169 @@ public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsu
       throw new IllegalArgumentException("Cannot create special file " + path);
     }
 
-    final File volumeRoot = this.getVolumeRootFromPath(path);
-    final String cleanedPath = removeVolumeFromPath(path);
-    final File file = new File(volumeRoot, cleanedPath);
-
-    // TODO use in-memory structure here like for volumes
-    if (file.exists()) {
+    final Inode parent = this.inodes.lookupParent(path);
+    final String name = InodeTable.name(path);
+    if (name.isEmpty() || parent.child(name) != null) {
       throw new FileAlreadyExistsException(path);
     }
 
-    final MultiChainData data = new MultiChainData();
-    data.writeString(path);
+    final MultiChainData data = this.payload();
+    this.writeEntry(data, path, parent, name);
     data.writeInt(mode);
     data.writeInt(dev);
 
-    final String txId = this.clientUtil.sendRawTransaction(MultiChainCommand.MCC_IO_MKNOD, data);
-    this.mkNodFromTransaction(path, mode, dev, txId);
+    // durable from here on, so apply it without waiting for MultiChain
+    final CompletableFuture<String> txId =
+        this.pipeline.submit(MultiChainCommand.MCC_IO_MKNOD, data);
+    try {
+      this.mkNodFromTransaction(parent, name, mode, dev, null);
+    } catch (IOException e) {
+      this.disown(txId);
+      throw e;
+    }
   }
 
-  private void mkNodFromTransaction(String path, int mode, int dev, String txId)
+  // txId is null if the node is created locally before it has been sent, or from a snapshot,
+  // returns the new inode or null if the node existed already
+  private Inode mkNodFromTransaction(Inode parent, String name, int mode, int dev, String txId)
       throws IOException {
-    final File volumeRoot = this.getVolumeRootFromPath(path);
-    final String cleanedPath = removeVolumeFromPath(path);
-    final File file = new File(volumeRoot, cleanedPath);
+    if (parent.child(name) != null) {
+      LOG.debug("Node {} already exists in directory {} (transaction id: {})", name, parent.id(),
+          txId);
+      return null;
+    }
 
-    if (file.exists()) {
-      LOG.debug("Node {} already exists (transaction id: {})", path, txId);
-      return;
+    // touch the file, keeping any contents written before a restart
+    final File file = new File(parent.file(), name);
+    final long size;
+    try (RandomAccessFile touched = new RandomAccessFile(file, "rw")) {
+      size = touched.length();
     }
 
-    // touch the file
-    new RandomAccessFile(file, "rw").close();
+    final Inode inode = Inode.newFile(
+        InodeTable.inodeId(parent.id(), name), parent.volumeId(), name, file, size);
+    if (this.inodes.addChild(parent, inode) != null) {
+      LOG.debug("Node {} already exists in directory {} (transaction id: {})", name, parent.id(),
+          txId);
+      return null;
+    }
 
-    LOG.debug("Node {} was created (transaction id: {})", path, txId);
+    LOG.debug("Node {} was created in directory {} (transaction id: {})", name, parent.id(), txId);
+    return inode;
   }
 
   /**
    * Create a directory.
    * @param path path to the directory, volume:/path/to/dir
    * @param mode directory creation mode
-   * @throws NoSuchFileException if the volume does not exist
+   * @throws NoSuchFileException if the volume or the parent directory does not exist
+   * @throws NotDirectoryException if the parent is not a directory
    * @throws FileAlreadyExistsException if the directory exists already
    * @throws IOException if there is an error during creation
    */
   public void mkDir(String path, int mode) throws IOException {
-    final File volumeRoot = this.getVolumeRootFromPath(path);
-    final String cleanedPath = removeVolumeFromPath(path);
-    final File directory = new File(volumeRoot, cleanedPath);
-
-    // TODO use in-memory structure here like for volumes
-    if (directory.exists()) {
+    final Inode parent = this.inodes.lookupParent(path);
+    final String name = InodeTable.name(path);
+    if (name.isEmpty() || parent.child(name) != null) {
       throw new FileAlreadyExistsException(path);
     }
 
-    final MultiChainData data = new MultiChainData();
-    data.writeString(path);
+    final MultiChainData data = this.payload();
+    this.writeEntry(data, path, parent, name);
     data.writeInt(mode);
 
-    final String txId = this.clientUtil.sendRawTransaction(MultiChainCommand.MCC_IO_MKDIR, data);
-    this.mkDirFromTransaction(path, mode, txId);
+    // durable from here on, so apply it without waiting for MultiChain
+    final CompletableFuture<String> txId =
+        this.pipeline.submit(MultiChainCommand.MCC_IO_MKDIR, data);
+    try {
+      this.mkDirFromTransaction(parent, name, mode, null);
+    } catch (IOException e) {
+      this.disown(txId);
+      throw e;
+    }
+  }
+
+  // the operation has been sent but not applied locally, so it must be applied when followed
+  private void disown(CompletableFuture<String> txId) {
+    txId.thenAccept(this.ownTransactions::remove);
   }
 
-  private void mkDirFromTransaction(String path, int mode, String txId) throws IOException {
-    final File volumeRoot = this.getVolumeRootFromPath(path);
-    final String cleanedPath = removeVolumeFromPath(path);
-    final File directory = new File(volumeRoot, cleanedPath);
+  // txId is null if the directory is created locally before it has been sent, or from a
+  // snapshot, returns the new inode or null if the directory existed already
+  private Inode mkDirFromTransaction(Inode parent, String name, int mode, String txId)
+      throws IOException {
+    if (parent.child(name) != null) {
+      LOG.debug("Directory {} already exists in directory {} (transaction id: {})", name,
+          parent.id(), txId);
+      return null;
+    }
+
+    // the directory may be left over from before a restart
+    final File directory = new File(parent.file(), name);
+    if (!directory.mkdir() && !directory.isDirectory()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+
+    final Inode inode = Inode.newDirectory(
+        InodeTable.inodeId(parent.id(), name), parent.volumeId(), name, directory);
+    if (this.inodes.addChild(parent, inode) != null) {
+      LOG.debug("Directory {} already exists in directory {} (transaction id: {})", name,
+          parent.id(), txId);
+      return null;
+    }
+
+    LOG.debug(
+        "Directory {} was created in directory {} (transaction id: {})", name, parent.id(), txId);
+    return inode;
+  }
 
-    if (directory.exists()) {
-      LOG.debug("Directory {} already exists (transaction id: {})", path, txId);
+  // reverts creating a node or directory when its transaction has been orphaned, keeping the
+  // local file so its contents are found again if the transaction makes it into the new chain, a
+  // directory that is not empty is kept, its contents may have been created locally and would be
+  // lost, and applying the transaction again finds it in place
+  private void unmk(Inode parent, Inode inode) {
+    if (inode.isDirectory() && !inode.children().isEmpty()) {
+      LOG.debug("Directory {} is kept in directory {} because it is not empty", inode.name(),
+          parent.id());
       return;
     }
 
-    if (directory.mkdir()) {
-      LOG.debug("Directory {} was created (transaction id: {})", path, txId);
+    if (this.inodes.removeChild(parent, inode)) {
+      LOG.debug("{} {} was removed from directory {}", inode.isDirectory() ? "Directory" : "Node",
+          inode.name(), parent.id());
+    }
+  }
+
+  // version 1 records refer to directory entries by path, version 2 by parent id and name
+  private void writeEntry(MultiChainData data, String path, Inode parent, String name) {
+    if (data.version() == MultiChainData.VERSION_1) {
+      data.writeString(path);
     } else {
-      throw new IOException("Could not create directory " + path);
+      data.writeInodeId(parent.id());
+      data.writeString(name);
     }
   }
 
+  private Entry readEntry(MultiChainData data) throws NoSuchFileException, NotDirectoryException {
+    if (data.version() == MultiChainData.VERSION_1) {
+      final String path = data.readString();
+      return new Entry(this.inodes.lookupParent(path), InodeTable.name(path));
+    }
+
+    final Inode parent = this.inodes.lookup(data.readInodeId());
+    if (!parent.isDirectory()) {
+      throw new NotDirectoryException(parent.file().toString());
+    }
+    return new Entry(parent, data.readString());
+  }
+
+  // an empty payload to write a record, reusing this thread's buffer
+  private MultiChainData payload() {
+    final MultiChainData data = this.payloads.get();
+    data.clear();
+    return data;
+  }
+
   /**
    * Change a file's mode.
    * @param path path to the file, volume:/path/to/file
@@ -284,20 +520,12 @@ public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsu
    * Open a file.
    * @param path path to the file: volume:/path/to/file
    * @param flags open flags
-   * @return a file handle
+   * @return a file handle, allowing the access mode of the flags
    * @throws NoSuchFileException if the path does not exist
    */
   public long open(String path, int flags) throws NoSuchFileException {
-    final File volumeRoot = this.getVolumeRootFromPath(path);
-    final String cleanedPath = removeVolumeFromPath(path);
-    final File file = new File(volumeRoot, cleanedPath);
-
-    if (!file.exists()) {
-      throw new NoSuchFileException(path);
-    }
-
-    // TODO use a more meaningful file handle
-    return path.hashCode();
+    return this.fileHandles.open(
+        this.inodes.lookup(path), FileHandleTable.Access.fromFlags(flags));
   }
 
   /**
@@ -308,62 +536,304 @@ public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsu
    * @param fh file handle as returned by {@link #open(String, int)}
    * @return the number of bytes read, -1 on EOF
    * @throws NoSuchFileException if the path does not exist
+   * @throws AccessDeniedException if the file handle was opened write-only
    * @throws IOException if there is an error during reading
    */
   public int read(String path, ByteBuffer destination, long offset, long fh) throws IOException {
-    final File volumeRoot = this.getVolumeRootFromPath(path);
-    final String cleanedPath = removeVolumeFromPath(path);
-    final RandomAccessFile file;
-    try {
-      file = new RandomAccessFile(new File(volumeRoot, cleanedPath), "r");
-    } catch (FileNotFoundException e) {
-      throw new NoSuchFileException(path, null, e.getMessage());
+    final FileHandleTable.Handle handle = this.fileHandles.get(fh);
+    final Inode inode = this.resolve(path, handle);
+    FileHandleTable.checkAccess(inode, handle, FileHandleTable.Access.READ);
+    if (this.blockCache == null) {
+      final FileHandleTable.Channel channel =
+          this.fileHandles.acquireChannel(inode, handle, FileHandleTable.Access.READ);
+      try {
+        return channel.channel().read(destination, offset);
+      } finally {
+        this.fileHandles.releaseChannel(channel);
+      }
+    }
+
+    final BlockCache.BlockLoader loader =
+        (position, block) -> this.readBlock(inode, handle, position, block);
+    final int n =
+        this.blockCache.read(inode.volumeId(), inode.id(), offset, destination, loader);
+
+    // sequential reads can only be detected for open files
+    if (this.readAhead != null && handle != null) {
+      this.readAhead.onRead(handle.readAhead(), inode.volumeId(), inode.id(), offset, n, loader);
     }
 
-    final FileChannel channel = file.getChannel();
-    final int n = channel.read(destination, offset);
-    channel.close();
     return n;
   }
 
+  private void readBlock(Inode inode, FileHandleTable.Handle handle, long position,
+      ByteBuffer block) throws IOException {
+    final FileHandleTable.Channel channel =
+        this.fileHandles.acquireChannel(inode, handle, FileHandleTable.Access.READ);
+    try {
+      long p = position;
+      while (block.hasRemaining()) {
+        final int n = channel.channel().read(block, p);
+        if (n < 0) {
+          break;
+        }
+        p += n;
+      }
+    } finally {
+      this.fileHandles.releaseChannel(channel);
+    }
+  }
+
   /**
    * Write to a file.
    * @param path path to the file: volume:/path/to/file
-   * @param source buffer to write contents from
+   * @param source contents to write
    * @param offset position in the file
    * @param fh file handle as returned by {@link #open(String, int)}
    * @return the number of bytes written
    * @throws NoSuchFileException if the path does not exist
+   * @throws AccessDeniedException if the file handle was opened read-only
    * @throws IOException if there is an error during writing
    */
-  public int write(String path, ByteBuffer source, long offset, long fh) throws IOException {
-    final File volumeRoot = this.getVolumeRootFromPath(path);
-    final String cleanedPath = removeVolumeFromPath(path);
-    final RandomAccessFile file;
+  public int write(String path, ByteString source, long offset, long fh) throws IOException {
+    final FileHandleTable.Handle handle = this.fileHandles.get(fh);
+    final Inode inode = this.resolve(path, handle);
+
+    // hash while writing, and do not flatten the source if it consists of multiple chunks
+    final MessageDigest digest = DigestUtils.getSha256Digest();
+    final FileHandleTable.Channel channel =
+        this.fileHandles.acquireChannel(inode, handle, FileHandleTable.Access.WRITE);
+    final int n;
     try {
-      file = new RandomAccessFile(new File(volumeRoot, cleanedPath), "rw");
-    } catch (FileNotFoundException e) {
-      throw new NoSuchFileException(path, null, e.getMessage());
+      n = this.writeAt(inode, channel, source, offset, digest);
+    } finally {
+      this.fileHandles.releaseChannel(channel);
     }
 
-    final FileChannel channel = file.getChannel();
-    final int n = channel.write(source.slice(), offset);
-    channel.close();
+    this.sendWrite(path, inode, offset, n, digest.digest());
+    return n;
+  }
+
+  /**
+   * Start a sequence of writes to a file that are recorded on MultiChain together once the
+   * sequence is finished.
+   * @param path path to the file: volume:/path/to/file
+   * @param fh file handle as returned by {@link #open(String, int)}
+   * @return the write sequence, which must be finished
+   * @throws NoSuchFileException if the path does not exist
+   * @throws AccessDeniedException if the file handle was opened read-only
+   * @throws IOException if the file cannot be opened
+   */
+  public StreamedWrite beginWrite(String path, long fh) throws IOException {
+    final FileHandleTable.Handle handle = this.fileHandles.get(fh);
+    final Inode inode = this.resolve(path, handle);
+    return new StreamedWrite(path, inode,
+        this.fileHandles.acquireChannel(inode, handle, FileHandleTable.Access.WRITE));
+  }
+
+  /**
+   * A sequence of writes to one file. Consecutive writes that continue where the previous one
+   * ended are hashed and recorded on MultiChain as a single write. Not thread-safe.
+   */
+  public final class StreamedWrite {
+    private final String path;
+
+    private final Inode inode;
+
+    private final FileHandleTable.Channel channel;
+
+    private final List<CompletableFuture<String>> txIds;
+
+    private long bytesWritten;
+
+    // the range of the file written to consecutively, null digest if there is none
+    private long rangeStart;
+
+    private long rangeEnd;
+
+    private MessageDigest rangeDigest;
 
-    final ByteBuffer sourceWritten = source.slice().limit(n);
-    final byte[] sha256 = DigestUtils.digest(DigestUtils.getSha256Digest(), sourceWritten);
+    private boolean finished;
 
-    final MultiChainData data = new MultiChainData();
-    data.writeString(path);
+    private StreamedWrite(String path, Inode inode, FileHandleTable.Channel channel) {
+      this.path = path;
+      this.inode = inode;
+      this.channel = channel;
+      this.txIds = new ArrayList<>();
+    }
+
+    /**
+     * Write to the file.
+     * @param source contents to write
+     * @param offset position in the file
+     * @throws IOException if there is an error during writing
+     */
+    public void write(ByteString source, long offset) throws IOException {
+      if (this.finished) {
+        throw new IllegalStateException("Write to " + this.path + " has been finished already");
+      }
+
+      // the MultiChain record of a write holds its length as int
+      if (this.rangeDigest != null && (offset != this.rangeEnd
+          || this.rangeEnd - this.rangeStart + source.size() > Integer.MAX_VALUE)) {
+        this.recordRange();
+      }
+
+      if (this.rangeDigest == null) {
+        this.rangeDigest = DigestUtils.getSha256Digest();
+        this.rangeStart = offset;
+        this.rangeEnd = offset;
+      }
+
+      final int n = MultiChainFileSystem.this.writeAt(
+          this.inode, this.channel, source, offset, this.rangeDigest);
+      this.rangeEnd += n;
+      this.bytesWritten += n;
+    }
+
+    public long bytesWritten() {
+      return this.bytesWritten;
+    }
+
+    /**
+     * Record all writes on MultiChain. Must be called even if a write has failed, so that what has
+     * been written before is recorded. Finishing more than once has no effect.
+     * @return the MultiChain transaction ids of all recorded ranges, once they have been sent
+     */
+    public CompletableFuture<List<String>> finish() {
+      if (!this.finished) {
+        this.finished = true;
+        try {
+          this.recordRange();
+        } catch (IOException e) {
+          this.txIds.add(CompletableFuture.failedFuture(e));
+        } finally {
+          MultiChainFileSystem.this.fileHandles.releaseChannel(this.channel);
+        }
+      }
+
+      return CompletableFuture.allOf(this.txIds.toArray(new CompletableFuture<?>[0]))
+          .thenApply(done -> {
+            final List<String> ids = new ArrayList<>(this.txIds.size());
+            for (CompletableFuture<String> txId : this.txIds) {
+              ids.add(txId.join());
+            }
+            return Collections.unmodifiableList(ids);
+          });
+    }
+
+    private void recordRange() throws IOException {
+      if (this.rangeDigest != null) {
+        final MessageDigest digest = this.rangeDigest;
+        this.rangeDigest = null;
+        this.txIds.add(MultiChainFileSystem.this.sendWrite(this.path, this.inode,
+            this.rangeStart, (int) (this.rangeEnd - this.rangeStart), digest.digest()));
+      }
+    }
+  }
+
+  // writes all of source at offset, returns the number of bytes written
+  private int writeAt(Inode inode, FileHandleTable.Channel channel, ByteString source, long offset,
+      MessageDigest digest) throws IOException {
+    final long previousSize = inode.size();
+    long position = offset;
+    try {
+      for (ByteBuffer chunk : source.asReadOnlyByteBufferList()) {
+        digest.update(chunk.duplicate());
+        while (chunk.hasRemaining()) {
+          position += channel.channel().write(chunk, position);
+        }
+      }
+    } finally {
+      // also covers partial writes
+      inode.updateSize(position);
+      this.invalidateBlocks(inode, previousSize, offset, (int) (position - offset));
+    }
+
+    return (int) (position - offset);
+  }
+
+  // returns once the write is durable, the future completes once it has been sent
+  private CompletableFuture<String> sendWrite(String path, Inode inode, long offset, int n,
+      byte[] sha256) throws IOException {
+    if (this.attestations != null) {
+      final CompletableFuture<String> txId =
+          this.attestations.attest(writeProofLeaf(inode, offset, n, sha256));
+      txId.thenAccept(id
+          -> LOG.debug("Attested write of {} bytes from {} to {} (sha256: {}) to file {} "
+                  + "(transaction id: {})",
+              n, offset, offset + n, Hex.encodeHexString(sha256, true), path, id));
+      return txId;
+    }
+
+    final MultiChainData data = this.payload();
+    if (data.version() == MultiChainData.VERSION_1) {
+      data.writeString(path);
+    } else {
+      data.writeInodeId(inode.id());
+    }
     data.writeLong(offset);
     data.writeInt(n);
-    data.writeByteArray(sha256);
+    data.writeByteArray(this.writeHashes ? sha256 : NO_HASH);
 
-    final String txId = this.clientUtil.sendRawTransaction(MultiChainCommand.MCC_IO_WRITE, data);
-    LOG.debug("Wrote {} bytes from {} to {} (sha256: {}) to file {} (transaction id: {})", n,
-        offset, offset + n, Hex.encodeHexString(sha256, true), path, txId);
+    final CompletableFuture<String> txId =
+        this.pipeline.submit(MultiChainCommand.MCC_IO_WRITE, data);
+    txId.thenAccept(id
+        -> LOG.debug("Wrote {} bytes from {} to {} (sha256: {}) to file {} (transaction id: {})",
+            n, offset, offset + n, Hex.encodeHexString(sha256, true), path, id));
 
-    return n;
+    return txId;
+  }
+
+  /**
+   * Get the proof that a write has been attested on MultiChain, once the epoch it belongs to has
+   * been sent.
+   * @param path path to the file: volume:/path/to/file
+   * @param offset position in the file the write started at
+   * @param size number of bytes written
+   * @param sha256 hash of the data written
+   * @return the proof
+   * @throws NoSuchFileException if the path does not exist, or if there is no such write in the
+   *     epochs whose proofs are kept
+   * @throws IllegalStateException if writes are not attested in epochs
+   */
+  public CompletionStage<WriteProof> writeProof(String path, long offset, int size, byte[] sha256)
+      throws NoSuchFileException {
+    if (this.attestations == null) {
+      throw new IllegalStateException("Writes are not attested in epochs");
+    }
+
+    final CompletableFuture<WriteProof> proof = this.attestations.proof(
+        writeProofLeaf(this.inodes.lookup(path), offset, size, sha256));
+    if (proof == null) {
+      throw new NoSuchFileException(
+          path, null, "No attested write of " + size + " bytes at " + offset);
+    }
+    return proof;
+  }
+
+  private static WriteProofLeaf writeProofLeaf(Inode inode, long offset, int n, byte[] sha256) {
+    return WriteProofLeaf.newBuilder()
+        .setInodeId(inode.id())
+        .setOffset(offset)
+        .setSize(n)
+        .setSha256(ByteString.copyFrom(sha256))
+        .build();
+  }
+
+  /**
+   * Release a file handle.
+   * @param path path to the file: volume:/path/to/file
+   * @param fh file handle as returned by {@link #open(String, int)}
+   * @return true if the handle was open
+   */
+  public boolean release(String path, long fh) {
+    final boolean released = this.fileHandles.release(fh);
+    if (!released) {
+      LOG.debug("Released unknown file handle {} for {}", fh, path);
+    }
+
+    return released;
   }
 
   /**
@@ -372,31 +842,19 @@ public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsu
    * @return list of entries in that directory, can be zero-length
    * @throws NoSuchFileException if path does not exist
    * @throws NotDirectoryException if the path is not a directory
-   * @throws IOException if there is an error during listing
    */
   public List<Dir> readDir(String path) throws IOException {
-    final File volumeRoot = this.getVolumeRootFromPath(path);
-    final String cleanedPath = removeVolumeFromPath(path);
-
-    final File directory = new File(volumeRoot, cleanedPath);
-    if (!directory.exists()) {
-      throw new NoSuchFileException(path);
-    }
+    final Inode directory = this.inodes.lookup(path);
     if (!directory.isDirectory()) {
       throw new NotDirectoryException(path);
     }
 
     final List<Dir> dirEntries = new ArrayList<>();
-    dirEntries.add(Dir.newBuilder().setName(".").build());
+    dirEntries.add(Dir.newBuilder().setIno(directory.id()).setName(".").build());
     dirEntries.add(Dir.newBuilder().setName("..").build());
 
-    final File[] entries = directory.listFiles();
-    if (entries == null) {
-      throw new IOException("Error listing " + path);
-    }
-
-    for (File entry : entries) {
-      dirEntries.add(Dir.newBuilder().setName(entry.getName()).build());
+    for (Inode entry : directory.children()) {
+      dirEntries.add(Dir.newBuilder().setIno(entry.id()).setName(entry.name()).build());
     }
 
     return dirEntries;
@@ -413,98 +871,242 @@ public class MultiChainFileSystem implements MultiChainActor.RawTransactionConsu
   }
 
   @Override
-  public void doneProcessingRawTransactions() {}
+  public Set<MultiChainCommand> commands() {
+    return EnumSet.of(MultiChainCommand.MCC_VOLUME_CREATE, MultiChainCommand.MCC_VOLUME_DELETE,
+        MultiChainCommand.MCC_IO_MKNOD, MultiChainCommand.MCC_IO_MKDIR,
+        MultiChainCommand.MCC_IO_WRITE, MultiChainCommand.MCC_IO_ATTEST);
+  }
 
   @Override
-  public void consumeRawTransaction(RawTransaction rawTransaction) {
-    LOG.trace("Received raw tx: {}", rawTransaction.id());
+  public void doneProcessingEvents() {}
 
-    this.clientUtil.processRawTransaction(rawTransaction, (command, data) -> {
-      try {
-        switch (command) {
-          case MCC_VOLUME_CREATE: {
-            final Volume volume = Volume.newBuilder(Volume.parseFrom(data.readByteArray()))
-                                      .setCreationTxId(rawTransaction.id())
-                                      .build();
-            this.createVolumeFromTransaction(volume);
-            break;
-          }
-          case MCC_VOLUME_DELETE: {
-            final Volume volume = Volume.parseFrom(data.readByteArray());
-            this.deleteVolumeFromTransaction(volume);
-            break;
+  @Override
+  public void consumeEvent(MultiChainEvent event, UndoLog undoLog) {
+    LOG.trace("Received {} from tx: {}", event.command(), event.txId());
+
+    final MultiChainCommand command = event.command();
+    final MultiChainData data = event.data();
+    try {
+      switch (command) {
+        case MCC_VOLUME_CREATE: {
+          final Volume volume = Volume.newBuilder(Volume.parseFrom(data.readBytes()))
+                                    .setCreationTxId(event.txId())
+                                    .build();
+          if (this.createVolumeFromTransaction(volume)) {
+            undoLog.add(() -> this.uncreateVolume(volume));
           }
-          case MCC_IO_MKNOD: {
-            final String path = data.readString();
-            final int mode = data.readInt();
-            final int dev = data.readInt();
-            this.mkNodFromTransaction(path, mode, dev, rawTransaction.id());
-            break;
+          break;
+        }
+        case MCC_VOLUME_DELETE: {
+          final Volume volume = Volume.parseFrom(data.readBytes());
+          this.deleteVolumeFromTransaction(volume);
+          break;
+        }
+        case MCC_IO_MKNOD: {
+          final Entry entry = this.readEntry(data);
+          final int mode = data.readInt();
+          final int dev = data.readInt();
+          final Inode inode =
+              this.mkNodFromTransaction(entry.parent, entry.name, mode, dev, event.txId());
+          if (inode != null) {
+            undoLog.add(() -> this.unmk(entry.parent, inode));
           }
-          case MCC_IO_MKDIR: {
-            final String path = data.readString();
-            final int mode = data.readInt();
-            this.mkDirFromTransaction(path, mode, rawTransaction.id());
-            break;
+          break;
+        }
+        case MCC_IO_MKDIR: {
+          final Entry entry = this.readEntry(data);
+          final int mode = data.readInt();
+          final Inode inode =
+              this.mkDirFromTransaction(entry.parent, entry.name, mode, event.txId());
+          if (inode != null) {
+            undoLog.add(() -> this.unmk(entry.parent, inode));
           }
-          case MCC_IO_WRITE: {
-            // TODO obtain the relevant data from other nodes in the cluster
-            break;
+          break;
+        }
+        case MCC_IO_WRITE: {
+          final Inode inode = data.version() == MultiChainData.VERSION_1
+              ? this.inodes.lookup(data.readString())
+              : this.inodes.lookup(data.readInodeId());
+          final long offset = data.readLong();
+          final int n = data.readInt();
+
+          // TODO obtain the relevant data from other nodes in the cluster
+          this.invalidateBlocks(inode, inode.size(), offset, n);
+          break;
+        }
+        case MCC_IO_ATTEST: {
+          final long epoch = data.readLong();
+          data.readBytes();
+          final int size = data.readInt();
+          data.readBytes();
+          final int files = data.readInt();
+          for (int i = 0; i < files; ++i) {
+            this.invalidateFile(data.readInodeId());
           }
-          default:
-            // not for us, ignore
-            break;
+          LOG.debug("Epoch {} attested {} write(s) to {} file(s) (transaction id: {})", epoch,
+              size, files, event.txId());
+          break;
         }
-      } catch (InvalidProtocolBufferException e) {
-        // should not happen because at this point we know what data to expect
-        MultiChainFileSystem.LOG.error(Markers.EXCEPTION, "Error parsing data", e);
-      } catch (IOException e) {
-        MultiChainFileSystem.LOG.error(
-            Markers.EXCEPTION, "Could not process command {}", command, e);
+        default:
+          // not subscribed
+          break;
       }
-    });
+    } catch (InvalidProtocolBufferException e) {
+      // should not happen because at this point we know what data to expect
+      LOG.error(Markers.EXCEPTION, "Error parsing data", e);
+    } catch (IOException e) {
+      LOG.error(
+          Markers.EXCEPTION, "Could not process command {}", command, e);
+      // CHECKSTYLE:IllegalCatch:OFF
+    } catch (RuntimeException e) {
+      // CHECKSTYLE:IllegalCatch:ON
+      // anyone can send malformed records, which must not hold up the rest of the block
+      LOG.error(Markers.EXCEPTION, "Skipping malformed {} record (transaction id: {})", command,
+          event.txId(), e);
+    }
   }
 
   @Override
-  public void unconsumeRawTransaction(RawTransaction rawTransaction) {
-    LOG.trace("Received raw tx for removal: {}", rawTransaction.id());
+  public void unconsumeEvent(MultiChainEvent event) {
+    LOG.trace("Received {} from tx for removal: {}", event.command(), event.txId());
+
+    // without an undo log, it is unknown whether the transaction created a node, so it is removed
+    // anyway, it is created again if the transaction or a local operation makes it into the chain
+    final MultiChainCommand command = event.command();
+    final MultiChainData data = event.data();
+    try {
+      switch (command) {
+        case MCC_VOLUME_CREATE: {
+          final String name = Volume.parseFrom(data.readBytes()).getName();
+          final Volume volume = this.volumes.get(name);
+          if (volume != null && event.txId().equals(volume.getCreationTxId())) {
+            this.uncreateVolume(volume);
+          }
+          break;
+        }
+        case MCC_IO_MKNOD:
+        case MCC_IO_MKDIR: {
+          final Entry entry = this.readEntry(data);
+          final Inode inode = entry.parent.child(entry.name);
+          if (inode != null) {
+            this.unmk(entry.parent, inode);
+          }
+          break;
+        }
+        default:
+          // nothing to revert
+          break;
+      }
+    } catch (InvalidProtocolBufferException e) {
+      LOG.error(Markers.EXCEPTION, "Error parsing data", e);
+    } catch (NoSuchFileException e) {
+      // nothing to revert
+      LOG.debug("{} does not exist for removal", e.getMessage());
+    } catch (IOException e) {
+      LOG.error(
+          Markers.EXCEPTION, "Could not revert command {}", command, e);
+    }
   }
 
-  private void checkClusterReadiness() {
-    if (!this.cluster.ready()) {
-      throw new IllegalStateException("Cluster is not ready");
+  // adds the volumes and their namespaces to a snapshot, directories before their contents
+  void snapshot(MultiChainSnapshot.Builder snapshot) {
+    for (Volume volume : this.volumes.values()) {
+      final Inode root;
+      try {
+        root = this.inodes.lookup(volume.getName() + ":/");
+      } catch (NoSuchFileException e) {
+        // the volume is being created right now
+        continue;
+      }
+
+      snapshot.addVolumes(volume);
+      this.snapshot(snapshot, volume.getName() + ":", root);
     }
   }
 
-  private File getVolumeRootFromPath(String path) throws NoSuchFileException {
-    final Volume volume = this.getVolumeFromPath(path);
-    final File volumeRoot = this.volumeRoots.get(volume);
-    if (volumeRoot == null) {
-      throw new NoSuchFileException(volume.getName());
+  private void snapshot(MultiChainSnapshot.Builder snapshot, String path, Inode directory) {
+    for (Inode child : directory.children()) {
+      final String childPath = path + "/" + child.name();
+      snapshot.addInodes(MultiChainSnapshotInode.newBuilder()
+                             .setPath(childPath)
+                             .setDirectory(child.isDirectory())
+                             .build());
+      if (child.isDirectory()) {
+        this.snapshot(snapshot, childPath, child);
+      }
     }
+  }
 
-    return volumeRoot;
+  // recreates the volumes and namespaces of a snapshot, before any transactions are consumed
+  void restore(MultiChainSnapshot snapshot) throws IOException {
+    for (Volume volume : snapshot.getVolumesList()) {
+      this.createVolumeFromTransaction(volume);
+    }
+
+    for (MultiChainSnapshotInode inode : snapshot.getInodesList()) {
+      final Inode parent = this.inodes.lookupParent(inode.getPath());
+      final String name = InodeTable.name(inode.getPath());
+      if (inode.getDirectory()) {
+        this.mkDirFromTransaction(parent, name, 0, null);
+      } else {
+        this.mkNodFromTransaction(parent, name, Mode.MODE_S_IFREG_VALUE, 0, null);
+      }
+    }
   }
 
-  private Volume getVolumeFromPath(String path) throws NoSuchFileException {
-    if (!path.contains(":")) {
-      throw new InvalidPathException(path, "No volume specified in path");
+  /**
+   * Stops sending operations to MultiChain, and closes all files that are kept open for file
+   * handles. Operations that have not been sent yet are sent after a restart.
+   */
+  public void close() {
+    if (this.attestations != null) {
+      try {
+        this.attestations.close();
+      } catch (IOException e) {
+        LOG.warn("Could not close write attestations: {}", e.getMessage());
+        LOG.warn(Markers.EXCEPTION, "Could not close write attestations", e);
+      }
+    }
+
+    try {
+      this.pipeline.close();
+    } catch (IOException e) {
+      LOG.warn("Could not close transaction pipeline: {}", e.getMessage());
+      LOG.warn(Markers.EXCEPTION, "Could not close transaction pipeline", e);
     }
+    this.fileHandles.clear();
+  }
 
-    final String volumeName = path.split(":")[0];
-    final Volume volume = this.volumes.get(volumeName);
-    if (volume == null) {
-      throw new NoSuchFileException(volumeName);
+  private void checkClusterReadiness() {
+    if (!this.cluster.ready()) {
+      throw new IllegalStateException("Cluster is not ready");
     }
+  }
 
-    return volume;
+  // a write may have extended a short last block that is cached already
+  private void invalidateBlocks(Inode inode, long previousSize, long offset, int n) {
+    if (this.blockCache != null) {
+      this.blockCache.invalidate(
+          inode.volumeId(), inode.id(), Math.min(offset, previousSize), offset + n);
+    }
   }
 
-  private static String removeVolumeFromPath(String path) {
-    if (!path.contains(":")) {
-      throw new InvalidPathException(path, "No volume specified in path");
+  // the writes of an epoch are only known by file, not by range
+  private void invalidateFile(long inodeId) {
+    if (this.blockCache == null) {
+      return;
+    }
+
+    try {
+      final Inode inode = this.inodes.lookup(inodeId);
+      this.blockCache.invalidate(inode.volumeId(), inode.id(), 0, Long.MAX_VALUE);
+    } catch (NoSuchFileException e) {
+      // nothing cached
     }
+  }
 
-    return path.split(":")[1];
+  // file handles become unknown after a restart, release or eviction, so fall back to the path
+  private Inode resolve(String path, FileHandleTable.Handle handle) throws NoSuchFileException {
+    return handle != null ? handle.inode() : this.inodes.lookup(path);
   }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.abstractions;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.typesafe.config.Config;
+import de.zib.paciofs.PacioFsOptions;
+import de.zib.paciofs.logging.Markers;
+import de.zib.paciofs.multichain.actors.MultiChainActor;
+import de.zib.paciofs.multichain.internal.MultiChainSnapshot;
+import de.zib.paciofs.multichain.rpc.types.Block;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodic snapshots of the cluster and file system state, along with the last block reflected in
+ * them, so a restart only has to consume the blocks since then. Snapshots are written to a
+ * temporary file and moved into place atomically, and the previous snapshot is kept in case the
+ * latest one cannot be read.
+ */
+public class MultiChainSnapshots implements MultiChainActor.Checkpointer {
+  private static final Logger LOG = LoggerFactory.getLogger(MultiChainSnapshots.class);
+
+  // the file is: magic, payload length, payload, CRC32 of all of the above
+  private static final int MAGIC = 0x50434653;
+  private static final int OVERHEAD = Integer.BYTES + Integer.BYTES + Integer.BYTES;
+
+  private final Path path;
+
+  private final Path previousPath;
+
+  // zero if disabled
+  private final Duration interval;
+
+  private final MultiChainCluster cluster;
+
+  private final MultiChainFileSystem fileSystem;
+
+  // checkpoints are taken one block after the other, never concurrently
+  private long lastCheckpoint;
+
+  // the block restored on startup, null if none has been
+  private volatile String restored;
+
+  /**
+   * Creates snapshots of a cluster and a file system.
+   * @param config configuration containing the paciofs options (see application.conf)
+   * @param cluster the cluster to snapshot and restore
+   * @param fileSystem the file system to snapshot and restore
+   */
+  public MultiChainSnapshots(
+      Config config, MultiChainCluster cluster, MultiChainFileSystem fileSystem) {
+    this.path = Paths.get(config.getString(PacioFsOptions.SNAPSHOT_PATH_KEY));
+    this.previousPath = this.path.resolveSibling(this.path.getFileName() + ".previous");
+    this.interval = config.getDuration(PacioFsOptions.SNAPSHOT_INTERVAL_KEY);
+    this.cluster = cluster;
+    this.fileSystem = fileSystem;
+    this.lastCheckpoint = System.nanoTime();
+  }
+
+  /**
+   * Restores the state of the cluster and the file system from the latest snapshot, once on
+   * startup before any blocks are processed.
+   */
+  public void restore() {
+    this.restored = this.restoreLatest();
+  }
+
+  @Override
+  public String restored() {
+    return this.restored;
+  }
+
+  // returns the hash of the last block reflected in the restored state, or null if there is none
+  private String restoreLatest() {
+    for (Path candidate : List.of(this.path, this.previousPath)) {
+      final MultiChainSnapshot snapshot = this.read(candidate);
+      if (snapshot == null) {
+        continue;
+      }
+
+      try {
+        this.cluster.restore(snapshot);
+        this.fileSystem.restore(snapshot);
+      } catch (IOException e) {
+        // whatever has been restored is consumed again from the genesis block, which is harmless
+        LOG.warn("Could not restore snapshot {}: {}", candidate, e.getMessage());
+        LOG.warn(Markers.EXCEPTION, "Could not restore snapshot {}", candidate, e);
+        return null;
+      }
+
+      LOG.info("Restored snapshot {} of block {} (height {})", candidate,
+          snapshot.getBlockHash(), snapshot.getBlockHeight());
+      return snapshot.getBlockHash();
+    }
+
+    return null;
+  }
+
+  @Override
+  public void checkpoint(Block block) {
+    final long now = System.nanoTime();
+    if (this.interval.isZero() || now - this.lastCheckpoint < this.interval.toNanos()) {
+      return;
+    }
+    this.lastCheckpoint = now;
+
+    final MultiChainSnapshot.Builder builder = MultiChainSnapshot.newBuilder()
+                                                   .setBlockHash(block.hash())
+                                                   .setBlockHeight(block.height());
+    this.cluster.snapshot(builder);
+    this.fileSystem.snapshot(builder);
+
+    try {
+      this.write(builder.build());
+    } catch (IOException e) {
+      // the previous snapshot is still in place, try again after the next interval
+      LOG.warn("Could not write snapshot {}: {}", this.path, e.getMessage());
+      LOG.warn(Markers.EXCEPTION, "Could not write snapshot {}", this.path, e);
+      return;
+    }
+
+    LOG.debug("Wrote snapshot {} of block {} (height {}) with {} inode(s) in {} ms", this.path,
+        block.hash(), block.height(), builder.getInodesCount(),
+        Duration.ofNanos(System.nanoTime() - now).toMillis());
+  }
+
+  private void write(MultiChainSnapshot snapshot) throws IOException {
+    final byte[] payload = snapshot.toByteArray();
+    final ByteBuffer buffer = ByteBuffer.allocate(OVERHEAD + payload.length);
+    buffer.putInt(MAGIC).putInt(payload.length).put(payload);
+
+    final CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 0, buffer.position());
+    buffer.putInt((int) crc.getValue());
+    buffer.flip();
+
+    final Path parent = this.path.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+
+    final Path temporary = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      out.force(true);
+    }
+
+    // restore() falls back to the previous snapshot while there is no current one
+    if (Files.exists(this.path)) {
+      Files.move(this.path, this.previousPath, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    Files.move(temporary, this.path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // returns null if there is no valid snapshot at candidate
+  private MultiChainSnapshot read(Path candidate) {
+    final byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(candidate);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      LOG.warn("Could not read snapshot {}: {}", candidate, e.getMessage());
+      return null;
+    }
+
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (buffer.remaining() < OVERHEAD || buffer.getInt() != MAGIC) {
+      LOG.warn("Ignoring snapshot {} without header", candidate);
+      return null;
+    }
+
+    final int length = buffer.getInt();
+    if (length < 0 || length != buffer.remaining() - Integer.BYTES) {
+      LOG.warn("Ignoring truncated snapshot {}", candidate);
+      return null;
+    }
+
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length - Integer.BYTES);
+    if ((int) crc.getValue() != buffer.getInt(bytes.length - Integer.BYTES)) {
+      LOG.warn("Ignoring corrupt snapshot {}", candidate);
+      return null;
+    }
+
+    try {
+      return MultiChainSnapshot.parseFrom(ByteBuffer.wrap(bytes, buffer.position(), length));
+    } catch (InvalidProtocolBufferException e) {
+      LOG.warn("Ignoring unparsable snapshot {}: {}", candidate, e.getMessage());
+      return null;
+    }
+  }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.abstractions;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import de.zib.paciofs.grpc.messages.WriteProof;
+import de.zib.paciofs.grpc.messages.WriteProofLeaf;
+import de.zib.paciofs.logging.Markers;
+import de.zib.paciofs.multichain.MultiChainData;
+import de.zib.paciofs.multichain.MultiChainUtil;
+import de.zib.paciofs.multichain.TransactionJournal;
+import de.zib.paciofs.multichain.TransactionPipeline;
+import de.zib.paciofs.multichain.internal.AttestationManifest;
+import de.zib.paciofs.multichain.internal.MultiChainCommand;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Attests writes in epochs rather than in one MultiChain record each. A write's leaf is journaled
+ * before the write returns, and collected into the Merkle tree of the current epoch. Once an epoch
+ * has enough writes or is old enough, its manifest listing all leaves is stored locally, and only
+ * the tree's root, the manifest's SHA-256 and the files written to are sent to MultiChain, split
+ * into as many records as needed to fit into transactions. Inclusion proofs for the writes of
+ * recent epochs are served from memory, older ones can be derived from the manifests.
+ */
+class WriteAttestations implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteAttestations.class);
+
+  private static final Pattern MANIFEST_NAME = Pattern.compile("epoch-(\\d+)\\.manifest");
+
+  // how long closing waits for an epoch that is being sealed
+  private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+  // by how much the varints for the number of files and the length of the data may grow
+  private static final int RECORD_VARINT_SLACK = 8;
+
+  private static final class Epoch {
+    private final long number;
+
+    // serialized leaves, exactly as hashed
+    private final List<byte[]> leaves;
+
+    private final List<byte[]> leafHashes;
+
+    // of the leaves, completed and cleared once the epoch has been sealed
+    private final List<TransactionJournal.Entry> entries;
+
+    // files written to, whose cached blocks other nodes invalidate, cleared once sent
+    private final Set<Long> inodeIds;
+
+    // set when sealing, before anchored is completed
+    private MerkleTree tree;
+
+    private byte[] manifestSha256;
+
+    // the id of the transaction containing the root, once it has been sent
+    private final CompletableFuture<String> anchored;
+
+    private Epoch(long number) {
+      this.number = number;
+      this.leaves = new ArrayList<>();
+      this.leafHashes = new ArrayList<>();
+      this.entries = new ArrayList<>();
+      this.inodeIds = new LinkedHashSet<>();
+      this.anchored = new CompletableFuture<>();
+    }
+
+    private WriteProof proof(int index, String txId) {
+      return WriteProof.newBuilder()
+          .setEpoch(this.number)
+          .setIndex(index)
+          .setSize(this.leaves.size())
+          .setLeaf(ByteString.copyFrom(this.leaves.get(index)))
+          .addAllSteps(this.tree.proof(index))
+          .setRoot(ByteString.copyFrom(this.tree.root()))
+          .setManifestSha256(ByteString.copyFrom(this.manifestSha256))
+          .setTxId(txId)
+          .build();
+    }
+  }
+
+  // a leaf's position
+  private static final class Ref {
+    private final Epoch epoch;
+
+    private final int index;
+
+    private Ref(Epoch epoch, int index) {
+      this.epoch = epoch;
+      this.index = index;
+    }
+  }
+
+  private final TransactionJournal journal;
+
+  private final TransactionPipeline pipeline;
+
+  private final Path manifests;
+
+  private final int maxWrites;
+
+  private final long maxDelayNanos;
+
+  private final int retainedWrites;
+
+  // seals one epoch after the other, so their records are sent in order
+  private final ScheduledExecutorService sealer;
+
+  // guarded by this
+  private Epoch current;
+
+  // sealed epochs whose proofs are served, oldest first, guarded by this
+  private final Queue<Epoch> retained;
+
+  // number of leaves in the retained epochs, guarded by this
+  private int retainedLeaves;
+
+  // the latest position of each leaf in the current and retained epochs, guarded by this
+  private final Map<ByteString, Ref> index;
+
+  /**
+   * Starts attesting writes, beginning with those left in the journal.
+   * @param journal where leaves are journaled until their epoch has been sealed
+   * @param pipeline where the epochs' roots are sent through
+   * @param manifests directory to store the epochs' manifests in
+   * @param maxWrites number of writes after which an epoch is sealed
+   * @param maxDelay time after its first write after which an epoch is sealed
+   * @param retainedWrites number of writes in the latest sealed epochs whose proofs are served
+   * @throws IOException if the manifest directory cannot be read or created
+   */
+  WriteAttestations(TransactionJournal journal, TransactionPipeline pipeline, Path manifests,
+      int maxWrites, Duration maxDelay, int retainedWrites) throws IOException {
+    this.journal = journal;
+    this.pipeline = pipeline;
+    this.manifests = manifests;
+    this.maxWrites = Math.max(1, maxWrites);
+    this.maxDelayNanos = maxDelay.toNanos();
+    this.retainedWrites = Math.max(0, retainedWrites);
+    this.sealer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "paciofs-write-attestations");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.retained = new ArrayDeque<>();
+    this.index = new HashMap<>();
+
+    Files.createDirectories(manifests);
+    this.current = new Epoch(nextEpoch(manifests));
+
+    // leaves of epochs that were not sealed before a restart
+    for (TransactionJournal.Entry entry : journal.pending()) {
+      try {
+        this.add(WriteProofLeaf.parseFrom(entry.record()), entry.record(), entry);
+      } catch (InvalidProtocolBufferException e) {
+        LOG.warn("Discarding unreadable leaf {} from journal", entry.sequence());
+        journal.complete(List.of(entry));
+      }
+    }
+  }
+
+  /**
+   * Journals the leaf of a write and adds it to the current epoch.
+   * @param leaf what to attest about the write
+   * @return the id of the transaction containing the epoch's root, once it has been sent
+   * @throws IOException if the leaf cannot be journaled
+   */
+  CompletableFuture<String> attest(WriteProofLeaf leaf) throws IOException {
+    final byte[] bytes = leaf.toByteArray();
+    return this.add(leaf, bytes, this.journal.append(bytes));
+  }
+
+  /**
+   * Gets the proof that a write is included in an epoch, once its root has been sent.
+   * @param leaf what has been attested about the write
+   * @return the proof, or null if the write is not in the current or a retained epoch
+   */
+  CompletableFuture<WriteProof> proof(WriteProofLeaf leaf) {
+    final ByteString key = ByteString.copyFrom(MerkleTree.leafHash(leaf.toByteArray()));
+    final Ref ref;
+    synchronized (this) {
+      ref = this.index.get(key);
+    }
+
+    return ref == null ? null
+                       : ref.epoch.anchored.thenApply(txId -> ref.epoch.proof(ref.index, txId));
+  }
+
+  /**
+   * Stops sealing epochs. Leaves that have not been sealed stay in the journal and are attested
+   * after a restart.
+   */
+  @Override
+  public void close() throws IOException {
+    this.sealer.shutdownNow();
+    try {
+      this.sealer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.journal.close();
+  }
+
+  private synchronized CompletableFuture<String> add(
+      WriteProofLeaf leaf, byte[] bytes, TransactionJournal.Entry entry) {
+    final Epoch epoch = this.current;
+    final byte[] leafHash = MerkleTree.leafHash(bytes);
+    this.index.put(ByteString.copyFrom(leafHash), new Ref(epoch, epoch.leaves.size()));
+    epoch.leaves.add(bytes);
+    epoch.leafHashes.add(leafHash);
+    epoch.entries.add(entry);
+    epoch.inodeIds.add(leaf.getInodeId());
+
+    if (epoch.leaves.size() >= this.maxWrites) {
+      this.sealer.execute(() -> this.seal(epoch.number));
+    } else if (epoch.leaves.size() == 1) {
+      this.sealer.schedule(() -> this.seal(epoch.number), this.maxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    return epoch.anchored;
+  }
+
+  private void seal(long number) {
+    final Epoch epoch;
+    synchronized (this) {
+      if (this.current.number != number || this.current.leaves.isEmpty()) {
+        // sealed already
+        return;
+      }
+
+      epoch = this.current;
+      this.current = new Epoch(number + 1);
+      this.retain(epoch);
+    }
+
+    try {
+      epoch.tree = new MerkleTree(epoch.leafHashes);
+      epoch.manifestSha256 = this.writeManifest(epoch);
+
+      // the records are journaled by the pipeline and the manifest is on disk
+      final List<CompletableFuture<String>> txIds = new ArrayList<>();
+      for (MultiChainData data : this.records(epoch)) {
+        txIds.add(this.pipeline.submit(MultiChainCommand.MCC_IO_ATTEST, data));
+      }
+      this.journal.complete(epoch.entries);
+      epoch.entries.clear();
+      epoch.inodeIds.clear();
+
+      // proofs refer to the first record, which all others repeat the root of
+      CompletableFuture.allOf(txIds.toArray(new CompletableFuture<?>[0]))
+          .whenComplete((ignored, failure) -> {
+            if (failure == null) {
+              final String id = txIds.get(0).join();
+              LOG.debug("Attested {} write(s) in epoch {} (root: {}, transaction id: {})",
+                  epoch.leaves.size(), epoch.number, Hex.encodeHexString(epoch.tree.root()), id);
+              epoch.anchored.complete(id);
+            } else {
+              epoch.anchored.completeExceptionally(failure);
+            }
+          });
+    } catch (IOException e) {
+      // the leaves stay in the journal and are attested again after a restart
+      LOG.warn("Could not seal epoch {}: {}", epoch.number, e.getMessage());
+      LOG.warn(Markers.EXCEPTION, "Could not seal epoch {}", epoch.number, e);
+      epoch.anchored.completeExceptionally(e);
+    }
+  }
+
+  // each record holds the epoch's root and as many of the files as fit into a transaction
+  private List<MultiChainData> records(Epoch epoch) {
+    final MultiChainData header = recordHeader(epoch);
+    header.writeInt(0);
+    final int filesPerRecord = Math.max(1,
+        (this.pipeline.maxRecordBytes()
+            - MultiChainUtil.encodeRecord(MultiChainCommand.MCC_IO_ATTEST, header).length
+            - RECORD_VARINT_SLACK)
+            / Long.BYTES);
+
+    final List<MultiChainData> records = new ArrayList<>();
+    final List<Long> inodeIds = new ArrayList<>(epoch.inodeIds);
+    for (int i = 0; i < inodeIds.size(); i += filesPerRecord) {
+      final List<Long> files = inodeIds.subList(i, Math.min(i + filesPerRecord, inodeIds.size()));
+      final MultiChainData data = recordHeader(epoch);
+      data.writeInt(files.size());
+      for (long inodeId : files) {
+        data.writeInodeId(inodeId);
+      }
+      records.add(data);
+    }
+    return records;
+  }
+
+  private static MultiChainData recordHeader(Epoch epoch) {
+    final MultiChainData data = new MultiChainData(MultiChainData.VERSION_2);
+    data.writeLong(epoch.number);
+    data.writeByteArray(epoch.tree.root());
+    data.writeInt(epoch.leaves.size());
+    data.writeByteArray(epoch.manifestSha256);
+    return data;
+  }
+
+  // serves the proofs of a sealed epoch, and stops serving those of the oldest ones if necessary
+  private void retain(Epoch epoch) {
+    this.retained.add(epoch);
+    this.retainedLeaves += epoch.leaves.size();
+    while (this.retainedLeaves > this.retainedWrites) {
+      final Epoch evicted = this.retained.poll();
+      this.retainedLeaves -= evicted.leaves.size();
+      for (byte[] leafHash : evicted.leafHashes) {
+        final ByteString key = ByteString.copyFrom(leafHash);
+        final Ref ref = this.index.get(key);
+        if (ref != null && ref.epoch == evicted) {
+          this.index.remove(key);
+        }
+      }
+    }
+  }
+
+  // returns the manifest's SHA-256
+  private byte[] writeManifest(Epoch epoch) throws IOException {
+    final AttestationManifest.Builder manifest = AttestationManifest.newBuilder()
+        .setEpoch(epoch.number)
+        .setRoot(ByteString.copyFrom(epoch.tree.root()));
+    for (byte[] leaf : epoch.leaves) {
+      manifest.addLeaves(ByteString.copyFrom(leaf));
+    }
+    final byte[] bytes = manifest.build().toByteArray();
+
+    final Path path = this.manifests.resolve("epoch-" + epoch.number + ".manifest");
+    final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      out.force(true);
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    return DigestUtils.sha256(bytes);
+  }
+
+  // epochs are numbered on from the latest manifest
+  private static long nextEpoch(Path manifests) throws IOException {
+    long next = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(manifests, "epoch-*.manifest")) {
+      for (Path file : files) {
+        final Matcher matcher = MANIFEST_NAME.matcher(file.getFileName().toString());
+        if (matcher.matches()) {
+          next = Math.max(next, Long.parseLong(matcher.group(1)) + 1);
+        }
+      }
+    }
+    return next;
+  }
+}
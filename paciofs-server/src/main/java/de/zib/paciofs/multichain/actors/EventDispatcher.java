@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.actors;
+
+import de.zib.paciofs.multichain.MultiChainEvent;
+import de.zib.paciofs.multichain.MultiChainUtil;
+import de.zib.paciofs.multichain.internal.MultiChainCommand;
+import de.zib.paciofs.multichain.rpc.types.RawTransaction;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Routes the events decoded from raw transactions to the consumers subscribed to their commands.
+ * Consumers receive their events one after the other in chain order, from one thread at a time:
+ * while catching up with new blocks, the catch-up stream dispatches on its own threads, otherwise
+ * the actor dispatches the transactions of the mempool.
+ */
+final class EventDispatcher {
+  private final MultiChainActor.EventConsumer[] consumers;
+
+  private final Set<MultiChainCommand> commands;
+
+  private final Map<MultiChainCommand, List<MultiChainActor.EventConsumer>> subscriptions;
+
+  EventDispatcher(MultiChainActor.EventConsumer... consumers) {
+    this.consumers = consumers;
+    this.commands = EnumSet.noneOf(MultiChainCommand.class);
+    this.subscriptions = new EnumMap<>(MultiChainCommand.class);
+
+    for (MultiChainActor.EventConsumer consumer : consumers) {
+      for (MultiChainCommand command : consumer.commands()) {
+        this.commands.add(command);
+        this.subscriptions.computeIfAbsent(command, c -> new ArrayList<>()).add(consumer);
+      }
+    }
+  }
+
+  /**
+   * Decodes the records of raw transactions that anyone is subscribed to. This does not touch the
+   * consumers, so the catch-up stream decodes batches ahead of time while it dispatches earlier
+   * ones.
+   * @param rawTransactions the transactions, in chain order
+   * @return the events, in chain order
+   */
+  List<MultiChainEvent> decode(List<RawTransaction> rawTransactions) {
+    final List<MultiChainEvent> events = new ArrayList<>();
+    for (RawTransaction rawTransaction : rawTransactions) {
+      events.addAll(MultiChainUtil.decodeEvents(rawTransaction, this.commands));
+    }
+    return events;
+  }
+
+  /**
+   * Passes events to their consumers.
+   * @param events the events, in chain order
+   * @param undoLog where the consumers record the inverses of their mutations
+   */
+  void dispatch(List<MultiChainEvent> events, UndoLog undoLog) {
+    for (MultiChainEvent event : events) {
+      final List<MultiChainActor.EventConsumer> subscribers =
+          this.subscriptions.get(event.command());
+      if (subscribers != null) {
+        for (MultiChainActor.EventConsumer consumer : subscribers) {
+          consumer.consumeEvent(event, undoLog);
+        }
+      }
+    }
+  }
+
+  /**
+   * Passes events to their consumers for removal, in reverse order.
+   * @param events the events, in chain order
+   */
+  void undispatch(List<MultiChainEvent> events) {
+    for (int i = events.size() - 1; i >= 0; --i) {
+      this.undispatch(events.get(i));
+    }
+  }
+
+  private void undispatch(MultiChainEvent event) {
+    for (MultiChainActor.EventConsumer consumer
+        : this.subscriptions.getOrDefault(event.command(), List.of())) {
+      consumer.unconsumeEvent(event);
+    }
+  }
+
+  // signals to all consumers that there are no more events for now
+  void done() {
+    for (MultiChainActor.EventConsumer consumer : this.consumers) {
+      consumer.doneProcessingEvents();
+    }
+  }
+}
@@ -8,31 +8,64 @@
 package de.zib.paciofs.multichain.actors;
 
 import akka.actor.AbstractActorWithTimers;
+import akka.actor.ActorRef;
 import akka.actor.Props;
 import akka.japi.pf.ReceiveBuilder;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import de.zib.paciofs.logging.Markers;
+import de.zib.paciofs.multichain.MultiChainEvent;
+import de.zib.paciofs.multichain.OwnTransactions;
+import de.zib.paciofs.multichain.UtxoReplenisher;
+import de.zib.paciofs.multichain.internal.MultiChainCommand;
+import de.zib.paciofs.multichain.rpc.MultiChainAsyncClient;
 import de.zib.paciofs.multichain.rpc.MultiChainClient;
 import de.zib.paciofs.multichain.rpc.types.Block;
+import de.zib.paciofs.multichain.rpc.types.Mempool;
+import de.zib.paciofs.multichain.rpc.types.MultiChainException;
 import de.zib.paciofs.multichain.rpc.types.RawTransaction;
-import de.zib.paciofs.multichain.rpc.types.TransactionInput;
-import de.zib.paciofs.multichain.rpc.types.TransactionInputList;
-import de.zib.paciofs.multichain.rpc.types.TransactionOutput;
-import de.zib.paciofs.multichain.rpc.types.TransactionOutputList;
-import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutput;
-import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutputList;
-import java.math.BigDecimal;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class MultiChainActor extends AbstractActorWithTimers {
-  public interface RawTransactionConsumer {
-    void consumeRawTransaction(RawTransaction rawTransaction);
+  public interface EventConsumer {
+    // only events with these commands are dispatched to this consumer
+    Set<MultiChainCommand> commands();
 
-    void doneProcessingRawTransactions();
+    // records the inverse of every mutation in undoLog
+    void consumeEvent(MultiChainEvent event, UndoLog undoLog);
 
-    void unconsumeRawTransaction(RawTransaction rawTransaction);
+    void doneProcessingEvents();
+
+    void unconsumeEvent(MultiChainEvent event);
+  }
+
+  public interface Checkpointer {
+    /**
+     * Gets the last block reflected in the consumers' state, which has been restored from the
+     * latest checkpoint once before the actor is created, so restarts of the actor do not restore
+     * it on top of newer state.
+     * @return the hash of the block, or null if nothing has been restored
+     */
+    String restored();
+
+    /**
+     * Called after all transactions of a block have been consumed, in chain order.
+     * @param block the block processed last
+     */
+    void checkpoint(Block block);
   }
 
   private static final class MultiChainEnsureUtxos {
@@ -43,61 +76,198 @@ public class MultiChainActor extends AbstractActorWithTimers {
     MultiChainQuery() {}
   }
 
-  private static final int ENSURE_UTXOS_INTERVAL = 500;
+  private static final class MultiChainPollMempool {
+    MultiChainPollMempool() {}
+  }
+
+  // the best chain may have changed since the block hashes were fetched, so new blocks are only
+  // processed as long as they link up, the next query takes care of the fork otherwise
+  private static final class ChainLink {
+    private String lastHash;
+
+    ChainLink(String lastHash) {
+      this.lastHash = lastHash;
+    }
+
+    boolean linksUp(TransactionBatch batch) {
+      if (batch.first()) {
+        if (!batch.block.previousBlockHash().equals(this.lastHash)) {
+          return false;
+        }
+        this.lastHash = batch.block.hash();
+      }
+      return true;
+    }
+  }
+
+  private static final class MultiChainBlockProcessed {
+    private final UndoLog undoLog;
+
+    MultiChainBlockProcessed(UndoLog undoLog) {
+      this.undoLog = undoLog;
+    }
+  }
+
+  private static final class MultiChainQueryDone {
+    // null if catching up succeeded
+    private final Throwable failure;
+
+    MultiChainQueryDone(Throwable failure) {
+      this.failure = failure;
+    }
+  }
+
+  // a block's transactions, fetched in several batches for large blocks
+  private static final class TransactionBatch {
+    private final Block block;
+
+    private final int from;
+
+    private final int to;
+
+    // null until fetched
+    private final List<MultiChainEvent> events;
+
+    // shared by all batches of the block
+    private final UndoLog undoLog;
+
+    TransactionBatch(
+        Block block, int from, int to, List<MultiChainEvent> events, UndoLog undoLog) {
+      this.block = block;
+      this.from = from;
+      this.to = to;
+      this.events = events;
+      this.undoLog = undoLog;
+    }
+
+    List<String> ids() {
+      return this.block.tx().subList(this.from, this.to);
+    }
+
+    TransactionBatch withEvents(List<MultiChainEvent> decoded) {
+      return new TransactionBatch(this.block, this.from, this.to, decoded, this.undoLog);
+    }
+
+    boolean first() {
+      return this.from == 0;
+    }
+
+    boolean last() {
+      return this.to == this.block.tx().size();
+    }
+  }
 
   private static final int QUERY_INTERVAL = 3000;
 
-  private static final int MIN_UTXOS = 2000;
+  // maximum number of requests sent to MultiChain in one batch
+  private static final int RPC_BATCH_SIZE = 256;
 
-  private static final int UTXO_SPLIT_FACTOR = 32;
+  // maximum number of batches in flight per stage while catching up
+  private static final int PREFETCH_PARALLELISM = 4;
 
-  private static final BigDecimal MIN_SPLITTABLE_AMOUNT =
-      new BigDecimal(UTXO_SPLIT_FACTOR / 100_000_000.0);
+  // forks deeper than this are rolled back by fetching the orphaned transactions again
+  private static final int MAX_UNDO_LOGS = 100;
 
   private static final Logger LOG = LoggerFactory.getLogger(MultiChainActor.class);
 
-  // keep track of the most recent block in the best chain
+  // keep track of the most recent block in the best chain, null until the first query fetched it
   private Block multiChainBestBlock;
 
   // our primary MultiChain instance that we interact with
   private final MultiChainClient multiChainClient;
 
+  // the same instance, for prefetching blocks and transactions while catching up
+  private final MultiChainAsyncClient multiChainAsyncClient;
+
+  private final Materializer materializer;
+
+  // keeps enough UTXOs for everyone who sends transactions
+  private final UtxoReplenisher utxoReplenisher;
+
+  // transactions sent and applied by this node, which do not need to be fetched
+  private final OwnTransactions ownTransactions;
+
   // key for timer we use to schedule the creation of sufficiently many UTXOs
   private final Object multiChainEnsureUtxosTimerKey;
 
   // key for the timer we use to schedule querying of the chain
   private final Object multiChainQueryTimerKey;
 
-  // array of recipients of new raw transactions
-  private final RawTransactionConsumer[] rawTransactionConsumers;
+  // key for the timer we use to schedule polling of the mempool
+  private final Object multiChainPollMempoolTimerKey;
+
+  // zero if the mempool is not polled
+  private final Duration mempoolInterval;
+
+  // transactions from the mempool whose events have been applied before they are in a block
+  private final PendingTransactions pending;
+
+  // blocks are being processed, which the mempool must not interfere with
+  private boolean catchingUp;
+
+  // decodes new raw transactions and passes them to the subscribed consumers
+  private final EventDispatcher eventDispatcher;
+
+  // saves the state of the consumers every now and then
+  private final Checkpointer checkpointer;
 
-  private final String[] addresses;
+  // of the most recently processed blocks, oldest first
+  private final Deque<UndoLog> undoLogs;
 
   /**
    * Construct a MultiChain actor, which listens for other actors and connects them to the local
    * MultiChain instance. It periodically queries MultiChain for new blocks.
    * @param multiChainClient the MultiChain client to use
+   * @param multiChainAsyncClient the non-blocking MultiChain client to catch up with
+   * @param utxoReplenisher reconciles the pool of UTXOs with the wallet and replenishes it
+   *     periodically
+   * @param ownTransactions the transactions sent by this node, which are skipped in blocks
+   * @param mempoolInterval how often to apply new transactions from the mempool, zero to only
+   *     process blocks
+   * @param checkpointer tells where the restored state of the consumers ends, and checkpoints it
+   *     after blocks
    * @param consumers the list of consumers to notify on new blocks
    */
-  public MultiChainActor(MultiChainClient multiChainClient, RawTransactionConsumer... consumers) {
+  public MultiChainActor(MultiChainClient multiChainClient,
+      MultiChainAsyncClient multiChainAsyncClient, UtxoReplenisher utxoReplenisher,
+      OwnTransactions ownTransactions, Duration mempoolInterval, Checkpointer checkpointer,
+      EventConsumer... consumers) {
     this.multiChainClient = multiChainClient;
+    this.multiChainAsyncClient = multiChainAsyncClient;
+    this.materializer = ActorMaterializer.create(this.getContext());
+    this.utxoReplenisher = utxoReplenisher;
+    this.ownTransactions = ownTransactions;
     this.multiChainEnsureUtxosTimerKey = new Object();
     this.multiChainQueryTimerKey = new Object();
-    this.rawTransactionConsumers = consumers;
-
-    // we need a new address for each part of a split UTXO
-    this.addresses = new String[UTXO_SPLIT_FACTOR];
-    for (int i = 0; i < this.addresses.length; ++i) {
-      this.addresses[i] = this.multiChainClient.getNewAddress();
-    }
+    this.multiChainPollMempoolTimerKey = new Object();
+    this.mempoolInterval = mempoolInterval;
+    this.pending = new PendingTransactions();
+    this.eventDispatcher = new EventDispatcher(consumers);
+    this.checkpointer = checkpointer;
+    this.undoLogs = new ArrayDeque<>();
+  }
 
-    // best block at initialization is the genesis block
-    this.multiChainBestBlock =
-        this.multiChainClient.getBlock(this.multiChainClient.getBlockHash(0));
+  public static Props props(MultiChainClient client, MultiChainAsyncClient asyncClient,
+      UtxoReplenisher utxoReplenisher, OwnTransactions ownTransactions, Duration mempoolInterval,
+      Checkpointer checkpointer, EventConsumer... consumers) {
+    return Props.create(MultiChainActor.class, ()
+        -> new MultiChainActor(client, asyncClient, utxoReplenisher, ownTransactions,
+            mempoolInterval, checkpointer, consumers));
   }
 
-  public static Props props(MultiChainClient client, RawTransactionConsumer... consumers) {
-    return Props.create(MultiChainActor.class, () -> new MultiChainActor(client, consumers));
+  private Block initialBlock(String restoredHash) {
+    if (restoredHash != null) {
+      try {
+        // if the block is no longer part of the best chain, the first query takes care of the fork
+        return this.multiChainClient.getBlock(restoredHash);
+      } catch (MultiChainException e) {
+        // consuming blocks again is harmless
+        LOG.warn("Could not get restored block {}, starting from the genesis block: {}",
+            restoredHash, e.getMessage());
+      }
+    }
+
+    return this.multiChainClient.getBlock(this.multiChainClient.getBlockHash(0));
   }
 
   @Override
@@ -111,12 +281,16 @@ public class MultiChainActor extends AbstractActorWithTimers {
     // kick off constant querying of the blockchain
     this.timers().startSingleTimer(
         this.multiChainQueryTimerKey, new MultiChainQuery(), Duration.ZERO);
+
+    // and of the mempool, which waits for the chain to be caught up with
+    this.schedulePollMempool(Duration.ZERO);
   }
 
   @Override
   public void postStop() throws Exception {
     this.timers().cancel(this.multiChainEnsureUtxosTimerKey);
     this.timers().cancel(this.multiChainQueryTimerKey);
+    this.timers().cancel(this.multiChainPollMempoolTimerKey);
 
     super.postStop();
   }
@@ -130,61 +304,54 @@ public class MultiChainActor extends AbstractActorWithTimers {
 
     // query the blockchain for new blocks and transactions
     builder.match(MultiChainQuery.class, this::multiChainQuery);
+    builder.match(MultiChainBlockProcessed.class, this::multiChainBlockProcessed);
+    builder.match(MultiChainQueryDone.class, this::multiChainQueryDone);
+
+    // apply transactions before they are in a block
+    builder.match(MultiChainPollMempool.class, this::multiChainPollMempool);
 
     return builder.build();
   }
 
   private void multiChainEnsureUtxos(MultiChainEnsureUtxos ensureUtxos) {
-    final BigDecimal utxoDividend = new BigDecimal(UTXO_SPLIT_FACTOR);
-    final BigDecimal fee = new BigDecimal(UTXO_SPLIT_FACTOR / 100_000_000.0);
-
-    final UnspentTransactionOutputList utxos = this.multiChainClient.listUnspent(0);
-    LOG.trace("Got {} UTXOs", utxos.size());
-    if (utxos.size() > 0 && utxos.size() < MIN_UTXOS) {
-      for (UnspentTransactionOutput utxo : utxos) {
-        if (utxo.spendable() && utxo.amount().compareTo(MIN_SPLITTABLE_AMOUNT) >= 0) {
-          final TransactionInputList inputs = new TransactionInputList();
-          inputs.add(
-              new TransactionInput(utxo.txId(), utxo.vOut(), utxo.scriptPubKey(), utxo.amount()));
-
-          BigDecimal remainingAmount = utxo.amount();
-          final BigDecimal dividedAmount = remainingAmount.divide(utxoDividend);
-
-          final TransactionOutputList outputs = new TransactionOutputList();
-          for (int i = 1; i < this.addresses.length; ++i) {
-            outputs.add(new TransactionOutput(this.addresses[i], dividedAmount, null));
-            remainingAmount = remainingAmount.subtract(dividedAmount);
-          }
-
-          // use the first address for remaining amount and fee
-          remainingAmount = remainingAmount.subtract(fee);
-          outputs.add(new TransactionOutput(this.addresses[0], remainingAmount, null));
-
-          LOG.trace("Splitting {}/{} ({}) into {} * {} and {}", utxo.txId(), utxo.vOut(),
-              utxo.amount(), UTXO_SPLIT_FACTOR - 1, dividedAmount, remainingAmount);
-
-          final String rawTransactionHex =
-              this.multiChainClient.createRawTransaction(inputs, outputs);
-          final String signedRawTransactionHex =
-              this.multiChainClient.signRawTransactionWithWallet(rawTransactionHex, inputs);
-          this.multiChainClient.sendRawTransaction(signedRawTransactionHex);
-        }
-      }
+    Duration delay;
+    try {
+      // sooner while UTXOs are being created
+      delay = this.utxoReplenisher.replenish();
+    } catch (MultiChainException e) {
+      LOG.warn("Could not replenish UTXOs: {}", e.getMessage());
+      LOG.warn(Markers.EXCEPTION, "Could not replenish UTXOs", e);
+      delay = Duration.ofMillis(QUERY_INTERVAL);
+    }
+    this.timers().startSingleTimer(this.multiChainEnsureUtxosTimerKey, ensureUtxos, delay);
+  }
 
+  // failures of MultiChain are retried with the next query, restarting the actor would lose the
+  // undo logs of everything applied so far
+  private void multiChainQuery(MultiChainQuery query) {
+    try {
+      this.queryChain();
+    } catch (MultiChainException e) {
+      // blocks processed so far are kept, the next query continues after the last of them
+      LOG.warn("Could not query chain: {}", e.getMessage());
+      LOG.warn(Markers.EXCEPTION, "Could not query chain", e);
       this.timers().startSingleTimer(
-          this.multiChainEnsureUtxosTimerKey, ensureUtxos, Duration.ZERO);
-    } else {
-      this.timers().startSingleTimer(this.multiChainEnsureUtxosTimerKey, ensureUtxos,
-          Duration.ofMillis(ENSURE_UTXOS_INTERVAL));
+          this.multiChainQueryTimerKey, new MultiChainQuery(), Duration.ofMillis(QUERY_INTERVAL));
     }
   }
 
-  private void multiChainQuery(MultiChainQuery query) {
+  private void queryChain() {
     // the chain should be queried for new transactions
     LOG.trace("Querying chain");
 
+    if (this.multiChainBestBlock == null) {
+      // the last checkpointed block, or the genesis block
+      this.multiChainBestBlock = this.initialBlock(this.checkpointer.restored());
+    }
+
     // get the most recent block of the current best chain
-    Block bestBlock = this.multiChainClient.getBlock(this.multiChainClient.getBestBlockHash());
+    final Block bestBlock =
+        this.multiChainClient.getBlock(this.multiChainClient.getBestBlockHash());
 
     // sanity check
     if (bestBlock.height() < this.multiChainBestBlock.height()) {
@@ -198,66 +365,268 @@ public class MultiChainActor extends AbstractActorWithTimers {
       LOG.trace("Updating from block {} to {} (height {} to {})", this.multiChainBestBlock.hash(),
           bestBlock.hash(), this.multiChainBestBlock.height(), bestBlock.height());
 
-      // build the branch of the best chain down to the last block we processed
-      final Deque<Block> branch = new LinkedList<>();
-
-      // the new best block must be processed anyway, successor or sibling
-      branch.addFirst(bestBlock);
+      // blocks are processed on top of confirmed state only, their transactions are usually among
+      // the pending ones, whose events are reused
+      this.pending.rollBack();
 
-      // add all new blocks until they would be direct successors of the last best block
-      while (branch.getFirst().height() > this.multiChainBestBlock.height() + 1) {
-        branch.addFirst(this.multiChainClient.getBlock(branch.getFirst().previousBlockHash()));
+      // if the last block we processed is no longer part of the best chain, a fork happened
+      while (!this.multiChainBestBlock.hash().equals(
+          this.multiChainClient.getBlockHash(this.multiChainBestBlock.height()))) {
+        // remove previously processed blocks
+        this.multiChainBestBlock = this.unprocess(this.multiChainBestBlock);
       }
 
-      // it the best chain's first block's predecessor's hash is not the best block we have last
-      // processed, then a fork happened
-      while (!branch.getFirst().previousBlockHash().equals(this.multiChainBestBlock.hash())) {
-        // remove previously processed blocks
-        LOG.trace("Unprocessing block {}", this.multiChainBestBlock.hash());
+      // now process all new blocks, the next query is scheduled once they are done
+      this.catchUp(bestBlock);
+      return;
+    }
 
-        for (String tx : this.multiChainBestBlock.tx()) {
-          final RawTransaction rawTransaction = this.multiChainClient.getRawTransaction(tx);
-          for (RawTransactionConsumer consumer : this.rawTransactionConsumers) {
-            consumer.unconsumeRawTransaction(rawTransaction);
-          }
-        }
+    this.scheduleQuery(bestBlock);
+  }
 
-        // keep adding to the best chain while going back
-        branch.addFirst(this.multiChainClient.getBlock(branch.getFirst().previousBlockHash()));
-        this.multiChainBestBlock =
-            this.multiChainClient.getBlock(this.multiChainBestBlock.previousBlockHash());
-      }
+  // rolls back a block and returns its predecessor
+  private Block unprocess(Block block) {
+    final UndoLog undoLog = this.undoLogs.peekLast();
+    if (undoLog != null && undoLog.block().hash().equals(block.hash())) {
+      LOG.trace("Rolling back block {}", block.hash());
+      this.undoLogs.removeLast();
+      undoLog.rollBack();
+    } else {
+      // the block was processed before a restart, or the fork is deeper than the undo logs
+      LOG.trace("Unprocessing block {}", block.hash());
+      this.undoLogs.clear();
+      this.eventDispatcher.undispatch(
+          this.eventDispatcher.decode(this.getRawTransactions(block)));
+    }
 
-      // now process all new blocks
-      while (branch.size() > 0) {
-        this.multiChainBestBlock = branch.pollFirst();
-        LOG.trace("Processing block {} ({}) with {} tx", this.multiChainBestBlock.hash(),
-            this.multiChainBestBlock.height(), this.multiChainBestBlock.tx().size());
-
-        for (String txId : this.multiChainBestBlock.tx()) {
-          final RawTransaction rawTransaction = this.multiChainClient.getRawTransaction(txId);
-          for (RawTransactionConsumer consumer : this.rawTransactionConsumers) {
-            consumer.consumeRawTransaction(rawTransaction);
-          }
-        }
+    final UndoLog previous = this.undoLogs.peekLast();
+    if (previous != null && previous.block().hash().equals(block.previousBlockHash())) {
+      return previous.block();
+    }
+    return this.multiChainClient.getBlock(block.previousBlockHash());
+  }
+
+  // fetches the blocks up to bestBlock by height in batches, and their transactions, several
+  // batches at a time, but passes the transactions to the consumers strictly in chain order
+  private void catchUp(Block bestBlock) {
+    final ActorRef self = this.getSelf();
+    final ChainLink chainLink = new ChainLink(this.multiChainBestBlock.hash());
+    this.catchingUp = true;
+
+    Source.range(this.multiChainBestBlock.height() + 1, bestBlock.height())
+        .grouped(RPC_BATCH_SIZE)
+        .mapAsync(PREFETCH_PARALLELISM, this.multiChainAsyncClient::getBlockHashes)
+        .mapAsync(PREFETCH_PARALLELISM, this.multiChainAsyncClient::getBlocks)
+        .mapConcat(MultiChainActor::transactionBatches)
+        .mapAsync(PREFETCH_PARALLELISM, this::fetch)
+        .takeWhile(chainLink::linksUp)
+        .runWith(Sink.foreach(batch -> this.process(batch, self)), this.materializer)
+        .whenComplete(
+            (done, failure) -> self.tell(new MultiChainQueryDone(failure), ActorRef.noSender()));
+  }
+
+  private CompletionStage<TransactionBatch> fetch(TransactionBatch batch) {
+    // our own transactions have been applied when they were sent, and the events of transactions
+    // from the mempool have been decoded already
+    final List<String> ids = new ArrayList<>(batch.ids().size());
+    final Map<String, List<MultiChainEvent>> decoded = new HashMap<>();
+    for (String id : batch.ids()) {
+      final List<MultiChainEvent> events =
+          this.ownTransactions.confirm(id) ? List.of() : this.pending.take(id);
+      if (events != null) {
+        decoded.put(id, events);
+      } else {
+        ids.add(id);
       }
     }
 
+    if (ids.size() < batch.ids().size()) {
+      LOG.trace("Skipping {} own or pending tx in block {}", batch.ids().size() - ids.size(),
+          batch.block.hash());
+    }
+    if (ids.isEmpty()) {
+      return CompletableFuture.completedFuture(
+          batch.withEvents(inOrder(batch.ids(), decoded, List.of())));
+    }
+
+    // decoding ahead of time takes it off the ordered part of the stream
+    return this.multiChainAsyncClient.getRawTransactions(ids)
+        .thenApply(this.eventDispatcher::decode)
+        .thenApply(events -> batch.withEvents(inOrder(batch.ids(), decoded, events)));
+  }
+
+  // runs on the threads of the catch-up stream rather than the actor's, one batch after the other,
+  // the actor does not dispatch the mempool meanwhile because catchingUp is set
+  private void process(TransactionBatch batch, ActorRef self) {
+    if (batch.first()) {
+      LOG.trace("Processing block {} ({}) with {} tx", batch.block.hash(), batch.block.height(),
+          batch.block.tx().size());
+    }
+
+    this.eventDispatcher.dispatch(batch.events, batch.undoLog);
+
+    if (batch.last()) {
+      this.checkpointer.checkpoint(batch.block);
+      self.tell(new MultiChainBlockProcessed(batch.undoLog), ActorRef.noSender());
+    }
+  }
+
+  private void multiChainBlockProcessed(MultiChainBlockProcessed processed) {
+    this.multiChainBestBlock = processed.undoLog.block();
+
+    this.undoLogs.addLast(processed.undoLog);
+    if (this.undoLogs.size() > MAX_UNDO_LOGS) {
+      this.undoLogs.removeFirst();
+    }
+  }
+
+  private void multiChainQueryDone(MultiChainQueryDone done) {
+    this.catchingUp = false;
+    this.schedulePollMempool(Duration.ZERO);
+
+    if (done.failure != null) {
+      // continue from the last block processed completely after the usual interval
+      LOG.warn(Markers.EXCEPTION, "Could not process new blocks", done.failure);
+      this.timers().startSingleTimer(
+          this.multiChainQueryTimerKey, new MultiChainQuery(), Duration.ofMillis(QUERY_INTERVAL));
+      return;
+    }
+
     // get the best block again to see if it has changed in the meantime
-    bestBlock = this.multiChainClient.getBlock(this.multiChainClient.getBestBlockHash());
+    this.timers().startSingleTimer(
+        this.multiChainQueryTimerKey, new MultiChainQuery(), Duration.ZERO);
+  }
 
+  private void scheduleQuery(Block bestBlock) {
     // schedule the next invocation after some time if the best block has not changed, otherwise
     // immediately
     if (bestBlock.hash().equals(this.multiChainBestBlock.hash())) {
       this.timers().startSingleTimer(
-          this.multiChainQueryTimerKey, query, Duration.ofMillis(QUERY_INTERVAL));
+          this.multiChainQueryTimerKey, new MultiChainQuery(), Duration.ofMillis(QUERY_INTERVAL));
 
       // signal to the consumers that we are done for now
-      for (RawTransactionConsumer consumer : this.rawTransactionConsumers) {
-        consumer.doneProcessingRawTransactions();
-      }
+      this.eventDispatcher.done();
     } else {
-      this.timers().startSingleTimer(this.multiChainQueryTimerKey, query, Duration.ZERO);
+      this.timers().startSingleTimer(
+          this.multiChainQueryTimerKey, new MultiChainQuery(), Duration.ZERO);
+    }
+  }
+
+  private void multiChainPollMempool(MultiChainPollMempool poll) {
+    // restarted once the blocks are processed
+    if (this.catchingUp) {
+      return;
+    }
+
+    try {
+      this.applyMempool();
+    } catch (MultiChainException e) {
+      // the next poll tries again, nothing has been applied in the meantime
+      LOG.warn("Could not apply transactions from the mempool: {}", e.getMessage());
+      LOG.warn(Markers.EXCEPTION, "Could not apply transactions from the mempool", e);
+    }
+
+    this.schedulePollMempool(this.mempoolInterval);
+  }
+
+  // applies the events of new transactions in the mempool speculatively, and rolls back all
+  // pending transactions if one of them has been dropped
+  private void applyMempool() {
+    if (this.multiChainBestBlock == null) {
+      // the chain has not been queried yet
+      return;
+    }
+
+    final Mempool mempool = this.multiChainClient.getRawMempool();
+
+    // transactions of blocks we have not processed yet are missing from the mempool, the next
+    // query rolls back the pending transactions anyway
+    if (!this.multiChainClient.getBestBlockHash().equals(this.multiChainBestBlock.hash())) {
+      return;
+    }
+
+    if (!this.pending.retain(mempool.keySet())) {
+      // later transactions may depend on the dropped ones, the rest is applied again right away
+      LOG.debug("Rolling back {} pending tx, some were dropped", this.pending.size());
+      this.pending.rollBack();
+    }
+
+    // parents before children, like in a block
+    final List<String> ids = new ArrayList<>();
+    final List<String> missing = new ArrayList<>();
+    final Map<String, List<MultiChainEvent>> decoded = new HashMap<>();
+    for (String id : mempool.inDependencyOrder()) {
+      if (this.pending.contains(id) || this.ownTransactions.contains(id)) {
+        continue;
+      }
+
+      ids.add(id);
+      final List<MultiChainEvent> events = this.pending.take(id);
+      if (events != null) {
+        decoded.put(id, events);
+      } else {
+        missing.add(id);
+      }
+    }
+
+    if (ids.isEmpty()) {
+      return;
+    }
+
+    final List<MultiChainEvent> fetched = new ArrayList<>();
+    for (int i = 0; i < missing.size(); i += RPC_BATCH_SIZE) {
+      fetched.addAll(this.eventDispatcher.decode(this.multiChainClient.getRawTransactions(
+          missing.subList(i, Math.min(i + RPC_BATCH_SIZE, missing.size())))));
+    }
+
+    LOG.trace("Applying {} tx from the mempool ({} fetched)", ids.size(), missing.size());
+    this.eventDispatcher.dispatch(inOrder(ids, decoded, fetched), this.pending.undoLog());
+    for (String id : ids) {
+      this.pending.add(id, decoded.getOrDefault(id, List.of()));
+    }
+  }
+
+  private void schedulePollMempool(Duration delay) {
+    if (!this.mempoolInterval.isZero()) {
+      this.timers().startSingleTimer(
+          this.multiChainPollMempoolTimerKey, new MultiChainPollMempool(), delay);
+    }
+  }
+
+  // the events of the transactions in the given order, adds the fetched events to decoded
+  private static List<MultiChainEvent> inOrder(List<String> ids,
+      Map<String, List<MultiChainEvent>> decoded, List<MultiChainEvent> fetched) {
+    for (MultiChainEvent event : fetched) {
+      decoded.computeIfAbsent(event.txId(), id -> new ArrayList<>()).add(event);
+    }
+
+    final List<MultiChainEvent> events = new ArrayList<>();
+    for (String id : ids) {
+      events.addAll(decoded.getOrDefault(id, List.of()));
+    }
+    return events;
+  }
+
+  private static List<TransactionBatch> transactionBatches(List<Block> blocks) {
+    final List<TransactionBatch> batches = new ArrayList<>();
+    for (Block block : blocks) {
+      final UndoLog undoLog = new UndoLog(block);
+      int from = 0;
+      do {
+        final int to = Math.min(from + RPC_BATCH_SIZE, block.tx().size());
+        batches.add(new TransactionBatch(block, from, to, null, undoLog));
+        from = to;
+      } while (from < block.tx().size());
+    }
+    return batches;
+  }
+
+  private List<RawTransaction> getRawTransactions(Block block) {
+    final List<RawTransaction> rawTransactions = new ArrayList<>(block.tx().size());
+    for (int i = 0; i < block.tx().size(); i += RPC_BATCH_SIZE) {
+      rawTransactions.addAll(this.multiChainClient.getRawTransactions(
+          block.tx().subList(i, Math.min(i + RPC_BATCH_SIZE, block.tx().size()))));
     }
+    return rawTransactions;
   }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.actors;
+
+import de.zib.paciofs.multichain.MultiChainEvent;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The transactions from the mempool whose events have been applied speculatively, before they are
+ * in a block, and the events of those that have been rolled back again. All of them share one undo
+ * log, so they are only ever rolled back together. When a rolled back transaction appears in a
+ * block, or in the mempool again, its events do not need to be fetched and decoded another time.
+ */
+final class PendingTransactions {
+  // applied, in the order they were applied, guarded by this
+  private final Map<String, List<MultiChainEvent>> applied;
+
+  // rolled back, guarded by this
+  private final Map<String, List<MultiChainEvent>> rolledBack;
+
+  private final UndoLog undoLog;
+
+  PendingTransactions() {
+    this.applied = new LinkedHashMap<>();
+    this.rolledBack = new LinkedHashMap<>();
+    this.undoLog = new UndoLog();
+  }
+
+  // where the consumers record the inverses of the mutations for applied transactions
+  UndoLog undoLog() {
+    return this.undoLog;
+  }
+
+  synchronized boolean contains(String txId) {
+    return this.applied.containsKey(txId);
+  }
+
+  // after the transaction's events have been dispatched
+  synchronized void add(String txId, List<MultiChainEvent> events) {
+    this.applied.put(txId, events);
+  }
+
+  synchronized int size() {
+    return this.applied.size();
+  }
+
+  // reverts all applied transactions, newest first, and keeps their events
+  synchronized void rollBack() {
+    if (this.applied.isEmpty()) {
+      return;
+    }
+
+    this.undoLog.rollBack();
+    this.rolledBack.putAll(this.applied);
+    this.applied.clear();
+  }
+
+  // returns the events of a rolled back transaction, or null if there are none
+  synchronized List<MultiChainEvent> take(String txId) {
+    return this.rolledBack.remove(txId);
+  }
+
+  // forgets rolled back transactions that are no longer in the mempool, returns whether all
+  // applied transactions still are
+  synchronized boolean retain(Set<String> mempool) {
+    this.rolledBack.keySet().retainAll(mempool);
+    return mempool.containsAll(this.applied.keySet());
+  }
+}
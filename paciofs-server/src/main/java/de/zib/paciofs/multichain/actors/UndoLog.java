@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.actors;
+
+import de.zib.paciofs.logging.Markers;
+import de.zib.paciofs.multichain.rpc.types.Block;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The inverses of the mutations the consumers made for the transactions of a block, so the block
+ * can be rolled back locally when a fork orphans it. Consumers only record the mutations they
+ * actually made, e.g. not creating a file that exists already. Transactions applied from the
+ * mempool share an undo log without a block, which is rolled back before blocks are processed.
+ */
+public final class UndoLog {
+  /**
+   * Reverts a single mutation.
+   */
+  public interface Undo {
+    void undo() throws IOException;
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(UndoLog.class);
+
+  // null for unconfirmed transactions
+  private final Block block;
+
+  private final List<Undo> undos;
+
+  UndoLog(Block block) {
+    this.block = block;
+    this.undos = new ArrayList<>();
+  }
+
+  // for unconfirmed transactions
+  UndoLog() {
+    this(null);
+  }
+
+  /**
+   * Records how to revert a mutation. Mutations are reverted in reverse order.
+   * @param undo the inverse of the mutation
+   */
+  public synchronized void add(Undo undo) {
+    this.undos.add(undo);
+  }
+
+  Block block() {
+    return this.block;
+  }
+
+  // reverts all recorded mutations, newest first
+  synchronized void rollBack() {
+    for (int i = this.undos.size() - 1; i >= 0; --i) {
+      try {
+        this.undos.get(i).undo();
+      } catch (IOException e) {
+        LOG.warn("Could not undo mutation of {}: {}", this, e.getMessage());
+        LOG.warn(Markers.EXCEPTION, "Could not undo mutation of {}", this, e);
+      }
+    }
+    this.undos.clear();
+  }
+
+  @Override
+  public String toString() {
+    return this.block != null ? "block " + this.block.hash() : "unconfirmed transactions";
+  }
+}
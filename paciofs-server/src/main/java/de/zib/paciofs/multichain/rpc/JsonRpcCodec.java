@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.rpc;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import de.zib.paciofs.multichain.rpc.types.MultiChainException;
+import de.zib.paciofs.multichain.rpc.types.MultiChainRequest;
+import de.zib.paciofs.multichain.rpc.types.MultiChainResponse;
+import de.zib.paciofs.multichain.rpc.types.TransactionInputList;
+import de.zib.paciofs.multichain.rpc.types.TransactionOutput;
+import de.zib.paciofs.multichain.rpc.types.TransactionOutputList;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.text.CharacterPredicates;
+import org.apache.commons.text.RandomStringGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serializes requests and deserializes responses, independently of how they are sent.
+ */
+final class JsonRpcCodec {
+  private static final Charset CHARSET = Charset.forName("ISO8859-1");
+
+  private static final Logger LOG = LoggerFactory.getLogger(JsonRpcCodec.class);
+
+  private static final int REQUEST_ID_LENGTH = 16;
+
+  private final Gson gson;
+
+  private final RandomStringGenerator requestIdGenerator;
+
+  JsonRpcCodec() {
+    this.gson = new Gson();
+    this.requestIdGenerator = new RandomStringGenerator.Builder()
+                                  .withinRange('0', 'z')
+                                  .filteredBy(CharacterPredicates.ASCII_ALPHA_NUMERALS)
+                                  .build();
+  }
+
+  String newRequestId() {
+    return this.requestIdGenerator.generate(REQUEST_ID_LENGTH);
+  }
+
+  byte[] encodeRequest(Object request) {
+    final String requestString;
+    try {
+      requestString = this.gson.toJson(request);
+    } catch (JsonParseException e) {
+      throw new MultiChainException("Could not serialize request to Json", e);
+    }
+
+    LOG.trace("MultiChain RPC request: {}", requestString);
+    return requestString.getBytes(CHARSET);
+  }
+
+  // returns the response if there was no HTTP error
+  <R> R readResponse(int status, InputStream body, Type responseType, Type errorResponseType) {
+    if (status == HttpURLConnection.HTTP_OK) {
+      final InputStream stream;
+      final ByteArrayOutputStream traceStream;
+      if (LOG.isTraceEnabled()) {
+        traceStream = new ByteArrayOutputStream();
+        stream = new TeeInputStream(body, traceStream);
+      } else {
+        traceStream = null;
+        stream = body;
+      }
+
+      final JsonReader reader = this.gson.newJsonReader(new InputStreamReader(stream, CHARSET));
+      final R response;
+      try {
+        response = this.gson.fromJson(reader, responseType);
+      } catch (JsonParseException e) {
+        throw new MultiChainException("Could not deserialize response from Json", e);
+      }
+
+      if (LOG.isTraceEnabled()) {
+        try {
+          LOG.trace("MultiChain RPC response: {}", traceStream.toString(CHARSET.name()));
+        } catch (UnsupportedEncodingException e) {
+          LOG.warn("Could not decode RPC response", e);
+        }
+      }
+
+      return response;
+    } else {
+      // errors concerning the request as a whole are reported in a single response
+      final JsonReader reader = this.gson.newJsonReader(new InputStreamReader(body, CHARSET));
+      final MultiChainResponse<?> response;
+      try {
+        response = this.gson.fromJson(reader, errorResponseType);
+      } catch (JsonParseException e) {
+        throw new MultiChainException("Could not deserialize response from Json", e);
+      }
+
+      if (response == null || response.error() == null) {
+        // e.g. 401 Unauthorized comes without a body
+        throw new MultiChainException("MultiChain returned HTTP status " + status);
+      }
+      throw new MultiChainException(response.error());
+    }
+  }
+
+  static <T> T result(String requestId, MultiChainResponse<T> response) {
+    if (!requestId.equals(response.id())) {
+      throw new MultiChainException(
+          "Response ID " + response.id() + " does not match request ID " + requestId);
+    }
+
+    if (response.error() != null) {
+      throw new MultiChainException("MultiChain error (" + response.error() + ")");
+    }
+
+    return response.result();
+  }
+
+  // the responses to a batch may come in any order, so their ids tell which request they belong to
+  static List<MultiChainRequest> batchRequests(
+      String batchId, String method, List<List<Object>> params) {
+    final List<MultiChainRequest> requests = new ArrayList<>(params.size());
+    for (int i = 0; i < params.size(); ++i) {
+      requests.add(new MultiChainRequest(batchId + "-" + i, method, params.get(i)));
+    }
+    return requests;
+  }
+
+  static <T> List<T> batchResults(
+      String batchId, List<MultiChainResponse<T>> responses, int batchSize) {
+    if (responses == null || responses.size() != batchSize) {
+      throw new MultiChainException("Got " + (responses == null ? 0 : responses.size())
+          + " responses to a batch of " + batchSize + " requests");
+    }
+
+    final List<T> results = new ArrayList<>(Collections.nCopies(batchSize, null));
+    final boolean[] answered = new boolean[batchSize];
+    for (MultiChainResponse<T> response : responses) {
+      final int index = batchIndex(batchId, response.id(), batchSize);
+      if (index < 0 || answered[index]) {
+        throw new MultiChainException(
+            "Response ID " + response.id() + " does not match any request ID of batch " + batchId);
+      }
+
+      if (response.error() != null) {
+        throw new MultiChainException("MultiChain error (" + response.error() + ")");
+      }
+
+      answered[index] = true;
+      results.set(index, response.result());
+    }
+
+    return results;
+  }
+
+  static List<Object> createRawTransactionParams(
+      TransactionInputList inputs, TransactionOutputList outputs, boolean signAndSend) {
+    final List<Object> params = new ArrayList<>();
+    params.add(inputs);
+
+    // reorder outputs with regard to data for MultiChain
+    final Map<String, Object> outputsWithoutData = new HashMap<>();
+    final List<String> data = new ArrayList<>();
+    for (TransactionOutput output : outputs) {
+      outputsWithoutData.put(output.address(), output.amount());
+      if (output.data() != null) {
+        data.add(output.data());
+      }
+    }
+    params.add(outputsWithoutData);
+    params.add(data);
+    if (signAndSend) {
+      params.add("send");
+    }
+
+    return params;
+  }
+
+  // returns -1 if id does not belong to the batch
+  private static int batchIndex(String batchId, String id, int batchSize) {
+    if (id == null || !id.startsWith(batchId + "-")) {
+      return -1;
+    }
+
+    try {
+      final int index = Integer.parseInt(id.substring(batchId.length() + 1));
+      return index >= 0 && index < batchSize ? index : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
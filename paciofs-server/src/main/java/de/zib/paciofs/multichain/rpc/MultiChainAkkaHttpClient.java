@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.rpc;
+
+import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.headers.Authorization;
+import akka.http.javadsl.settings.ConnectionPoolSettings;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import com.google.gson.reflect.TypeToken;
+import de.zib.paciofs.multichain.rpc.types.Block;
+import de.zib.paciofs.multichain.rpc.types.BlockChainInfo;
+import de.zib.paciofs.multichain.rpc.types.MultiChainException;
+import de.zib.paciofs.multichain.rpc.types.MultiChainRequest;
+import de.zib.paciofs.multichain.rpc.types.MultiChainResponse;
+import de.zib.paciofs.multichain.rpc.types.RawTransaction;
+import de.zib.paciofs.multichain.rpc.types.TransactionInputList;
+import de.zib.paciofs.multichain.rpc.types.TransactionOutputList;
+import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutputList;
+import java.lang.reflect.Type;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends MultiChain requests through Akka HTTP's connection pool, so no thread waits for
+ * MultiChain's responses. {@link MultiChainJsonRpcClient} uses the same connections for blocking
+ * calls.
+ * @see <a href="https://www.multichain.com/developers/json-rpc-api/">JSON RPC API</a>
+ */
+public class MultiChainAkkaHttpClient implements MultiChainAsyncClient {
+  private static final ConcurrentHashMap<Class, Type> TYPES = new ConcurrentHashMap<>();
+
+  private final Http http;
+
+  private final Materializer materializer;
+
+  private final LoggingAdapter log;
+
+  private final ConnectionPoolSettings settings;
+
+  private final long requestTimeoutMillis;
+
+  private final String uri;
+
+  // null if no credentials were given
+  private volatile Authorization authorization;
+
+  private final JsonRpcCodec codec;
+
+  /**
+   * Creates a client using the actor system's connection pools.
+   * @param system the actor system to run the requests in
+   * @param url MultiChain's RPC endpoint, optionally with user:password
+   * @param settings settings of the connection pool to MultiChain
+   * @param requestTimeout timeout for receiving the complete response to a request, zero for none
+   */
+  public MultiChainAkkaHttpClient(
+      ActorSystem system, URL url, ConnectionPoolSettings settings, Duration requestTimeout) {
+    this.http = Http.get(system);
+    this.materializer = ActorMaterializer.create(system);
+    this.log = Logging.getLogger(system, this);
+    this.settings = settings;
+    this.requestTimeoutMillis = requestTimeout.toMillis();
+
+    final int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+    this.uri = url.getProtocol() + "://" + url.getHost() + ":" + port
+        + (url.getPath().isEmpty() ? "/" : url.getPath());
+
+    this.setAuth(url.getUserInfo());
+
+    this.codec = new JsonRpcCodec();
+  }
+
+  /**
+   * Sets the credentials sent with every subsequent request.
+   * @param userInfo user:password, or null to not authenticate
+   */
+  void setAuth(String userInfo) {
+    if (userInfo == null) {
+      this.authorization = null;
+    } else {
+      final int colon = userInfo.indexOf(':');
+      this.authorization = colon < 0
+          ? Authorization.basic(userInfo, "")
+          : Authorization.basic(userInfo.substring(0, colon), userInfo.substring(colon + 1));
+    }
+  }
+
+  <T> CompletionStage<T> query(String method, List<Object> params, Type resultType) {
+    final String requestId = this.codec.newRequestId();
+    return this.<MultiChainResponse<T>>exchange(
+                   new MultiChainRequest(requestId, method, params), resultType, resultType)
+        .thenApply(response -> JsonRpcCodec.result(requestId, response));
+  }
+
+  // like MultiChainJsonRpcClient#queryBatch, in one round trip
+  <T> CompletionStage<List<T>> queryBatch(
+      String method, List<List<Object>> params, Type resultType) {
+    if (params.isEmpty()) {
+      return CompletableFuture.completedFuture(new ArrayList<>());
+    }
+
+    final String batchId = this.codec.newRequestId();
+    return this.<List<MultiChainResponse<T>>>exchange(
+                   JsonRpcCodec.batchRequests(batchId, method, params),
+                   TypeToken.getParameterized(List.class, resultType).getType(), resultType)
+        .thenApply(responses -> JsonRpcCodec.batchResults(batchId, responses, params.size()));
+  }
+
+  // sends a request or a batch of requests, and returns the response if there was no HTTP error
+  private <R> CompletionStage<R> exchange(
+      Object requestBody, Type responseType, Type errorResponseType) {
+    HttpRequest request;
+    try {
+      request = HttpRequest.POST(this.uri).withEntity(
+          ContentTypes.APPLICATION_JSON, this.codec.encodeRequest(requestBody));
+    } catch (MultiChainException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    final Authorization credentials = this.authorization;
+    if (credentials != null) {
+      request = request.addHeader(credentials);
+    }
+
+    final long timeoutMillis =
+        this.requestTimeoutMillis > 0 ? this.requestTimeoutMillis : Long.MAX_VALUE;
+    final CompletableFuture<R> response =
+        this.http
+            .singleRequest(request, this.http.defaultClientHttpsContext(), this.settings, this.log)
+            .thenCompose(httpResponse
+                -> httpResponse.entity()
+                       .toStrict(timeoutMillis, this.materializer)
+                       .thenApply(entity
+                           -> this.codec.<R>readResponse(httpResponse.status().intValue(),
+                               entity.getData().iterator().asInputStream(), responseType,
+                               errorResponseType)))
+            .toCompletableFuture();
+
+    // the connection pool has no timeout for waiting on a response
+    return this.requestTimeoutMillis > 0
+        ? response.orTimeout(this.requestTimeoutMillis, TimeUnit.MILLISECONDS)
+        : response;
+  }
+
+  @Override
+  public CompletionStage<String> createRawTransaction(
+      TransactionInputList inputs, TransactionOutputList outputs, boolean signAndSend) {
+    return this.<String>query("createrawtransaction",
+        JsonRpcCodec.createRawTransactionParams(inputs, outputs, signAndSend),
+        TYPES.computeIfAbsent(
+            String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<String> getBestBlockHash() {
+    return this.<String>query("getbestblockhash", null,
+        TYPES.computeIfAbsent(
+            String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<Block> getBlock(String blockHash) {
+    final List<Object> params = new ArrayList<>();
+    params.add(blockHash);
+    params.add(1); // verbosity
+    return this.<Block>query("getblock", params,
+        TYPES.computeIfAbsent(
+            Block.class, c -> new TypeToken<MultiChainResponse<Block>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<List<Block>> getBlocks(List<String> blockHashes) {
+    final List<List<Object>> params = new ArrayList<>(blockHashes.size());
+    for (String blockHash : blockHashes) {
+      final List<Object> blockParams = new ArrayList<>();
+      blockParams.add(blockHash);
+      blockParams.add(1); // verbosity
+      params.add(blockParams);
+    }
+    return this.<Block>queryBatch("getblock", params,
+        TYPES.computeIfAbsent(
+            Block.class, c -> new TypeToken<MultiChainResponse<Block>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<BlockChainInfo> getBlockChainInfo() {
+    return this.<BlockChainInfo>query("getblockchaininfo", null,
+        TYPES.computeIfAbsent(BlockChainInfo.class,
+            c -> new TypeToken<MultiChainResponse<BlockChainInfo>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<String> getBlockHash(int height) {
+    final List<Object> params = new ArrayList<>();
+    params.add(height);
+    return this.<String>query("getblockhash", params,
+        TYPES.computeIfAbsent(
+            String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<List<String>> getBlockHashes(List<Integer> heights) {
+    final List<List<Object>> params = new ArrayList<>(heights.size());
+    for (Integer height : heights) {
+      final List<Object> heightParams = new ArrayList<>();
+      heightParams.add(height);
+      params.add(heightParams);
+    }
+    return this.<String>queryBatch("getblockhash", params,
+        TYPES.computeIfAbsent(
+            String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<String> getRawChangeAddress() {
+    return this.<String>query("getrawchangeaddress", null,
+        TYPES.computeIfAbsent(
+            String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<RawTransaction> getRawTransaction(String id) {
+    final List<Object> params = new ArrayList<>();
+    params.add(id);
+    params.add(false); // hex, decoded locally
+    return this.<RawTransaction>query("getrawtransaction", params,
+        TYPES.computeIfAbsent(RawTransaction.class,
+            c -> new TypeToken<MultiChainResponse<RawTransaction>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<List<RawTransaction>> getRawTransactions(List<String> ids) {
+    final List<List<Object>> params = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      final List<Object> idParams = new ArrayList<>();
+      idParams.add(id);
+      idParams.add(false); // hex, decoded locally
+      params.add(idParams);
+    }
+    return this.<RawTransaction>queryBatch("getrawtransaction", params,
+        TYPES.computeIfAbsent(RawTransaction.class,
+            c -> new TypeToken<MultiChainResponse<RawTransaction>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<UnspentTransactionOutputList> listUnspent(int minimumConfirmations) {
+    final List<Object> params = new ArrayList<>();
+    params.add(minimumConfirmations);
+    return this.<UnspentTransactionOutputList>query("listunspent", params,
+        TYPES.computeIfAbsent(UnspentTransactionOutputList.class,
+            c -> new TypeToken<MultiChainResponse<UnspentTransactionOutputList>>() {}.getType()));
+  }
+
+  @Override
+  public CompletionStage<String> sendRawTransaction(String transactionHex) {
+    final List<Object> params = new ArrayList<>();
+    params.add(transactionHex);
+    return this.<String>query("sendrawtransaction", params,
+        TYPES.computeIfAbsent(
+            String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.rpc;
+
+import de.zib.paciofs.multichain.rpc.types.Block;
+import de.zib.paciofs.multichain.rpc.types.BlockChainInfo;
+import de.zib.paciofs.multichain.rpc.types.RawTransaction;
+import de.zib.paciofs.multichain.rpc.types.TransactionInputList;
+import de.zib.paciofs.multichain.rpc.types.TransactionOutputList;
+import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutputList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking variant of {@link MultiChainClient}. Failed calls complete exceptionally, usually
+ * with a {@link de.zib.paciofs.multichain.rpc.types.MultiChainException}.
+ */
+public interface MultiChainAsyncClient {
+  CompletionStage<String> createRawTransaction(
+      TransactionInputList inputs, TransactionOutputList outputs, boolean signAndSend);
+
+  CompletionStage<String> getBestBlockHash();
+
+  CompletionStage<Block> getBlock(String blockHash);
+
+  CompletionStage<List<Block>> getBlocks(List<String> blockHashes);
+
+  CompletionStage<BlockChainInfo> getBlockChainInfo();
+
+  CompletionStage<String> getBlockHash(int height);
+
+  CompletionStage<List<String>> getBlockHashes(List<Integer> heights);
+
+  CompletionStage<String> getRawChangeAddress();
+
+  CompletionStage<RawTransaction> getRawTransaction(String id);
+
+  CompletionStage<List<RawTransaction>> getRawTransactions(List<String> ids);
+
+  CompletionStage<UnspentTransactionOutputList> listUnspent(int minimumConfirmations);
+
+  CompletionStage<String> sendRawTransaction(String transactionHex);
+}
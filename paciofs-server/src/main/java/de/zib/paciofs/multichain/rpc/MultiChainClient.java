@@ -9,10 +9,12 @@ package de.zib.paciofs.multichain.rpc;
 
 import de.zib.paciofs.multichain.rpc.types.Block;
 import de.zib.paciofs.multichain.rpc.types.BlockChainInfo;
+import de.zib.paciofs.multichain.rpc.types.Mempool;
 import de.zib.paciofs.multichain.rpc.types.RawTransaction;
 import de.zib.paciofs.multichain.rpc.types.TransactionInputList;
 import de.zib.paciofs.multichain.rpc.types.TransactionOutputList;
 import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutputList;
+import java.util.List;
 
 public interface MultiChainClient {
   String createRawTransaction(TransactionInputList inputs, TransactionOutputList outputs);
@@ -26,16 +28,24 @@ public interface MultiChainClient {
 
   Block getBlock(String blockHash);
 
+  List<Block> getBlocks(List<String> blockHashes);
+
   BlockChainInfo getBlockChainInfo();
 
   String getBlockHash(int height);
 
+  List<String> getBlockHashes(List<Integer> heights);
+
   String getNewAddress();
 
   String getRawChangeAddress();
 
+  Mempool getRawMempool();
+
   RawTransaction getRawTransaction(String id);
 
+  List<RawTransaction> getRawTransactions(List<String> ids);
+
   UnspentTransactionOutputList listUnspent(int minimumConfirmations);
 
   String sendRawTransaction(String transactionHex);
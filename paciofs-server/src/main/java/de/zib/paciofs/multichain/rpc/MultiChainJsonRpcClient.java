@@ -7,169 +7,78 @@
 
 package de.zib.paciofs.multichain.rpc;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
-import com.google.gson.stream.JsonReader;
 import de.zib.paciofs.multichain.rpc.types.Block;
 import de.zib.paciofs.multichain.rpc.types.BlockChainInfo;
+import de.zib.paciofs.multichain.rpc.types.Mempool;
 import de.zib.paciofs.multichain.rpc.types.MultiChainException;
-import de.zib.paciofs.multichain.rpc.types.MultiChainRequest;
 import de.zib.paciofs.multichain.rpc.types.MultiChainResponse;
 import de.zib.paciofs.multichain.rpc.types.RawTransaction;
 import de.zib.paciofs.multichain.rpc.types.SignRawTransactionResult;
 import de.zib.paciofs.multichain.rpc.types.TransactionInputList;
-import de.zib.paciofs.multichain.rpc.types.TransactionOutput;
 import de.zib.paciofs.multichain.rpc.types.TransactionOutputList;
 import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutputList;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.input.TeeInputStream;
-import org.apache.commons.text.CharacterPredicates;
-import org.apache.commons.text.RandomStringGenerator;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.ExecutionException;
 
 /**
- * Exposes some of MultiChain's custom commands.
+ * Exposes some of MultiChain's custom commands. Requests go through the connections of a
+ * {@link MultiChainAkkaHttpClient}, and each call waits for its response.
  * @see <a href="https://www.multichain.com/developers/json-rpc-api/">JSON RPC API</a>
  */
 public class MultiChainJsonRpcClient implements MultiChainClient {
-  private static final Charset QUERY_CHARSET = Charset.forName("ISO8859-1");
-
   private static final ConcurrentHashMap<Class, Type> TYPES = new ConcurrentHashMap<>();
 
-  private static final Logger LOG = LoggerFactory.getLogger(MultiChainJsonRpcClient.class);
-
-  private final URL url;
-
-  private String auth;
-
-  private final Gson gson;
+  private final MultiChainAkkaHttpClient client;
 
-  private final RandomStringGenerator requestIdGenerator;
-
-  public MultiChainJsonRpcClient(URL url) {
-    this.url = url;
-    this.gson = new Gson();
-    this.requestIdGenerator = new RandomStringGenerator.Builder()
-                                  .withinRange('0', 'z')
-                                  .filteredBy(CharacterPredicates.ASCII_ALPHA_NUMERALS)
-                                  .build();
+  /**
+   * Creates a client that shares the connections of a non-blocking client.
+   * @param client the non-blocking client to send requests through
+   */
+  public MultiChainJsonRpcClient(MultiChainAkkaHttpClient client) {
+    this.client = client;
   }
 
   protected <T> T query(String method, List<Object> params, Type resultType)
       throws MultiChainException {
-    final HttpURLConnection connection;
-    try {
-      // url starts with http:// so the cast is safe
-      connection = (HttpURLConnection) this.url.openConnection();
-    } catch (IOException e) {
-      throw new MultiChainException("Could not open connection", e);
-    }
-
-    connection.setDoInput(true);
-    connection.setDoOutput(true);
-    connection.setRequestProperty("Authorization", "Basic " + this.auth);
-
-    final String requestId = this.requestIdGenerator.generate(16);
-    final MultiChainRequest request = new MultiChainRequest(requestId, method, params);
-    final String requestString;
-    try {
-      requestString = this.gson.toJson(request);
-    } catch (JsonParseException e) {
-      throw new MultiChainException("Could not serialize request to Json", e);
-    }
+    return await(this.client.<T>query(method, params, resultType));
+  }
 
-    try {
-      LOG.trace("MultiChain RPC request: {}", requestString);
-      connection.getOutputStream().write(requestString.getBytes(QUERY_CHARSET));
-      connection.getOutputStream().close();
-    } catch (IOException e) {
-      throw new MultiChainException("Could not write to stream", e);
-    }
+  /**
+   * Sends several requests for the same method in one JSON-RPC batch, i.e. in one round trip.
+   * @param method the method to call
+   * @param params the parameters of each request
+   * @param resultType the type of the response to each request
+   * @param <T> the type of the result of each request
+   * @return the results in the order of params
+   * @throws MultiChainException if any of the requests fails
+   */
+  protected <T> List<T> queryBatch(String method, List<List<Object>> params, Type resultType)
+      throws MultiChainException {
+    return await(this.client.<T>queryBatch(method, params, resultType));
+  }
 
-    final int responseCode;
+  // the non-blocking client times out requests, so this does not wait forever
+  private static <R> R await(CompletionStage<R> response) throws MultiChainException {
     try {
-      responseCode = connection.getResponseCode();
-    } catch (IOException e) {
-      throw new MultiChainException("Could not get response", e);
-    }
-
-    if (responseCode == HttpURLConnection.HTTP_OK) {
-      final InputStream stream;
-      final ByteArrayOutputStream traceStream;
-      try {
-        if (LOG.isTraceEnabled()) {
-          traceStream = new ByteArrayOutputStream();
-          stream = new TeeInputStream(connection.getInputStream(), traceStream);
-        } else {
-          traceStream = null;
-          stream = connection.getInputStream();
-        }
-      } catch (IOException e) {
-        throw new MultiChainException("Could not open response stream", e);
-      }
-
-      final JsonReader reader =
-          this.gson.newJsonReader(new InputStreamReader(stream, QUERY_CHARSET));
-      final MultiChainResponse<T> response;
-      try {
-        response = this.gson.fromJson(reader, resultType);
-      } catch (JsonParseException e) {
-        throw new MultiChainException("Could not deserialize response from Json", e);
-      }
-
-      if (LOG.isTraceEnabled()) {
-        try {
-          LOG.trace("MultiChain RPC response: {}", traceStream.toString(QUERY_CHARSET.name()));
-        } catch (UnsupportedEncodingException e) {
-          LOG.warn("Could not decode RPC response", e);
-        }
+      return response.toCompletableFuture().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MultiChainException("Interrupted while waiting for MultiChain", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof MultiChainException) {
+        throw (MultiChainException) e.getCause();
       }
-
-      if (!requestId.equals(response.id())) {
-        throw new MultiChainException(
-            "Response ID " + response.id() + " does not match request ID " + requestId);
-      }
-
-      if (response.error() != null) {
-        throw new MultiChainException("MultiChain error (" + response.error() + ")");
-      }
-
-      return response.result();
-    } else {
-      final InputStream stream = connection.getErrorStream();
-      final JsonReader reader =
-          this.gson.newJsonReader(new InputStreamReader(stream, QUERY_CHARSET));
-      final MultiChainResponse<T> response;
-      try {
-        response = this.gson.fromJson(reader, resultType);
-      } catch (JsonParseException e) {
-        throw new MultiChainException("Could not deserialize response from Json", e);
-      }
-
-      throw new MultiChainException(response.error());
+      throw new MultiChainException("Could not exchange request with MultiChain", e.getCause());
     }
   }
 
   protected void setAuth(String auth) {
-    this.auth = auth == null
-        ? null
-        : String.valueOf(Base64.encodeBase64String(auth.getBytes(QUERY_CHARSET)));
+    this.client.setAuth(auth);
   }
 
   @Override
@@ -180,24 +89,8 @@ public class MultiChainJsonRpcClient implements MultiChainClient {
   @Override
   public String createRawTransaction(TransactionInputList inputs, TransactionOutputList outputs,
       boolean signAndSend) throws MultiChainException {
-    final List<Object> params = new ArrayList<>();
-    params.add(inputs);
-
-    // reorder outputs with regard to data for MultiChain
-    final Map<String, Object> outputsWithoutData = new HashMap<>();
-    final List<String> data = new ArrayList<>();
-    for (TransactionOutput output : outputs) {
-      outputsWithoutData.put(output.address(), output.amount());
-      if (output.data() != null) {
-        data.add(output.data());
-      }
-    }
-    params.add(outputsWithoutData);
-    params.add(data);
-    if (signAndSend) {
-      params.add("send");
-    }
-
+    final List<Object> params =
+        JsonRpcCodec.createRawTransactionParams(inputs, outputs, signAndSend);
     return this.<String>query("createrawtransaction", params,
         TYPES.computeIfAbsent(
             String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
@@ -229,6 +122,20 @@ public class MultiChainJsonRpcClient implements MultiChainClient {
             Block.class, c -> new TypeToken<MultiChainResponse<Block>>() {}.getType()));
   }
 
+  @Override
+  public List<Block> getBlocks(List<String> blockHashes) {
+    final List<List<Object>> params = new ArrayList<>(blockHashes.size());
+    for (String blockHash : blockHashes) {
+      final List<Object> blockParams = new ArrayList<>();
+      blockParams.add(blockHash);
+      blockParams.add(1); // verbosity
+      params.add(blockParams);
+    }
+    return this.<Block>queryBatch("getblock", params,
+        TYPES.computeIfAbsent(
+            Block.class, c -> new TypeToken<MultiChainResponse<Block>>() {}.getType()));
+  }
+
   @Override
   public BlockChainInfo getBlockChainInfo() throws MultiChainException {
     return this.<BlockChainInfo>query("getblockchaininfo", null,
@@ -245,6 +152,19 @@ public class MultiChainJsonRpcClient implements MultiChainClient {
             String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
   }
 
+  @Override
+  public List<String> getBlockHashes(List<Integer> heights) {
+    final List<List<Object>> params = new ArrayList<>(heights.size());
+    for (Integer height : heights) {
+      final List<Object> heightParams = new ArrayList<>();
+      heightParams.add(height);
+      params.add(heightParams);
+    }
+    return this.<String>queryBatch("getblockhash", params,
+        TYPES.computeIfAbsent(
+            String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
+  }
+
   @Override
   public String getNewAddress() {
     return this.<String>query("getnewaddress", null,
@@ -259,16 +179,39 @@ public class MultiChainJsonRpcClient implements MultiChainClient {
             String.class, c -> new TypeToken<MultiChainResponse<String>>() {}.getType()));
   }
 
+  @Override
+  public Mempool getRawMempool() {
+    final List<Object> params = new ArrayList<>();
+    params.add(true); // verbose, for the dependencies
+    return this.<Mempool>query("getrawmempool", params,
+        TYPES.computeIfAbsent(
+            Mempool.class, c -> new TypeToken<MultiChainResponse<Mempool>>() {}.getType()));
+  }
+
   @Override
   public RawTransaction getRawTransaction(String id) {
     final List<Object> params = new ArrayList<>();
     params.add(id);
-    params.add(true); // verbose
+    params.add(false); // hex, decoded locally
     return this.<RawTransaction>query("getrawtransaction", params,
         TYPES.computeIfAbsent(RawTransaction.class,
             c -> new TypeToken<MultiChainResponse<RawTransaction>>() {}.getType()));
   }
 
+  @Override
+  public List<RawTransaction> getRawTransactions(List<String> ids) {
+    final List<List<Object>> params = new ArrayList<>(ids.size());
+    for (String id : ids) {
+      final List<Object> idParams = new ArrayList<>();
+      idParams.add(id);
+      idParams.add(false); // hex, decoded locally
+      params.add(idParams);
+    }
+    return this.<RawTransaction>queryBatch("getrawtransaction", params,
+        TYPES.computeIfAbsent(RawTransaction.class,
+            c -> new TypeToken<MultiChainResponse<RawTransaction>>() {}.getType()));
+  }
+
   @Override
   public UnspentTransactionOutputList listUnspent(int minimumConfirmations) {
     final List<Object> params = new ArrayList<>();
@@ -307,6 +250,7 @@ public class MultiChainJsonRpcClient implements MultiChainClient {
 
   @Override
   public void stop() throws MultiChainException {
+    // multichaind closes the connections, and the pool opens new ones if it is started again
     this.query("stop", null,
         TYPES.computeIfAbsent(
             Void.class, c -> new TypeToken<MultiChainResponse<Void>>() {}.getType()));
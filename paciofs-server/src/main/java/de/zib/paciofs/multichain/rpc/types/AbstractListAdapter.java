@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.rpc.types;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Base of the streaming adapters for JSON arrays, which read their elements with the element's own
+ * adapter instead of looking it up reflectively.
+ * @param <E> the type of the elements
+ * @param <L> the type of the list
+ */
+abstract class AbstractListAdapter<E, L extends List<E>> extends TypeAdapter<L> {
+  private final Supplier<L> factory;
+
+  private final TypeAdapter<E> element;
+
+  AbstractListAdapter(Supplier<L> factory, TypeAdapter<E> element) {
+    this.factory = factory;
+    this.element = element;
+  }
+
+  @Override
+  public final L read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+
+    final L list = this.factory.get();
+    in.beginArray();
+    while (in.hasNext()) {
+      list.add(this.element.read(in));
+    }
+    in.endArray();
+    return list;
+  }
+
+  @Override
+  public final void write(JsonWriter out, L list) throws IOException {
+    if (list == null) {
+      out.nullValue();
+      return;
+    }
+
+    out.beginArray();
+    for (E e : list) {
+      this.element.write(out, e);
+    }
+    out.endArray();
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.rpc.types;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.function.Supplier;
+
+/**
+ * Base of the streaming adapters for JSON objects. Fields that an adapter does not read are skipped
+ * by the reader without being materialized, so large fields we never use cost no allocations.
+ * @param <T> the type of the object
+ */
+abstract class AbstractObjectAdapter<T> extends TypeAdapter<T> {
+  static final TypeAdapter<String> STRING = new TypeAdapter<String>() {
+    @Override
+    public String read(JsonReader in) throws IOException {
+      return nextString(in);
+    }
+
+    @Override
+    public void write(JsonWriter out, String value) throws IOException {
+      out.value(value);
+    }
+  };
+
+  private final Supplier<T> factory;
+
+  AbstractObjectAdapter(Supplier<T> factory) {
+    this.factory = factory;
+  }
+
+  @Override
+  public final T read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+
+    final T value = this.factory.get();
+    in.beginObject();
+    while (in.hasNext()) {
+      if (!this.readField(in, in.nextName(), value)) {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    return value;
+  }
+
+  @Override
+  public final void write(JsonWriter out, T value) throws IOException {
+    if (value == null) {
+      out.nullValue();
+      return;
+    }
+
+    out.beginObject();
+    this.writeFields(out, value);
+    out.endObject();
+  }
+
+  /**
+   * Reads the value of a field.
+   * @param in the reader, positioned at the field's value
+   * @param name the name of the field
+   * @param value the object to set the field of
+   * @return false if the field is not used, without having read its value
+   * @throws IOException if reading fails
+   */
+  protected abstract boolean readField(JsonReader in, String name, T value) throws IOException;
+
+  protected abstract void writeFields(JsonWriter out, T value) throws IOException;
+
+  static String nextString(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    return in.nextString();
+  }
+
+  static BigDecimal nextDecimal(JsonReader in) throws IOException {
+    final String value = nextString(in);
+    return value == null ? null : new BigDecimal(value);
+  }
+}
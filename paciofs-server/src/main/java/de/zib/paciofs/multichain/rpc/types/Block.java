@@ -7,16 +7,57 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 
+@JsonAdapter(Block.Adapter.class)
 public class Block {
+  static final class Adapter extends AbstractObjectAdapter<Block> {
+    private static final StringList.Adapter TX = new StringList.Adapter();
+
+    Adapter() {
+      super(Block::new);
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, Block value) throws IOException {
+      switch (name) {
+        case "hash":
+          value.hash = nextString(in);
+          return true;
+        case "height":
+          value.height = in.nextInt();
+          return true;
+        case "tx":
+          value.tx = TX.read(in);
+          return true;
+        case "previousblockhash":
+          value.previousBlockHash = nextString(in);
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, Block value) throws IOException {
+      out.name("hash").value(value.hash);
+      out.name("height").value(value.height);
+      out.name("tx");
+      TX.write(out, value.tx);
+      out.name("previousblockhash").value(value.previousBlockHash);
+    }
+  }
+
   private String hash;
 
   private int height;
 
   private StringList tx;
 
-  @SerializedName("previousblockhash") private String previousBlockHash;
+  private String previousBlockHash;
 
   public Block() {}
 
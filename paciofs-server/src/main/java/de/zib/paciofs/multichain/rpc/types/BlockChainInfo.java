@@ -7,7 +7,36 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+@JsonAdapter(BlockChainInfo.Adapter.class)
 public class BlockChainInfo {
+  static final class Adapter extends AbstractObjectAdapter<BlockChainInfo> {
+    Adapter() {
+      super(BlockChainInfo::new);
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, BlockChainInfo value)
+        throws IOException {
+      switch (name) {
+        case "chain":
+          value.chain = nextString(in);
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, BlockChainInfo value) throws IOException {
+      out.name("chain").value(value.chain);
+    }
+  }
+
   private String chain;
 
   public BlockChainInfo() {}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.rpc.types;
+
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// the verbose output of getrawmempool, by transaction id, where everything but the time and the
+// unconfirmed parents of each transaction is skipped
+@JsonAdapter(Mempool.Adapter.class)
+public class Mempool extends LinkedHashMap<String, Mempool.Entry> {
+  @JsonAdapter(Entry.Adapter.class)
+  public static class Entry {
+    static final class Adapter extends AbstractObjectAdapter<Entry> {
+      private static final StringList.Adapter DEPENDS = new StringList.Adapter();
+
+      Adapter() {
+        super(Entry::new);
+      }
+
+      @Override
+      protected boolean readField(JsonReader in, String name, Entry value) throws IOException {
+        switch (name) {
+          case "time":
+            value.time = in.nextLong();
+            return true;
+          case "depends":
+            value.depends = DEPENDS.read(in);
+            return true;
+          default:
+            return false;
+        }
+      }
+
+      @Override
+      protected void writeFields(JsonWriter out, Entry value) throws IOException {
+        out.name("time").value(value.time);
+        out.name("depends");
+        DEPENDS.write(out, value.depends);
+      }
+    }
+
+    private long time;
+
+    private StringList depends;
+
+    public Entry() {}
+
+    public long time() {
+      return this.time;
+    }
+
+    public List<String> depends() {
+      return this.depends != null ? this.depends : List.of();
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder builder = new StringBuilder();
+      builder.append(Entry.class.getSimpleName()).append("{");
+      builder.append("time : ").append(this.time).append(", ");
+      builder.append("depends : ").append(this.depends);
+      builder.append("}");
+      return builder.toString();
+    }
+  }
+
+  static final class Adapter extends AbstractObjectAdapter<Mempool> {
+    private static final Entry.Adapter ENTRY = new Entry.Adapter();
+
+    Adapter() {
+      super(Mempool::new);
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, Mempool value) throws IOException {
+      value.put(name, ENTRY.read(in));
+      return true;
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, Mempool value) throws IOException {
+      for (Map.Entry<String, Entry> entry : value.entrySet()) {
+        out.name(entry.getKey());
+        ENTRY.write(out, entry.getValue());
+      }
+    }
+  }
+
+  public Mempool() {}
+
+  /**
+   * Orders the transactions so that each comes after the unconfirmed transactions it spends, and
+   * otherwise by the time they entered the mempool.
+   * @return the ids of all transactions
+   */
+  public List<String> inDependencyOrder() {
+    final List<String> byTime = new ArrayList<>(this.keySet());
+    byTime.sort(Comparator.comparingLong(id -> this.get(id).time()));
+
+    final List<String> ordered = new ArrayList<>(byTime.size());
+    final Set<String> visited = new HashSet<>();
+    for (String id : byTime) {
+      if (!visited.contains(id)) {
+        this.visit(id, visited, ordered);
+      }
+    }
+    return ordered;
+  }
+
+  // adds the transaction after its parents, iteratively because chains of parents can be long
+  private void visit(String root, Set<String> visited, List<String> ordered) {
+    final Deque<String> path = new ArrayDeque<>();
+    final Deque<Iterator<String>> parents = new ArrayDeque<>();
+    final Set<String> onPath = new HashSet<>();
+    path.push(root);
+    parents.push(this.get(root).depends().iterator());
+    onPath.add(root);
+
+    while (!path.isEmpty()) {
+      final Iterator<String> remaining = parents.peek();
+      if (!remaining.hasNext()) {
+        // all parents have been added
+        final String id = path.pop();
+        parents.pop();
+        onPath.remove(id);
+        visited.add(id);
+        ordered.add(id);
+        continue;
+      }
+
+      // a parent on the path would be a cycle, which a valid mempool does not have
+      final String parent = remaining.next();
+      if (this.containsKey(parent) && !visited.contains(parent) && onPath.add(parent)) {
+        path.push(parent);
+        parents.push(this.get(parent).depends().iterator());
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder builder = new StringBuilder();
+    builder.append(Mempool.class.getSimpleName()).append("{");
+    builder.append(super.toString());
+    builder.append("}");
+    return builder.toString();
+  }
+}
@@ -7,7 +7,40 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+@JsonAdapter(MultiChainError.Adapter.class)
 public class MultiChainError {
+  static final class Adapter extends AbstractObjectAdapter<MultiChainError> {
+    Adapter() {
+      super(MultiChainError::new);
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, MultiChainError value)
+        throws IOException {
+      switch (name) {
+        case "code":
+          value.code = in.nextInt();
+          return true;
+        case "message":
+          value.message = nextString(in);
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, MultiChainError value) throws IOException {
+      out.name("code").value(value.code);
+      out.name("message").value(value.message);
+    }
+  }
+
   public static final int RPC_IN_WARMUP = -28;
 
   private int code;
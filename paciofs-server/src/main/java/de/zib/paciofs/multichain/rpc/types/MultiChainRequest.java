@@ -7,9 +7,84 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.util.List;
 
+@JsonAdapter(MultiChainRequest.AdapterFactory.class)
 public class MultiChainRequest {
+  static final class AdapterFactory implements TypeAdapterFactory {
+    AdapterFactory() {}
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> TypeAdapter<R> create(Gson gson, TypeToken<R> type) {
+      // parameters are written with the adapters of their runtime types
+      return (TypeAdapter<R>) new Adapter(gson.getAdapter(new TypeToken<List<Object>>() {}));
+    }
+  }
+
+  private static final class Adapter extends TypeAdapter<MultiChainRequest> {
+    private final TypeAdapter<List<Object>> params;
+
+    Adapter(TypeAdapter<List<Object>> params) {
+      this.params = params;
+    }
+
+    @Override
+    public MultiChainRequest read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+
+      String id = null;
+      String method = null;
+      List<Object> requestParams = null;
+      in.beginObject();
+      while (in.hasNext()) {
+        switch (in.nextName()) {
+          case "id":
+            id = AbstractObjectAdapter.nextString(in);
+            break;
+          case "method":
+            method = AbstractObjectAdapter.nextString(in);
+            break;
+          case "params":
+            requestParams = this.params.read(in);
+            break;
+          default:
+            in.skipValue();
+            break;
+        }
+      }
+      in.endObject();
+      return new MultiChainRequest(id, method, requestParams);
+    }
+
+    @Override
+    public void write(JsonWriter out, MultiChainRequest value) throws IOException {
+      if (value == null) {
+        out.nullValue();
+        return;
+      }
+
+      out.beginObject();
+      out.name("id").value(value.id);
+      out.name("method").value(value.method);
+      out.name("params");
+      this.params.write(out, value.params);
+      out.endObject();
+    }
+  }
+
   private final String id;
 
   private final String method;
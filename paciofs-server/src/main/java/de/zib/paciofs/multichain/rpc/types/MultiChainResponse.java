@@ -7,7 +7,88 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+@JsonAdapter(MultiChainResponse.AdapterFactory.class)
 public class MultiChainResponse<T> {
+  static final class AdapterFactory implements TypeAdapterFactory {
+    // results that are not used, e.g. of stop, are skipped
+    private static final TypeAdapter<Void> VOID = new TypeAdapter<Void>() {
+      @Override
+      public Void read(JsonReader in) throws IOException {
+        in.skipValue();
+        return null;
+      }
+
+      @Override
+      public void write(JsonWriter out, Void value) throws IOException {
+        out.nullValue();
+      }
+    };
+
+    AdapterFactory() {}
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> TypeAdapter<R> create(Gson gson, TypeToken<R> type) {
+      // the result's adapter is looked up once per response type, not per response
+      final Type resultType = type.getType() instanceof ParameterizedType
+          ? ((ParameterizedType) type.getType()).getActualTypeArguments()[0]
+          : Object.class;
+      if (resultType == Void.class) {
+        return (TypeAdapter<R>) new Adapter<>(VOID);
+      }
+      return (TypeAdapter<R>) new Adapter<>(gson.getAdapter(TypeToken.get(resultType)));
+    }
+  }
+
+  private static final class Adapter<T> extends AbstractObjectAdapter<MultiChainResponse<T>> {
+    private static final MultiChainError.Adapter ERROR = new MultiChainError.Adapter();
+
+    private final TypeAdapter<T> result;
+
+    Adapter(TypeAdapter<T> result) {
+      super(MultiChainResponse::new);
+      this.result = result;
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, MultiChainResponse<T> value)
+        throws IOException {
+      switch (name) {
+        case "id":
+          value.id = nextString(in);
+          return true;
+        case "error":
+          value.error = ERROR.read(in);
+          return true;
+        case "result":
+          value.result = this.result.read(in);
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, MultiChainResponse<T> value) throws IOException {
+      out.name("id").value(value.id);
+      out.name("error");
+      ERROR.write(out, value.error);
+      out.name("result");
+      this.result.write(out, value.result);
+    }
+  }
+
   private String id;
 
   private MultiChainError error;
@@ -7,43 +7,94 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 
+// read from either the hex of non-verbose transactions, which is decoded locally, or the outputs of
+// verbose transactions, where everything else (hex, vin with its scriptSigs, data) is skipped
+@JsonAdapter(RawTransaction.Adapter.class)
 public class RawTransaction {
+  @JsonAdapter(Out.Adapter.class)
   public static class Out {
+    // hex, reqSigs and addresses are skipped, nulldata outputs only need the type and asm (or the
+    // data if decoded locally)
+    @JsonAdapter(ScriptPubKey.Adapter.class)
     public static class ScriptPubKey {
-      private String asm;
+      static final class Adapter extends AbstractObjectAdapter<ScriptPubKey> {
+        Adapter() {
+          super(ScriptPubKey::new);
+        }
+
+        @Override
+        protected boolean readField(JsonReader in, String name, ScriptPubKey value)
+            throws IOException {
+          switch (name) {
+            case "asm":
+              value.asm = nextString(in);
+              return true;
+            case "type":
+              value.type = nextString(in);
+              return true;
+            default:
+              return false;
+          }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, ScriptPubKey value) throws IOException {
+          out.name("asm").value(value.asm);
+          out.name("type").value(value.type);
+        }
+      }
 
-      private String hex;
+      public static final String NULLDATA = "nulldata";
 
-      private int reqSigs;
+      private static final String OP_RETURN = "OP_RETURN ";
+
+      private String asm;
 
       private String type;
 
-      private StringList addresses;
+      private byte[] data;
 
       public ScriptPubKey() {}
 
-      public String asm() {
-        return this.asm;
+      ScriptPubKey(String type, byte[] data) {
+        this.type = type;
+        this.data = data;
       }
 
-      public String hex() {
-        return this.hex;
-      }
-
-      public int reqSigs() {
-        return this.reqSigs;
+      public String asm() {
+        return this.asm;
       }
 
       public String type() {
         return this.type;
       }
 
-      public StringList addresses() {
-        return this.addresses;
+      /**
+       * Gets the data of a nulldata output.
+       * @return the data following OP_RETURN, or null if this is no nulldata output
+       * @throws MultiChainException if the data cannot be decoded from asm
+       */
+      public byte[] data() {
+        if (this.data == null && NULLDATA.equals(this.type) && this.asm != null
+            && this.asm.startsWith(OP_RETURN)) {
+          try {
+            this.data = Hex.decodeHex(this.asm.substring(OP_RETURN.length()));
+          } catch (DecoderException e) {
+            throw new MultiChainException("Could not decode OP_RETURN data", e);
+          }
+        }
+        return this.data;
       }
 
       @Override
@@ -51,15 +102,48 @@ public class RawTransaction {
         final StringBuilder builder = new StringBuilder();
         builder.append(ScriptPubKey.class.getSimpleName()).append("{");
         builder.append("asm : ").append(this.asm).append(", ");
-        builder.append("hex : ").append(this.hex).append(", ");
-        builder.append("reqSigs : ").append(this.reqSigs).append(", ");
-        builder.append("type : ").append(this.type).append(", ");
-        builder.append("addresses : ").append(this.addresses);
+        builder.append("type : ").append(this.type);
+        if (this.data != null) {
+          builder.append(", data : ").append(Hex.encodeHexString(this.data));
+        }
         builder.append("}");
         return builder.toString();
       }
     }
 
+    static final class Adapter extends AbstractObjectAdapter<Out> {
+      private static final ScriptPubKey.Adapter SCRIPT_PUB_KEY = new ScriptPubKey.Adapter();
+
+      Adapter() {
+        super(Out::new);
+      }
+
+      @Override
+      protected boolean readField(JsonReader in, String name, Out value) throws IOException {
+        switch (name) {
+          case "value":
+            value.value = nextDecimal(in);
+            return true;
+          case "n":
+            value.n = in.nextInt();
+            return true;
+          case "scriptPubKey":
+            value.scriptPubKey = SCRIPT_PUB_KEY.read(in);
+            return true;
+          default:
+            return false;
+        }
+      }
+
+      @Override
+      protected void writeFields(JsonWriter out, Out value) throws IOException {
+        out.name("value").value(value.value);
+        out.name("n").value(value.n);
+        out.name("scriptPubKey");
+        SCRIPT_PUB_KEY.write(out, value.scriptPubKey);
+      }
+    }
+
     private BigDecimal value;
 
     private int n;
@@ -68,6 +152,12 @@ public class RawTransaction {
 
     public Out() {}
 
+    Out(BigDecimal value, int n, ScriptPubKey scriptPubKey) {
+      this.value = value;
+      this.n = n;
+      this.scriptPubKey = scriptPubKey;
+    }
+
     public BigDecimal value() {
       return this.value;
     }
@@ -92,7 +182,14 @@ public class RawTransaction {
     }
   }
 
+  @JsonAdapter(OutList.Adapter.class)
   public static class OutList extends ArrayList<Out> {
+    static final class Adapter extends AbstractListAdapter<Out, OutList> {
+      Adapter() {
+        super(OutList::new, new Out.Adapter());
+      }
+    }
+
     public OutList() {}
 
     @Override
@@ -112,12 +209,66 @@ public class RawTransaction {
     }
   }
 
-  @SerializedName("txid") private String id;
+  static final class Adapter extends TypeAdapter<RawTransaction> {
+    private static final VerboseAdapter VERBOSE = new VerboseAdapter();
+
+    Adapter() {}
+
+    @Override
+    public RawTransaction read(JsonReader in) throws IOException {
+      if (in.peek() == JsonToken.STRING) {
+        return RawTransactionDecoder.decode(in.nextString());
+      }
+      return VERBOSE.read(in);
+    }
+
+    @Override
+    public void write(JsonWriter out, RawTransaction value) throws IOException {
+      VERBOSE.write(out, value);
+    }
+  }
+
+  private static final class VerboseAdapter extends AbstractObjectAdapter<RawTransaction> {
+    private static final OutList.Adapter V_OUT = new OutList.Adapter();
+
+    VerboseAdapter() {
+      super(RawTransaction::new);
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, RawTransaction value)
+        throws IOException {
+      switch (name) {
+        case "txid":
+          value.id = nextString(in);
+          return true;
+        case "vout":
+          value.vOut = V_OUT.read(in);
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, RawTransaction value) throws IOException {
+      out.name("txid").value(value.id);
+      out.name("vout");
+      V_OUT.write(out, value.vOut);
+    }
+  }
+
+  private String id;
 
-  @SerializedName("vout") private OutList vOut;
+  private OutList vOut;
 
   public RawTransaction() {}
 
+  RawTransaction(String id, OutList vOut) {
+    this.id = id;
+    this.vOut = vOut;
+  }
+
   public String id() {
     return this.id;
   }
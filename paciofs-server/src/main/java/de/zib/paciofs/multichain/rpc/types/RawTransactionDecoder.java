@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.rpc.types;
+
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Decodes transactions in the Bitcoin wire format, which MultiChain uses as well, so transactions
+ * can be fetched without MultiChain rendering them verbosely. Only the transaction ID and the
+ * outputs are decoded, and only nulldata outputs get a type, along with their data.
+ */
+public final class RawTransactionDecoder {
+  private static final int OUTPOINT_LENGTH = 32 + 4;
+
+  private static final int SEQUENCE_LENGTH = 4;
+
+  private static final int LOCK_TIME_LENGTH = 4;
+
+  private static final int SATOSHI_SCALE = 8;
+
+  private static final byte SEGWIT_MARKER = 0x00;
+
+  private static final byte SEGWIT_FLAG = 0x01;
+
+  private static final int VAR_INT_16 = 0xfd;
+
+  private static final int VAR_INT_32 = 0xfe;
+
+  private static final int VAR_INT_64 = 0xff;
+
+  private static final int OP_RETURN = 0x6a;
+
+  private static final int OP_PUSHDATA1 = 0x4c;
+
+  private static final int OP_PUSHDATA2 = 0x4d;
+
+  private static final int OP_PUSHDATA4 = 0x4e;
+
+  private RawTransactionDecoder() {}
+
+  /**
+   * Decodes a hex encoded transaction, as returned by non-verbose getrawtransaction.
+   * @param hex the transaction
+   * @return the decoded transaction
+   * @throws MultiChainException if the transaction is malformed
+   */
+  public static RawTransaction decode(String hex) {
+    try {
+      return decode(Hex.decodeHex(hex));
+    } catch (DecoderException e) {
+      throw new MultiChainException("Could not decode raw transaction hex", e);
+    }
+  }
+
+  /**
+   * Decodes a transaction.
+   * @param transaction the serialized transaction
+   * @return the decoded transaction
+   * @throws MultiChainException if the transaction is malformed
+   */
+  public static RawTransaction decode(byte[] transaction) {
+    final ByteBuffer buffer = ByteBuffer.wrap(transaction).order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      buffer.getInt(); // version
+
+      // the transaction ID does not cover the witnesses
+      final boolean segWit = buffer.remaining() > 2
+          && buffer.get(buffer.position()) == SEGWIT_MARKER
+          && buffer.get(buffer.position() + 1) == SEGWIT_FLAG;
+      if (segWit) {
+        buffer.position(buffer.position() + 2);
+      }
+      final int inputsStart = buffer.position();
+
+      // counts are bounded by the remaining bytes just like lengths
+      final int inputs = readLength(buffer);
+      for (int i = 0; i < inputs; ++i) {
+        skip(buffer, OUTPOINT_LENGTH);
+        skip(buffer, readLength(buffer));
+        skip(buffer, SEQUENCE_LENGTH);
+      }
+
+      final int outputCount = readLength(buffer);
+      final RawTransaction.OutList outputs = new RawTransaction.OutList();
+      outputs.ensureCapacity(outputCount);
+      for (int n = 0; n < outputCount; ++n) {
+        final BigDecimal value = BigDecimal.valueOf(buffer.getLong(), SATOSHI_SCALE);
+        final int scriptLength = readLength(buffer);
+        outputs.add(new RawTransaction.Out(value, n, scriptPubKey(buffer, scriptLength)));
+      }
+      final int outputsEnd = buffer.position();
+
+      if (segWit) {
+        for (int i = 0; i < inputs; ++i) {
+          final int items = readLength(buffer);
+          for (int j = 0; j < items; ++j) {
+            skip(buffer, readLength(buffer));
+          }
+        }
+      }
+      skip(buffer, LOCK_TIME_LENGTH);
+
+      return new RawTransaction(
+          id(transaction, inputsStart, outputsEnd, buffer.position()), outputs);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new MultiChainException("Malformed raw transaction", e);
+    }
+  }
+
+  // consumes the script and returns its type and data if it is nulldata
+  private static RawTransaction.Out.ScriptPubKey scriptPubKey(ByteBuffer buffer, int length) {
+    final int end = buffer.position() + length;
+    if (length == 0 || Byte.toUnsignedInt(buffer.get(buffer.position())) != OP_RETURN) {
+      buffer.position(end);
+      return new RawTransaction.Out.ScriptPubKey(null, null);
+    }
+
+    buffer.get();
+    final byte[] data;
+    if (buffer.position() == end) {
+      data = new byte[0];
+    } else {
+      // our transactions push their data at once
+      final int opCode = Byte.toUnsignedInt(buffer.get());
+      final int dataLength;
+      if (opCode < OP_PUSHDATA1) {
+        dataLength = opCode;
+      } else if (opCode == OP_PUSHDATA1) {
+        dataLength = Byte.toUnsignedInt(buffer.get());
+      } else if (opCode == OP_PUSHDATA2) {
+        dataLength = Short.toUnsignedInt(buffer.getShort());
+      } else if (opCode == OP_PUSHDATA4) {
+        dataLength = buffer.getInt();
+      } else {
+        buffer.position(end);
+        return new RawTransaction.Out.ScriptPubKey(null, null);
+      }
+
+      if (dataLength < 0 || buffer.position() + dataLength > end) {
+        throw new IllegalArgumentException("Push exceeds script");
+      }
+      data = new byte[dataLength];
+      buffer.get(data);
+      buffer.position(end);
+    }
+
+    return new RawTransaction.Out.ScriptPubKey(RawTransaction.Out.ScriptPubKey.NULLDATA, data);
+  }
+
+  private static long readVarInt(ByteBuffer buffer) {
+    final int first = Byte.toUnsignedInt(buffer.get());
+    switch (first) {
+      case VAR_INT_16:
+        return Short.toUnsignedLong(buffer.getShort());
+      case VAR_INT_32:
+        return Integer.toUnsignedLong(buffer.getInt());
+      case VAR_INT_64:
+        return buffer.getLong();
+      default:
+        return first;
+    }
+  }
+
+  private static int readLength(ByteBuffer buffer) {
+    final long length = readVarInt(buffer);
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Length " + length + " exceeds transaction");
+    }
+    return (int) length;
+  }
+
+  private static void skip(ByteBuffer buffer, int length) {
+    buffer.position(buffer.position() + length);
+  }
+
+  // the double SHA-256 of version, inputs, outputs and lock time, byte-reversed as usual
+  private static String id(byte[] transaction, int inputsStart, int outputsEnd, int end) {
+    final MessageDigest sha256;
+    try {
+      sha256 = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    sha256.update(transaction, 0, Integer.BYTES);
+    sha256.update(transaction, inputsStart, outputsEnd - inputsStart);
+    sha256.update(transaction, end - LOCK_TIME_LENGTH, LOCK_TIME_LENGTH);
+    final byte[] hash = sha256.digest(sha256.digest());
+
+    for (int i = 0, j = hash.length - 1; i < j; ++i, --j) {
+      final byte b = hash[i];
+      hash[i] = hash[j];
+      hash[j] = b;
+    }
+    return Hex.encodeHexString(hash);
+  }
+}
@@ -7,14 +7,57 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 
+@JsonAdapter(SignRawTransactionResult.Adapter.class)
 public class SignRawTransactionResult {
+  @JsonAdapter(Error.Adapter.class)
   public static class Error {
-    @SerializedName("txid") private String txId;
+    static final class Adapter extends AbstractObjectAdapter<Error> {
+      Adapter() {
+        super(Error::new);
+      }
+
+      @Override
+      protected boolean readField(JsonReader in, String name, Error value) throws IOException {
+        switch (name) {
+          case "txid":
+            value.txId = nextString(in);
+            return true;
+          case "vout":
+            value.vOut = in.nextInt();
+            return true;
+          case "scriptSig":
+            value.scriptSig = nextString(in);
+            return true;
+          case "sequence":
+            value.sequence = in.nextLong();
+            return true;
+          case "error":
+            value.error = nextString(in);
+            return true;
+          default:
+            return false;
+        }
+      }
 
-    @SerializedName("vout") private int vOut;
+      @Override
+      protected void writeFields(JsonWriter out, Error value) throws IOException {
+        out.name("txid").value(value.txId);
+        out.name("vout").value(value.vOut);
+        out.name("scriptSig").value(value.scriptSig);
+        out.name("sequence").value(value.sequence);
+        out.name("error").value(value.error);
+      }
+    }
+
+    private String txId;
+
+    private int vOut;
 
     private String scriptSig;
 
@@ -58,7 +101,14 @@ public class SignRawTransactionResult {
     }
   }
 
+  @JsonAdapter(ErrorList.Adapter.class)
   public static class ErrorList extends ArrayList<Error> {
+    static final class Adapter extends AbstractListAdapter<Error, ErrorList> {
+      Adapter() {
+        super(ErrorList::new, new Error.Adapter());
+      }
+    }
+
     public ErrorList() {}
 
     @Override
@@ -78,6 +128,40 @@ public class SignRawTransactionResult {
     }
   }
 
+  static final class Adapter extends AbstractObjectAdapter<SignRawTransactionResult> {
+    private static final ErrorList.Adapter ERRORS = new ErrorList.Adapter();
+
+    Adapter() {
+      super(SignRawTransactionResult::new);
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, SignRawTransactionResult value)
+        throws IOException {
+      switch (name) {
+        case "hex":
+          value.hex = nextString(in);
+          return true;
+        case "complete":
+          value.complete = in.nextBoolean();
+          return true;
+        case "errors":
+          value.errors = ERRORS.read(in);
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, SignRawTransactionResult value) throws IOException {
+      out.name("hex").value(value.hex);
+      out.name("complete").value(value.complete);
+      out.name("errors");
+      ERRORS.write(out, value.errors);
+    }
+  }
+
   private String hex;
 
   private boolean complete;
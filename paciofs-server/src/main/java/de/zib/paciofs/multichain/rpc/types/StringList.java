@@ -7,9 +7,17 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.util.ArrayList;
 
+@JsonAdapter(StringList.Adapter.class)
 public class StringList extends ArrayList<String> {
+  static final class Adapter extends AbstractListAdapter<String, StringList> {
+    Adapter() {
+      super(StringList::new, AbstractObjectAdapter.STRING);
+    }
+  }
+
   public StringList() {}
 
   @Override
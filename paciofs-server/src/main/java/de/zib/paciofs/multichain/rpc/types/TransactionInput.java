@@ -7,13 +7,52 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.math.BigDecimal;
 
+@JsonAdapter(TransactionInput.Adapter.class)
 public class TransactionInput {
-  @SerializedName("txid") private String txId;
+  static final class Adapter extends AbstractObjectAdapter<TransactionInput> {
+    Adapter() {
+      super(TransactionInput::new);
+    }
 
-  @SerializedName("vout") private int vOut;
+    @Override
+    protected boolean readField(JsonReader in, String name, TransactionInput value)
+        throws IOException {
+      switch (name) {
+        case "txid":
+          value.txId = nextString(in);
+          return true;
+        case "vout":
+          value.vOut = in.nextInt();
+          return true;
+        case "scriptPubKey":
+          value.scriptPubKey = nextString(in);
+          return true;
+        case "amount":
+          value.amount = nextDecimal(in);
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, TransactionInput value) throws IOException {
+      out.name("txid").value(value.txId);
+      out.name("vout").value(value.vOut);
+      out.name("scriptPubKey").value(value.scriptPubKey);
+      out.name("amount").value(value.amount);
+    }
+  }
+
+  private String txId;
+
+  private int vOut;
 
   private String scriptPubKey;
 
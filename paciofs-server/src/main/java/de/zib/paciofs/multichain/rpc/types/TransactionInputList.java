@@ -7,9 +7,17 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.util.ArrayList;
 
+@JsonAdapter(TransactionInputList.Adapter.class)
 public class TransactionInputList extends ArrayList<TransactionInput> {
+  static final class Adapter extends AbstractListAdapter<TransactionInput, TransactionInputList> {
+    Adapter() {
+      super(TransactionInputList::new, new TransactionInput.Adapter());
+    }
+  }
+
   public TransactionInputList() {}
 
   @Override
@@ -7,15 +7,53 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.math.BigDecimal;
 
+@JsonAdapter(TransactionOutput.Adapter.class)
 public class TransactionOutput {
+  static final class Adapter extends AbstractObjectAdapter<TransactionOutput> {
+    Adapter() {
+      super(TransactionOutput::new);
+    }
+
+    @Override
+    protected boolean readField(JsonReader in, String name, TransactionOutput value)
+        throws IOException {
+      switch (name) {
+        case "address":
+          value.address = nextString(in);
+          return true;
+        case "amount":
+          value.amount = nextDecimal(in);
+          return true;
+        case "data":
+          value.data = nextString(in);
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, TransactionOutput value) throws IOException {
+      out.name("address").value(value.address);
+      out.name("amount").value(value.amount);
+      out.name("data").value(value.data);
+    }
+  }
+
   private String address;
 
   private BigDecimal amount;
 
   private String data;
 
+  private TransactionOutput() {}
+
   public TransactionOutput(String address, BigDecimal amount, String data) {
     this.address = address;
     this.amount = amount;
@@ -7,9 +7,17 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.util.ArrayList;
 
+@JsonAdapter(TransactionOutputList.Adapter.class)
 public class TransactionOutputList extends ArrayList<TransactionOutput> {
+  static final class Adapter extends AbstractListAdapter<TransactionOutput, TransactionOutputList> {
+    Adapter() {
+      super(TransactionOutputList::new, new TransactionOutput.Adapter());
+    }
+  }
+
   public TransactionOutputList() {}
 
   @Override
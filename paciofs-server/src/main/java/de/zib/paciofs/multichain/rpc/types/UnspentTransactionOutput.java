@@ -7,13 +7,62 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
 import java.math.BigDecimal;
 
+@JsonAdapter(UnspentTransactionOutput.Adapter.class)
 public class UnspentTransactionOutput {
-  @SerializedName("txid") private String txId;
+  static final class Adapter extends AbstractObjectAdapter<UnspentTransactionOutput> {
+    Adapter() {
+      super(UnspentTransactionOutput::new);
+    }
 
-  @SerializedName("vout") private int vOut;
+    @Override
+    protected boolean readField(JsonReader in, String name, UnspentTransactionOutput value)
+        throws IOException {
+      switch (name) {
+        case "txid":
+          value.txId = nextString(in);
+          return true;
+        case "vout":
+          value.vOut = in.nextInt();
+          return true;
+        case "address":
+          value.address = nextString(in);
+          return true;
+        case "scriptPubKey":
+          value.scriptPubKey = nextString(in);
+          return true;
+        case "amount":
+          value.amount = nextDecimal(in);
+          return true;
+        case "spendable":
+          value.spendable = in.nextBoolean();
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    protected void writeFields(JsonWriter out, UnspentTransactionOutput value) throws IOException {
+      out.name("txid").value(value.txId);
+      out.name("vout").value(value.vOut);
+      out.name("address").value(value.address);
+      out.name("scriptPubKey").value(value.scriptPubKey);
+      out.name("amount").value(value.amount);
+      out.name("spendable").value(value.spendable);
+    }
+  }
+
+  private String txId;
+
+  private int vOut;
+
+  private String address;
 
   private String scriptPubKey;
 
@@ -31,6 +80,10 @@ public class UnspentTransactionOutput {
     return this.vOut;
   }
 
+  public String address() {
+    return this.address;
+  }
+
   public String scriptPubKey() {
     return this.scriptPubKey;
   }
@@ -49,6 +102,7 @@ public class UnspentTransactionOutput {
     builder.append(UnspentTransactionOutput.class.getSimpleName()).append("{");
     builder.append("txId : ").append(this.txId).append(", ");
     builder.append("vOut : ").append(this.vOut).append(", ");
+    builder.append("address : ").append(this.address).append(", ");
     builder.append("scriptPubKey : ").append(this.scriptPubKey).append(", ");
     builder.append("amount : ").append(this.amount).append(", ");
     builder.append("spendable : ").append(this.spendable);
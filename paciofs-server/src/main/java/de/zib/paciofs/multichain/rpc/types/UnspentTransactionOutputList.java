@@ -7,9 +7,18 @@
 
 package de.zib.paciofs.multichain.rpc.types;
 
+import com.google.gson.annotations.JsonAdapter;
 import java.util.ArrayList;
 
+@JsonAdapter(UnspentTransactionOutputList.Adapter.class)
 public class UnspentTransactionOutputList extends ArrayList<UnspentTransactionOutput> {
+  static final class Adapter
+      extends AbstractListAdapter<UnspentTransactionOutput, UnspentTransactionOutputList> {
+    Adapter() {
+      super(UnspentTransactionOutputList::new, new UnspentTransactionOutput.Adapter());
+    }
+  }
+
   public UnspentTransactionOutputList() {}
 
   @Override
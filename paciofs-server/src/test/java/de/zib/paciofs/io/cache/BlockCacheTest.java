@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.io.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class BlockCacheTest {
+  private static final int BLOCK_SIZE = 16;
+
+  // a single segment of 64 blocks, 4 of which form the admission window
+  private static final long CAPACITY = 64 * BLOCK_SIZE;
+
+  private static final long VOLUME = 1;
+  private static final long FILE = 2;
+  private static final long OTHER_FILE = 3;
+
+  // a file of a few blocks, the last one short
+  private static final class File implements BlockCache.BlockLoader {
+    private final byte[] contents;
+
+    private int loads;
+
+    private File(int size) {
+      this.contents = new byte[size];
+      for (int i = 0; i < size; ++i) {
+        this.contents[i] = (byte) i;
+      }
+    }
+
+    @Override
+    public void load(long position, ByteBuffer block) throws IOException {
+      ++this.loads;
+      if (position < this.contents.length) {
+        block.put(this.contents, (int) position,
+            Math.min(block.remaining(), this.contents.length - (int) position));
+      }
+    }
+  }
+
+  @Test
+  public void secondReadIsServedFromCache() throws IOException {
+    final BlockCache cache = new BlockCache(CAPACITY, BLOCK_SIZE, 1);
+    final File file = new File(3 * BLOCK_SIZE + 5);
+
+    assertArrayEquals(file.contents, read(cache, FILE, file, 0, file.contents.length));
+    assertEquals(4, file.loads);
+    assertEquals(4, cache.getMissCount());
+
+    assertArrayEquals(file.contents, read(cache, FILE, file, 0, file.contents.length));
+    assertEquals(4, file.loads);
+    assertEquals(4, cache.getHitCount());
+  }
+
+  @Test
+  public void readWithinBlocksReturnsTheRightBytes() throws IOException {
+    final BlockCache cache = new BlockCache(CAPACITY, BLOCK_SIZE, 1);
+    final File file = new File(3 * BLOCK_SIZE + 5);
+
+    final int offset = BLOCK_SIZE / 2;
+    final int length = 2 * BLOCK_SIZE;
+    assertArrayEquals(Arrays.copyOfRange(file.contents, offset, offset + length),
+        read(cache, FILE, file, offset, length));
+  }
+
+  @Test
+  public void readAtEndOfFileReturnsMinusOne() throws IOException {
+    final BlockCache cache = new BlockCache(CAPACITY, BLOCK_SIZE, 1);
+    final File file = new File(BLOCK_SIZE + 5);
+
+    // twice, to see the cached short block as well
+    for (int i = 0; i < 2; ++i) {
+      final ByteBuffer destination = ByteBuffer.allocate(BLOCK_SIZE);
+      assertEquals(-1, cache.read(VOLUME, FILE, file.contents.length, destination, file));
+    }
+  }
+
+  @Test
+  public void invalidatedBlocksAreLoadedAgain() throws IOException {
+    final BlockCache cache = new BlockCache(CAPACITY, BLOCK_SIZE, 1);
+    final File file = new File(3 * BLOCK_SIZE);
+    read(cache, FILE, file, 0, file.contents.length);
+    assertEquals(3, file.loads);
+
+    // the middle block was written to
+    file.contents[BLOCK_SIZE + 1] = -1;
+    cache.invalidate(VOLUME, FILE, BLOCK_SIZE + 1, BLOCK_SIZE + 2);
+
+    assertArrayEquals(file.contents, read(cache, FILE, file, 0, file.contents.length));
+    assertEquals(4, file.loads);
+  }
+
+  @Test
+  public void loadRacingWithInvalidationIsNotCached() throws IOException {
+    final BlockCache cache = new BlockCache(CAPACITY, BLOCK_SIZE, 1);
+    final File file = new File(BLOCK_SIZE);
+
+    // a write completes while the block is being loaded
+    final BlockCache.BlockLoader racing = (position, block) -> {
+      file.load(position, block);
+      cache.invalidate(VOLUME, FILE, 0, BLOCK_SIZE);
+    };
+    read(cache, FILE, racing, 0, BLOCK_SIZE);
+
+    read(cache, FILE, file, 0, BLOCK_SIZE);
+    assertEquals(2, file.loads);
+  }
+
+  @Test
+  public void prefetchedBlocksAreHits() throws IOException {
+    final BlockCache cache = new BlockCache(CAPACITY, BLOCK_SIZE, 1);
+    final File file = new File(3 * BLOCK_SIZE);
+
+    cache.prefetch(VOLUME, FILE, 0, file.contents.length, file);
+    assertEquals(3, cache.getPrefetchCount());
+
+    assertArrayEquals(file.contents, read(cache, FILE, file, 0, file.contents.length));
+    assertEquals(3, file.loads);
+    assertEquals(3, cache.getHitCount());
+    assertEquals(0, cache.getMissCount());
+  }
+
+  @Test
+  public void scanDoesNotEvictFrequentlyReadBlocks() throws IOException {
+    final BlockCache cache = new BlockCache(CAPACITY, BLOCK_SIZE, 1);
+    // read often enough to stay ahead of the scan although the sketch ages it
+    final File hot = new File(8 * BLOCK_SIZE);
+    for (int i = 0; i < 16; ++i) {
+      read(cache, FILE, hot, 0, hot.contents.length);
+    }
+    final int loads = hot.loads;
+
+    // a large file read once, many times the size of the cache
+    final File scan = new File(1024 * BLOCK_SIZE);
+    read(cache, OTHER_FILE, scan, 0, scan.contents.length);
+
+    read(cache, FILE, hot, 0, hot.contents.length);
+    assertEquals(loads, hot.loads);
+  }
+
+  private static byte[] read(BlockCache cache, long inode, BlockCache.BlockLoader loader,
+      long offset, int length) throws IOException {
+    final ByteBuffer destination = ByteBuffer.allocate(length);
+    while (destination.hasRemaining()
+        && cache.read(VOLUME, inode, offset + destination.position(), destination, loader) > 0) {
+      // until full or the end of the file
+    }
+    return Arrays.copyOf(destination.array(), destination.position());
+  }
+}
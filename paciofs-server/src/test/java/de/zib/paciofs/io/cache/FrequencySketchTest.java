@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.io.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+  private static final int HOT = 0x9e3779b9;
+  private static final int COLD = 0x7f4a7c15;
+
+  private static final int MAX_FREQUENCY = 15;
+
+  // large enough not to be halved during the tests that do not expect it
+  private static final int EXPECTED_KEYS = 1024;
+
+  @Test
+  public void countsIncrements() {
+    final FrequencySketch sketch = new FrequencySketch(EXPECTED_KEYS);
+    assertEquals(0, sketch.frequency(HOT));
+
+    for (int i = 0; i < 3; ++i) {
+      sketch.increment(HOT);
+    }
+    sketch.increment(COLD);
+
+    assertEquals(3, sketch.frequency(HOT));
+    assertEquals(1, sketch.frequency(COLD));
+  }
+
+  @Test
+  public void countersSaturate() {
+    final FrequencySketch sketch = new FrequencySketch(EXPECTED_KEYS);
+    for (int i = 0; i < 2 * MAX_FREQUENCY; ++i) {
+      sketch.increment(HOT);
+    }
+
+    assertEquals(MAX_FREQUENCY, sketch.frequency(HOT));
+  }
+
+  @Test
+  public void countersAreHalvedPeriodically() {
+    // a single counter word, halved after ten additions
+    final FrequencySketch sketch = new FrequencySketch(1);
+    for (int i = 0; i < 10; ++i) {
+      sketch.increment(HOT);
+    }
+
+    assertEquals(5, sketch.frequency(HOT));
+  }
+
+  @Test
+  public void frequentKeyStaysAheadOfNewKeys() {
+    final FrequencySketch sketch = new FrequencySketch(EXPECTED_KEYS);
+    for (int i = 0; i < MAX_FREQUENCY; ++i) {
+      sketch.increment(HOT);
+    }
+
+    // many keys seen once, as in a sequential scan, including several halvings
+    for (int key = 0; key < 100 * EXPECTED_KEYS; ++key) {
+      sketch.increment(key * HOT);
+    }
+
+    assertTrue(sketch.frequency(HOT) >= sketch.frequency(COLD));
+  }
+}
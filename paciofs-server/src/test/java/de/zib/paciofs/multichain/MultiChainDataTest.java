@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import de.zib.paciofs.multichain.internal.MultiChainCommand;
+import de.zib.paciofs.multichain.internal.MultiChainRawTransactionDataHeader.Compression;
+import de.zib.paciofs.multichain.rpc.types.RawTransaction;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+public class MultiChainDataTest {
+  private static final String TX_ID = "0123456789abcdef";
+
+  private static final Set<MultiChainCommand> COMMANDS = EnumSet.of(
+      MultiChainCommand.MCC_NODE_ADD, MultiChainCommand.MCC_VOLUME_CREATE);
+
+  private static final byte[] BYTES = {0, 1, -1, Byte.MIN_VALUE, Byte.MAX_VALUE};
+
+  private static final String ASCII = "/home/user/results/output.h5";
+  private static final String UNICODE = "/home/\u00fcser/\u7d50\u679c/\ud83d\udcc1";
+
+  @Test
+  public void version1RoundTrip() {
+    assertRoundTrip(MultiChainData.VERSION_1);
+  }
+
+  @Test
+  public void version2RoundTrip() {
+    assertRoundTrip(MultiChainData.VERSION_2);
+  }
+
+  @Test
+  public void version2IsSmallerForSmallNumbers() {
+    final byte[] version1 = writeTypical(new MultiChainData(MultiChainData.VERSION_1));
+    final byte[] version2 = writeTypical(new MultiChainData(MultiChainData.VERSION_2));
+    assertTrue(version2.length < version1.length);
+  }
+
+  @Test
+  public void inodeIdsRoundTripInVersion2() {
+    final MultiChainData data = new MultiChainData(MultiChainData.VERSION_2);
+    data.writeInodeId(Long.MIN_VALUE);
+    data.writeInodeId(42);
+
+    final MultiChainData read = new MultiChainData(data.toByteBuffer(), MultiChainData.VERSION_2);
+    assertEquals(Long.MIN_VALUE, read.readInodeId());
+    assertEquals(42, read.readInodeId());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void inodeIdsCannotBeWrittenInVersion1() {
+    new MultiChainData(MultiChainData.VERSION_1).writeInodeId(1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void truncatedArrayIsRejected() {
+    final MultiChainData data = new MultiChainData(MultiChainData.VERSION_2);
+    data.writeByteArray(BYTES);
+
+    final byte[] written = data.toByteArray();
+    new MultiChainData(ByteBuffer.wrap(written, 0, written.length - 1), MultiChainData.VERSION_2)
+        .readBytes();
+  }
+
+  @Test
+  public void recordsRoundTripThroughTransactions() {
+    for (int version : new int[] {MultiChainData.VERSION_1, MultiChainData.VERSION_2}) {
+      for (Compression compression : Compression.values()) {
+        if (compression == Compression.UNRECOGNIZED) {
+          continue;
+        }
+
+        final MultiChainData data = new MultiChainData(version);
+        writeTypical(data);
+        final byte[] record =
+            MultiChainUtil.encodeRecord(MultiChainCommand.MCC_VOLUME_CREATE, data, compression);
+
+        final List<MultiChainEvent> events =
+            MultiChainUtil.decodeEvents(transaction(record), COMMANDS);
+        assertEquals(1, events.size());
+        assertEquals(TX_ID, events.get(0).txId());
+        assertEquals(MultiChainCommand.MCC_VOLUME_CREATE, events.get(0).command());
+        assertEquals(version, events.get(0).version());
+        assertTypical(events.get(0).data());
+      }
+    }
+  }
+
+  @Test
+  public void groupedRecordsAreDecodedInOrder() {
+    final MultiChainData first = new MultiChainData(MultiChainData.VERSION_2);
+    first.writeString(ASCII);
+    final MultiChainData second = new MultiChainData(MultiChainData.VERSION_1);
+    second.writeString(UNICODE);
+
+    final List<MultiChainEvent> events = MultiChainUtil.decodeEvents(
+        transaction(concat(MultiChainUtil.encodeRecord(MultiChainCommand.MCC_NODE_ADD, first),
+            MultiChainUtil.encodeRecord(MultiChainCommand.MCC_VOLUME_CREATE, second))),
+        COMMANDS);
+    assertEquals(2, events.size());
+    assertEquals(ASCII, events.get(0).data().readString());
+    assertEquals(UNICODE, events.get(1).data().readString());
+  }
+
+  @Test
+  public void recordsOfOtherCommandsAreSkipped() {
+    final MultiChainData data = new MultiChainData(MultiChainData.VERSION_2);
+    data.writeString(ASCII);
+
+    final List<MultiChainEvent> events = MultiChainUtil.decodeEvents(
+        transaction(concat(MultiChainUtil.encodeRecord(MultiChainCommand.MCC_NODE_ADD, data),
+            MultiChainUtil.encodeRecord(MultiChainCommand.MCC_VOLUME_CREATE, data))),
+        EnumSet.of(MultiChainCommand.MCC_VOLUME_CREATE));
+    assertEquals(1, events.size());
+    assertEquals(MultiChainCommand.MCC_VOLUME_CREATE, events.get(0).command());
+  }
+
+  @Test
+  public void truncatedRecordEndsTheOutput() {
+    final MultiChainData data = new MultiChainData(MultiChainData.VERSION_2);
+    data.writeString(ASCII);
+    final byte[] record = MultiChainUtil.encodeRecord(MultiChainCommand.MCC_VOLUME_CREATE, data);
+
+    // the second record claims more data than the output has left
+    final byte[] output = concat(record, Arrays.copyOf(record, record.length - 1));
+    final List<MultiChainEvent> events = MultiChainUtil.decodeEvents(transaction(output), COMMANDS);
+    assertEquals(1, events.size());
+    assertEquals(ASCII, events.get(0).data().readString());
+  }
+
+  private static void assertRoundTrip(int version) {
+    final MultiChainData data = new MultiChainData(version);
+    data.writeInt(0);
+    data.writeInt(-1);
+    data.writeInt(Integer.MAX_VALUE);
+    data.writeLong(Long.MIN_VALUE);
+    data.writeLong(Long.MAX_VALUE);
+    data.writeString("");
+    data.writeString(ASCII);
+    data.writeString(UNICODE);
+    data.writeByteArray(BYTES);
+    data.writeByteArray(new byte[0]);
+
+    final MultiChainData read = new MultiChainData(data.toByteBuffer(), version);
+    assertEquals(0, read.readInt());
+    assertEquals(-1, read.readInt());
+    assertEquals(Integer.MAX_VALUE, read.readInt());
+    assertEquals(Long.MIN_VALUE, read.readLong());
+    assertEquals(Long.MAX_VALUE, read.readLong());
+    assertEquals("", read.readString());
+    assertEquals(ASCII, read.readString());
+    assertEquals(UNICODE, read.readString());
+    assertArrayEquals(BYTES, read.readByteArray());
+    assertArrayEquals(new byte[0], read.readByteArray());
+  }
+
+  // a creation as sent for a file system operation
+  private static byte[] writeTypical(MultiChainData data) {
+    data.writeString(ASCII);
+    data.writeInt(0644);
+    data.writeLong(4096);
+    return data.toByteArray();
+  }
+
+  private static void assertTypical(MultiChainData data) {
+    assertEquals(ASCII, data.readString());
+    assertEquals(0644, data.readInt());
+    assertEquals(4096, data.readLong());
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    final byte[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    return both;
+  }
+
+  // a transaction with a single nulldata output, as returned by getrawtransaction
+  private static RawTransaction transaction(byte[] opReturnData) {
+    final String json = "{\"txid\":\"" + TX_ID + "\",\"vout\":[{\"value\":0,\"n\":0,"
+        + "\"scriptPubKey\":{\"asm\":\"OP_RETURN " + Hex.encodeHexString(opReturnData)
+        + "\",\"type\":\"nulldata\"}}]}";
+    return new Gson().fromJson(json, RawTransaction.class);
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.Test;
+
+public class TransactionJournalTest {
+  // type, sequence, payload length and CRC32 of each entry
+  private static final int ENTRY_OVERHEAD = 1 + 8 + 4 + 4;
+
+  private static final byte[] FIRST = "first".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] SECOND = "second".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] THIRD = "third".getBytes(StandardCharsets.US_ASCII);
+
+  @Test
+  public void pendingRecordsAreReplayedInOrder() throws IOException {
+    final Path path = journalPath();
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      journal.append(FIRST);
+      journal.append(SECOND);
+    }
+
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      assertRecords(journal.pending(), FIRST, SECOND);
+    }
+  }
+
+  @Test
+  public void completedRecordIsNotReplayed() throws IOException {
+    final Path path = journalPath();
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      final TransactionJournal.Entry first = journal.append(FIRST);
+      journal.append(SECOND);
+      journal.complete(List.of(first));
+    }
+
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      assertRecords(journal.pending(), SECOND);
+    }
+  }
+
+  @Test
+  public void journalIsTruncatedOnceAllRecordsAreCompleted() throws IOException {
+    final Path path = journalPath();
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      final TransactionJournal.Entry first = journal.append(FIRST);
+      final TransactionJournal.Entry second = journal.append(SECOND);
+      journal.complete(List.of(first, second));
+      assertEquals(0, Files.size(path));
+
+      // and appending continues at the start
+      journal.append(THIRD);
+      assertEquals(ENTRY_OVERHEAD + THIRD.length, Files.size(path));
+    }
+
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      assertRecords(journal.pending(), THIRD);
+    }
+  }
+
+  @Test
+  public void tornTailIsDiscarded() throws IOException {
+    final Path path = journalPath();
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      journal.append(FIRST);
+      journal.append(SECOND);
+    }
+
+    // as if the process crashed while appending the second record
+    final long firstSize = ENTRY_OVERHEAD + FIRST.length;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.truncate(firstSize + ENTRY_OVERHEAD + SECOND.length - 3);
+    }
+
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      assertRecords(journal.pending(), FIRST);
+      assertEquals(firstSize, Files.size(path));
+
+      // appends after the discarded tail are readable again
+      journal.append(THIRD);
+    }
+
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      assertRecords(journal.pending(), FIRST, THIRD);
+    }
+  }
+
+  @Test
+  public void corruptEntryAndEverythingAfterItAreDiscarded() throws IOException {
+    final Path path = journalPath();
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      journal.append(FIRST);
+      journal.append(SECOND);
+      journal.append(THIRD);
+    }
+
+    // flip a bit in the payload of the second record, so its CRC32 does not match
+    final long secondPayload = ENTRY_OVERHEAD + FIRST.length + 1 + 8 + 4;
+    try (FileChannel channel =
+             FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final ByteBuffer octet = ByteBuffer.allocate(1);
+      channel.read(octet, secondPayload);
+      octet.put(0, (byte) (octet.get(0) ^ 1));
+      octet.rewind();
+      channel.write(octet, secondPayload);
+    }
+
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      assertRecords(journal.pending(), FIRST);
+      assertEquals(ENTRY_OVERHEAD + FIRST.length, Files.size(path));
+    }
+  }
+
+  @Test
+  public void sequencesContinueAfterReopening() throws IOException {
+    final Path path = journalPath();
+    final long sequence;
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      journal.append(FIRST);
+      sequence = journal.append(SECOND).sequence();
+    }
+
+    try (TransactionJournal journal = new TransactionJournal(path)) {
+      // a completion of the new record must not be mistaken for one of the replayed records
+      assertTrue(journal.append(THIRD).sequence() > sequence);
+    }
+  }
+
+  private static Path journalPath() throws IOException {
+    final Path directory = Files.createTempDirectory("paciofs-journal");
+    directory.toFile().deleteOnExit();
+    final Path path = directory.resolve("transactions.journal");
+    path.toFile().deleteOnExit();
+    return path;
+  }
+
+  private static void assertRecords(List<TransactionJournal.Entry> entries, byte[]... records) {
+    assertEquals(records.length, entries.size());
+    for (int i = 0; i < records.length; ++i) {
+      assertArrayEquals(records[i], entries.get(i).record());
+    }
+  }
+}
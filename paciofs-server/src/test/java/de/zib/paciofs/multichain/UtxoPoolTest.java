@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import de.zib.paciofs.multichain.rpc.MultiChainAsyncClient;
+import de.zib.paciofs.multichain.rpc.types.UnspentTransactionOutputList;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.Test;
+
+public class UtxoPoolTest {
+  private static final String ADDRESS = "1address";
+
+  private static final int PARTITIONS = 4;
+
+  private static final int THREADS = 8;
+
+  private static final int UTXOS = 10_000;
+
+  @Test
+  public void reservationCoversTheAmount() {
+    final UtxoPool pool = new UtxoPool(PARTITIONS);
+    pool.add("a", 0, ADDRESS, 10);
+    pool.add("b", 0, ADDRESS, 10);
+    pool.add("c", 0, ADDRESS, 10);
+
+    final List<UtxoPool.Utxo> reserved = pool.reserve(15);
+    assertEquals(2, reserved.size());
+    assertTrue(reserved.get(0).amount() + reserved.get(1).amount() >= 15);
+
+    // not enough left, and nothing is kept reserved for the failed attempt
+    assertNull(pool.reserve(15));
+    assertNotNull(pool.reserve(10));
+  }
+
+  @Test
+  public void releasedUtxosCanBeReservedAgain() {
+    final UtxoPool pool = new UtxoPool(PARTITIONS);
+    pool.add("a", 0, ADDRESS, 10);
+
+    final List<UtxoPool.Utxo> reserved = pool.reserve(10);
+    assertNull(pool.reserve(10));
+    assertNull(pool.reserve("a", 0));
+
+    pool.release(reserved);
+    assertNotNull(pool.reserve("a", 0));
+    assertNull(pool.reserve(10));
+  }
+
+  @Test
+  public void spentUtxosAreGone() {
+    final UtxoPool pool = new UtxoPool(PARTITIONS);
+    pool.add("a", 0, ADDRESS, 10);
+
+    pool.spend(pool.reserve(10));
+    assertEquals(0, pool.size());
+    assertEquals(1, pool.spentCount());
+    assertNull(pool.reserve(1));
+    assertNull(pool.reserve("a", 0));
+  }
+
+  @Test
+  public void concurrentReservationsNeverShareUtxos() throws InterruptedException {
+    final UtxoPool pool = new UtxoPool(PARTITIONS);
+    for (int i = 0; i < UTXOS; ++i) {
+      pool.add("tx" + i, 0, ADDRESS, 1);
+    }
+
+    final List<List<UtxoPool.Utxo>> reservations = new ArrayList<>();
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; ++t) {
+      final List<UtxoPool.Utxo> reservation = new ArrayList<>();
+      reservations.add(reservation);
+      threads.add(new Thread(() -> {
+        List<UtxoPool.Utxo> reserved;
+        int attempts = 0;
+        while ((reserved = pool.reserve(1)) != null) {
+          reservation.addAll(reserved);
+
+          // releasing some makes them contended again
+          if (++attempts % 3 == 0) {
+            final UtxoPool.Utxo last = reservation.remove(reservation.size() - 1);
+            pool.release(List.of(last));
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    final Set<String> outpoints = new HashSet<>();
+    for (List<UtxoPool.Utxo> reservation : reservations) {
+      for (UtxoPool.Utxo utxo : reservation) {
+        assertTrue(outpoints.add(utxo.txId() + ":" + utxo.vOut()));
+      }
+    }
+    assertEquals(UTXOS, outpoints.size());
+  }
+
+  @Test
+  public void reconcileAddsAndRemovesWhatChangedElsewhere() {
+    final UtxoPool pool = new UtxoPool(PARTITIONS);
+    pool.add("spent-elsewhere", 0, ADDRESS, 10);
+
+    final CompletableFuture<UnspentTransactionOutputList> unspent = new CompletableFuture<>();
+    pool.reconcileAsync(client(unspent), 0);
+    unspent.complete(unspent("created-elsewhere"));
+
+    assertEquals(1, pool.size());
+    assertNull(pool.reserve("spent-elsewhere", 0));
+    assertNotNull(pool.reserve("created-elsewhere", 0));
+  }
+
+  @Test
+  public void reconcileKeepsUtxosAddedWhileQuerying() {
+    final UtxoPool pool = new UtxoPool(PARTITIONS);
+
+    final CompletableFuture<UnspentTransactionOutputList> unspent = new CompletableFuture<>();
+    pool.reconcileAsync(client(unspent), 0);
+
+    // change of a transaction sent after the wallet was queried
+    pool.add("change", 0, ADDRESS, 10);
+    unspent.complete(unspent());
+
+    assertNotNull(pool.reserve("change", 0));
+  }
+
+  @Test
+  public void reconcileDoesNotAddUtxosSpentWhileQuerying() {
+    final UtxoPool pool = new UtxoPool(PARTITIONS);
+    pool.add("a", 0, ADDRESS, 10);
+
+    final CompletableFuture<UnspentTransactionOutputList> unspent = new CompletableFuture<>();
+    pool.reconcileAsync(client(unspent), 0);
+
+    // the wallet still reports it as unspent
+    pool.spend(pool.reserve(10));
+    unspent.complete(unspent("a"));
+
+    assertEquals(0, pool.size());
+    assertNull(pool.reserve(1));
+  }
+
+  private static MultiChainAsyncClient client(
+      CompletionStage<UnspentTransactionOutputList> unspent) {
+    return (MultiChainAsyncClient) Proxy.newProxyInstance(
+        MultiChainAsyncClient.class.getClassLoader(), new Class<?>[] {MultiChainAsyncClient.class},
+        (proxy, method, args) -> {
+          if ("listUnspent".equals(method.getName())) {
+            return unspent;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  // spendable outputs 0 of the transactions, as listed by the wallet
+  private static UnspentTransactionOutputList unspent(String... txIds) {
+    final StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < txIds.length; ++i) {
+      json.append(i > 0 ? "," : "")
+          .append("{\"txid\":\"")
+          .append(txIds[i])
+          .append("\",\"vout\":0,\"address\":\"" + ADDRESS
+              + "\",\"amount\":0.0000001,\"spendable\":true}");
+    }
+    return new Gson().fromJson(json.append("]").toString(), UnspentTransactionOutputList.class);
+  }
+}
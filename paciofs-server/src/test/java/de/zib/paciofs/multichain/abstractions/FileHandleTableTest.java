@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.abstractions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.AccessDeniedException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class FileHandleTableTest {
+  private static final int MAX_OPEN_CHANNELS = 4;
+
+  // handles opened after the restart
+  private static final int HANDLES = 1024;
+
+  private static final int MAX_HANDLES = 2 * HANDLES;
+
+  private static final int O_WRONLY = 01;
+
+  private static final int O_RDWR = 02;
+
+  private static final int O_CREAT = 0100;
+
+  @Test
+  public void handleFromBeforeRestartIsUnknown() {
+    final Inode opened = Inode.newFile(1, 1, "opened", new File("opened"), 0);
+    final Inode other = Inode.newFile(2, 1, "other", new File("other"), 0);
+
+    final FileHandleTable before = new FileHandleTable(MAX_OPEN_CHANNELS, MAX_HANDLES);
+    final long fh = before.open(opened, FileHandleTable.Access.READ);
+    assertSame(opened, before.get(fh).inode());
+
+    // the client keeps its handle while the server restarts and hands out handles to others
+    final FileHandleTable after = new FileHandleTable(MAX_OPEN_CHANNELS, MAX_HANDLES);
+    for (int i = 0; i < HANDLES; ++i) {
+      assertNotEquals(fh, after.open(other, FileHandleTable.Access.READ));
+    }
+
+    // so the old handle falls back to the path instead of resolving to another inode
+    assertNull(after.get(fh));
+  }
+
+  @Test
+  public void handleIsNeverZero() {
+    // 0 is what clients send if they did not open the file
+    final FileHandleTable table = new FileHandleTable(MAX_OPEN_CHANNELS, MAX_HANDLES);
+    assertNotEquals(0, table.open(Inode.newFile(1, 1, "file", new File("file"), 0), FileHandleTable.Access.READ));
+  }
+
+  @Test
+  public void releasedHandleIsUnknown() {
+    final FileHandleTable table = new FileHandleTable(MAX_OPEN_CHANNELS, MAX_HANDLES);
+    final long fh = table.open(Inode.newFile(1, 1, "file", new File("file"), 0), FileHandleTable.Access.READ);
+    table.release(fh);
+    assertNull(table.get(fh));
+  }
+
+  @Test
+  public void leastRecentlyUsedHandlesAreForgotten() throws InterruptedException {
+    final int maxHandles = 8;
+    final Inode inode = Inode.newFile(1, 1, "file", new File("file"), 0);
+    final FileHandleTable table = new FileHandleTable(MAX_OPEN_CHANNELS, maxHandles);
+
+    final long used = table.open(inode, FileHandleTable.Access.READ);
+    final List<Long> idle = new ArrayList<>();
+    for (int i = 1; i < maxHandles; ++i) {
+      idle.add(table.open(inode, FileHandleTable.Access.READ));
+    }
+    Thread.sleep(1);
+    assertNotNull(table.get(used));
+
+    // one more than the bound forgets the least recently used handles, but not all of them
+    final long latest = table.open(inode, FileHandleTable.Access.READ);
+    assertNotNull(table.get(used));
+    assertNotNull(table.get(latest));
+    int forgotten = 0;
+    for (long fh : idle) {
+      forgotten += table.get(fh) == null ? 1 : 0;
+    }
+    assertNotEquals(0, forgotten);
+    assertNotEquals(idle.size(), forgotten);
+  }
+
+  @Test
+  public void accessModeFollowsOpenFlags() {
+    assertEquals(FileHandleTable.Access.READ, FileHandleTable.Access.fromFlags(0));
+    assertEquals(FileHandleTable.Access.WRITE, FileHandleTable.Access.fromFlags(O_WRONLY));
+    assertEquals(FileHandleTable.Access.READ_WRITE, FileHandleTable.Access.fromFlags(O_RDWR));
+    assertEquals(
+        FileHandleTable.Access.WRITE, FileHandleTable.Access.fromFlags(O_CREAT | O_WRONLY));
+  }
+
+  @Test(expected = AccessDeniedException.class)
+  public void readOnlyHandleCannotWrite() throws IOException {
+    final File file = File.createTempFile("paciofs", null);
+    file.deleteOnExit();
+    final Inode inode = Inode.newFile(1, 1, "file", file, 0);
+    final FileHandleTable table = new FileHandleTable(MAX_OPEN_CHANNELS, MAX_HANDLES);
+
+    final FileHandleTable.Handle handle =
+        table.get(table.open(inode, FileHandleTable.Access.READ));
+    table.acquireChannel(inode, handle, FileHandleTable.Access.WRITE);
+  }
+
+  @Test(expected = NonWritableChannelException.class)
+  public void readOnlyHandleOpensReadOnlyChannel() throws IOException {
+    final File file = File.createTempFile("paciofs", null);
+    file.deleteOnExit();
+    final Inode inode = Inode.newFile(1, 1, "file", file, 0);
+    final FileHandleTable table = new FileHandleTable(MAX_OPEN_CHANNELS, MAX_HANDLES);
+
+    final FileHandleTable.Handle handle =
+        table.get(table.open(inode, FileHandleTable.Access.READ));
+    final FileHandleTable.Channel channel =
+        table.acquireChannel(inode, handle, FileHandleTable.Access.READ);
+    try {
+      channel.channel().write(ByteBuffer.allocate(1), 0);
+    } finally {
+      table.releaseChannel(channel);
+      table.clear();
+    }
+  }
+}
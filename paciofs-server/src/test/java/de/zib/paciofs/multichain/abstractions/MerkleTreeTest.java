@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019, Zuse Institute Berlin.
+ *
+ * Licensed under the New BSD License, see LICENSE file for details.
+ *
+ */
+
+package de.zib.paciofs.multichain.abstractions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import de.zib.paciofs.grpc.messages.WriteProofStep;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+public class MerkleTreeTest {
+  // covers full trees and odd numbers of hashes on several levels
+  private static final int MAX_LEAVES = 17;
+
+  @Test
+  public void singleLeafIsTheRoot() {
+    final List<byte[]> leaves = leafHashes(1);
+    final MerkleTree tree = new MerkleTree(leaves);
+
+    assertArrayEquals(leaves.get(0), tree.root());
+    assertTrue(tree.proof(0).isEmpty());
+  }
+
+  @Test
+  public void everyLeafProvesTheRoot() {
+    for (int n = 1; n <= MAX_LEAVES; ++n) {
+      final List<byte[]> leaves = leafHashes(n);
+      final MerkleTree tree = new MerkleTree(leaves);
+      for (int i = 0; i < n; ++i) {
+        assertArrayEquals(tree.root(), rootOf(leaves.get(i), tree.proof(i)));
+      }
+    }
+  }
+
+  @Test
+  public void proofDoesNotFitOtherLeaves() {
+    final List<byte[]> leaves = leafHashes(MAX_LEAVES);
+    final MerkleTree tree = new MerkleTree(leaves);
+
+    final List<WriteProofStep> proof = tree.proof(3);
+    for (int i = 0; i < leaves.size(); ++i) {
+      assertEquals(i == 3, Arrays.equals(tree.root(), rootOf(leaves.get(i), proof)));
+    }
+    assertFalse(Arrays.equals(tree.root(), rootOf(MerkleTree.leafHash(new byte[0]), proof)));
+  }
+
+  @Test
+  public void changingALeafChangesTheRoot() {
+    final List<byte[]> leaves = leafHashes(MAX_LEAVES);
+    final byte[] root = new MerkleTree(leaves).root();
+
+    leaves.set(MAX_LEAVES - 1, MerkleTree.leafHash(new byte[0]));
+    assertFalse(Arrays.equals(root, new MerkleTree(leaves).root()));
+  }
+
+  @Test
+  public void leafCannotPassForInnerNode() {
+    final List<byte[]> leaves = leafHashes(2);
+    final byte[] root = new MerkleTree(leaves).root();
+
+    // a leaf consisting of both children, hashed like an inner node without the prefix
+    final byte[] both = new byte[2 * leaves.get(0).length];
+    System.arraycopy(leaves.get(0), 0, both, 0, leaves.get(0).length);
+    System.arraycopy(leaves.get(1), 0, both, leaves.get(0).length, leaves.get(1).length);
+    assertFalse(Arrays.equals(root, MerkleTree.leafHash(both)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void treeNeedsALeaf() {
+    new MerkleTree(new ArrayList<>());
+  }
+
+  private static List<byte[]> leafHashes(int n) {
+    final List<byte[]> leaves = new ArrayList<>(n);
+    for (int i = 0; i < n; ++i) {
+      leaves.add(MerkleTree.leafHash(("write " + i).getBytes(StandardCharsets.UTF_8)));
+    }
+    return leaves;
+  }
+
+  // as a client verifies a proof
+  private static byte[] rootOf(byte[] leafHash, List<WriteProofStep> proof) {
+    byte[] hash = leafHash;
+    for (WriteProofStep step : proof) {
+      final MessageDigest digest = DigestUtils.getSha256Digest();
+      digest.update((byte) 0x01);
+      if (step.getSiblingLeft()) {
+        digest.update(step.getSibling().toByteArray());
+        digest.update(hash);
+      } else {
+        digest.update(hash);
+        digest.update(step.getSibling().toByteArray());
+      }
+      hash = digest.digest();
+    }
+    return hash;
+  }
+}